@@ -27,14 +27,19 @@
 #include "pgstat.h"
 #include "miscadmin.h"
 #include "access/genam.h"
+#include "access/heapam.h"
 #include "access/transam.h"
+#include "access/xact.h"
 #include "catalog/dependency.h"
 #include "catalog/indexing.h"
+#include "catalog/pg_index.h"
+#include "catalog/pg_inherits.h"
 #include "catalog/pg_database.h"
 #include "commands/comment.h"
 #include "commands/dbcommands.h"
 #include "commands/trigger.h"
 #include "executor/spi.h"
+#include "lib/stringinfo.h"
 #include "storage/freespace.h"
 #include "storage/proc.h"
 #include "storage/procarray.h"
@@ -42,8 +47,13 @@
 #include "utils/builtins.h"
 #include "utils/flatfiles.h"
 #include "utils/fmgroids.h"
+#include "utils/inval.h"
 #include "utils/int8.h"
 #include "utils/lsyscache.h"
+#include "utils/memutils.h"
+#include "utils/rel.h"
+#include "utils/relcache.h"
+#include "utils/syscache.h"
 
 #include <string.h>
 #include <signal.h>
@@ -62,19 +72,25 @@ PG_MODULE_MAGIC;
 #define success 1
 #define failure 0
 
-Datum serializeRow(HeapTuple new_row,HeapTuple old_row,TupleDesc desc);
+Datum serializeRow(HeapTuple new_row,HeapTuple old_row,TupleDesc desc,bool *captured);
+bool inheritanceChild(Relation rel);
+bool *keyColumns(Relation rel);
 Datum serializeCol(char *name,char *type,char *old,char *new);
 char *ConvertDatum2CString(Oid type,Datum d,bool isnull);
 char *deB64(char *s,bool *b);
 char *Datum2CString(Datum d);
 char *currentLogID(char *clusterId);
 char *currentCluster(void);
-void insertTransactionLog(char *cmd_type,char *schema,char *table,Datum row_data);
+void bufferTransactionLog(char *cmd_type,char *schema,char *table,Datum row_data);
+void flushTransactionLog(void);
+bool flushedByStatement(Relation rel,TriggerEvent event);
 Oid getTypeOid(char *typeName);
 bool colInUnique(char **uCols,int uColsCount,char *colName);
 
 PG_FUNCTION_INFO_V1(logTransactionTrigger);
 Datum logTransactionTrigger(PG_FUNCTION_ARGS);
+PG_FUNCTION_INFO_V1(flushCaptureTrigger);
+Datum flushCaptureTrigger(PG_FUNCTION_ARGS);
 PG_FUNCTION_INFO_V1(logSnapshot);
 Datum logSnapshot(PG_FUNCTION_ARGS);
 PG_FUNCTION_INFO_V1(denyAccessTrigger);
@@ -85,6 +101,8 @@ PG_FUNCTION_INFO_V1(normalMode);
 Datum normalMode(PG_FUNCTION_ARGS);
 PG_FUNCTION_INFO_V1(applyLogTransaction);
 Datum applyLogTransaction(PG_FUNCTION_ARGS);
+PG_FUNCTION_INFO_V1(currentXaction);
+Datum currentXaction(PG_FUNCTION_ARGS);
 
 #define MODE_UNSET 0
 #define MODE_NORMAL 1
@@ -97,6 +115,38 @@ static TransactionId currentXid = InvalidTransactionId;
 static bool currentClusterIdSet = false;
 static char currentClusterId[25];
 
+/* Rows captured by logTransactionTrigger() but not yet in the transaction log. They are kept in
+   TopTransactionContext, and written with one insert by flushCaptureTrigger() at the end of the
+   statement, or as soon as maxBufferedRows of them pile up */
+#define maxBufferedRows 1000
+typedef struct {
+  char cmdType[2];
+  char *tabName;
+  Datum info;
+  SubTransactionId subXid; /* Dropped if this subtransaction aborts */
+} bufferedRow;
+static bufferedRow *bufferedRows = NULL;
+static int bufferedCount = 0;
+static bool bufferCallbacksRegistered = false;
+static void bufferXactCallback(XactEvent event,void *arg);
+static void bufferSubXactCallback(SubXactEvent event,SubTransactionId mySubid,
+				  SubTransactionId parentSubid,void *arg);
+
+/* What getCapturedMask() works out about a capture trigger's table, once per trigger, kept in
+   CacheMemoryContext for the life of the backend. ALTER TABLE (including INHERIT and NO INHERIT), CREATE
+   INDEX and CREATE or DROP TRIGGER all invalidate the table's relcache entry, which drops its masks */
+typedef struct capturedMask {
+  Oid tgoid;
+  Oid relid;
+  bool *captured; /* NULL when every column is captured */
+  bool child; /* Inherits from another table, see logTransactionTrigger() */
+  struct capturedMask *next;
+} capturedMask;
+static capturedMask *getCapturedMask(Trigger *tg,Relation rel);
+static capturedMask *capturedMasks = NULL;
+static bool capturedCallbackRegistered = false;
+static void capturedInvalCallback(Datum arg,Oid relid);
+
 /* Apply an update, delete, or insert logged by logTransactionTrigger to a 
    specified table */
 Datum applyLogTransaction(PG_FUNCTION_ARGS) {
@@ -388,6 +438,7 @@ Datum logTransactionTrigger(PG_FUNCTION_ARGS) {
   TriggerData *td;
   char cmd_type[2];
   Datum row_data;
+  capturedMask *mask;
   
   /* Make sure we got called as a trigger */
   if (!CALLED_AS_TRIGGER(fcinfo))
@@ -407,17 +458,49 @@ Datum logTransactionTrigger(PG_FUNCTION_ARGS) {
   if (TRIGGER_FIRED_BY_UPDATE(td->tg_event)) cmd_type[0] = 'U';
   if (TRIGGER_FIRED_BY_DELETE(td->tg_event)) cmd_type[0] = 'D';
   cmd_type[1]='\0';
-  
 
-  /* Connect to the Server Programming Interface */
-  if (SPI_connect()<0)
-    ereport(ERROR,(errmsg_internal("SPI_connect failed in logTransaction()")));
+  mask=getCapturedMask(td->tg_trigger,td->tg_relation);
+  row_data=serializeRow(td->tg_newtuple,td->tg_trigtuple,td->tg_relation->rd_att,mask->captured);
+
+  bufferTransactionLog(cmd_type,SPI_getnspname(td->tg_relation),SPI_getrelname(td->tg_relation),row_data);
+
+  /* Without a flushCaptureTrigger() to write it at the end of the statement, write the row now. A
+     statement on a parent table fires its children's row triggers but not their statement triggers, so
+     rows of a child table are always written now, whatever triggers it has */
+  if ((bufferedCount>=maxBufferedRows) || mask->child ||
+      !flushedByStatement(td->tg_relation,td->tg_event)) {
+    /* Connect to the Server Programming Interface */
+    if (SPI_connect()<0)
+      ereport(ERROR,(errmsg_internal("SPI_connect failed in logTransaction()")));
+    flushTransactionLog();
+    SPI_finish();
+  }
+  return PointerGetDatum(NULL);
+}
 
-  row_data=serializeRow(td->tg_newtuple,td->tg_trigtuple,td->tg_relation->rd_att);
+/* Called as an AFTER ... FOR EACH STATEMENT trigger from the tables logTransactionTrigger() is on.
+   Writes the rows the statement captured to the transaction log */
+Datum flushCaptureTrigger(PG_FUNCTION_ARGS) {
+  TriggerData *td;
+
+  /* Make sure we got called as a trigger */
+  if (!CALLED_AS_TRIGGER(fcinfo))
+    ereport(ERROR,(errmsg_internal("flushCaptureTrigger() not called as trigger")));
+  td = (TriggerData *) (fcinfo->context);
 
-  insertTransactionLog(cmd_type,SPI_getnspname(td->tg_relation),SPI_getrelname(td->tg_relation),row_data);
+  /* Make sure we got fired AFTER and for EACH STATEMENT, so every row trigger of the statement has run */
+  if (!TRIGGER_FIRED_AFTER(td->tg_event))
+    ereport(ERROR,(errmsg_internal("flushCaptureTrigger() must be fired as an AFTER trigger")));
+  if (TRIGGER_FIRED_FOR_ROW(td->tg_event))
+    ereport(ERROR,(errmsg_internal("flushCaptureTrigger() must be fired as a FOR EACH STATEMENT trigger")));
 
-  SPI_finish();
+  if (bufferedCount>0) {
+    /* Connect to the Server Programming Interface */
+    if (SPI_connect()<0)
+      ereport(ERROR,(errmsg_internal("SPI_connect failed in flushCaptureTrigger()")));
+    flushTransactionLog();
+    SPI_finish();
+  }
   return PointerGetDatum(NULL);
 }
 
@@ -427,6 +510,11 @@ Datum normalMode(PG_FUNCTION_ARGS) {
   return PointerGetDatum(NULL);
 }
 
+/* Return the id of the current top level transaction. Cheaper than looking it up in pg_locks */
+Datum currentXaction(PG_FUNCTION_ARGS) {
+  return DirectFunctionCall1(int8in,DirectFunctionCall1(xidout,GetTopTransactionId()));
+}
+
 /* Permit the daemon to perform table updates, when underlying table has denyAccessTriger() */
 Datum daemonMode(PG_FUNCTION_ARGS) {
   replication_mode=MODE_DAEMON;
@@ -469,9 +557,121 @@ Datum denyAccessTrigger(PG_FUNCTION_ARGS) {
     return PointerGetDatum(tg->tg_trigtuple);
 }
 
-Datum serializeRow(HeapTuple new_row,HeapTuple old_row,TupleDesc desc) {
+/* Choose the columns logTransactionTrigger() captures, from the trigger arguments. 'include' followed by
+   column names captures only those columns, 'exclude' all but those. The columns of unique indexes are
+   always captured, as applyLogTransaction() finds rows by them, and a table without a unique index is
+   captured whole. The mask is worked out on a trigger's first row, and then kept, see capturedMasks, so
+   it must not be freed. */
+static capturedMask *getCapturedMask(Trigger *tg,Relation rel) {
+  TupleDesc desc=rel->rd_att;
+  capturedMask *mask;
+  bool *captured=NULL;
+  bool *keyCols;
+  bool include;
+  int cCol;
+  int arg;
+
+  for (mask=capturedMasks;mask!=NULL;mask=mask->next) {
+    if (mask->tgoid==tg->tgoid) return mask;
+  }
+  if (!capturedCallbackRegistered) {
+    CacheRegisterRelcacheCallback(capturedInvalCallback,(Datum) 0);
+    capturedCallbackRegistered=true;
+  }
+  if (tg->tgnargs>=2) {
+    include=(strcmp(tg->tgargs[0],"include")==0);
+    if (!include && strcmp(tg->tgargs[0],"exclude")!=0)
+      ereport(ERROR,(errmsg_internal("logTransaction() expects 'include' or 'exclude' as its first argument, not '%s'",
+				     tg->tgargs[0])));
+    keyCols=keyColumns(rel);
+    if (keyCols==NULL) {
+      ereport(DEBUG1,(errmsg_internal("%s has no unique index, capturing every column",
+				      NameStr(rel->rd_rel->relname))));
+    } else {
+      captured=(bool *) MemoryContextAlloc(CacheMemoryContext,desc->natts*sizeof(bool));
+      for (cCol=1;cCol<=desc->natts;cCol++) {
+	bool listed=false;
+	for (arg=1;arg<tg->tgnargs;arg++) {
+	  if (strcmp(tg->tgargs[arg],NameStr(desc->attrs[cCol-1]->attname))==0) listed=true;
+	}
+	captured[cCol-1]=keyCols[cCol-1] || (include ? listed : !listed);
+      }
+      pfree(keyCols);
+    }
+  }
+  mask=(capturedMask *) MemoryContextAlloc(CacheMemoryContext,sizeof(capturedMask));
+  mask->tgoid=tg->tgoid;
+  mask->relid=RelationGetRelid(rel);
+  mask->captured=captured;
+  mask->child=inheritanceChild(rel);
+  mask->next=capturedMasks;
+  capturedMasks=mask;
+  return mask;
+}
+
+/* Does rel inherit from another table? Read from pg_inherits through its index, without SPI */
+bool inheritanceChild(Relation rel) {
+  Relation inherits;
+  ScanKeyData key;
+  SysScanDesc scan;
+  bool retVal;
+
+  inherits=heap_open(InheritsRelationId,AccessShareLock);
+  ScanKeyInit(&key,Anum_pg_inherits_inhrelid,BTEqualStrategyNumber,F_OIDEQ,
+	      ObjectIdGetDatum(RelationGetRelid(rel)));
+  scan=systable_beginscan(inherits,InheritsRelidSeqnoIndexId,true,SnapshotNow,1,&key);
+  retVal=HeapTupleIsValid(systable_getnext(scan));
+  systable_endscan(scan);
+  heap_close(inherits,AccessShareLock);
+  return retVal;
+}
+
+/* Drop the column masks of a table whose relcache entry was invalidated, or of every table */
+static void capturedInvalCallback(Datum arg,Oid relid) {
+  capturedMask **link=&capturedMasks;
+
+  while (*link!=NULL) {
+    capturedMask *mask=*link;
+    if ((relid==InvalidOid) || (mask->relid==relid)) {
+      *link=mask->next;
+      if (mask->captured!=NULL) pfree(mask->captured);
+      pfree(mask);
+    } else {
+      link=&mask->next;
+    }
+  }
+}
+
+/* Mark the columns of every unique index without expressions on a relation. NULL if it has none. */
+/* The index list and index tuples come from the relcache and syscache, so no query is run per row. */
+bool *keyColumns(Relation rel) {
+  List *indexes=RelationGetIndexList(rel);
+  ListCell *lc;
+  bool *retVal=NULL;
+  int i;
+
+  foreach(lc,indexes) {
+    HeapTuple idxTuple=SearchSysCache(INDEXRELID,ObjectIdGetDatum(lfirst_oid(lc)),0,0,0);
+    Form_pg_index idx;
+    if (!HeapTupleIsValid(idxTuple)) continue;
+    idx=(Form_pg_index) GETSTRUCT(idxTuple);
+    if (idx->indisunique && heap_attisnull(idxTuple,Anum_pg_index_indexprs)) {
+      if (retVal==NULL) retVal=(bool *) palloc0(rel->rd_att->natts*sizeof(bool));
+      for (i=0;i<idx->indnatts;i++) {
+	if (idx->indkey.values[i]>0) retVal[idx->indkey.values[i]-1]=true;
+      }
+    }
+    ReleaseSysCache(idxTuple);
+  }
+  list_free(indexes);
+  return retVal;
+}
+
+/* Serialize the captured columns of a row. A NULL captured array captures every column. */
+Datum serializeRow(HeapTuple new_row,HeapTuple old_row,TupleDesc desc,bool *captured) {
   Datum retD;
   int cCol;
+  bool first=true;
   
   retD=DirectFunctionCall1(textin,PointerGetDatum(""));
 
@@ -479,6 +679,14 @@ Datum serializeRow(HeapTuple new_row,HeapTuple old_row,TupleDesc desc) {
     char *oldCC=NULL;
     char *newCC=NULL;
     if (desc->attrs[cCol-1]->attisdropped) continue;
+    /* Skipped before SPI_getvalue(), so an excluded column is never detoasted or converted */
+    if ((captured!=NULL) && !captured[cCol-1]) continue;
+    /* Not first col. Separate from the col before, which may not be cCol-1 */
+    if (!first)
+      retD=DirectFunctionCall2(textcat,
+			       retD,
+			       DirectFunctionCall1(textin,PointerGetDatum(colSep)));
+    first=false;
     if (old_row!=NULL) {
       oldCC=SPI_getvalue(old_row,desc,cCol);
     }
@@ -491,11 +699,6 @@ Datum serializeRow(HeapTuple new_row,HeapTuple old_row,TupleDesc desc) {
 					  SPI_gettype(desc,cCol),
 					  oldCC,
 					  newCC));
-    /* Not last col */
-    if (cCol<desc->natts) 
-      retD=DirectFunctionCall2(textcat,
-			       retD,
-			       DirectFunctionCall1(textin,PointerGetDatum(colSep)));
   }
   return retD;
 }
@@ -619,28 +822,132 @@ char *deB64(char *s,bool *isnull) {
   return retval;
 }
 
-/* Insert an entry into the transaction log. Safe to assume we are SPI_Connect()ed */
-void insertTransactionLog(char *cmd_type,char *schema,char *table,Datum row_data) {
-  char query[1024];
-  Oid plan_types[2];
-  Datum plan_values[2];
+/* Hold an entry for the transaction log until flushTransactionLog(). The buffer lives in
+   TopTransactionContext, so it goes away with the transaction */
+void bufferTransactionLog(char *cmd_type,char *schema,char *table,Datum row_data) {
+  MemoryContext oldContext;
+  bufferedRow *row;
+
+  if (!bufferCallbacksRegistered) {
+    RegisterXactCallback(bufferXactCallback,NULL);
+    RegisterSubXactCallback(bufferSubXactCallback,NULL);
+    bufferCallbacksRegistered=true;
+  }
+
+  oldContext=MemoryContextSwitchTo(TopTransactionContext);
+  if (bufferedRows==NULL)
+    bufferedRows=(bufferedRow *) palloc(maxBufferedRows*sizeof(bufferedRow));
+  row=&bufferedRows[bufferedCount];
+  strcpy(row->cmdType,cmd_type);
+  row->tabName=palloc(strlen(schema)+strlen(table)+2);
+  sprintf(row->tabName,"%s.%s",schema,table);
+  row->info=PointerGetDatum(DatumGetTextPCopy(row_data));
+  row->subXid=GetCurrentSubTransactionId();
+  MemoryContextSwitchTo(oldContext);
+  bufferedCount++;
+}
+
+/* Write the buffered entries to the current transaction log, with a single multi-row insert.
+   Safe to assume we are SPI_Connect()ed */
+void flushTransactionLog() {
+  StringInfoData query;
+  Oid *plan_types;
+  Datum *plan_values;
   void *plan;
+  int nParams;
+  int i;
 
-  sprintf(query,
-	  "insert into bruce.transactionlog_%s_%s (xaction,cmdtype,tabname,info) values ($1,'%s','%s.%s',$2);",
-	  currentCluster(),
-	  currentLogID(currentCluster()),
-	  cmd_type,
-	  schema,
-	  table);
-  
+  if (bufferedCount==0) return;
+
+  nParams=1+3*bufferedCount;
+  plan_types=(Oid *) palloc(nParams*sizeof(Oid));
+  plan_values=(Datum *) palloc(nParams*sizeof(Datum));
+
+  initStringInfo(&query);
+  appendStringInfo(&query,
+		   "insert into bruce.transactionlog_%s_%s (xaction,cmdtype,tabname,info) values ",
+		   currentCluster(),
+		   currentLogID(currentCluster()));
   plan_types[0]=INT8OID;
   plan_values[0]=DirectFunctionCall1(int8in,DirectFunctionCall1(xidout,GetTopTransactionId()));
-  plan_types[1]=TEXTOID;
-  plan_values[1]=row_data;
-  
-  plan=SPI_prepare(query,2,plan_types);
-  SPI_execp(plan,plan_values,NULL,0);
+  /* Rows are inserted in order, so rowid keeps the order they were captured in */
+  for (i=0;i<bufferedCount;i++) {
+    appendStringInfo(&query,"%s($1,$%d,$%d,$%d)",(i==0)?"":",",3*i+2,3*i+3,3*i+4);
+    plan_types[3*i+1]=TEXTOID;
+    plan_values[3*i+1]=DirectFunctionCall1(textin,CStringGetDatum(bufferedRows[i].cmdType));
+    plan_types[3*i+2]=TEXTOID;
+    plan_values[3*i+2]=DirectFunctionCall1(textin,CStringGetDatum(bufferedRows[i].tabName));
+    plan_types[3*i+3]=TEXTOID;
+    plan_values[3*i+3]=bufferedRows[i].info;
+  }
+
+  plan=SPI_prepare(query.data,nParams,plan_types);
+  if (plan==NULL)
+    ereport(ERROR,(errmsg_internal("SPI_prepare() failed in flushTransactionLog()")));
+  if (SPI_execp(plan,plan_values,NULL,0)!=SPI_OK_INSERT)
+    ereport(ERROR,(errmsg_internal("SPI_execp() failed in flushTransactionLog()")));
+  SPI_freeplan(plan);
+  pfree(query.data);
+  pfree(plan_types);
+  pfree(plan_values);
+
+  for (i=0;i<bufferedCount;i++) {
+    pfree(bufferedRows[i].tabName);
+    pfree(DatumGetPointer(bufferedRows[i].info));
+  }
+  bufferedCount=0;
+}
+
+/* bruce.flushcapturetrigger()'s OID, looked up the first time a statement trigger needs checking. If
+   the schema is reinstalled the stale OID matches nothing, and rows are just written right away */
+static Oid flushCaptureOid = InvalidOid;
+
+/* Does an AFTER ... FOR EACH STATEMENT flushCaptureTrigger() on rel fire for event? If not, rows
+   logTransactionTrigger() captures on rel must be written right away */
+bool flushedByStatement(Relation rel,TriggerEvent event) {
+  TriggerDesc *trigdesc=rel->trigdesc;
+  int i;
+
+  if (trigdesc==NULL) return false;
+  for (i=0;i<trigdesc->numtriggers;i++) {
+    Trigger *tg=&trigdesc->triggers[i];
+    if (TRIGGER_FOR_ROW(tg->tgtype) || TRIGGER_FOR_BEFORE(tg->tgtype)) continue;
+#if PG_VERSION_NUM >= 80300
+    if (tg->tgenabled==TRIGGER_DISABLED) continue;
+#else
+    if (!tg->tgenabled) continue;
+#endif
+    if ((TRIGGER_FIRED_BY_INSERT(event) && !TRIGGER_FOR_INSERT(tg->tgtype)) ||
+	(TRIGGER_FIRED_BY_UPDATE(event) && !TRIGGER_FOR_UPDATE(tg->tgtype)) ||
+	(TRIGGER_FIRED_BY_DELETE(event) && !TRIGGER_FOR_DELETE(tg->tgtype)))
+      continue;
+    if (!OidIsValid(flushCaptureOid))
+      flushCaptureOid=DatumGetObjectId(DirectFunctionCall1(regprocedurein,
+							   CStringGetDatum("bruce.flushcapturetrigger()")));
+    if (tg->tgfoid==flushCaptureOid) return true;
+  }
+  return false;
+}
+
+/* TopTransactionContext, and the buffer in it, is gone once the transaction ends. Every row is written
+   by the end of its statement, by flushCaptureTrigger() or by logTransactionTrigger() itself, so nothing
+   should be left here. The servers this module builds against have no pre-commit event to fail the
+   commit from, so say so loudly */
+static void bufferXactCallback(XactEvent event,void *arg) {
+  if ((event!=XACT_EVENT_ABORT) && (bufferedCount>0))
+    ereport(WARNING,(errmsg_internal("%d captured row(s) were never written to the transaction log",
+				     bufferedCount)));
+  bufferedRows=NULL;
+  bufferedCount=0;
+}
+
+/* Forget the rows captured in an aborted subtransaction, as their log inserts would have been rolled
+   back. They are at the end of the buffer, as is anything captured in its own subtransactions */
+static void bufferSubXactCallback(SubXactEvent event,SubTransactionId mySubid,
+				  SubTransactionId parentSubid,void *arg) {
+  if (event!=SUBXACT_EVENT_ABORT_SUB) return;
+  while ((bufferedCount>0) && (bufferedRows[bufferedCount-1].subXid>=mySubid))
+    bufferedCount--;
 }
 
 /* Given a type name, obtain the types OID. Safe to assume we are SPI_Connect()ed */
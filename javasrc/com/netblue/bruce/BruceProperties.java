@@ -40,12 +40,23 @@ public class BruceProperties extends Properties
      */
     private static final long serialVersionUID = 1L;
 
+    // Prefix of the properties that override others for a single cluster. Not bruce.cluster., which would
+    // collide with bruce.cluster.factory.class
+    static final String CLUSTER_PREFIX = "bruce.clusters.";
+
     public BruceProperties()
     {
         super();
         this.putAll(System.getProperties());
     }
 
+    /**
+     * Loads the properties file named by the <code>propertiesFilename</code> system property. System properties,
+     * as set with <code>-D</code> on the command line, take precedence over the file.
+     *
+     * @param propertiesFilename the system property naming the properties file
+     * @param propertiesFilenameDefault the properties file to load when that system property is not set
+     */
     public BruceProperties(String propertiesFilename, String propertiesFilenameDefault)
     {
 	this();
@@ -59,6 +70,7 @@ public class BruceProperties extends Properties
             logger.debug("Unable to load " + pfn + ". Proceding anyways.");
             logger.debug(e);
         }
+        this.putAll(System.getProperties());
     }
 
     public void logProperties()
@@ -76,6 +88,32 @@ public class BruceProperties extends Properties
     }
 
 
+    /**
+     * Gets the properties for one cluster of a daemon hosting several.  A property named
+     * <code>bruce.clusters.&lt;clusterName&gt;.&lt;name&gt;</code> overrides <code>bruce.&lt;name&gt;</code>, so
+     * that, for instance, <code>bruce.clusters.orders.snapshotFrequency</code> sets the snapshot frequency of the
+     * <code>orders</code> cluster alone.
+     *
+     * @param clusterName the name of the cluster
+     * @return a copy of these properties, with the overrides for <code>clusterName</code> applied
+     */
+    public BruceProperties forCluster(String clusterName)
+    {
+        BruceProperties retVal = new BruceProperties();
+        retVal.clear();
+        retVal.putAll(this);
+        String prefix = CLUSTER_PREFIX + clusterName + ".";
+        for (Map.Entry<Object, Object> entry : entrySet())
+        {
+            String key = entry.getKey().toString();
+            if (key.startsWith(prefix))
+            {
+                retVal.put("bruce." + key.substring(prefix.length()), entry.getValue());
+            }
+        }
+        return retVal;
+    }
+
     public int getIntProperty(String key, int d)
     {
         String vS = super.getProperty(key);
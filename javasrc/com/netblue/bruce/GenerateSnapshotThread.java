@@ -26,24 +26,85 @@ import org.apache.log4j.Logger;
 
 import javax.sql.DataSource;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import static java.text.MessageFormat.format;
 
-public class GenerateSnapshotThread implements Runnable {
+/**
+ * Periodically logs a snapshot on the master. The interval between snapshots adapts to the load on the
+ * cluster: it shrinks toward <code>bruce.snapshotMinFrequency</code> while write volume is high and the
+ * slaves are keeping up, grows toward <code>bruce.snapshotMaxFrequency</code> while the slaves lag, and
+ * otherwise drifts back to <code>bruce.snapshotFrequency</code>. A snapshot is skipped entirely when
+ * nothing has been captured since the last one, and no transaction in flight at that snapshot had
+ * captured any rows.
+ *
+ * @version $Id$
+ */
+public class GenerateSnapshotThread implements Runnable, Tunable {
     // No (accessable) empty constructor
     private GenerateSnapshotThread() {}
     
     public GenerateSnapshotThread(BruceProperties p, DataSource ds) {
+	this(p,ds,null);
+    }
+
+    /**
+     * @param p properties
+     * @param ds datasource to the master database
+     * @param slaveFactory the slaves replicating from the master, used to measure slave lag. When null,
+     *        snapshots are taken every <code>bruce.snapshotFrequency</code> as they always have been.
+     */
+    public GenerateSnapshotThread(BruceProperties p, DataSource ds, SlaveFactory slaveFactory) {
 	this.masterDS=ds;
+	this.slaveFactory=slaveFactory;
 	this.createSnapshotQuery=p.getProperty(CREATE_SNAPSHOT_QUERY_KEY,
 					       CREATE_SNAPSHOT_QUERY_DEFAULT);
 	logger.debug("createSnapshotQuery:"+this.createSnapshotQuery);
-	this.snapshotFrequency=p.getIntProperty(SNAPSHOT_FREQUENCY_KEY,
-						SNAPSHOT_FREQUENCY_DEFAULT); 
-	logger.debug("snapshotFrequency:"+this.snapshotFrequency);
+	tune(p);
+	if (slaveFactory != null) {
+	    String clusterID = slaveFactory.getCluster().getId().toString();
+	    this.rowSeqQuery=format(ROW_SEQ_QUERY,clusterID);
+	    this.snapshotIdQuery=format(SNAPSHOT_ID_QUERY,clusterID);
+	    this.logTableSelector=new LogTableSelector(slaveFactory.getCluster().getId());
+	}
+    }
+ 
+    /**
+     * Applies new snapshot frequencies, idle and busy limits, lag tolerance and retry wait. An adapted
+     * interval is kept, within the new bounds.
+     */
+    public void tune(BruceProperties p) {
+	int snapshotFrequency=p.getIntProperty(SNAPSHOT_FREQUENCY_KEY,
+					       SNAPSHOT_FREQUENCY_DEFAULT); 
+	logger.debug("snapshotFrequency:"+snapshotFrequency);
+	int minFrequency=Math.min(snapshotFrequency,p.getIntProperty(SNAPSHOT_MIN_FREQUENCY_KEY,
+								     SNAPSHOT_MIN_FREQUENCY_DEFAULT));
+	logger.debug("minFrequency:"+minFrequency);
+	int maxFrequency=Math.max(snapshotFrequency,p.getIntProperty(SNAPSHOT_MAX_FREQUENCY_KEY,
+								     SNAPSHOT_MAX_FREQUENCY_DEFAULT));
+	logger.debug("maxFrequency:"+maxFrequency);
+	this.maxIdle=p.getIntProperty(SNAPSHOT_MAX_IDLE_KEY,SNAPSHOT_MAX_IDLE_DEFAULT);
+	logger.debug("maxIdle:"+this.maxIdle);
+	this.busyRows=p.getIntProperty(SNAPSHOT_BUSY_ROWS_KEY,SNAPSHOT_BUSY_ROWS_DEFAULT);
+	logger.debug("busyRows:"+this.busyRows);
+	this.lagTolerance=Math.max(1,p.getIntProperty(SNAPSHOT_LAG_TOLERANCE_KEY,SNAPSHOT_LAG_TOLERANCE_DEFAULT));
+	logger.debug("lagTolerance:"+this.lagTolerance);
 	this.retryTimewait=p.getIntProperty(SQL_RETRY_TIMEWAIT_KEY,SQL_RETRY_TIMEWAIT_DEFAULT);
 	logger.debug("retryTimewait:"+this.retryTimewait);
+	this.snapshotFrequency=snapshotFrequency;
+	this.minFrequency=minFrequency;
+	this.maxFrequency=maxFrequency;
+	if (slaveFactory == null || interval == 0) {
+	    this.interval=snapshotFrequency;
+	} else {
+	    this.interval=Math.min(Math.max(interval,minFrequency),maxFrequency);
+	}
     }
- 
+
     public synchronized void shutdown() {
         shutdownRequested = true;
         logger.info("Shutting down Generate Snapshot Thread.");
@@ -56,7 +117,11 @@ public class GenerateSnapshotThread implements Runnable {
 		Connection c = masterDS.getConnection();
 		try { // Make sure connection gets closed
 		    c.setAutoCommit(true);
-		    c.createStatement().execute(createSnapshotQuery);
+		    if (slaveFactory == null) {
+			c.createStatement().execute(createSnapshotQuery);
+		    } else {
+			adaptiveSnapshot(c);
+		    }
 		} finally {
 		    c.close();
 		}
@@ -70,7 +135,7 @@ public class GenerateSnapshotThread implements Runnable {
 		if (sqlError) {
 		    Thread.sleep(retryTimewait);
 		} else {
-		    Thread.sleep(snapshotFrequency);
+		    Thread.sleep(interval);
 		}
 	    } catch (InterruptedException te) {
 		logger.warn("Generate Snapshot Thread was interrupted",te);
@@ -78,12 +143,159 @@ public class GenerateSnapshotThread implements Runnable {
 	}
     }
 
+    /**
+     * Logs a snapshot unless the cluster has been idle since the last one, then works out how long to
+     * wait before the next attempt.
+     */
+    private void adaptiveSnapshot(Connection c) throws SQLException {
+	Statement s = c.createStatement();
+	try {
+	    long rowSeq = queryLong(s,rowSeqQuery);
+	    long rowDelta = rowSeq - lastRowSeq;
+	    if (lastSnapshotId != null && rowDelta == 0 &&
+		(System.currentTimeMillis() - lastSnapshotTime) < maxIdle &&
+		!inFlightCaptured(c)) {
+		logger.trace("Nothing captured since snapshot "+lastSnapshotId+". Skipping snapshot.");
+		interval = nextInterval(0L,false);
+		return;
+	    }
+	    s.execute(createSnapshotQuery);
+	    lastSnapshotId = queryLong(s,snapshotIdQuery);
+	    lastSnapshotTime = System.currentTimeMillis();
+	    lastRowSeq = rowSeq;
+	    inFlightChecked = false;
+	    recentSnapshots.addLast(lastSnapshotId);
+	    while (recentSnapshots.size() > lagTolerance) {
+		recentSnapshots.removeFirst();
+	    }
+	    interval = nextInterval(rowDelta,slavesLagging());
+	    logger.trace("Snapshot "+lastSnapshotId+" logged. rowDelta:"+rowDelta+" next interval:"+interval);
+	} finally {
+	    s.close();
+	}
+    }
+
+    /**
+     * Determines if any transaction that was in flight at our last snapshot has captured rows. Such a
+     * transaction may since have committed, and the slaves will not see it until there is a newer snapshot.
+     * Once a check comes back negative, it stays negative until something else is captured.
+     */
+    private boolean inFlightCaptured(Connection c) throws SQLException {
+	if (inFlightChecked) {
+	    return false;
+	}
+	String inFlight = null;
+	PreparedStatement ps = logTableSelector.prepareSnapshotQuery(c,lastSnapshotId-1,lastSnapshotId);
+	try {
+	    ResultSet rs = ps.executeQuery();
+	    if (rs.next()) {
+		inFlight = rs.getString("outstanding_xactions");
+	    }
+	    rs.close();
+	} finally {
+	    ps.close();
+	}
+	// The first entry of the outstanding list is the snapshotting transaction itself, which captures nothing
+	ArrayList<Long> xids = new ArrayList<Long>();
+	if (inFlight != null) {
+	    String[] tidSA = inFlight.split(",");
+	    for (int i = 1; i < tidSA.length; i++) {
+		try {
+		    xids.add(new TransactionID(tidSA[i]).getLong());
+		} catch (NumberFormatException e) {} // Not numeric, ignore it
+	    }
+	}
+	boolean retVal = false;
+	if (!xids.isEmpty()) {
+	    ps = logTableSelector.prepareCapturedQuery(c,xids);
+	    try {
+		ResultSet rs = ps.executeQuery();
+		retVal = rs.next();
+		rs.close();
+	    } finally {
+		ps.close();
+	    }
+	}
+	inFlightChecked = !retVal;
+	return retVal;
+    }
+
+    /**
+     * The slaves are lagging when the slowest of them has not yet processed the oldest of our last
+     * <code>bruce.snapshotLagTolerance</code> snapshots.
+     */
+    private boolean slavesLagging() {
+	Long slowest = slaveFactory.getSlowestProcessedSnapshotId();
+	return slowest != null && recentSnapshots.size() >= lagTolerance &&
+	    slowest < recentSnapshots.getFirst();
+    }
+
+    /**
+     * Works out how long to wait before the next snapshot. Backs off while the slaves lag, speeds up
+     * while the slaves keep up and more than <code>bruce.snapshotBusyRows</code> rows were captured since
+     * the last snapshot, and otherwise drifts back toward <code>bruce.snapshotFrequency</code>.
+     *
+     * Package access so we can test it from junit.
+     *
+     * @param rowDelta number of rows captured since the last snapshot
+     * @param slavesLagging true if the slowest slave is falling behind
+     * @return the next interval, in miliseconds
+     */
+    int nextInterval(long rowDelta, boolean slavesLagging) {
+	if (slavesLagging) {
+	    return Math.min(interval * 2, maxFrequency);
+	}
+	if (rowDelta >= busyRows) {
+	    return Math.max(interval / 2, minFrequency);
+	}
+	if (interval < snapshotFrequency) {
+	    return Math.min(interval * 2, snapshotFrequency);
+	}
+	return Math.max(interval / 2, snapshotFrequency);
+    }
+
+    /**
+     * @return the current interval between snapshots, in miliseconds
+     */
+    int getInterval() {
+	return interval;
+    }
+
+    void setInterval(int interval) {
+	this.interval = interval;
+    }
+
+    private static long queryLong(Statement s, String query) throws SQLException {
+	ResultSet rs = s.executeQuery(query);
+	try {
+	    rs.next();
+	    return rs.getLong(1);
+	} finally {
+	    rs.close();
+	}
+    }
+
     private DataSource masterDS; // datasource to master database
+    private SlaveFactory slaveFactory; // slaves of the master, to measure lag
     private static final Logger logger = 
 	Logger.getLogger(GenerateSnapshotThread.class);
     private String createSnapshotQuery;
-    private int snapshotFrequency;
-    private int retryTimewait;
+    private String rowSeqQuery;
+    private String snapshotIdQuery;
+    private LogTableSelector logTableSelector;
+    private volatile int snapshotFrequency;
+    private volatile int minFrequency;
+    private volatile int maxFrequency;
+    private volatile int maxIdle;
+    private volatile int busyRows;
+    private volatile int lagTolerance;
+    private volatile int retryTimewait;
+    private volatile int interval;
+    private Long lastSnapshotId = null;
+    private long lastSnapshotTime = 0L;
+    private long lastRowSeq = 0L;
+    private boolean inFlightChecked = false;
+    private final LinkedList<Long> recentSnapshots = new LinkedList<Long>();
     private boolean shutdownRequested = false;
     private boolean sqlError = false;
 
@@ -96,7 +308,26 @@ public class GenerateSnapshotThread implements Runnable {
     // How often to try and snapshot. Not guarenteed. Likely to be several miliseconds later
     private static final String SNAPSHOT_FREQUENCY_KEY = "bruce.snapshotFrequency";
     private static final int SNAPSHOT_FREQUENCY_DEFAULT = 1000; // One second
+    // Shortest interval between snapshots while the master is busy and the slaves keep up
+    private static final String SNAPSHOT_MIN_FREQUENCY_KEY = "bruce.snapshotMinFrequency";
+    private static final int SNAPSHOT_MIN_FREQUENCY_DEFAULT = 250;
+    // Longest interval between snapshots while the slaves lag
+    private static final String SNAPSHOT_MAX_FREQUENCY_KEY = "bruce.snapshotMaxFrequency";
+    private static final int SNAPSHOT_MAX_FREQUENCY_DEFAULT = 10000; // Ten seconds
+    // Longest time to go without a snapshot, even when idle
+    private static final String SNAPSHOT_MAX_IDLE_KEY = "bruce.snapshotMaxIdle";
+    private static final int SNAPSHOT_MAX_IDLE_DEFAULT = 60000; // One minute
+    // Number of rows captured between snapshots that counts as busy
+    private static final String SNAPSHOT_BUSY_ROWS_KEY = "bruce.snapshotBusyRows";
+    private static final int SNAPSHOT_BUSY_ROWS_DEFAULT = 100;
+    // Number of our snapshots the slowest slave may trail by before we back off
+    private static final String SNAPSHOT_LAG_TOLERANCE_KEY = "bruce.snapshotLagTolerance";
+    private static final int SNAPSHOT_LAG_TOLERANCE_DEFAULT = 3;
     // How long to wait after a SQL error
     private static final String SQL_RETRY_TIMEWAIT_KEY = "bruce.snapshotSQLTimeWait";
     private static final int SQL_RETRY_TIMEWAIT_DEFAULT = 1000;
+
+    // Input for MessageFormat.format()
+    private static final String ROW_SEQ_QUERY = "select last_value from bruce.transactionlog_{0}_rowseq";
+    private static final String SNAPSHOT_ID_QUERY = "select currval(''bruce.snapshotlog_{0}_idseq'')";
 }
@@ -0,0 +1,172 @@
+/*
+ * Bruce - A PostgreSQL Database Replication System
+ *
+ * Portions Copyright (c) 2007, Connexus Corporation
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without a written
+ * agreement is hereby granted, provided that the above copyright notice and
+ * this paragraph and the following two paragraphs appear in all copies.
+ *
+ * IN NO EVENT SHALL CONNEXUS CORPORATION BE LIABLE TO ANY PARTY FOR DIRECT,
+ * INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST
+ * PROFITS, ARISING OUT OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION,
+ * EVEN IF CONNEXUS CORPORATION HAS BEEN ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * CONNEXUS CORPORATION SPECIFICALLY DISCLAIMS ANY WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE. THE SOFTWARE PROVIDED HEREUNDER IS ON AN "AS IS"
+ * BASIS, AND CONNEXUS CORPORATION HAS NO OBLIGATIONS TO PROVIDE MAINTENANCE,
+ * SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+*/
+package com.netblue.bruce;
+
+import com.netblue.bruce.cluster.Node;
+import org.apache.log4j.Logger;
+
+import javax.sql.DataSource;
+import java.sql.SQLException;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Rotates and retains the transaction and snapshot logs of every node in a cluster, the master and each
+ * slave, from a single thread. Each node gets a {@link LogSwitchHelper}, and connections come from the
+ * maintenance pools of the {@link PoolRegistry}, so maintenance never competes with replication for connections.
+ * A slave's logs are only maintained while holding its {@link SlaveRunner}'s apply lock, so they are never rotated
+ * while the slave is mid-apply.
+ * A slave that stays busy for longer than <code>bruce.logMaintenanceLockWait</code> is tried again on the
+ * next pass. Every <code>bruce.pool.statisticsInterval</code> the statistics of every pool are logged.
+ *
+ * @version $Id$
+ */
+public class LogMaintenanceThread implements Runnable, Tunable {
+    private LogMaintenanceThread() {}
+
+    public LogMaintenanceThread(BruceProperties p, SlaveFactory slaveFactory, PoolRegistry pools) {
+	this.slaveFactory=slaveFactory;
+	this.pools=pools;
+	this.masterHelper=new LogSwitchHelper(p,newDataSource(slaveFactory.getCluster().getMaster()),
+					      slaveFactory.getCluster());
+	this.masterHelper.setReplicationProgress(slaveFactory);
+	tune(p);
+    }
+
+    /**
+     * Applies new delays and statistics interval to this thread, and new rotate and retain times to the
+     * log switch helper of every node
+     */
+    public void tune(BruceProperties p) {
+	this.properties=p;
+	this.delay=p.getIntProperty(DELAY_KEY,DELAY_DEFAULT);
+	logger.debug("delay:"+this.delay);
+	this.lockWait=p.getIntProperty(LOCK_WAIT_KEY,LOCK_WAIT_DEFAULT);
+	logger.debug("lockWait:"+this.lockWait);
+	this.statisticsInterval=p.getIntProperty(STATISTICS_INTERVAL_KEY,STATISTICS_INTERVAL_DEFAULT);
+	logger.debug("statisticsInterval:"+this.statisticsInterval);
+	masterHelper.tune(p);
+	for (LogSwitchHelper helper : slaveHelpers.values()) {
+	    helper.tune(p);
+	}
+    }
+
+    public synchronized void shutdown() {
+	shutdownRequested = true;
+	logger.info("Shutting down Log Maintenance Thread.");
+    }
+
+    public void run() {
+	while (!shutdownRequested) {
+	    try {
+		if (masterHelper.isSwitchDue()) {
+		    masterHelper.doSwitch();
+		}
+	    } catch (SQLException e) {
+		logger.warn("SQLException during log maintenance on the master, continuing",e);
+	    }
+	    HashSet<Long> spawned = new HashSet<Long>();
+	    for (SlaveRunner runner : slaveFactory.getSlaveRunners()) {
+		spawned.add(runner.getNode().getId());
+		maintainSlave(runner);
+	    }
+	    // Forget slaves that have since been removed or disabled
+	    slaveHelpers.keySet().retainAll(spawned);
+	    if (statisticsInterval > 0 &&
+		System.currentTimeMillis() - lastStatistics > statisticsInterval) {
+		pools.logStatistics();
+		lastStatistics = System.currentTimeMillis();
+	    }
+	    try {
+		Thread.sleep(delay);
+	    } catch (InterruptedException e) {
+		logger.warn("Log Maintenance Thread was interrupted",e);
+	    }
+	}
+	logger.info("Log Maintenance Thread shutdown complete.");
+    }
+
+    private void maintainSlave(SlaveRunner runner) {
+	Node node = runner.getNode();
+	LogSwitchHelper helper = slaveHelpers.get(node.getId());
+	if (helper == null) {
+	    helper = new LogSwitchHelper(properties,newDataSource(node),slaveFactory.getCluster());
+	    // Downstream nodes read this slave's mirrored logs, so they must not be dropped from under them
+	    helper.setReplicationProgress(slaveFactory.getDownstreamProgress(node));
+	    slaveHelpers.put(node.getId(),helper);
+	}
+	if (!helper.isSwitchDue()) {
+	    return;
+	}
+	Lock applyLock = runner.getApplyLock();
+	try {
+	    if (!applyLock.tryLock(lockWait,TimeUnit.MILLISECONDS)) {
+		logger.debug(node.getName()+" is busy applying. Will maintain its logs on the next pass.");
+		return;
+	    }
+	} catch (InterruptedException e) {
+	    logger.warn("Interrupted waiting for "+node.getName()+" to finish applying",e);
+	    return;
+	}
+	try {
+	    helper.doSwitch();
+	} catch (SQLException e) {
+	    logger.warn("SQLException during log maintenance on "+node.getName()+", continuing",e);
+	} finally {
+	    applyLock.unlock();
+	}
+    }
+
+    private DataSource newDataSource(Node node) {
+	return pools.getDataSource(node.getUri(),PoolRegistry.Role.MAINTENANCE);
+    }
+
+    private static final Logger logger = Logger.getLogger(LogMaintenanceThread.class);
+    private volatile BruceProperties properties;
+    private SlaveFactory slaveFactory;
+    private PoolRegistry pools;
+    private LogSwitchHelper masterHelper;
+    // Tuned from other threads
+    private final Map<Long,LogSwitchHelper> slaveHelpers = new ConcurrentHashMap<Long,LogSwitchHelper>();
+    private volatile int delay;
+    private volatile int lockWait;
+    private volatile int statisticsInterval;
+    private long lastStatistics = System.currentTimeMillis();
+    private boolean shutdownRequested = false;
+
+    //
+    // Properties that drive actions for this thread
+    //
+    // How often to check whether any node's logs need maintenance
+    private static final String DELAY_KEY = "bruce.logMaintenanceDelay";
+    private static final int DELAY_DEFAULT = 1000; // One second
+    // How long to wait for a slave to finish applying before leaving it to the next pass
+    private static final String LOCK_WAIT_KEY = "bruce.logMaintenanceLockWait";
+    private static final int LOCK_WAIT_DEFAULT = 1000; // One second
+    // How often to log connection pool statistics, in miliseconds. Zero or less never does.
+    private static final String STATISTICS_INTERVAL_KEY = "bruce.pool.statisticsInterval";
+    private static final int STATISTICS_INTERVAL_DEFAULT = 300000; // Five minutes
+}
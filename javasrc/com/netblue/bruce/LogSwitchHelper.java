@@ -30,8 +30,9 @@ import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
 
-public class LogSwitchHelper {
+public class LogSwitchHelper implements Tunable {
 
     private static final Logger logger = Logger.getLogger(LogSwitchHelper.class);
     // Properties that drive actions for this thread
@@ -39,12 +40,25 @@ public class LogSwitchHelper {
     // How often to create new transaction and snapshot log tables
     private static final String ROTATE_KEY = "bruce.rotateTime";
     private static final int ROTATE_DEFAULT = 1440; // One day
+    // How many rows, or how many MB, the current transaction log table may grow to before creating new
+    // transaction and snapshot log tables. Zero or less disables the check.
+    private static final String ROTATE_ROWS_KEY = "bruce.rotateRows";
+    private static final int ROTATE_ROWS_DEFAULT = 0;
+    private static final String ROTATE_SIZE_KEY = "bruce.rotateSize";
+    private static final int ROTATE_SIZE_DEFAULT = 1024; // One GB
     // How often to retain transaction and snapshot log tables
     private static final String RETAIN_KEY = "bruce.retainTime";
     private static final int RETAIN_DEFAULT = 7200; // Five days
+    // How long to retain transaction and snapshot log tables, at least, even once every slave has processed them
+    private static final String MIN_RETAIN_KEY = "bruce.minRetainTime";
+    private static final int MIN_RETAIN_DEFAULT = 10; // Ten minutes
 
     private static final String THREAD_ITERATION_DELAY_KEY = "bruce.logSwitchDelay";
     private static final int THREAD_ITERATION_DELAY_DEFAULT = 60000;
+    // How long, in milliseconds, to wait on locks held by readers of the views or of old log tables
+    // before giving up on refreshing the views or dropping old log tables until the next pass
+    private static final String DDL_TIMEOUT_KEY = "bruce.logSwitchDDLTimeout";
+    private static final int DDL_TIMEOUT_DEFAULT = 5000;
     // Base name of Table containing row per transaction/schema log table
     // Actual table name is <base>_<cluster_id>
     private static final String CURRENT_LOG_KEY = "bruce.currentLogTableName";
@@ -55,69 +69,261 @@ public class LogSwitchHelper {
     // Name of snapshot log view. Names of tables are <viewname>_<number>
     private static final String SNAPSHOT_VIEW_NAME_KEY = "bruce.snapshotViewName";
     private static final String SNAPSHOT_VIEW_NAME_DEFAULT = "bruce.snapshotlog";
+    // Per-log-table metadata kept in the current log table. Bounds are only meaningful once sealed.
+    public static final String[] METADATA_COLUMNS = {
+            "sealed boolean not null default false",
+            "seal_xaction bigint",
+            "min_xaction bigint",
+            "max_xaction bigint",
+            "min_snapshot_id bigint",
+            "max_snapshot_id bigint"};
 
-    private final int rotateFrequency;
-    private final int retainFrequency;
+    private volatile int rotateFrequency;
+    private volatile int rotateRows;
+    private volatile int rotateSize;
+    private volatile int retainFrequency;
+    private volatile int minRetainFrequency;
     private final DataSource ds;
     private final Long clusterId;
     private final String currentLogTableName;
     private final String transactionViewName;
     private final String snapshotViewName;
-    private final long threadDelay;
+    private volatile long threadDelay;
+    private volatile int ddlTimeout;
     private long lastSwitch = 0;
+    private boolean metadataChecked = false;
+    // Another process may have rotated the log tables, so the views are refreshed at least once
+    private boolean viewsStale = true;
+    private Boolean master = null;
+    private ReplicationProgress replicationProgress = null;
 
     // Entry point for tests at a lower level than where a Cluster exists.
     // Should not be used directly by Daemon or Admin code
     public LogSwitchHelper(BruceProperties p, DataSource ds, Long id) {
 	this.clusterId=id;
         this.ds = ds;
-        rotateFrequency = p.getIntProperty(ROTATE_KEY, ROTATE_DEFAULT);
-        logger.debug("rotateFrequency: " + rotateFrequency);
-        retainFrequency = p.getIntProperty(RETAIN_KEY, RETAIN_DEFAULT);
-        logger.debug("retainFrequency: " + retainFrequency);
         currentLogTableName = p.getProperty(CURRENT_LOG_KEY, CURRENT_LOG_DEFAULT)+"_"+id.toString();
         transactionViewName = 
 	    p.getProperty(TRANSACTION_VIEW_NAME_KEY, TRANSACTION_VIEW_NAME_DEFAULT)+"_"+id.toString();
         snapshotViewName = p.getProperty(SNAPSHOT_VIEW_NAME_KEY, SNAPSHOT_VIEW_NAME_DEFAULT)+"_"+id.toString();
+        tune(p);
+    }
+
+    /**
+     * Applies new rotate and retain times, log switch delay and DDL timeout, from the next switch on
+     */
+    public void tune(BruceProperties p) {
+        rotateFrequency = p.getIntProperty(ROTATE_KEY, ROTATE_DEFAULT);
+        logger.debug("rotateFrequency: " + rotateFrequency);
+        rotateRows = p.getIntProperty(ROTATE_ROWS_KEY, ROTATE_ROWS_DEFAULT);
+        logger.debug("rotateRows: " + rotateRows);
+        rotateSize = p.getIntProperty(ROTATE_SIZE_KEY, ROTATE_SIZE_DEFAULT);
+        logger.debug("rotateSize: " + rotateSize);
+        retainFrequency = p.getIntProperty(RETAIN_KEY, RETAIN_DEFAULT);
+        logger.debug("retainFrequency: " + retainFrequency);
+        minRetainFrequency = p.getIntProperty(MIN_RETAIN_KEY, MIN_RETAIN_DEFAULT);
+        logger.debug("minRetainFrequency: " + minRetainFrequency);
         threadDelay = p.getIntProperty(THREAD_ITERATION_DELAY_KEY, THREAD_ITERATION_DELAY_DEFAULT);
+        ddlTimeout = p.getIntProperty(DDL_TIMEOUT_KEY, DDL_TIMEOUT_DEFAULT);
+        logger.debug("ddlTimeout: " + ddlTimeout);
     }
 
     public LogSwitchHelper(BruceProperties p, DataSource ds, Cluster cl) {
 	this(p,ds,cl.getId());
     }
 
+    /**
+     * @return true once doSwitch() has work to do again, false while it would return straight away
+     */
+    public boolean isSwitchDue() {
+	return (System.currentTimeMillis() - lastSwitch) > threadDelay;
+    }
+
+    // Neither the capture trigger nor the slaves read the transactionlog/snapshotlog views. The trigger writes
+    // to the newest log table listed in the current log table, and readers go through LogTableSelector, so a
+    // rotation only creates tables and adds a row, and never waits on, or blocks, either of them. The views are
+    // kept for people querying the logs by hand, and are refreshed in short transactions of their own that
+    // give up, rather than queue, behind long running queries on them.
     public void doSwitch() throws SQLException {
 	// Is it even time to try and perform a switch
-	if ((System.currentTimeMillis() - lastSwitch) > threadDelay) {
+	if (isSwitchDue()) {
 	    Connection c = ds.getConnection();
 	    try {
 		c.setAutoCommit(false);
 		Statement s=c.createStatement();
 		try {
 		    newLogTable(s);
-		    dropLogTable(s);
 		    c.commit();
+		    // Sealing must see the rotation above as committed, so it gets a transaction of its own
+		    sealLogTables(s);
+		    c.commit();
+		    ArrayList<Integer> droppable = droppableLogTables(s);
+		    c.commit();
+		    if (viewsStale || !droppable.isEmpty()) {
+			try {
+			    // The views must stop referring to a table before it can be dropped
+			    s.execute("set local statement_timeout = " + ddlTimeout);
+			    replaceViews(s, droppable);
+			    c.commit();
+			    viewsStale = false;
+			    s.execute("set local statement_timeout = " + ddlTimeout);
+			    dropLogTables(s, droppable);
+			    c.commit();
+			} catch (SQLException e) {
+			    c.rollback();
+			    logger.warn("Unable to refresh views or drop old log tables. Will retry on the next pass.", e);
+			}
+		    }
 		} finally { s.close(); }
 	    } finally { c.close(); }
 	    lastSwitch=System.currentTimeMillis();
 	}
     }
 
-    // If the rotate time has passed for the latest transaction/snapshot logs, create new tables and
-    // relevant views
+    // Make sure the current log table carries the per-log-table metadata columns. Databases built by
+    // earlier versions of the admin tool do not have them.
+    private void ensureLogMetadata(Statement s) throws SQLException
+    {
+        if (metadataChecked)
+        {
+            return;
+        }
+        ResultSet r = s.executeQuery("select count(*) from pg_attribute " +
+                " where attrelid = '" + currentLogTableName + "'::regclass " +
+                "   and attname = 'sealed' and not attisdropped");
+        r.next();
+        boolean present = r.getInt(1) > 0;
+        r.close();
+        if (!present)
+        {
+            logger.info("Adding log table metadata columns to " + currentLogTableName);
+            for (String column : METADATA_COLUMNS)
+            {
+                s.executeUpdate("alter table " + currentLogTableName + " add column " + column);
+            }
+        }
+        metadataChecked = true;
+    }
+
+    // Once no transaction can still write to a log table that has been rotated out, record the range of
+    // transaction ids and snapshot ids it holds, so that readers can skip the tables they do not need.
+    //
+    // On the master, writers that read the old current log id before the rotation committed may still be
+    // running. We note the xmax seen after the rotation (seal_xaction), and seal once xmin passes it. On a
+    // slave, the only writer is the SlaveRunner, which does not apply while its log is being rotated, so
+    // the table can be sealed straight away.
+    private void sealLogTables(Statement s) throws SQLException
+    {
+        ResultSet r = s.executeQuery("select id, seal_xaction from " + currentLogTableName +
+                " where not sealed and id != (select max(id) from " + currentLogTableName + ") order by id");
+        ArrayList<Long> ids = new ArrayList<Long>();
+        ArrayList<Long> sealXids = new ArrayList<Long>();
+        while (r.next())
+        {
+            ids.add(r.getLong(1));
+            sealXids.add(r.getObject(2) == null ? null : r.getLong(2));
+        }
+        r.close();
+        if (ids.isEmpty())
+        {
+            return;
+        }
+        long xmin = Long.MAX_VALUE;
+        long xmax = Long.MAX_VALUE;
+        if (isMaster(s))
+        {
+            r = s.executeQuery("select max(id) from " + currentLogTableName);
+            r.next();
+            String currentId = r.getString(1);
+            r.close();
+            if (sealXids.contains(null))
+            {
+                // A snapshot the snapshot thread logged to the new table may have been taken before the rotation
+                // committed, as bruce.logsnapshot() looks the table up after taking it. So the xmax we seal
+                // against comes from a snapshot of our own, once per rotation.
+                s.execute("select bruce.logsnapshot()");
+                r = s.executeQuery("select min_xaction, max_xaction from " + snapshotViewName + "_" + currentId +
+                        " where id = (select currval('" + snapshotViewName + "_idseq'))");
+            }
+            else
+            {
+                // Waiting for xmin to pass, which any later snapshot tells us
+                r = s.executeQuery("select min_xaction, max_xaction from " + snapshotViewName + "_" + currentId +
+                        " order by id desc limit 1");
+            }
+            boolean found = r.next();
+            if (found)
+            {
+                xmin = r.getLong(1);
+                xmax = r.getLong(2);
+            }
+            r.close();
+            if (!found)
+            {
+                return;
+            }
+        }
+        for (int i = 0; i < ids.size(); i++)
+        {
+            Long id = ids.get(i);
+            Long sealXid = sealXids.get(i);
+            if (sealXid == null && xmax != Long.MAX_VALUE)
+            {
+                logger.debug("Log table " + id + " can be sealed once xmin passes " + xmax);
+                s.executeUpdate("update " + currentLogTableName + " set seal_xaction = " + xmax + " where id = " + id);
+            }
+            else if (sealXid == null || xmin >= sealXid)
+            {
+                logger.info("Sealing log table " + id);
+                s.executeUpdate("update " + currentLogTableName + " set sealed = true, " +
+                        " min_xaction = (select min(xaction) from " + transactionViewName + "_" + id + "), " +
+                        " max_xaction = (select max(xaction) from " + transactionViewName + "_" + id + "), " +
+                        " min_snapshot_id = (select min(id) from " + snapshotViewName + "_" + id + "), " +
+                        " max_snapshot_id = (select max(id) from " + snapshotViewName + "_" + id + ") " +
+                        " where id = " + id);
+            }
+        }
+    }
+
+    // Is this database the master for our cluster?
+    private boolean isMaster(Statement s) throws SQLException
+    {
+        if (master == null)
+        {
+            ResultSet r = s.executeQuery("select count(*) from pg_class c, pg_namespace n " +
+                    " where c.relnamespace = n.oid and n.nspname = 'bruce' and c.relname = 'masternode'");
+            r.next();
+            boolean masterNodeTable = r.getInt(1) > 0;
+            r.close();
+            master = false;
+            if (masterNodeTable)
+            {
+                r = s.executeQuery("select count(*) from bruce.masternode where cluster_id = " + clusterId);
+                r.next();
+                master = r.getInt(1) > 0;
+                r.close();
+            }
+        }
+        return master;
+    }
+
+    // If the rotate time has passed for the latest transaction/snapshot logs, create new tables. The views
+    // are only created here when they do not exist yet. Otherwise they are refreshed later by doSwitch().
     //
     // public because we use this method in places to guarentee that at least one snapshot/transaction log
     // exists.
     public void newLogTable(Statement s) throws SQLException
     {
+        ensureLogMetadata(s);
         logger.debug("Figuring out if its time to create a new log table.");
-        ResultSet r = s.executeQuery("select now()>create_time + interval '" + rotateFrequency + " minutes'" +
+        ResultSet r = s.executeQuery("select now()>create_time + interval '" + rotateFrequency + " minutes', id" +
                 "  from " + currentLogTableName +
                 " where id = (select max(id) from " + currentLogTableName + ")");
         // 'not r.next()' covers the case where there are no transaction/snapshot logs, and we need at least one.
         // r.getBoolean(1) covers the case where we have at least one transaction/snapshot log(s), but the
         // most recent one is older than the rotate time and we need to create a new one.
-        if ((!r.next()) || r.getBoolean(1))
+        // rotateVolumeReached() covers the case where the most recent one has simply grown too big.
+        if ((!r.next()) || r.getBoolean(1) || rotateVolumeReached(s, r.getString(2)))
         {
             logger.info("Time to create a new log table.");
             s.executeUpdate("insert into " + currentLogTableName + "(create_time) values(now())");
@@ -144,8 +350,12 @@ public class LogSwitchHelper {
 			    " outstanding_xactions text, "+
 			    " update_time timestamp without time zone default now())");
 	    s.executeUpdate("grant all on "+newSnapshotTableName+" to public");
-            dropView(s);
-            newView(s);
+            viewsStale = true;
+            if (!viewExists(s, transactionViewName) || !viewExists(s, snapshotViewName))
+            {
+                // Nobody can be waiting on a view that does not exist
+                replaceViews(s, new ArrayList<Integer>());
+            }
         }
         else
         {
@@ -154,78 +364,176 @@ public class LogSwitchHelper {
         r.close();
     }
 
-    // If the retention time has passed for the oldest transaction/snapshot logs, then drop it and recreate the
-    // relevant views.
-    private void dropLogTable(Statement s) throws SQLException
+    // Has the current transaction log table grown past the rotate row count or size? Both come from
+    // statistics rather than scanning the table. The row count needs the stats collector's row level
+    // statistics, and reads as zero without them.
+    private boolean rotateVolumeReached(Statement s, String id) throws SQLException
+    {
+        if (rotateRows <= 0 && rotateSize <= 0)
+        {
+            return false;
+        }
+        String tableName = transactionViewName + "_" + id;
+        ResultSet r = s.executeQuery("select pg_total_relation_size('" + tableName + "'), " +
+                "       coalesce((select n_tup_ins from pg_stat_user_tables " +
+                "                  where schemaname = split_part('" + tableName + "','.',1) " +
+                "                    and relname = split_part('" + tableName + "','.',2)),0)");
+        r.next();
+        long size = r.getLong(1);
+        long rows = r.getLong(2);
+        r.close();
+        logger.debug(tableName + " is " + size + " bytes, with " + rows + " rows inserted.");
+        if (rotateSize > 0 && size >= rotateSize * 1024L * 1024L)
+        {
+            logger.info(tableName + " has reached the rotate size of " + rotateSize + "MB.");
+            return true;
+        }
+        if (rotateRows > 0 && rows >= rotateRows)
+        {
+            logger.info(tableName + " has reached the rotate row count of " + rotateRows + ".");
+            return true;
+        }
+        return false;
+    }
+
+    // Find the oldest transaction/snapshot log tables that are no longer needed.
+    //
+    // A table is no longer needed once it is sealed, older than the minimum retention time, and every slave
+    // has processed a snapshot beyond the highest transaction and snapshot it holds. Whatever the slaves have
+    // done, a table older than the retention time is dropped, unless a resync of some of the slave's tables has
+    // still to read it. Tables are dropped oldest first, and we never drop the only (current) table.
+    private ArrayList<Integer> droppableLogTables(Statement s) throws SQLException
     {
         logger.debug("Figureing out of its time to drop an old transaction/snapshot log table(s).");
-        // The where clause is constructed to keep us from droping the only table......
-        ResultSet r = s.executeQuery("select now() > create_time + interval '" + retainFrequency + " minutes', " +
-                "       id " +
+        Snapshot slowest = replicationProgress == null ? null : replicationProgress.getSlowestProcessedSnapshot();
+        Long pin = resyncPin(s);
+        ResultSet r = s.executeQuery("select id, " +
+                "       now() > create_time + interval '" + retainFrequency + " minutes', " +
+                "       now() > create_time + interval '" + minRetainFrequency + " minutes', " +
+                "       sealed, max_xaction, max_snapshot_id " +
                 "  from " + currentLogTableName +
-                " where id = (select min(id) from " + currentLogTableName + ") " +
-                "   and id != (select max(id) from " + currentLogTableName + ")");
-        if (r.next() && r.getBoolean(1))
+                " where id != (select max(id) from " + currentLogTableName + ") " +
+                " order by id");
+        ArrayList<Integer> droppable = new ArrayList<Integer>();
+        while (r.next())
+        {
+            int idi = r.getInt(1);
+            if (pin != null && (r.getObject(5) == null || r.getLong(5) >= pin))
+            {
+                logger.info("Keeping log table " + idi + " and newer, which a resync has yet to read from " +
+                        "transaction " + pin + " on.");
+                break;
+            }
+            boolean replicated = r.getBoolean(3) && r.getBoolean(4) && slowest != null &&
+                    (r.getObject(5) == null || r.getLong(5) < slowest.getMinXid().getLong()) &&
+                    (r.getObject(6) == null || r.getLong(6) <= slowest.getId());
+            if (replicated)
+            {
+                logger.info("Every slave has moved past log table " + idi + ".");
+            }
+            else if (r.getBoolean(2))
+            {
+                logger.warn("Log table " + idi + " is past the retention time of " + retainFrequency +
+                        " minutes, but has not been processed by every slave. Dropping it anyway.");
+            }
+            else
+            {
+                break;
+            }
+            droppable.add(idi);
+        }
+        r.close();
+        if (droppable.isEmpty())
+        {
+            logger.debug("Nope, not time yet.");
+        }
+        return droppable;
+    }
+
+    // The oldest master transaction that a resync running on this slave has yet to read from the log tables, or
+    // null if none is running. See SlaveProvisioner.
+    private Long resyncPin(Statement s) throws SQLException
+    {
+        ResultSet r = s.executeQuery("select count(*) from pg_class c, pg_namespace n " +
+                " where c.relnamespace = n.oid and n.nspname = 'bruce' and c.relname = 'resynctables'");
+        r.next();
+        boolean resyncTable = r.getInt(1) > 0;
+        r.close();
+        if (!resyncTable)
+        {
+            return null;
+        }
+        r = s.executeQuery("select min(pin_xaction) from bruce.resynctables where clusterid = " + clusterId);
+        r.next();
+        Long retVal = r.getObject(1) == null ? null : r.getLong(1);
+        r.close();
+        return retVal;
+    }
+
+    // Drop the given transaction/snapshot log tables. The views must no longer refer to them.
+    private void dropLogTables(Statement s, ArrayList<Integer> droppable) throws SQLException
+    {
+        if (droppable.isEmpty())
+        {
+            return;
+        }
+        logger.info("Time to drop old tables.");
+        for (int idi : droppable)
         {
-            logger.info("Time to drop old tables.");
-            int idi = r.getInt(2);
             String oldTransactionTableName = transactionViewName + "_" + idi;
             String oldSnapshotTableName = snapshotViewName + "_" + idi;
             logger.info("Dropping " + oldTransactionTableName + " and " + oldSnapshotTableName);
-            dropView(s);
             s.executeUpdate("drop table " + oldTransactionTableName);
             s.executeUpdate("drop table " + oldSnapshotTableName);
             s.executeUpdate("delete from " + currentLogTableName + " where id = " + idi);
-            newView(s);
-        }
-        else
-        {
-            logger.debug("Nope, not time yet.");
         }
-        r.close();
     }
 
-    private void dropView(Statement s) throws SQLException
+    /**
+     * Sets where replication progress comes from. Without it, log tables are only dropped once they pass
+     * the retention time.
+     * @param replicationProgress progress of the slaves replicating from the logs this helper maintains
+     */
+    public void setReplicationProgress(ReplicationProgress replicationProgress)
     {
-        dropView(s, transactionViewName);
-        dropView(s, snapshotViewName);
+        this.replicationProgress = replicationProgress;
     }
 
-    private void dropView(Statement s, String viewName) throws SQLException
+    private boolean viewExists(Statement s, String viewName) throws SQLException
     {
-        // Does the view even exist?
         ResultSet r = s.executeQuery("select * from pg_views " +
                 "where schemaname = split_part('" + viewName + "','.',1) " +
                 "and viewname = split_part('" + viewName + "','.',2) ");
-        if (r.next())
-        {
-            s.executeUpdate("drop view " + viewName);
-        }
+        boolean retVal = r.next();
         r.close();
+        return retVal;
     }
 
-    private void newView(Statement s) throws SQLException
+    private void replaceViews(Statement s, ArrayList<Integer> excluded) throws SQLException
     {
-        newView(s, transactionViewName);
-        newView(s, snapshotViewName);
+        replaceView(s, transactionViewName, excluded);
+        replaceView(s, snapshotViewName, excluded);
     }
 
-    // We can assume that the view does not exist
-    private void newView(Statement s, String viewName) throws SQLException
+    // Point the view at every log table, other than those about to be dropped. Replacing, rather than dropping
+    // and recreating, the view means it never goes missing for anyone querying it.
+    private void replaceView(Statement s, String viewName, ArrayList<Integer> excluded) throws SQLException
     {
-        logger.debug("Recreating view:" + viewName);
-        String createViewS = "create view " + viewName + " as ";
-        ResultSet r = s.executeQuery("select id from " + currentLogTableName);
+        logger.debug("Replacing view:" + viewName);
+        String createViewS = "create or replace view " + viewName + " as ";
+        ResultSet r = s.executeQuery("select id from " + currentLogTableName + " order by id");
+        boolean first = true;
         while (r.next())
         {
-            createViewS += "select * from " + viewName + "_" + r.getString(1);
-            if (!r.isLast())
+            if (excluded.contains(r.getInt(1)))
             {
-                createViewS += " union all ";
+                continue;
             }
+            createViewS += (first ? "" : " union all ") + "select * from " + viewName + "_" + r.getString(1);
+            first = false;
         }
-        s.executeUpdate(createViewS);
-	s.executeUpdate("grant all on "+viewName+" to public");
         r.close();
+        s.executeUpdate(createViewS);
+        s.executeUpdate("grant all on " + viewName + " to public");
     }
 }
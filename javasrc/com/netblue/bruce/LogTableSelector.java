@@ -0,0 +1,244 @@
+/*
+ * Bruce - A PostgreSQL Database Replication System
+ *
+ * Portions Copyright (c) 2007, Connexus Corporation
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without a written
+ * agreement is hereby granted, provided that the above copyright notice and
+ * this paragraph and the following two paragraphs appear in all copies.
+ *
+ * IN NO EVENT SHALL CONNEXUS CORPORATION BE LIABLE TO ANY PARTY FOR DIRECT,
+ * INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST
+ * PROFITS, ARISING OUT OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION,
+ * EVEN IF CONNEXUS CORPORATION HAS BEEN ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * CONNEXUS CORPORATION SPECIFICALLY DISCLAIMS ANY WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE. THE SOFTWARE PROVIDED HEREUNDER IS ON AN "AS IS"
+ * BASIS, AND CONNEXUS CORPORATION HAS NO OBLIGATIONS TO PROVIDE MAINTENANCE,
+ * SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+*/
+package com.netblue.bruce;
+
+import org.apache.log4j.Logger;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import static java.text.MessageFormat.format;
+
+/**
+ * Builds queries against only those physical transaction and snapshot log tables of a cluster that can hold the
+ * rows asked for, rather than against the <code>transactionlog</code> and <code>snapshotlog</code> views that
+ * union every retained log table. Relies on the per-log-table metadata that {@link LogSwitchHelper} records in
+ * the current log table. Tables that are not yet sealed are always included.
+ *
+ * @version $Id$
+ */
+public class LogTableSelector {
+    public LogTableSelector(Long clusterId) {
+	this.clusterId = clusterId.toString();
+    }
+
+    /**
+     * Prepares a query returning the transaction log rows with <code>minXid &lt;= xaction &lt; maxXid</code>.
+     *
+     * @param c connection to the database holding the logs
+     * @param minXid lowest transaction id wanted
+     * @param maxXid transaction id above the highest wanted
+     * @return a prepared statement, with all parameters bound, ready to execute
+     */
+    public PreparedStatement prepareTransactionQuery(Connection c, long minXid, long maxXid) throws SQLException {
+	return prepareTransactionQuery(c,null,minXid,maxXid);
+    }
+
+    /**
+     * As {@link #prepareTransactionQuery(Connection,long,long)}, but prepared through <code>cache</code>. The
+     * statement belongs to the cache, and must not be closed.
+     */
+    public PreparedStatement prepareTransactionQuery(StatementCache cache, long minXid, long maxXid)
+	throws SQLException {
+	return prepareTransactionQuery(cache.getConnection(),cache,minXid,maxXid);
+    }
+
+    /**
+     * As {@link #prepareTransactionQuery(Connection,long,long)}, but in rowid order, the order in which the master
+     * made the changes. Meant to be read with a fetch size, as there may be too many rows to hold at once.
+     */
+    public PreparedStatement prepareOrderedTransactionQuery(Connection c, long minXid, long maxXid)
+	throws SQLException {
+	return prepareTransactionQuery(c,null,minXid,maxXid," order by rowid");
+    }
+
+    private PreparedStatement prepareTransactionQuery(Connection c, StatementCache cache, long minXid, long maxXid)
+	throws SQLException {
+	return prepareTransactionQuery(c,cache,minXid,maxXid,"");
+    }
+
+    private PreparedStatement prepareTransactionQuery(Connection c, StatementCache cache, long minXid, long maxXid,
+						      String order)
+	throws SQLException {
+	ArrayList<Long> logIds = selectLogIds(c,cache,transactionTablesQuery,maxXid,minXid);
+	PreparedStatement ps = prepare(c,cache,union(transactionQuery,logIds,false)+order);
+	for (int i = 0; i < logIds.size(); i++) {
+	    ps.setLong(2*i+1,minXid);
+	    ps.setLong(2*i+2,maxXid);
+	}
+	return ps;
+    }
+
+    /**
+     * Prepares a query returning the snapshot log rows with <code>afterId &lt; id &lt;= throughId</code>, in id order.
+     *
+     * @param c connection to the database holding the logs
+     * @param afterId snapshot id below the lowest wanted
+     * @param throughId highest snapshot id wanted
+     * @return a prepared statement, with all parameters bound, ready to execute
+     */
+    public PreparedStatement prepareSnapshotQuery(Connection c, long afterId, long throughId) throws SQLException {
+	return prepareSnapshotQuery(c,null,afterId,throughId);
+    }
+
+    /**
+     * As {@link #prepareSnapshotQuery(Connection,long,long)}, but prepared through <code>cache</code>. The
+     * statement belongs to the cache, and must not be closed.
+     */
+    public PreparedStatement prepareSnapshotQuery(StatementCache cache, long afterId, long throughId)
+	throws SQLException {
+	return prepareSnapshotQuery(cache.getConnection(),cache,afterId,throughId);
+    }
+
+    private PreparedStatement prepareSnapshotQuery(Connection c, StatementCache cache, long afterId, long throughId)
+	throws SQLException {
+	ArrayList<Long> logIds = selectLogIds(c,cache,snapshotTablesQuery,throughId,afterId);
+	PreparedStatement ps = prepare(c,cache,union(snapshotQuery,logIds,false)+" order by id");
+	for (int i = 0; i < logIds.size(); i++) {
+	    ps.setLong(2*i+1,afterId);
+	    ps.setLong(2*i+2,throughId);
+	}
+	return ps;
+    }
+
+    /**
+     * Prepares a query returning the newest snapshot log row with an id greater than <code>afterId</code>, if any.
+     *
+     * @param c connection to the database holding the logs
+     * @param afterId snapshot id below the lowest wanted
+     * @return a prepared statement, with all parameters bound, ready to execute
+     */
+    public PreparedStatement prepareNextSnapshotQuery(Connection c, long afterId) throws SQLException {
+	return prepareNextSnapshotQuery(c,null,afterId);
+    }
+
+    /**
+     * As {@link #prepareNextSnapshotQuery(Connection,long)}, but prepared through <code>cache</code>. The
+     * statement belongs to the cache, and must not be closed.
+     */
+    public PreparedStatement prepareNextSnapshotQuery(StatementCache cache, long afterId) throws SQLException {
+	return prepareNextSnapshotQuery(cache.getConnection(),cache,afterId);
+    }
+
+    private PreparedStatement prepareNextSnapshotQuery(Connection c, StatementCache cache, long afterId)
+	throws SQLException {
+	ArrayList<Long> logIds = selectLogIds(c,cache,nextSnapshotTablesQuery,afterId);
+	PreparedStatement ps = prepare(c,cache,union(nextSnapshotQuery,logIds,true)+" order by id desc limit 1");
+	for (int i = 0; i < logIds.size(); i++) {
+	    ps.setLong(i+1,afterId);
+	}
+	return ps;
+    }
+
+    /**
+     * Prepares a query returning a single row if any of the given transactions has captured rows, and no
+     * rows otherwise.
+     *
+     * @param c connection to the database holding the logs
+     * @param xids transaction ids to look for. Must not be empty.
+     * @return a prepared statement, with all parameters bound, ready to execute
+     */
+    public PreparedStatement prepareCapturedQuery(Connection c, List<Long> xids) throws SQLException {
+	long minXid = Collections.min(xids);
+	long maxXid = Collections.max(xids);
+	ArrayList<Long> logIds = selectLogIds(c,null,transactionTablesQuery,maxXid+1,minXid);
+	StringBuilder xidList = new StringBuilder();
+	for (Long xid : xids) {
+	    xidList.append(xidList.length() == 0 ? "" : ",").append(xid);
+	}
+	return c.prepareStatement(union(format(capturedQuery,"{0}","{1}",xidList.toString()),logIds,true)+
+				  " limit 1");
+    }
+
+    private ArrayList<Long> selectLogIds(Connection c, StatementCache cache, String query, long... bounds)
+	throws SQLException {
+	ArrayList<Long> retVal = new ArrayList<Long>();
+	PreparedStatement ps = prepare(c,cache,format(query,clusterId));
+	try {
+	    for (int i = 0; i < bounds.length; i++) {
+		ps.setLong(i+1,bounds[i]);
+	    }
+	    ResultSet rs = ps.executeQuery();
+	    while (rs.next()) {
+		retVal.add(rs.getLong(1));
+	    }
+	    rs.close();
+	} finally {
+	    if (cache == null) {
+		ps.close();
+	    }
+	}
+	if (retVal.isEmpty()) {
+	    throw new SQLException("No transaction/snapshot log tables found for cluster "+clusterId);
+	}
+	logger.trace("Reading from log tables "+retVal);
+	return retVal;
+    }
+
+    private PreparedStatement prepare(Connection c, StatementCache cache, String sql) throws SQLException {
+	return cache == null ? c.prepareStatement(sql) : cache.prepareStatement(sql);
+    }
+
+    private String union(String query, ArrayList<Long> logIds, boolean parenthesize) {
+	StringBuilder sb = new StringBuilder();
+	for (Long logId : logIds) {
+	    if (sb.length() > 0) {
+		sb.append(" union all ");
+	    }
+	    sb.append(parenthesize ? "(" : "").append(format(query,clusterId,logId.toString()));
+	    sb.append(parenthesize ? ")" : "");
+	}
+	return sb.toString();
+    }
+
+    private static final Logger logger = Logger.getLogger(LogTableSelector.class);
+    private final String clusterId;
+
+    // Input for MessageFormat.format(). Unsealed tables have no bounds yet, so they always qualify.
+    // Sealed but empty tables have null bounds, and never do.
+    private static final String transactionTablesQuery =
+	"select id from bruce.currentlog_{0} "+
+	" where not sealed or (min_xaction < ? and max_xaction >= ?) order by id";
+    private static final String snapshotTablesQuery =
+	"select id from bruce.currentlog_{0} "+
+	" where not sealed or (min_snapshot_id <= ? and max_snapshot_id > ?) order by id";
+    private static final String nextSnapshotTablesQuery =
+	"select id from bruce.currentlog_{0} "+
+	" where not sealed or max_snapshot_id > ? order by id";
+    private static final String transactionQuery =
+	"select rowid,xaction,cmdtype,tabname,info from bruce.transactionlog_{0}_{1} "+
+	" where xaction >= ? and xaction < ?";
+    private static final String snapshotQuery =
+	"select id,min_xaction,max_xaction,outstanding_xactions from bruce.snapshotlog_{0}_{1} "+
+	" where id > ? and id <= ?";
+    private static final String nextSnapshotQuery =
+	"select id,min_xaction,max_xaction,outstanding_xactions from bruce.snapshotlog_{0}_{1} "+
+	" where id > ? order by id desc limit 1";
+    // Formatted twice. First with the transaction id list, leaving the table placeholders in place.
+    private static final String capturedQuery =
+	"select 1 from bruce.transactionlog_{0}_{1} where xaction in ({2}) limit 1";
+}
@@ -26,6 +26,10 @@ import com.netblue.bruce.cluster.*;
 import org.apache.log4j.*;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
 
 /**
  * The main class for the Replication engine.  This class is responsible for reading property files, setting
@@ -38,23 +42,25 @@ public class Main
 {
     /**
      * Runs the replication daemon
-     * @param args - no arguments
+     * @param args - the names of the clusters to replicate.  When none are given, the comma separated names in the
+     * <code>bruce.clusters</code> property are used.
      */
     public static void main(String[] args)
     {
         try
         {
-            if (args.length < 1 || args[0].length() == 0)
-            {
-                fatalError("Usage: startup.sh [cluster name]");
-            }
-
-	    if (args[0].equals("-v") || args[0].equals("-version")) {
+	    if (args.length > 0 && (args[0].equals("-v") || args[0].equals("-version"))) {
 		LOGGER.info("$Id$");
 		LOGGER.info("$URL$");
 		System.exit(0);
 	    }
 
+            final List<String> clusterNames = getClusterNames(args);
+            if (clusterNames.isEmpty())
+            {
+                fatalError("Usage: startup.sh [cluster name]...");
+            }
+
             try
             {
                 // Daemonize (close stdout & stderr)
@@ -71,17 +77,11 @@ public class Main
  
             // Start the main daemon process
             LOGGER.info("Starting replication...");
-            startReplicationDaemon(args[0]);
-
-	    // Log switching
-	    LogSwitchHelper lsh = new LogSwitchHelper(PROPERTIES,daemon.getMasterDataSource(),daemon.getCluster());
+            startReplicationDaemon(clusterNames);
 
             // Loop while checking for shutdown requests
             while (!isShutdownRequested()) {
-                try { 
-		    lsh.doSwitch();
-		    Thread.sleep(1000); 
-		} catch (InterruptedException e) { }
+                try { Thread.sleep(1000); } catch (InterruptedException e) { }
             }
         }
         catch (Throwable throwable)
@@ -96,6 +96,33 @@ public class Main
         System.exit(1);
     }
 
+    /**
+     * Gets the names of the clusters to replicate, from the command line or else from <code>bruce.clusters</code>
+     * @param args the command line
+     * @return the cluster names, in order, without duplicates
+     */
+    static List<String> getClusterNames(String[] args)
+    {
+        final LinkedHashSet<String> names = new LinkedHashSet<String>();
+        if (args.length > 0)
+        {
+            names.addAll(Arrays.asList(args));
+        }
+        else
+        {
+            names.addAll(Arrays.asList(PROPERTIES.getProperty(CLUSTERS_KEY, CLUSTERS_DEFAULT).split(",")));
+        }
+        final List<String> retVal = new ArrayList<String>();
+        for (String name : names)
+        {
+            if (name.trim().length() > 0)
+            {
+                retVal.add(name.trim());
+            }
+        }
+        return retVal;
+    }
+
     /**
      * Gets the PID file for the currently active daemon process.  This file may or may not exist.  If the daemon
      * is running, we can reasonably expect it to be there.
@@ -119,13 +146,16 @@ public class Main
 
     /**
      * Start the <code>ReplicationDaemon</code> in its own thread
-     * @param clusterName The name of the cluster that this daemon will operate under.
+     * @param clusterNames The names of the clusters that this daemon will operate under.
      */
-    private static void startReplicationDaemon(final String clusterName)
+    private static void startReplicationDaemon(final List<String> clusterNames)
     {
-        daemon = new ReplicationDaemon();
-        LOGGER.info("Loading cluster \"" + clusterName + "\"");
-        daemon.loadCluster(clusterName);
+        daemon = new ReplicationDaemon(PROPERTIES);
+        for (String clusterName : clusterNames)
+        {
+            LOGGER.info("Loading cluster \"" + clusterName + "\"");
+            daemon.loadCluster(clusterName);
+        }
         daemonThread = new Thread(daemon);
         LOGGER.info("Spawning daemon thread");
         daemonThread.start();
@@ -179,6 +209,9 @@ public class Main
     private static final Logger LOGGER = Logger.getLogger(Main.class);
     private static final String PROPERTIES_FILENAME_KEY = "bruce.propertiesFileName";
     private static final String PROPERTIES_FILENAME_DEFAULT = "bruce.properties";
+    // Comma separated names of the clusters to replicate, when none are named on the command line
+    private static final String CLUSTERS_KEY = "bruce.clusters";
+    private static final String CLUSTERS_DEFAULT = "";
     private static final String PID_FILE_KEY = "pid.file";
     private static final String PID_FILE_DEFAULT = "bruce.pid";
     private static final BruceProperties PROPERTIES = new BruceProperties(PROPERTIES_FILENAME_KEY, PROPERTIES_FILENAME_DEFAULT);;
@@ -0,0 +1,114 @@
+/*
+ * Bruce - A PostgreSQL Database Replication System
+ *
+ * Portions Copyright (c) 2007, Connexus Corporation
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without a written
+ * agreement is hereby granted, provided that the above copyright notice and
+ * this paragraph and the following two paragraphs appear in all copies.
+ *
+ * IN NO EVENT SHALL CONNEXUS CORPORATION BE LIABLE TO ANY PARTY FOR DIRECT,
+ * INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST
+ * PROFITS, ARISING OUT OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION,
+ * EVEN IF CONNEXUS CORPORATION HAS BEEN ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * CONNEXUS CORPORATION SPECIFICALLY DISCLAIMS ANY WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE. THE SOFTWARE PROVIDED HEREUNDER IS ON AN "AS IS"
+ * BASIS, AND CONNEXUS CORPORATION HAS NO OBLIGATIONS TO PROVIDE MAINTENANCE,
+ * SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+*/
+package com.netblue.bruce;
+
+import org.apache.commons.dbcp.BasicDataSource;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * A <code>BasicDataSource</code> that keeps track of how often connections are borrowed, how long borrowers wait
+ * for them, and how busy the pool gets.
+ *
+ * @version $Id$
+ */
+public class MeteredDataSource extends BasicDataSource {
+    public Connection getConnection() throws SQLException {
+	long start = System.nanoTime();
+	boolean ok = false;
+	try {
+	    Connection c = super.getConnection();
+	    ok = true;
+	    return c;
+	} finally {
+	    record(System.nanoTime() - start, ok);
+	}
+    }
+
+    private synchronized void record(long waitNanos, boolean ok) {
+	borrows++;
+	if (!ok) {
+	    failures++;
+	}
+	totalWaitNanos += waitNanos;
+	maxWaitNanos = Math.max(maxWaitNanos, waitNanos);
+	peakActive = Math.max(peakActive, getNumActive());
+    }
+
+    /**
+     * @return how many times a connection has been asked for
+     */
+    public synchronized long getBorrows() {
+	return borrows;
+    }
+
+    /**
+     * @return how many times a connection could not be had, for example because none became free in time
+     */
+    public synchronized long getFailures() {
+	return failures;
+    }
+
+    /**
+     * @return the average time spent waiting for a connection, in miliseconds
+     */
+    public synchronized double getAverageWaitMillis() {
+	return borrows == 0 ? 0.0 : totalWaitNanos / 1000000.0 / borrows;
+    }
+
+    /**
+     * @return the longest time spent waiting for a connection, in miliseconds
+     */
+    public synchronized double getMaxWaitMillis() {
+	return maxWaitNanos / 1000000.0;
+    }
+
+    /**
+     * @return the most connections that have been in use at once
+     */
+    public synchronized int getPeakActive() {
+	return peakActive;
+    }
+
+    /**
+     * @return the fraction of the pool's connections in use right now, or 0 for an unbounded pool
+     */
+    public double getUtilisation() {
+	int maxActive = getMaxActive();
+	return maxActive <= 0 ? 0.0 : (double) getNumActive() / maxActive;
+    }
+
+    public String toString() {
+	return getUrl()+" active:"+getNumActive()+"/"+getMaxActive()+" idle:"+getNumIdle()+
+	    " peak:"+getPeakActive()+" borrows:"+getBorrows()+" failures:"+getFailures()+
+	    " waitAvg:"+String.format("%.2f",getAverageWaitMillis())+"ms"+
+	    " waitMax:"+String.format("%.2f",getMaxWaitMillis())+"ms";
+    }
+
+    private long borrows = 0L;
+    private long failures = 0L;
+    private long totalWaitNanos = 0L;
+    private long maxWaitNanos = 0L;
+    private int peakActive = 0;
+}
@@ -0,0 +1,159 @@
+/*
+ * Bruce - A PostgreSQL Database Replication System
+ *
+ * Portions Copyright (c) 2007, Connexus Corporation
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without a written
+ * agreement is hereby granted, provided that the above copyright notice and
+ * this paragraph and the following two paragraphs appear in all copies.
+ *
+ * IN NO EVENT SHALL CONNEXUS CORPORATION BE LIABLE TO ANY PARTY FOR DIRECT,
+ * INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST
+ * PROFITS, ARISING OUT OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION,
+ * EVEN IF CONNEXUS CORPORATION HAS BEEN ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * CONNEXUS CORPORATION SPECIFICALLY DISCLAIMS ANY WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE. THE SOFTWARE PROVIDED HEREUNDER IS ON AN "AS IS"
+ * BASIS, AND CONNEXUS CORPORATION HAS NO OBLIGATIONS TO PROVIDE MAINTENANCE,
+ * SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+*/
+package com.netblue.bruce;
+
+import org.apache.log4j.Logger;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The connection pools of a process, one per node URI and role, so that however many threads work against a
+ * node, the number of backends taken on it is bounded by the sum of its role limits. Each role's limit is set
+ * by <code>bruce.pool.&lt;role&gt;.maxActive</code>, and how long to wait for a connection from a full pool by
+ * <code>bruce.pool.maxWait</code>. Pools keep statistics on their use, see {@link MeteredDataSource}.
+ *
+ * @version $Id$
+ */
+public class PoolRegistry {
+    /**
+     * What a pool's connections are used for.
+     */
+    public enum Role {
+	/** Logging snapshots on the master */
+	SNAPSHOT(1),
+	/** Reading snapshots and changes from the master */
+	FETCH(9),
+	/** Rotating and dropping log tables, on any node */
+	MAINTENANCE(1),
+	/** Applying changes to a slave */
+	APPLY(2),
+	/** Admin tool work, on any node */
+	ADMIN(8);
+
+	Role(int defaultMaxActive) {
+	    this.defaultMaxActive = defaultMaxActive;
+	}
+
+	String getKey() {
+	    return "bruce.pool."+name().toLowerCase()+".maxActive";
+	}
+
+	private final int defaultMaxActive;
+    }
+
+    public PoolRegistry(BruceProperties p) {
+	this.properties = p;
+	this.maxWait = p.getIntProperty(MAX_WAIT_KEY,MAX_WAIT_DEFAULT);
+	logger.debug("maxWait:"+maxWait);
+    }
+
+    /**
+     * Gets the pool for connections to <code>uri</code> used for <code>role</code>, creating it if need be. The
+     * pool belongs to the registry, so do not close it.
+     *
+     * @param uri JDBC URL of the node
+     * @param role what the connections are used for
+     * @return the pool
+     */
+    public synchronized MeteredDataSource getDataSource(String uri, Role role) {
+	String key = role+" "+uri;
+	MeteredDataSource ds = pools.get(key);
+	if (ds == null) {
+	    ds = new MeteredDataSource();
+	    ds.setDriverClassName(properties.getProperty("bruce.jdbcDriverName","org.postgresql.Driver"));
+	    ds.setValidationQuery(properties.getProperty("bruce.poolQuery","select now()"));
+	    ds.setUrl(uri);
+	    int maxActive = properties.getIntProperty(role.getKey(),role.defaultMaxActive);
+	    ds.setMaxActive(maxActive);
+	    ds.setMaxIdle(maxActive);
+	    ds.setMaxWait(maxWait);
+	    // Needed to reach the PostgreSQL connection, for server side prepared statements
+	    ds.setAccessToUnderlyingConnectionAllowed(true);
+	    pools.put(key,ds);
+	    logger.info("Created "+role+" pool of "+maxActive+" for "+uri+". "+
+			getMaxConnections(uri)+" connections allowed to it in all.");
+	}
+	return ds;
+    }
+
+    /**
+     * @return the most connections the pools of this registry may hold to <code>uri</code> at once
+     */
+    public synchronized int getMaxConnections(String uri) {
+	int retVal = 0;
+	for (MeteredDataSource ds : pools.values()) {
+	    if (ds.getUrl().equals(uri)) {
+		retVal += ds.getMaxActive();
+	    }
+	}
+	return retVal;
+    }
+
+    /**
+     * @return a line of statistics for each pool
+     */
+    public synchronized List<String> getStatistics() {
+	ArrayList<String> retVal = new ArrayList<String>();
+	for (Map.Entry<String,MeteredDataSource> entry : pools.entrySet()) {
+	    retVal.add(entry.getKey().substring(0,entry.getKey().indexOf(' '))+" "+entry.getValue());
+	}
+	return retVal;
+    }
+
+    /**
+     * Logs the statistics of every pool at INFO.
+     */
+    public void logStatistics() {
+	for (String line : getStatistics()) {
+	    logger.info(line);
+	}
+    }
+
+    /**
+     * Closes every pool.
+     */
+    public synchronized void close() {
+	logStatistics();
+	for (MeteredDataSource ds : pools.values()) {
+	    try {
+		ds.close();
+	    } catch (SQLException e) {
+		logger.warn("Unable to close pool for "+ds.getUrl(),e);
+	    }
+	}
+	pools.clear();
+    }
+
+    private static final Logger logger = Logger.getLogger(PoolRegistry.class);
+    private final BruceProperties properties;
+    private final int maxWait;
+    private final LinkedHashMap<String,MeteredDataSource> pools = new LinkedHashMap<String,MeteredDataSource>();
+
+    // How long to wait for a connection from a full pool, in miliseconds. Negative waits indefinitely.
+    private static final String MAX_WAIT_KEY = "bruce.pool.maxWait";
+    private static final int MAX_WAIT_DEFAULT = 30000;
+}
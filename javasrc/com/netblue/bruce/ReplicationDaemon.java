@@ -25,16 +25,29 @@ package com.netblue.bruce;
 import com.netblue.bruce.cluster.Cluster;
 import com.netblue.bruce.cluster.ClusterFactory;
 import com.netblue.bruce.cluster.ClusterInitializationException;
-import org.apache.commons.dbcp.BasicDataSource;
+import com.netblue.bruce.cluster.jdbc.CachingClusterFactory;
 import org.apache.log4j.Logger;
 
 import javax.sql.DataSource;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * <code>ReplicationDaemon</code> is the main engine of the replication process.  It is responsible for loading up the
  * cluster configuration data, spawning threads for each of the slave databases, and initializing the snapshot cache
  * (not necessarily in that order).  This class is not thread safe.  Specifically, access to and changes within the
  * <code>Cluster</code> managed by this class are not synchronized.
+ * <p>
+ * A daemon may host several clusters, each loaded with {@link #loadCluster(String)}.  The clusters share one
+ * <code>ClusterFactory</code>, one {@link PoolRegistry} and one pool of <code>bruce.slavePoolSize</code> threads
+ * to run slaves on.  Each cluster keeps its own snapshot generation, log maintenance and topology watching, driven
+ * by properties that may be overridden per cluster (see {@link BruceProperties#forCluster(String)}).  Their
+ * performance tunables may be changed while the daemon runs, see {@link Tunables}.
  *
  * @author lanceball
  * @version $Id$
@@ -49,12 +62,42 @@ public final class ReplicationDaemon implements Runnable
      */
     public ReplicationDaemon()
     {
-        properties = new BruceProperties();
+        this(new BruceProperties());
+    }
+
+    /**
+     * Creates a new <code>ReplicationDaemon</code> configured by <code>properties</code>, as loaded from the
+     * properties file by {@link Main}
+     *
+     * @param properties the properties of the daemon
+     * @throws ClusterInitializationException if the cluster factory cannot initialize
+     */
+    public ReplicationDaemon(final BruceProperties properties)
+    {
+        this.properties = properties;
+        tunables = new Tunables(properties);
+        poolRegistry = new PoolRegistry(properties);
+        // Slave threads are made daemon threads by the executor
+        slaveThreads = new ThreadGroup("slaves");
+        slaveExecutor = SlaveScheduler.newExecutor(properties, new ThreadFactory()
+        {
+            public Thread newThread(final Runnable runnable)
+            {
+                return new Thread(slaveThreads, runnable);
+            }
+        });
+        final String topologyCacheFile = properties.getProperty(TOPOLOGY_CACHE_FILE_KEY, TOPOLOGY_CACHE_FILE_DEFAULT);
+        LOGGER.debug("topologyCacheFile:" + topologyCacheFile);
         try
         {
-            clusterFactory = ClusterFactory.getClusterFactory();
-            masterDataSource.setDriverClassName(System.getProperty("bruce.jdbcDriverName", "org.postgresql.Driver"));
-            masterDataSource.setValidationQuery(System.getProperty("bruce.poolQuery", "select now()"));
+            if (topologyCacheFile.trim().length() > 0)
+            {
+                clusterFactory = new CachingClusterFactory(new File(topologyCacheFile.trim()), properties);
+            }
+            else
+            {
+                clusterFactory = ClusterFactory.getClusterFactory();
+            }
         }
         catch (Throwable throwable)
         {
@@ -65,7 +108,8 @@ public final class ReplicationDaemon implements Runnable
 
     /**
      * Loads a <code>Cluster</code> configuration named <code>clusterName</code>.  If <code>clusterName</code> does not
-     * correspond to an existing configuration, a new <code>Cluster</code> will be created.
+     * correspond to an existing configuration, a new <code>Cluster</code> will be created.  May be called once for
+     * each cluster the daemon is to host.  A cluster already loaded is left as is.
      *
      * @param clusterName
      *
@@ -74,52 +118,116 @@ public final class ReplicationDaemon implements Runnable
      */
     public void loadCluster(final String clusterName)
     {
+        // Read before the cluster, so the watcher reloads anything changed in between
+        final long version = clusterFactory.getTopologyVersion(clusterName);
         final Cluster cluster = clusterFactory.getCluster(clusterName);
-        masterDataSource.setUrl(cluster.getMaster().getUri());
-
-        // Create our SlaveFactory
-        slaveFactory = new SlaveFactory(cluster);
+        if (clusters.containsKey(cluster.getName()))
+        {
+            LOGGER.warn("Cluster \"" + cluster.getName() + "\" is already loaded");
+            return;
+        }
+        clusters.put(cluster.getName(), new ClusterReplication(cluster, version));
     }
 
     /**
-     * Gets the <code>Cluster</code> configuration that is currently active
+     * Gets the <code>Cluster</code> configuration that is currently active.  When several clusters are loaded, this
+     * is the first of them.
      *
      * @return the <code>Cluster</code> or <code>null</code> if one has not been initialized
      */
     public Cluster getCluster()
     {
-        return slaveFactory != null ? slaveFactory.getCluster() : null;
+        final ClusterReplication replication = first();
+        return replication != null ? replication.slaveFactory.getCluster() : null;
+    }
+
+    /**
+     * Gets a <code>Cluster</code> configuration hosted by this daemon
+     *
+     * @param clusterName the name of the cluster
+     * @return the <code>Cluster</code> or <code>null</code> if it has not been loaded
+     */
+    public Cluster getCluster(final String clusterName)
+    {
+        final ClusterReplication replication = clusters.get(clusterName);
+        return replication != null ? replication.slaveFactory.getCluster() : null;
+    }
+
+    /**
+     * Gets every <code>Cluster</code> configuration hosted by this daemon, in the order they were loaded
+     *
+     * @return the clusters - never null
+     */
+    public Collection<Cluster> getClusters()
+    {
+        final ArrayList<Cluster> retVal = new ArrayList<Cluster>();
+        for (ClusterReplication replication : clusters.values())
+        {
+            retVal.add(replication.slaveFactory.getCluster());
+        }
+        return retVal;
+    }
+
+    /**
+     * Gets the progress of the slaves replicating the currently loaded cluster, the first when several are loaded
+     *
+     * @return the replication progress, or <code>null</code> if no cluster has been loaded
+     */
+    public ReplicationProgress getReplicationProgress()
+    {
+        final ClusterReplication replication = first();
+        return replication != null ? replication.slaveFactory : null;
     }
 
     public DataSource getMasterDataSource() {
-	return (DataSource) masterDataSource;
+        final ClusterReplication replication = first();
+        return replication != null ? replication.masterDataSource : null;
+    }
+
+    /**
+     * Gets the connection pools used by this daemon
+     *
+     * @return the pool registry
+     */
+    public PoolRegistry getPoolRegistry()
+    {
+        return poolRegistry;
     }
     
     /**
-     * Starts the replication process for the currently loaded {@link com.netblue.bruce.cluster.Cluster}.  If no
+     * Starts the replication process for every loaded {@link com.netblue.bruce.cluster.Cluster}.  If no
      * <code>Cluster</code> has been loaded, throws {@link com.netblue.bruce.cluster.ClusterInitializationException}
      */
     public void run()
     {
-        if (slaveFactory == null)
+        if (clusters.isEmpty())
         {
             throw new ClusterInitializationException("Cannot run replication daemon without a valid cluster configuration and snapshot cache");
         }
-	generateSnapshotRunner = new GenerateSnapshotThread(properties, masterDataSource);
-	generateSnapshotThread = new Thread(generateSnapshotRunner,"GenerateSnapshot");
-	generateSnapshotThread.start();
-        slaves = slaveFactory.spawnSlaves();
+        for (ClusterReplication replication : clusters.values())
+        {
+            replication.start();
+        }
+        tunables.registerMBean();
+        tunablesThread = new Thread(tunables, "Tunables");
+        tunablesThread.setDaemon(true);
+        tunablesThread.start();
     }
 
     /**
-     * Returns the number of active slaves for the current cluster.  If the daemon is not currently initialized with a
+     * Returns the number of active slaves for the loaded clusters.  If the daemon is not currently initialized with a
      * cluster, returns 0.
      *
-     * @return The number of active slaves for the current cluster.
+     * @return The number of active slaves for the loaded clusters.
      */
     public int getActiveSlaveCount()
     {
-        return slaves.activeCount();
+        int retVal = 0;
+        for (ClusterReplication replication : clusters.values())
+        {
+            retVal += replication.slaveFactory.getSlaveRunners().size();
+        }
+        return retVal;
     }
 
     /**
@@ -127,24 +235,119 @@ public final class ReplicationDaemon implements Runnable
      */
     public void shutdown()
     {
-	try {
-	    if (generateSnapshotThread != null) {
-                generateSnapshotRunner.shutdown();
-                generateSnapshotThread.join();
-	    }
-	} catch (InterruptedException e) { }
-	if (slaveFactory != null) {
-	    slaveFactory.shutdown();
-	}
+        if (tunablesThread != null)
+        {
+            tunables.shutdown();
+            tunablesThread.interrupt();
+            tunables.unregisterMBean();
+        }
+        for (ClusterReplication replication : clusters.values())
+        {
+            replication.shutdown();
+        }
+        slaveExecutor.shutdown();
+        try
+        {
+            slaveExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e) { }
+        poolRegistry.close();
+    }
+
+    private ClusterReplication first()
+    {
+        return clusters.isEmpty() ? null : clusters.values().iterator().next();
     }
 
+    /**
+     * The threads replicating one of the clusters hosted by the daemon
+     */
+    private class ClusterReplication
+    {
+        ClusterReplication(final Cluster cluster, final long topologyVersion)
+        {
+            this.topologyVersion = topologyVersion;
+            clusterProperties = properties.forCluster(cluster.getName());
+            masterDataSource = poolRegistry.getDataSource(cluster.getMaster().getUri(), PoolRegistry.Role.SNAPSHOT);
+            slaveFactory = new SlaveFactory(cluster, poolRegistry, clusterProperties, slaveExecutor);
+        }
 
-    private ThreadGroup slaves;
-    private SlaveFactory slaveFactory;
-    private Thread generateSnapshotThread;
-    private GenerateSnapshotThread generateSnapshotRunner;
+        void start()
+        {
+            final String name = slaveFactory.getCluster().getName();
+            generateSnapshotRunner = new GenerateSnapshotThread(clusterProperties, masterDataSource, slaveFactory);
+            tunables.register(name, generateSnapshotRunner);
+            generateSnapshotThread = new Thread(generateSnapshotRunner, threadName("GenerateSnapshot", name));
+            generateSnapshotThread.start();
+            tunables.register(name, slaveFactory);
+            slaveFactory.spawnSlaves();
+            logMaintenanceRunner = new LogMaintenanceThread(clusterProperties, slaveFactory, poolRegistry);
+            tunables.register(name, logMaintenanceRunner);
+            logMaintenanceThread = new Thread(logMaintenanceRunner, threadName("LogMaintenance", name));
+            logMaintenanceThread.start();
+            topologyWatcher = new TopologyWatcher(clusterProperties, clusterFactory, slaveFactory, topologyVersion);
+            topologyWatcherThread = slaveFactory.newThread(topologyWatcher);
+            topologyWatcherThread.setName(threadName("TopologyWatcher", name));
+            topologyWatcherThread.start();
+        }
+
+        void shutdown()
+        {
+            try
+            {
+                if (topologyWatcherThread != null)
+                {
+                    topologyWatcher.shutdown();
+                    topologyWatcherThread.interrupt();
+                    topologyWatcherThread.join();
+                }
+                if (generateSnapshotThread != null)
+                {
+                    generateSnapshotRunner.shutdown();
+                    generateSnapshotThread.join();
+                }
+                if (logMaintenanceThread != null)
+                {
+                    logMaintenanceRunner.shutdown();
+                    logMaintenanceThread.join();
+                }
+            }
+            catch (InterruptedException e) { }
+            tunables.unregister(generateSnapshotRunner);
+            tunables.unregister(logMaintenanceRunner);
+            tunables.unregister(slaveFactory);
+            slaveFactory.shutdown();
+        }
+
+        // Threads of a lone cluster keep their familiar names
+        private String threadName(final String name, final String clusterName)
+        {
+            return clusters.size() > 1 ? name + "-" + clusterName : name;
+        }
+
+        private final BruceProperties clusterProperties;
+        private final DataSource masterDataSource;
+        private final SlaveFactory slaveFactory;
+        private Thread generateSnapshotThread;
+        private GenerateSnapshotThread generateSnapshotRunner;
+        private Thread logMaintenanceThread;
+        private LogMaintenanceThread logMaintenanceRunner;
+        private Thread topologyWatcherThread;
+        private TopologyWatcher topologyWatcher;
+        private final long topologyVersion;
+    }
+
+    private final LinkedHashMap<String, ClusterReplication> clusters = new LinkedHashMap<String, ClusterReplication>();
     private final BruceProperties properties;
+    private final Tunables tunables;
+    private Thread tunablesThread;
     private final ClusterFactory clusterFactory;
-    private final BasicDataSource masterDataSource = new BasicDataSource();
+    private final PoolRegistry poolRegistry;
+    private final ThreadGroup slaveThreads;
+    private final ExecutorService slaveExecutor;
     private static final Logger LOGGER = Logger.getLogger(ReplicationDaemon.class);
+
+    // Local copy of the cluster topology, used to start without the configuration database. Empty to disable.
+    private static final String TOPOLOGY_CACHE_FILE_KEY = "bruce.topologyCacheFile";
+    private static final String TOPOLOGY_CACHE_FILE_DEFAULT = "";
 }
@@ -0,0 +1,206 @@
+/*
+ * Bruce - A PostgreSQL Database Replication System
+ *
+ * Portions Copyright (c) 2007, Connexus Corporation
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without a written
+ * agreement is hereby granted, provided that the above copyright notice and
+ * this paragraph and the following two paragraphs appear in all copies.
+ *
+ * IN NO EVENT SHALL CONNEXUS CORPORATION BE LIABLE TO ANY PARTY FOR DIRECT,
+ * INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST
+ * PROFITS, ARISING OUT OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION,
+ * EVEN IF CONNEXUS CORPORATION HAS BEEN ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * CONNEXUS CORPORATION SPECIFICALLY DISCLAIMS ANY WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE. THE SOFTWARE PROVIDED HEREUNDER IS ON AN "AS IS"
+ * BASIS, AND CONNEXUS CORPORATION HAS NO OBLIGATIONS TO PROVIDE MAINTENANCE,
+ * SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+*/
+package com.netblue.bruce;
+
+import org.apache.commons.dbcp.DelegatingConnection;
+import org.apache.log4j.Logger;
+import org.postgresql.PGConnection;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Statement;
+
+/**
+ * The master and slave connections a {@link SlaveRunner} replicates over. Rather than being borrowed from their
+ * pools for every poll, each connection is borrowed once and kept, along with a {@link StatementCache} of the
+ * statements run on it, until something goes wrong. After an error, {@link #invalidate()} returns both to their
+ * pools, and the next use borrows (and so validates) fresh ones.
+ * <p>
+ * Both connections run with auto commit off. The master transaction should be ended with
+ * {@link #endMasterTransaction()} after each poll, so that no snapshot is held open on the master between polls.
+ *
+ * @version $Id$
+ */
+public class ReplicationSession {
+    /**
+     * @param masterDataSource pool to borrow the master connection from
+     * @param slaveDataSource pool to borrow the slave connection from
+     * @param slaveSetup statements run, and committed, each time a slave connection is borrowed. Statements
+     * that fail are skipped, as the pooled connection may already have been set up.
+     * @param cacheSize how many statements to cache per connection
+     */
+    public ReplicationSession(DataSource masterDataSource, DataSource slaveDataSource, String[] slaveSetup,
+			      int cacheSize) {
+	this.masterDataSource = masterDataSource;
+	this.slaveDataSource = slaveDataSource;
+	this.slaveSetup = slaveSetup;
+	this.cacheSize = cacheSize;
+    }
+
+    /**
+     * @return the statements of the master connection, borrowing the connection first if need be
+     */
+    public StatementCache getMaster() throws SQLException {
+	if (master == null) {
+	    Connection c = masterDataSource.getConnection();
+	    c.setAutoCommit(false);
+	    master = new StatementCache(c,cacheSize);
+	    logger.debug("Borrowed master connection");
+	}
+	return master;
+    }
+
+    /**
+     * @return the statements of the slave connection, borrowing and setting up the connection first if need be
+     */
+    public StatementCache getSlave() throws SQLException {
+	if (slave == null) {
+	    Connection c = slaveDataSource.getConnection();
+	    try {
+		if (c instanceof DelegatingConnection) {
+		    // Use server side prepared statements
+		    PGConnection pgc = (PGConnection) ((DelegatingConnection) c).getInnermostDelegate();
+		    pgc.setPrepareThreshold(1);
+		}
+		c.setAutoCommit(false);
+		Statement s = c.createStatement();
+		try {
+		    for (String setup : slaveSetup) {
+			// A pooled connection may have been set up before, for example with a temporary table
+			// that is still there
+			Savepoint sp = c.setSavepoint();
+			try {
+			    s.execute(setup);
+			} catch (SQLException e) {
+			    logger.debug("Slave connection already set up for: "+setup,e);
+			    c.rollback(sp);
+			}
+		    }
+		    ResultSet rs = s.executeQuery(currentXactionFunctionQuery);
+		    rs.next();
+		    transactionIdQuery = rs.getInt(1) > 0 ? currentXactionQuery : pgLocksTransactionIdQuery;
+		    rs.close();
+		} finally {
+		    s.close();
+		}
+		c.commit();
+	    } catch (SQLException e) {
+		close(c);
+		throw e;
+	    }
+	    slave = new StatementCache(c,cacheSize);
+	    logger.debug("Borrowed slave connection");
+	}
+	return slave;
+    }
+
+    /**
+     * Ends the current master transaction, if there is one. Nothing is written on the master, so it is
+     * simply rolled back.
+     */
+    public void endMasterTransaction() throws SQLException {
+	if (master != null) {
+	    master.getConnection().rollback();
+	}
+    }
+
+    /**
+     * @return the id of the transaction currently open on the slave connection
+     */
+    public long getSlaveTransactionId() throws SQLException {
+	PreparedStatement ps = getSlave().prepareStatement(transactionIdQuery);
+	ResultSet rs = ps.executeQuery();
+	try {
+	    if (rs.next()) {
+		return rs.getLong(1);
+	    }
+	    logger.error("Unable to determine current transactionID");
+	    return -1L;
+	} finally {
+	    rs.close();
+	}
+    }
+
+    /**
+     * Returns the master connection to its pool, along with its statements. The next use borrows another.
+     */
+    public void releaseMaster() {
+	if (master != null) {
+	    master.close();
+	    close(master.getConnection());
+	    master = null;
+	}
+    }
+
+    /**
+     * Returns both connections to their pools after an error. Anything uncommitted is lost.
+     */
+    public void invalidate() {
+	logger.debug("Invalidating replication session");
+	close();
+    }
+
+    /**
+     * Returns both connections to their pools.
+     */
+    public void close() {
+	releaseMaster();
+	if (slave != null) {
+	    slave.close();
+	    close(slave.getConnection());
+	    slave = null;
+	}
+    }
+
+    private void close(Connection c) {
+	try {
+	    if (!c.getAutoCommit()) {
+		c.rollback();
+	    }
+	} catch (SQLException e) {} // Connection is probably broken. The pool will find out on validation.
+	try {
+	    c.close();
+	} catch (SQLException e) {} // Probably already closed.
+    }
+
+    private static final Logger logger = Logger.getLogger(ReplicationSession.class);
+    private final DataSource masterDataSource;
+    private final DataSource slaveDataSource;
+    private final String[] slaveSetup;
+    private final int cacheSize;
+    private StatementCache master;
+    private StatementCache slave;
+    private String transactionIdQuery;
+
+    // bruce.currentxaction() is cheap, but databases set up by earlier versions of the admin tool lack it
+    private static final String currentXactionFunctionQuery =
+	"select count(*) from pg_proc p, pg_namespace n "+
+	" where p.pronamespace = n.oid and n.nspname = 'bruce' and p.proname = 'currentxaction'";
+    private static final String currentXactionQuery = "select bruce.currentxaction()";
+    private static final String pgLocksTransactionIdQuery =
+	"select transaction from pg_locks where pid = pg_backend_pid() and locktype = 'transactionid'";
+}
@@ -23,21 +23,29 @@
 package com.netblue.bruce;
 
 import com.netblue.bruce.cluster.Cluster;
+import com.netblue.bruce.cluster.ClusterChangeListener;
 import com.netblue.bruce.cluster.Node;
-import org.apache.commons.dbcp.BasicDataSource;
 import org.apache.log4j.Logger;
 
+import javax.sql.DataSource;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ThreadFactory;
 
 /**
- * A simple factory class to create <code>Thread</code>s for the slave nodes.
+ * A simple factory class to create <code>SlaveRunner</code>s for the slave nodes, and schedule them on a
+ * {@link SlaveScheduler}. The scheduler's threads belong to the <code>ThreadGroup</code> managed by this factory.
+ * The factory listens for changes to its <code>Cluster</code>, and starts or stops the runners of slaves that are
+ * added, removed, enabled or disabled while the daemon is running.
  * @author lanceball  
  * @version $Id$
  */
-public class SlaveFactory implements ThreadFactory
+public class SlaveFactory implements ThreadFactory, ReplicationProgress, ClusterChangeListener, Tunable
 {
     /**
      * Creates a new <code>SlaveFactory</code> capable of spawning slaves for each slave {@link Node} in <code>cluster</code> 
@@ -45,19 +53,49 @@ public class SlaveFactory implements ThreadFactory
      * @param cluster the cluster configuration for the slaves
      */
     public SlaveFactory(final Cluster cluster)
+    {
+        this(cluster, null);
+    }
+
+    /**
+     * Creates a new <code>SlaveFactory</code> capable of spawning slaves for each slave {@link Node} in <code>cluster</code>,
+     * taking connections from <code>poolRegistry</code>
+     *
+     * @param cluster the cluster configuration for the slaves
+     * @param poolRegistry the pools to take connections from. If null, the factory creates and closes pools of its own.
+     */
+    public SlaveFactory(final Cluster cluster, final PoolRegistry poolRegistry)
+    {
+        this(cluster, poolRegistry, new BruceProperties(), null);
+    }
+
+    /**
+     * Creates a new <code>SlaveFactory</code> for one of several clusters hosted by a daemon, scheduling its slaves
+     * on a pool shared with the other clusters
+     *
+     * @param cluster the cluster configuration for the slaves
+     * @param poolRegistry the pools to take connections from. If null, the factory creates and closes pools of its own.
+     * @param properties the properties of the cluster
+     * @param executor the pool to run slaves on. If null, the factory's scheduler creates a pool of its own.
+     */
+    public SlaveFactory(final Cluster cluster, final PoolRegistry poolRegistry, final BruceProperties properties,
+                        final ExecutorService executor)
     {
         if (cluster == null)
         {
             throw new IllegalArgumentException("Cluster cannot be null");
         }
         this.cluster = cluster;
+        this.properties = properties;
         threadGroup = new ThreadGroup(this.cluster.getName());
         threadGroup.setDaemon(true);
 
-        masterDataSource = new BasicDataSource();
-        masterDataSource.setUrl(cluster.getMaster().getUri());
-        masterDataSource.setDriverClassName(System.getProperty("bruce.jdbcDriverName", "org.postgresql.Driver"));
-        masterDataSource.setValidationQuery(System.getProperty("bruce.poolQuery", "select now()"));
+        ownPoolRegistry = poolRegistry == null;
+        this.poolRegistry = ownPoolRegistry ? new PoolRegistry(properties) : poolRegistry;
+        final DataSource masterDataSource =
+                this.poolRegistry.getDataSource(cluster.getMaster().getUri(), PoolRegistry.Role.FETCH);
+        scheduler = new SlaveScheduler(properties, masterDataSource, cluster.getId(), this, executor);
+        cluster.addClusterChangeListener(this);
     }
 
     /**
@@ -72,33 +110,197 @@ public class SlaveFactory implements ThreadFactory
     }
 
     /**
-     * Spawns a {@link Thread} for each slave in the <code>Cluster</code>.
+     * Creates a {@link SlaveRunner} for each slave in the <code>Cluster</code>, and starts scheduling them.
      * @return A <code>ThreadGroup</code> containing all slave threads for this <code>Cluster</code>
      */
-    public ThreadGroup spawnSlaves()
+    public synchronized ThreadGroup spawnSlaves()
     {
 	LOGGER.debug("spawnSlaves()");
         final Set<Node> nodes = cluster.getSlaves();
         for (Node node : nodes)
         {
 	    LOGGER.debug(node.toString());
-	    try {
-		final SlaveRunner slaveRunner = new SlaveRunner(masterDataSource, cluster, node);
-		LOGGER.debug(slaveRunner.toString());
-		Thread thread = newThread(slaveRunner);
-		thread.setName(node.getName());
-		LOGGER.info("[" + threadGroup.getName() + "]: spawning slave thread for node: " + node.getName());
-		thread.start();
-		threadMap.put(thread, slaveRunner);
-	    } catch (SQLException e) {
-		LOGGER.warn("SQLException while trying to spawn a node, continuing",e);
-	    } catch (InstantiationException e) {
-		LOGGER.warn("InstantiationException while trying to spawn a node, continuing",e);
+	    if (node.isAvailable())
+	    {
+		startSlave(node);
+	    }
+	    else
+	    {
+		LOGGER.info("[" + threadGroup.getName() + "]: slave node " + node.getName() + " is disabled, not scheduling it");
 	    }
         }
+        if (!schedulerStarted)
+        {
+            scheduler.start();
+            schedulerStarted = true;
+        }
         return threadGroup;
     }
 
+    // Creates and schedules a runner for node, unless it already has one
+    private synchronized void startSlave(final Node node)
+    {
+	if (runnerMap.containsKey(node.getId()))
+	{
+	    return;
+	}
+	adoptCluster(node);
+	if (!validUpstream(node))
+	{
+	    return;
+	}
+	try {
+	    final SlaveRunner slaveRunner = new SlaveRunner(poolRegistry, cluster, node, properties);
+	    LOGGER.debug(slaveRunner.toString());
+	    if (tunables != null)
+	    {
+		slaveRunner.tune(tunables);
+	    }
+	    LOGGER.info("[" + threadGroup.getName() + "]: scheduling slave node: " + node.getName());
+	    runnerMap.put(node.getId(), slaveRunner);
+	    scheduler.add(slaveRunner);
+	} catch (SQLException e) {
+	    LOGGER.warn("SQLException while trying to spawn a node, continuing",e);
+	} catch (InstantiationException e) {
+	    LOGGER.warn("InstantiationException while trying to spawn a node, continuing",e);
+	}
+    }
+
+    // A reloaded Cluster dispatches its events before refreshCluster returns and setCluster is called, so upstream
+    // nodes added by the same change are only found in the Cluster the node itself belongs to.
+    private void adoptCluster(final Node node)
+    {
+	for (Cluster parent : node.getCluster())
+	{
+	    if (parent != cluster && parent.getName().equals(cluster.getName()))
+	    {
+		cluster = parent;
+	    }
+	}
+    }
+
+    // A slave may only be fed by another slave of the cluster, and never, through a chain of upstream nodes, by itself.
+    // Package private for testing.
+    boolean validUpstream(final Node node)
+    {
+	final HashSet<Long> seen = new HashSet<Long>();
+	seen.add(node.getId());
+	for (Node upstream = node.getUpstream(); upstream != null; upstream = upstream.getUpstream())
+	{
+	    if (!isSlave(upstream.getId()))
+	    {
+		LOGGER.error("[" + threadGroup.getName() + "]: upstream node " + upstream.getName() + " of " +
+			     node.getName() + " is not a slave of this cluster. Not scheduling " + node.getName());
+		return false;
+	    }
+	    if (!seen.add(upstream.getId()))
+	    {
+		LOGGER.error("[" + threadGroup.getName() + "]: upstream nodes of " + node.getName() +
+			     " form a cycle. Not scheduling " + node.getName());
+		return false;
+	    }
+	}
+	return true;
+    }
+
+    private boolean isSlave(final Long nodeId)
+    {
+	for (Node slave : cluster.getSlaves())
+	{
+	    if (slave.getId().equals(nodeId))
+	    {
+		return true;
+	    }
+	}
+	return false;
+    }
+
+    // Stops and forgets the runner for node, if it has one
+    private void stopSlave(final Node node)
+    {
+	final SlaveRunner slaveRunner;
+	synchronized (this)
+	{
+	    slaveRunner = runnerMap.remove(node.getId());
+	}
+	if (slaveRunner != null)
+	{
+	    LOGGER.info("[" + threadGroup.getName() + "]: stopping slave node: " + node.getName());
+	    // Outside of our lock, as this waits for the runner to finish applying its current snapshot
+	    scheduler.remove(slaveRunner);
+	}
+    }
+
+    /**
+     * Starts replicating a slave added to the <code>Cluster</code>, if it is available
+     * @param slave the new slave
+     */
+    public void slaveAdded(final Node slave)
+    {
+	if (slave.isAvailable())
+	{
+	    startSlave(slave);
+	}
+    }
+
+    /**
+     * Stops replicating a slave removed from the <code>Cluster</code>
+     * @param slave the removed slave
+     */
+    public void slaveRemoved(final Node slave)
+    {
+	stopSlave(slave);
+    }
+
+    /**
+     * Stops replicating a disabled slave
+     * @param slave the disabled slave
+     */
+    public void slaveDisabled(final Node slave)
+    {
+	stopSlave(slave);
+    }
+
+    /**
+     * Starts replicating a slave that has been enabled
+     * @param slave the enabled slave
+     */
+    public void slaveEnabled(final Node slave)
+    {
+	startSlave(slave);
+    }
+
+    /**
+     * The runners read from the master they were created with, so a new master takes a restart of the daemon
+     * @param oldMaster the old master
+     * @param newMaster the new master
+     */
+    public void masterReplaced(final Node oldMaster, final Node newMaster)
+    {
+	LOGGER.warn("[" + threadGroup.getName() + "]: master replaced by " + newMaster.getName() +
+		    ". Slaves continue to replicate from " + oldMaster.getName() + " until the daemon is restarted.");
+    }
+
+    /**
+     * Logs that the master is unavailable. The runners keep retrying it.
+     * @param master the master
+     */
+    public void masterUnavailable(final Node master)
+    {
+	LOGGER.warn("[" + threadGroup.getName() + "]: master " + master.getName() + " is unavailable");
+    }
+
+    /**
+     * Replaces the <code>Cluster</code> configuration used by this factory with a reloaded one, as returned by
+     * {@link com.netblue.bruce.cluster.ClusterFactory#refreshCluster(String)}.  Runners already scheduled are
+     * unaffected.  Slaves started by the reload's events have already switched the factory to it.
+     * @param cluster the reloaded configuration
+     */
+    public synchronized void setCluster(final Cluster cluster)
+    {
+	this.cluster = cluster;
+    }
+
     /**
      * Gets the Cluster configuration used by this <code>SlaveFactory</code> to spawn
      * <code>SlaveRunner</code> threads and to create a <code>SnapshotCache</code> for
@@ -110,36 +312,122 @@ public class SlaveFactory implements ThreadFactory
         return cluster;
     }
 
-    public synchronized void shutdown()
+    /**
+     * Gets the runners of the slaves spawned by this factory
+     * @return a copy of the runners, safe to iterate while slaves are spawned
+     */
+    public synchronized Collection<SlaveRunner> getSlaveRunners()
     {
-        LOGGER.info("Shutting down slaves.");
-        final Set<Thread> threads = threadMap.keySet();
-        for (Thread thread : threads)
+        return new ArrayList<SlaveRunner>(runnerMap.values());
+    }
+
+    /**
+     * Gets the id of the oldest master snapshot processed by any of the slaves spawned by this factory
+     * @return the snapshot id, or null if no slaves have been spawned
+     */
+    public synchronized Long getSlowestProcessedSnapshotId()
+    {
+        Long slowest = null;
+        for (SlaveRunner runner : runnerMap.values())
+        {
+            final Snapshot snapshot = runner.getLastProcessedSnapshot();
+            if (snapshot != null && (slowest == null || snapshot.getId() < slowest))
+            {
+                slowest = snapshot.getId();
+            }
+        }
+        return slowest;
+    }
+
+    /**
+     * Gets the oldest master snapshot processed by every slave in the <code>Cluster</code> that reads from the
+     * master.  Slaves that this factory could not spawn have unknown progress.  Slaves fed by an upstream node
+     * do not read the master's logs, so they do not hold them back.
+     * @return the snapshot, or null if any such slave is not being replicated by this factory
+     */
+    public Snapshot getSlowestProcessedSnapshot()
+    {
+        return getSlowestProcessedSnapshot(null);
+    }
+
+    /**
+     * Gets the progress of the slaves fed by <code>upstream</code>, which holds back the retention of the
+     * upstream node's mirrored logs
+     * @param upstream a slave of the cluster, or null for the master
+     * @return the progress of the nodes replicating from <code>upstream</code>
+     */
+    public ReplicationProgress getDownstreamProgress(final Node upstream)
+    {
+        return new ReplicationProgress()
+        {
+            public Snapshot getSlowestProcessedSnapshot()
+            {
+                return SlaveFactory.this.getSlowestProcessedSnapshot(upstream == null ? null : upstream.getId());
+            }
+        };
+    }
+
+    // Slowest of the slaves whose upstream node has the id upstreamId. A null id stands for the master.
+    // When no slave is fed from there, the progress is unknown.
+    private synchronized Snapshot getSlowestProcessedSnapshot(final Long upstreamId)
+    {
+        Snapshot slowest = null;
+        for (Node node : cluster.getSlaves())
         {
-            SlaveRunner runner = threadMap.get(thread);
-            runner.shutdown();
-            try
+            final Long nodeUpstreamId = node.getUpstream() == null ? null : node.getUpstream().getId();
+            if (upstreamId == null ? nodeUpstreamId != null : !upstreamId.equals(nodeUpstreamId))
+            {
+                continue;
+            }
+            SlaveRunner runner = runnerMap.get(node.getId());
+            if (runner == null || runner.getLastProcessedSnapshot() == null)
             {
-                thread.join();
+                return null;
             }
-            catch (InterruptedException e)
+            final Snapshot snapshot = runner.getLastProcessedSnapshot();
+            if (slowest == null || snapshot.compareTo(slowest) < 0)
             {
-                LOGGER.warn("Interrupted waiting for thread [" + thread.getName() + "] to shutdown");
+                slowest = snapshot;
             }
         }
-        try
+        return slowest;
+    }
+
+    /**
+     * Applies new tunables to the scheduler and to every runner, and to the runners spawned from now on
+     * @param p the properties of the cluster
+     */
+    public synchronized void tune(final BruceProperties p)
+    {
+        tunables = p;
+        scheduler.tune(p);
+        for (SlaveRunner runner : runnerMap.values())
         {
-            masterDataSource.close();
+            runner.tune(p);
         }
-        catch (SQLException e)
+    }
+
+    public synchronized void shutdown()
+    {
+        LOGGER.info("Shutting down slaves.");
+        cluster.removeClusterChangeListener(this);
+        scheduler.shutdown();
+        if (ownPoolRegistry)
         {
-            LOGGER.warn("Unable to close master data source");
+            poolRegistry.close();
         }
     }
 
-    private final Cluster cluster;
+    private volatile Cluster cluster;
+    // The properties of the cluster, with its overrides applied
+    private final BruceProperties properties;
     private final ThreadGroup threadGroup;
-    private final HashMap<Thread, SlaveRunner> threadMap = new HashMap<Thread, SlaveRunner>();
+    private final HashMap<Long, SlaveRunner> runnerMap = new HashMap<Long, SlaveRunner>();
+    private final SlaveScheduler scheduler;
+    private boolean schedulerStarted = false;
+    // The latest tunables, or null if none have been applied
+    private BruceProperties tunables = null;
     private static final Logger LOGGER = Logger.getLogger(SlaveFactory.class);
-    private BasicDataSource masterDataSource;
+    private final PoolRegistry poolRegistry;
+    private final boolean ownPoolRegistry;
 }
@@ -26,38 +26,76 @@ package com.netblue.bruce;
 import com.netblue.bruce.cluster.*;
 import org.apache.commons.dbcp.*;
 import org.apache.log4j.Logger;
-import org.postgresql.PGConnection;
 import static java.text.MessageFormat.format;
 
 import java.sql.*;
 import javax.sql.DataSource;
 import java.util.*;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Responsible for obtaining {@link com.netblue.bruce.Snapshot}s from the <code>SnapshotCache</code>
+ * <p>
+ * Snapshots and transactions are read from the cluster master, unless the node names an upstream node (see
+ * {@link Node#getUpstream()}). Every slave mirrors the master's logs into its own transaction and snapshot log
+ * tables, so a downstream node reads the same rows, with the same master transaction and snapshot ids, from
+ * its upstream node's mirror.
  *
  * @author lanceball
  * @version $Id$
  */
-public class SlaveRunner implements Runnable {
+public class SlaveRunner implements Runnable, Tunable {
     public SlaveRunner(final DataSource masterDataSource, final Cluster cluster, final Node node) 
 	throws SQLException, InstantiationException {
+	this(masterDataSource,null,cluster,node,new BruceProperties());
+    }
+
+    /**
+     * Creates a runner that takes its master, or upstream node, connections from the fetch pool, and its slave
+     * connections from the apply pool, of <code>pools</code>. The pools are left open by {@link #close()}.
+     */
+    public SlaveRunner(final PoolRegistry pools, final Cluster cluster, final Node node) 
+	throws SQLException, InstantiationException {
+	this(pools,cluster,node,new BruceProperties());
+    }
+
+    /**
+     * Creates a runner as above, for one of several clusters hosted by a daemon
+     * @param properties the properties of the cluster, see {@link BruceProperties#forCluster(String)}
+     */
+    public SlaveRunner(final PoolRegistry pools, final Cluster cluster, final Node node,
+		       final BruceProperties properties) 
+	throws SQLException, InstantiationException {
+	this(pools.getDataSource(getSourceNode(cluster,node).getUri(),PoolRegistry.Role.FETCH),
+	     pools.getDataSource(node.getUri(),PoolRegistry.Role.APPLY),
+	     cluster,node,properties);
+    }
+
+    private SlaveRunner(final DataSource masterDataSource, final BasicDataSource slaveDataSource,
+			final Cluster cluster, final Node node, final BruceProperties properties) 
+	throws SQLException, InstantiationException {
 	logger.debug("SlaveRunner()");
 	this.node = node;
 	this.cluster = cluster;
 	this.masterDataSource = masterDataSource;
-	this.properties = new BruceProperties();
-	this.unavailableSleepTime = properties.getIntProperty(NEXT_SNAPSHOT_UNAVAILABLE_SLEEP_KEY, 
-							      NEXT_SNAPSHOT_UNAVAILABLE_SLEEP_DEFAULT);
-	this.availableSleepTime = properties.getIntProperty(NEXT_SNAPSHOT_AVAILABLE_SLEEP_KEY, 
-							    NEXT_SNAPSHOT_AVAILABLE_SLEEP_DEFAULT);
+	this.logTableSelector = new LogTableSelector(cluster.getId());
+	this.properties = properties;
+	tune(properties);
+	this.allSnapshots = !SLAVE_SNAPSHOT_LOG_LATEST.equals(properties.getProperty(SLAVE_SNAPSHOT_LOG_KEY,
+										       SLAVE_SNAPSHOT_LOG_DEFAULT));
 	// slaveDataSource
-	this.slaveDataSource = new BasicDataSource();
-        this.slaveDataSource.setDriverClassName(properties.getProperty("bruce.jdbcDriverName", 
-								       "org.postgresql.Driver"));
-	this.slaveDataSource.setValidationQuery(properties.getProperty("bruce.poolQuery", "select now()"));
-	this.slaveDataSource.setUrl(node.getUri());
-        this.slaveDataSource.setAccessToUnderlyingConnectionAllowed(true);
+	this.ownSlaveDataSource = slaveDataSource == null;
+	if (ownSlaveDataSource) {
+	    this.slaveDataSource = new BasicDataSource();
+	    this.slaveDataSource.setDriverClassName(properties.getProperty("bruce.jdbcDriverName", 
+									   "org.postgresql.Driver"));
+	    this.slaveDataSource.setValidationQuery(properties.getProperty("bruce.poolQuery", "select now()"));
+	    this.slaveDataSource.setUrl(node.getUri());
+	    this.slaveDataSource.setAccessToUnderlyingConnectionAllowed(true);
+	} else {
+	    this.slaveDataSource = slaveDataSource;
+	}
 
 	// Obtain last processed snapshot
 	Connection c = this.slaveDataSource.getConnection();
@@ -79,26 +117,58 @@ public class SlaveRunner implements Runnable {
 						 "Please ensure that this slave on "+
 						 this.node.getUri()+" has been properly initialized.");
 	    }
+	    rs.close();
+	    ps.close();
+	    this.resyncTableExists = ensureResyncTable(c);
 	} finally { c.close(); }
 	
+	String clusterID = cluster.getId().toString();
+	this.determineLatestLogSQL = format(determineLatestLogQuery,clusterID);
+	this.replicationStrategy = new CatalogReplicationStrategy(this.slaveDataSource,properties);
+	this.session = new ReplicationSession(masterDataSource,slaveDataSource,new String[] {createTempTable},
+					      properties.getIntProperty(STATEMENT_CACHE_SIZE_KEY,
+									STATEMENT_CACHE_SIZE_DEFAULT));
+
 	// Spit out a little info about us
 	logger.info("Replicating node: "+this.node.getName()+" at "+this.node.getUri());
+	if (node.getUpstream() != null) {
+	    logger.info(this.node.getName()+" replicates from upstream node: "+node.getUpstream().getName());
+	}
+    }
+
+    /**
+     * Applies new sleep times, batch and fetch sizes, from the next snapshot on
+     */
+    public void tune(BruceProperties p) {
+	this.unavailableSleepTime = p.getIntProperty(NEXT_SNAPSHOT_UNAVAILABLE_SLEEP_KEY, 
+						     NEXT_SNAPSHOT_UNAVAILABLE_SLEEP_DEFAULT);
+	this.availableSleepTime = p.getIntProperty(NEXT_SNAPSHOT_AVAILABLE_SLEEP_KEY, 
+						   NEXT_SNAPSHOT_AVAILABLE_SLEEP_DEFAULT);
+	this.snapshotBatchSize = Math.max(1,p.getIntProperty(SNAPSHOT_BATCH_SIZE_KEY,
+							     SNAPSHOT_BATCH_SIZE_DEFAULT));
+	this.fetchSize = Math.max(1,p.getIntProperty(FETCH_SIZE_KEY,FETCH_SIZE_DEFAULT));
     }
 
+    /**
+     * Gets the node a slave reads its changes from: its upstream node if it names one, otherwise the master.
+     *
+     * @param cluster the cluster of the slave
+     * @param node the slave
+     * @return the node to read snapshots and transactions from
+     */
+    public static Node getSourceNode(final Cluster cluster, final Node node) {
+	return node.getUpstream() != null ? node.getUpstream() : cluster.getMaster();
+    }
+
+    /**
+     * Replicates on a thread of its own, polling the master for snapshots. {@link SlaveScheduler} drives
+     * {@link #replicate(int)} directly instead.
+     */
     public void run() {
 	logger.debug("run()");
-	LogSwitchHelper lsh = new LogSwitchHelper(properties,slaveDataSource,cluster.getId());
 	while (!shutdownRequested) {
 	    try {
-		lsh.doSwitch();
-	    } catch (SQLException e) {
-		logger.warn("SQLException during log switch, continuing",e);
-	    }
-	    Snapshot nextSnapshot = getNextSnapshot();
-	    logger.trace("nextSnapshot: "+nextSnapshot);
-	    try {
-		if (nextSnapshot != null) {
-		    processSnapshot(nextSnapshot);
+		if (replicate(1)) {
 		    Thread.sleep(availableSleepTime);
 		} else {
 		    Thread.sleep(unavailableSleepTime);
@@ -108,16 +178,79 @@ public class SlaveRunner implements Runnable {
 		shutdownRequested=true;
 	    }
 	}
-	try {
-	    slaveDataSource.close();
-	} catch (SQLException e) {} // Probably already closed.
-	logger.info(node.getName()+" shutdown complete.");
+	close();
+    }
+
+    /**
+     * Applies the next available snapshot from the master, up to <code>maxSnapshots</code> times.
+     *
+     * @param maxSnapshots the most snapshots to apply before returning
+     * @return true if a snapshot was applied every time, so another may already be waiting. False once no
+     * snapshot is available, or one could not be applied.
+     */
+    public boolean replicate(int maxSnapshots) {
+	for (int i = 0; i < maxSnapshots && !shutdownRequested; i++) {
+	    Snapshot nextSnapshot = getNextSnapshot();
+	    logger.trace("nextSnapshot: "+nextSnapshot);
+	    if (nextSnapshot == null) {
+		return false;
+	    }
+	    processSnapshot(nextSnapshot);
+	    if (lastProcessedSnapshot != nextSnapshot) {
+		return false;
+	    }
+	}
+	return true;
     }
 
     public synchronized void shutdown() {
 	shutdownRequested = true;
     }
 
+    /**
+     * Returns the master connection this runner holds to its pool, so that runners that are not replicating
+     * do not tie up master connections.
+     */
+    public void releaseMasterConnection() {
+	session.releaseMaster();
+    }
+
+    /**
+     * Closes the connections of this runner. Called by {@link #run()} on shutdown, or by whoever drives
+     * {@link #replicate(int)} once it is done.
+     */
+    public void close() {
+	session.close();
+	if (ownSlaveDataSource) {
+	    try {
+		slaveDataSource.close();
+	    } catch (SQLException e) {} // Probably already closed.
+	}
+	logger.info(node.getName()+" shutdown complete.");
+    }
+
+    /**
+     * @return the slave node this runner replicates to
+     */
+    public Node getNode() {
+	return node;
+    }
+
+    /**
+     * @return the lock held while a snapshot is applied to the slave. Work that must not interleave with
+     * apply, such as rotating the slave's logs, takes it too.
+     */
+    public Lock getApplyLock() {
+	return applyLock;
+    }
+
+    /**
+     * @return the last master snapshot this slave has processed
+     */
+    public Snapshot getLastProcessedSnapshot() {
+	return lastProcessedSnapshot;
+    }
+
     /**
      * Gets the next snapshot from the master database. Will return null if no next snapshot
      * available.
@@ -130,22 +263,20 @@ public class SlaveRunner implements Runnable {
         logger.trace("Getting next snapshot");
 	Snapshot retVal = null;
 	try {
-	    Connection c = masterDataSource.getConnection();
-	    try { // Make sure the connection we just got gets closed
-		PreparedStatement ps = c.prepareStatement(format(nextSnapshotQuery,cluster.getId().toString()));
-		ps.setLong(1,lastProcessedSnapshot.getId());
-		ResultSet rs = ps.executeQuery();
-		if (rs.next()) {
-		    retVal = new Snapshot(rs.getLong("id"),
-					  new TransactionID(rs.getLong("min_xaction")),
-					  new TransactionID(rs.getLong("max_xaction")),
-					  rs.getString("outstanding_xactions"));
-		}
-	    } finally {
-		c.close();
+	    PreparedStatement ps = 
+		logTableSelector.prepareNextSnapshotQuery(session.getMaster(),lastProcessedSnapshot.getId());
+	    ResultSet rs = ps.executeQuery();
+	    if (rs.next()) {
+		retVal = new Snapshot(rs.getLong("id"),
+				      new TransactionID(rs.getLong("min_xaction")),
+				      new TransactionID(rs.getLong("max_xaction")),
+				      rs.getString("outstanding_xactions"));
 	    }
+	    rs.close();
+	    session.endMasterTransaction();
 	} catch (SQLException e) {
 	    logger.info("Can not obtain next Snapshot due to SQLException. continuing but returning null",e);
+	    session.invalidate();
 	}
 	return retVal;
     }
@@ -158,108 +289,186 @@ public class SlaveRunner implements Runnable {
      */
     protected void processSnapshot(final Snapshot snapshot) {
         logger.trace("Processing next snapshot: " + snapshot);
+	applyLock.lock();
 	try {
-	    Connection c = slaveDataSource.getConnection();
-	    try {
-		// Use server side prepated statements
-		PGConnection pgc = (PGConnection) ((DelegatingConnection) c).getInnermostDelegate();
-		pgc.setPrepareThreshold(1);
-		//
-		c.setAutoCommit(false);
-		c.setSavepoint();
-		if (snapshot == null) {
-		    logger.trace("Latest Master snapshot is null. Can not process snapshot.");
-		} else {
-		    collectAllChangesForTransaction(c,snapshot);
-		    applyAllChangesForTransaction(c,snapshot);
-		    updateSnapshotStatus(c,snapshot);
-		}
-		c.commit();
+	    if (snapshot == null) {
+		logger.trace("Latest Master snapshot is null. Can not process snapshot.");
+	    } else {
+		StatementCache slave = session.getSlave();
+		collectAllChangesForTransaction(slave,snapshot);
+		applyAllChangesForTransaction(slave,snapshot);
+		updateSnapshotStatus(slave,snapshot);
+		slave.getConnection().commit();
 		this.lastProcessedSnapshot = snapshot;
-	    } catch (SQLException e) {
-		logger.error("Cannot commit last processed snapshot.", e);
-		try {
-		    if (c != null) {
-			c.rollback();
-		    }
-		} catch (SQLException e1) {
-		    logger.error("Unable to rollback last processed snapshot transaction.", e);
-		}
-	    } finally {
-		c.close();
 	    }
 	} catch (SQLException e) {
-	    logger.error("Unable to obtain database connection",e);
+	    logger.error("Cannot commit last processed snapshot.", e);
+	    // Rolls back whatever was done on the slave, and gets fresh connections next time
+	    session.invalidate();
+	} finally {
+	    applyLock.unlock();
 	}
     }
     
-    private void collectAllChangesForTransaction(Connection slaveC, Snapshot s) throws SQLException {
+    private void collectAllChangesForTransaction(StatementCache slave, Snapshot s) throws SQLException {
 	String clusterID = cluster.getId().toString();
-	Connection masterC = masterDataSource.getConnection();
+	StatementCache master = session.getMaster();
 	try {
-	    logger.trace("collectAllChangesForTransaction("+slaveC+","+s+")");
-	    masterC.setAutoCommit(false);
-	    // Create temp table on slave to hold transaction we are going to apply
-	    Statement slaveS = slaveC.createStatement();
-	    slaveS.execute(format(createTempTable,clusterID));
+	    logger.trace("collectAllChangesForTransaction("+slave+","+s+")");
 	    PreparedStatement masterPS = 
-		masterC.prepareStatement(format(getOutstandingTransactionsQuery,clusterID));
-	    masterPS.setFetchSize(50);
-	    masterPS.setLong(1,lastProcessedSnapshot.getMinXid().getLong());
-	    masterPS.setLong(2,s.getMaxXid().getLong());
+		logTableSelector.prepareTransactionQuery(master,
+							 lastProcessedSnapshot.getMinXid().getLong(),
+							 s.getMaxXid().getLong());
+	    masterPS.setFetchSize(fetchSize);
 	    ResultSet masterRS = masterPS.executeQuery();
-	    PreparedStatement insertTempPS =
-		slaveC.prepareStatement(insertTempTable);
+	    PreparedStatement insertTempPS = slave.prepareStatement(insertTempTable);
 	    logger.trace("Populating temporary table with transactions to apply");
+	    int batched = 0;
+	    HashSet<String> tabnames = new HashSet<String>();
 	    while (masterRS.next()) {
 		TransactionID tid = new TransactionID(masterRS.getLong("xaction"));
 		if (lastProcessedSnapshot.transactionIDGE(tid) &&
 		    s.transactionIDLT(tid)) {
+		    tabnames.add(masterRS.getString("tabname"));
 		    insertTempPS.setLong(1,masterRS.getLong("rowid"));
 		    insertTempPS.setLong(2,masterRS.getLong("xaction"));
 		    insertTempPS.setString(3,masterRS.getString("cmdtype"));
 		    insertTempPS.setString(4,masterRS.getString("tabname"));
 		    insertTempPS.setString(5,masterRS.getString("info"));
-		    insertTempPS.execute();
+		    insertTempPS.addBatch();
+		    if (++batched >= snapshotBatchSize) {
+			insertTempPS.executeBatch();
+			batched = 0;
+		    }
 		}
 	    }
+	    if (batched > 0) {
+		insertTempPS.executeBatch();
+	    }
+	    masterRS.close();
 	    logger.trace("Populating slave snapshot/transaction logs with data from master");
-	    ResultSet slaveRS = slaveS.executeQuery(format(determineLatestLogQuery,clusterID));
+	    ResultSet slaveRS = slave.prepareStatement(determineLatestLogSQL).executeQuery();
 	    if (slaveRS.next()) {
 		String logID = slaveRS.getString("id");
-		PreparedStatement ps = masterC.prepareStatement(format(getMasterSnapshotLogQuery,clusterID));
-		ps.setLong(1,lastProcessedSnapshot.getId());
-		ps.setLong(2,s.getId());
+		slaveRS.close();
+		// Only the snapshot being applied is a consistent point on this slave, so that is all a
+		// slave needs to keep unless configured to keep the whole snapshot history
+		PreparedStatement ps = 
+		    logTableSelector.prepareSnapshotQuery(master,
+							  allSnapshots ? lastProcessedSnapshot.getId() : s.getId()-1,
+							  s.getId());
+		ps.setFetchSize(snapshotBatchSize);
 		ResultSet snapshotsRS = ps.executeQuery();
+		PreparedStatement popSlavePS = 
+		    slave.prepareStatement(format(populateSlaveSnapshotLogQuery,clusterID,logID));
+		batched = 0;
 		while (snapshotsRS.next()) {
-		    PreparedStatement popSlavePS = 
-			slaveC.prepareStatement(format(populateSlaveSnapshotLogQuery,clusterID,logID));
 		    popSlavePS.setLong(1,snapshotsRS.getLong("id"));
 		    popSlavePS.setLong(2,snapshotsRS.getLong("min_xaction"));
 		    popSlavePS.setLong(3,snapshotsRS.getLong("max_xaction"));
 		    popSlavePS.setString(4,snapshotsRS.getString("outstanding_xactions"));
-		    popSlavePS.execute();
+		    popSlavePS.addBatch();
+		    if (++batched >= snapshotBatchSize) {
+			popSlavePS.executeBatch();
+			batched = 0;
+		    }
 		}
-		slaveS.execute(format(populateSlaveTransactonLogQuery,clusterID,logID));
+		if (batched > 0) {
+		    popSlavePS.executeBatch();
+		}
+		snapshotsRS.close();
+		slave.prepareStatement(format(populateSlaveTransactonLogQuery,clusterID,logID)).execute();
 	    } else {
+		slaveRS.close();
 		logger.error("unable to determine current log number. Continuing anyways.");
 	    }
 	    logger.trace("Remove from temp table any transactions for tables we dont replicate on this slave");
-	    slaveS.execute(deleteUnreplicatedTransactionsQuery);
-	} finally { masterC.close(); }
+	    deleteUnreplicatedTransactions(slave,tabnames);
+	    if (resyncTableExists) {
+		logger.trace("Remove from temp table any transactions for tables being resynced");
+		PreparedStatement ps = slave.prepareStatement(deleteResyncingTransactionsQuery);
+		ps.setLong(1,cluster.getId());
+		ps.execute();
+	    }
+	} finally { session.endMasterTransaction(); }
     }
 
-    private void applyAllChangesForTransaction(Connection c, Snapshot s) throws SQLException {
-	Statement slaveS = c.createStatement();
-	slaveS.execute(daemonModeQuery);
-	slaveS.execute(applyTransactionsQuery);
-	slaveS.execute(normalModeQuery);
-	slaveS.execute(dropTempTable);
+    private void deleteUnreplicatedTransactions(StatementCache slave, Set<String> tabnames) throws SQLException {
+	// Names already known either way need no catalog lookup. Names the master logged that this slave does not
+	// replicate would otherwise send every snapshot back to the catalog.
+	boolean known = true;
+	for (String tabname : tabnames) {
+	    if (!replicatedTables.contains(tabname) && !unreplicatedTables.contains(tabname)) {
+		known = false;
+		break;
+	    }
+	}
+	if (!known) {
+	    // Tables may have been created, or become replicated, since we last looked
+	    replicatedTables = new HashSet<String>(replicationStrategy.getTables(slave.getConnection(),node,null));
+	    String fingerprint = replicationStrategy.getFingerprint();
+	    if (fingerprint == null || !fingerprint.equals(unreplicatedFingerprint)) {
+		unreplicatedTables.clear();
+		unreplicatedFingerprint = fingerprint;
+	    }
+	}
+	PreparedStatement ps = null;
+	for (String tabname : tabnames) {
+	    if (!replicatedTables.contains(tabname)) {
+		unreplicatedTables.add(tabname);
+		if (ps == null) {
+		    ps = slave.prepareStatement(deleteUnreplicatedTransactionsQuery);
+		}
+		ps.setString(1,tabname);
+		ps.addBatch();
+	    }
+	}
+	if (ps != null) {
+	    ps.executeBatch();
+	}
     }
 
-    private void updateSnapshotStatus(Connection c, Snapshot s) throws SQLException {
-	PreparedStatement ps = c.prepareStatement(updateLastSnapshotQuery);
-        ps.setLong(1, getCurrentTransactionId(c));
+    // Slaves built before tables could be resynced have no bruce.resynctables. It is created here, once, rather
+    // than looked for on every snapshot. Without it, tables cannot be resynced while this runner runs.
+    private boolean ensureResyncTable(Connection c) throws SQLException {
+	if (resyncTableFound(c)) {
+	    return true;
+	}
+	Statement s = c.createStatement();
+	try {
+	    s.execute(CREATE_RESYNC_TABLE);
+	    logger.info("Created bruce.resynctables on "+node.getName());
+	    return true;
+	} catch (SQLException e) {
+	    // Another runner may have just created it
+	    if (resyncTableFound(c)) {
+		return true;
+	    }
+	    logger.warn("Unable to create bruce.resynctables on "+node.getName()+
+			". Tables cannot be resynced while it replicates.",e);
+	    return false;
+	} finally { s.close(); }
+    }
+
+    private static boolean resyncTableFound(Connection c) throws SQLException {
+	Statement s = c.createStatement();
+	try {
+	    ResultSet rs = s.executeQuery(resyncTableExistsQuery);
+	    boolean retVal = rs.next();
+	    rs.close();
+	    return retVal;
+	} finally { s.close(); }
+    }
+
+    private void applyAllChangesForTransaction(StatementCache slave, Snapshot s) throws SQLException {
+	slave.prepareStatement(daemonModeQuery).execute();
+	slave.prepareStatement(applyTransactionsQuery).execute();
+	slave.prepareStatement(normalModeQuery).execute();
+    }
+
+    private void updateSnapshotStatus(StatementCache slave, Snapshot s) throws SQLException {
+	PreparedStatement ps = slave.prepareStatement(updateLastSnapshotQuery);
+        ps.setLong(1, session.getSlaveTransactionId());
         ps.setLong(2, s.getId());
         ps.setLong(3, new Long(s.getMinXid().toString()));
         ps.setLong(4, new Long(s.getMaxXid().toString()));
@@ -268,36 +477,30 @@ public class SlaveRunner implements Runnable {
         ps.execute();
     }
 
-    /**
-     * Helper method to get the transaction ID of the currently executing transaction.
-     *
-     * @return The transaction ID of the currently executing transaction
-     *
-     * @throws SQLException
-     */
-    private long getCurrentTransactionId(Connection c) throws SQLException {
-	Statement s = c.createStatement();
-        ResultSet rs = s.executeQuery(slaveTransactionIdQuery);
-        if (rs.next()) {
-	    long xid = rs.getLong("transaction");
-	    rs.close();
-	    return xid;
-	} else {
-	    logger.error("Unable to determine current transactionID");
-	    return -1L;
-	}
-    }
-
     private static final Logger logger = Logger.getLogger(SlaveRunner.class);
     private Node node;
     private Cluster cluster;
     private DataSource masterDataSource;
+    private LogTableSelector logTableSelector;
+    private ReplicationSession session;
+    private String determineLatestLogSQL;
     private BasicDataSource slaveDataSource;
+    private boolean ownSlaveDataSource;
     private BruceProperties properties;
-    private int unavailableSleepTime;
-    private int availableSleepTime;
-    private Snapshot lastProcessedSnapshot;
-    private boolean shutdownRequested = false;
+    private volatile int unavailableSleepTime;
+    private volatile int availableSleepTime;
+    private volatile int snapshotBatchSize;
+    private volatile int fetchSize;
+    private boolean allSnapshots;
+    private volatile Snapshot lastProcessedSnapshot;
+    private final ReentrantLock applyLock = new ReentrantLock();
+    private volatile boolean shutdownRequested = false;
+    private final boolean resyncTableExists;
+    private CatalogReplicationStrategy replicationStrategy;
+    private Set<String> replicatedTables = new HashSet<String>();
+    // Names this slave does not replicate, as of the catalog fingerprint they were looked up against
+    private Set<String> unreplicatedTables = new HashSet<String>();
+    private String unreplicatedFingerprint;
 
     // How long to wait if a 'next' snapshot is unavailable, in miliseconds
     private static final String NEXT_SNAPSHOT_UNAVAILABLE_SLEEP_KEY = "bruce.nextSnapshotUnavailableSleep";
@@ -309,35 +512,43 @@ public class SlaveRunner implements Runnable {
     // This default value may need some tuning. Assuming 1s might be right
     private static int NEXT_SNAPSHOT_AVAILABLE_SLEEP_DEFAULT = 1000;
 
+    // How many master snapshot log rows to copy to the slave per batch
+    private static final String SNAPSHOT_BATCH_SIZE_KEY = "bruce.slaveSnapshotBatchSize";
+    private static final int SNAPSHOT_BATCH_SIZE_DEFAULT = 500;
+
+    // How many master transaction log rows to fetch at a time
+    private static final String FETCH_SIZE_KEY = "bruce.slaveFetchSize";
+    private static final int FETCH_SIZE_DEFAULT = 50;
+
+    // How many prepared statements to keep per master or slave connection
+    private static final String STATEMENT_CACHE_SIZE_KEY = "bruce.slaveStatementCacheSize";
+    private static final int STATEMENT_CACHE_SIZE_DEFAULT = 32;
+
+    // Which master snapshots to keep in the slave's snapshot log. 'all' keeps every one, 'latest' keeps only
+    // those the slave has applied up to.
+    private static final String SLAVE_SNAPSHOT_LOG_KEY = "bruce.slaveSnapshotLog";
+    private static final String SLAVE_SNAPSHOT_LOG_DEFAULT = "all";
+    private static final String SLAVE_SNAPSHOT_LOG_LATEST = "latest";
+
     private static final String selectLastSnapshotQuery =
 	"select * from bruce.slavesnapshotstatus where clusterid = ?";
-    // Input for MessageFormat.format()
-    private static final String nextSnapshotQuery =
-	"select * from bruce.snapshotlog_{0} "+
-	" where id > ? "+
-	" order by id desc limit 1";
     private static final String updateLastSnapshotQuery =
 	"update bruce.slavesnapshotstatus "+
 	"   set slave_xaction = ?,  master_id = ?, master_min_xaction = ?, master_max_xaction = ?, "+
 	"       master_outstanding_xactions = ?, update_time = now() "+
 	" where clusterid = ?";
-    private static final String slaveTransactionIdQuery =
-	"select * from pg_locks where pid = pg_backend_pid() and locktype = 'transactionid'";
     private static final String tempTableName = "tmpxactions";
+    // Created once per slave connection. Emptied by each commit.
     private static final String createTempTable =
-	"create temporary table "+tempTableName+" as select * from bruce.transactionlog_{0} limit 0";
-    private static final String dropTempTable = "drop table "+tempTableName;
+	"create temporary table "+tempTableName+
+	" (rowid bigint, xaction bigint, cmdtype character(1), tabname text, info text) on commit delete rows";
     private static final String insertTempTable = 
 	"insert into "+tempTableName+
 	"(rowid,xaction,cmdtype,tabname,info) "+
 	"values (?,?,?,?,?)";
     // Input for MessageFormat.format()
-    private static final String getOutstandingTransactionsQuery =
-	"select * from bruce.transactionlog_{0} where xaction >= ? and xaction < ?";
     private static final String determineLatestLogQuery = 
 	"select max(id) as id from bruce.currentlog_{0}";
-    private static final String getMasterSnapshotLogQuery =
-	"select * from bruce.snapshotlog_{0} where id > ? and id <= ?";
     private static final String populateSlaveSnapshotLogQuery =
 	"insert into bruce.snapshotlog_{0}_{1} (id,min_xaction,max_xaction,outstanding_xactions) "+
 	"values (?,?,?,?)";
@@ -345,15 +556,24 @@ public class SlaveRunner implements Runnable {
 	"insert into bruce.transactionlog_{0}_{1} (rowid,xaction,cmdtype,tabname,info) "+
 	"select rowid,xaction,cmdtype,tabname,info from "+tempTableName;
     private static final String deleteUnreplicatedTransactionsQuery =
+	"delete from "+tempTableName+" where tabname = ?";
+    /**
+     * Tables of a slave being resynced, whose changes the runner skips, see
+     * {@link com.netblue.bruce.admin.SlaveProvisioner}. <code>pin_xaction</code> holds back the dropping of the
+     * slave's log tables from that master transaction on, while the resync still has to read them.
+     */
+    public static final String CREATE_RESYNC_TABLE =
+	"CREATE TABLE bruce.resynctables "+
+	"           ( clusterid bigint NOT NULL, "+
+	"             tabname text NOT NULL, "+
+	"             pin_xaction bigint, "+
+	"             primary key (clusterid, tabname))";
+    private static final String resyncTableExistsQuery =
+	"select 1 from pg_class c, pg_namespace n "+
+	" where c.relnamespace = n.oid and n.nspname = 'bruce' and c.relname = 'resynctables'";
+    private static final String deleteResyncingTransactionsQuery =
 	"delete from "+tempTableName+" "+
-	"where tabname not in "+
-	"(select n.nspname||'.'||c.relname as tablename from pg_class c, pg_namespace n "+
-	"  where c.relnamespace = n.oid "+
-	"   and c.oid in (select tgrelid from pg_trigger "+
-	"                  where tgfoid = (select oid from pg_proc "+
-	"                                   where proname = 'denyaccesstrigger' "+
-	"                                     and pronamespace = (select oid from pg_namespace "+
-	"                                                          where nspname = 'bruce'))))";
+	"where tabname in (select tabname from bruce.resynctables where clusterid = ?)";
     private static final String applyTransactionsQuery =
 	"select bruce.applyLogTransaction(cmdtype,tabname,info) "+
 	"  from "+tempTableName+" order by rowid";
@@ -0,0 +1,364 @@
+/*
+ * Bruce - A PostgreSQL Database Replication System
+ *
+ * Portions Copyright (c) 2007, Connexus Corporation
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without a written
+ * agreement is hereby granted, provided that the above copyright notice and
+ * this paragraph and the following two paragraphs appear in all copies.
+ *
+ * IN NO EVENT SHALL CONNEXUS CORPORATION BE LIABLE TO ANY PARTY FOR DIRECT,
+ * INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST
+ * PROFITS, ARISING OUT OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION,
+ * EVEN IF CONNEXUS CORPORATION HAS BEEN ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * CONNEXUS CORPORATION SPECIFICALLY DISCLAIMS ANY WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE. THE SOFTWARE PROVIDED HEREUNDER IS ON AN "AS IS"
+ * BASIS, AND CONNEXUS CORPORATION HAS NO OBLIGATIONS TO PROVIDE MAINTENANCE,
+ * SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+*/
+package com.netblue.bruce;
+
+import org.apache.commons.dbcp.BasicDataSource;
+import org.apache.log4j.Logger;
+
+import javax.sql.DataSource;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the {@link SlaveRunner}s of a cluster as tasks on a fixed size pool, rather than on a thread each. A
+ * single watcher polls the master for its newest snapshot, and queues a task for every slave that has not yet
+ * processed it. A task applies at most <code>bruce.slaveQuantum</code> snapshots, then goes to the back of the
+ * queue if its slave is still behind, so that slaves take turns. However many slaves there are, the threads
+ * used are bounded by <code>bruce.slavePoolSize</code>, plus one for the watcher. A slave that is behind may
+ * keep its master session between turns, but only while the master pool has connections to spare: its
+ * <code>maxActive</code>, less one per pool thread and one for the watcher. Every other slave returns its
+ * session to the pool when its turn ends, so queued slaves never starve the running ones.
+ * <p>
+ * With <code>bruce.slaveVirtualThreads</code> set to <code>true</code>, and a JDK that has them, the pool
+ * runs on virtual threads.
+ * <p>
+ * A daemon hosting several clusters makes one pool with {@link #newExecutor(BruceProperties, ThreadFactory)}
+ * and hands it to the scheduler of every cluster, so that <code>bruce.slavePoolSize</code> bounds the threads
+ * of the whole daemon.
+ *
+ * @version $Id$
+ */
+public class SlaveScheduler implements Tunable {
+    /**
+     * @param p properties to configure the scheduler from
+     * @param masterDataSource pool of master connections, shared with the runners
+     * @param clusterId id of the cluster being replicated
+     * @param threadFactory makes the pool and watcher threads, unless virtual threads are used
+     */
+    public SlaveScheduler(BruceProperties p, DataSource masterDataSource, Long clusterId, ThreadFactory threadFactory) {
+	this(p,masterDataSource,clusterId,threadFactory,null);
+    }
+
+    /**
+     * @param p properties to configure the scheduler from
+     * @param masterDataSource pool of master connections, shared with the runners
+     * @param clusterId id of the cluster being replicated
+     * @param threadFactory makes the watcher thread, and the pool threads unless virtual threads are used
+     * @param executor pool to run the slaves on, shared with the schedulers of other clusters. When null, the
+     *        scheduler makes a pool of its own.
+     */
+    public SlaveScheduler(BruceProperties p, DataSource masterDataSource, Long clusterId, ThreadFactory threadFactory,
+			  ExecutorService executor) {
+	this.masterDataSource = masterDataSource;
+	this.logTableSelector = new LogTableSelector(clusterId);
+	this.threadFactory = threadFactory;
+	tune(p);
+	this.ownExecutor = executor == null;
+	this.executor = ownExecutor ? newExecutor(p,threadFactory) : executor;
+	this.pinBudget = pinBudget(masterDataSource,this.executor);
+	logger.debug("pinBudget:"+pinBudget);
+    }
+
+    /**
+     * How many slaves may keep a master session while they wait for their next turn. The running tasks and
+     * the watcher must always be able to get a connection, so only what the pool holds beyond them is spared.
+     */
+    static int pinBudget(DataSource masterDataSource, ExecutorService executor) {
+	if (!(masterDataSource instanceof BasicDataSource)) {
+	    return 0;
+	}
+	int maxActive = ((BasicDataSource) masterDataSource).getMaxActive();
+	if (maxActive <= 0) {
+	    return Integer.MAX_VALUE;
+	}
+	int threads = executor instanceof ThreadPoolExecutor ?
+	    ((ThreadPoolExecutor) executor).getMaximumPoolSize() : maxActive;
+	return Math.max(0,maxActive-threads-1);
+    }
+
+    /**
+     * Applies a new quantum and poll interval, from the next task and the next poll on. The pool size only
+     * changes on restart.
+     */
+    public void tune(BruceProperties p) {
+	this.quantum = Math.max(1,p.getIntProperty(QUANTUM_KEY,QUANTUM_DEFAULT));
+	logger.debug("quantum:"+quantum);
+	this.pollInterval = p.getIntProperty(POLL_INTERVAL_KEY,POLL_INTERVAL_DEFAULT);
+	logger.debug("pollInterval:"+pollInterval);
+    }
+
+    /**
+     * Makes a pool of <code>bruce.slavePoolSize</code> threads to run slaves on.
+     *
+     * @param p properties to configure the pool from
+     * @param threadFactory makes the pool threads, unless virtual threads are used
+     */
+    public static ExecutorService newExecutor(BruceProperties p, final ThreadFactory threadFactory) {
+	int poolSize = Math.max(1,p.getIntProperty(POOL_SIZE_KEY,POOL_SIZE_DEFAULT));
+	logger.debug("poolSize:"+poolSize);
+	ThreadFactory poolThreadFactory = null;
+	if ("true".equals(p.getProperty(VIRTUAL_THREADS_KEY,VIRTUAL_THREADS_DEFAULT))) {
+	    poolThreadFactory = virtualThreadFactory();
+	}
+	if (poolThreadFactory == null) {
+	    poolThreadFactory = new ThreadFactory() {
+		    private int count = 0;
+		    public synchronized Thread newThread(Runnable r) {
+			Thread t = threadFactory.newThread(r);
+			t.setName("slave-"+(++count));
+			t.setDaemon(true);
+			return t;
+		    }
+		};
+	}
+	return new ThreadPoolExecutor(poolSize,poolSize,0L,TimeUnit.MILLISECONDS,
+				      new LinkedBlockingQueue<Runnable>(),poolThreadFactory);
+    }
+
+    /**
+     * Adds a slave to be replicated.
+     */
+    public synchronized void add(SlaveRunner runner) {
+	runners.add(runner);
+	wake(runner);
+    }
+
+    /**
+     * Stops replicating a slave. Waits for any task running for the slave to finish, then closes the runner.
+     * Other slaves are not disturbed.
+     */
+    public void remove(SlaveRunner runner) {
+	synchronized (this) {
+	    if (!runners.remove(runner)) {
+		return;
+	    }
+	}
+	runner.shutdown();
+	synchronized (this) {
+	    while (pending.contains(runner)) {
+		try {
+		    wait();
+		} catch (InterruptedException e) {
+		    logger.warn("Interrupted waiting for "+runner.getNode().getName()+" to finish");
+		    break;
+		}
+	    }
+	}
+	runner.close();
+    }
+
+    /**
+     * Starts watching the master for snapshots.
+     */
+    public synchronized void start() {
+	watcher = threadFactory.newThread(new Runnable() {
+		public void run() {
+		    watch();
+		}
+	    });
+	watcher.setName("SnapshotWatcher");
+	watcher.start();
+    }
+
+    /**
+     * Stops watching the master, waits for running tasks to finish, then closes every runner. A pool shared
+     * with other clusters is left running.
+     */
+    public void shutdown() {
+	Collection<SlaveRunner> toClose;
+	synchronized (this) {
+	    shutdownRequested = true;
+	    toClose = new ArrayList<SlaveRunner>(runners);
+	}
+	for (SlaveRunner runner : toClose) {
+	    runner.shutdown();
+	}
+	try {
+	    if (watcher != null) {
+		watcher.interrupt();
+		watcher.join();
+	    }
+	    if (ownExecutor) {
+		executor.shutdown();
+		executor.awaitTermination(Long.MAX_VALUE,TimeUnit.MILLISECONDS);
+	    } else {
+		synchronized (this) {
+		    while (!pending.isEmpty()) {
+			wait();
+		    }
+		}
+	    }
+	} catch (InterruptedException e) {
+	    logger.warn("Interrupted waiting for slave tasks to finish");
+	}
+	for (SlaveRunner runner : toClose) {
+	    runner.close();
+	}
+    }
+
+    // Queue a task for the runner, unless it already has one queued or running
+    private synchronized void wake(final SlaveRunner runner) {
+	if (shutdownRequested || !pending.add(runner)) {
+	    return;
+	}
+	executor.execute(new Runnable() {
+		public void run() {
+		    boolean behind = false;
+		    try {
+			behind = runner.replicate(quantum);
+		    } catch (RuntimeException e) {
+			logger.error("Unexpected exception replicating "+runner.getNode().getName(),e);
+		    } finally {
+			// A slave that is behind keeps its validated master session, and its prepared
+			// statements, for its next turn if the pool can spare it. Others give theirs back.
+			if (!pin(runner,behind)) {
+			    runner.releaseMasterConnection();
+			}
+			done(runner,behind);
+		    }
+		}
+	    });
+    }
+
+    // Whether the runner may hold on to its master session until its next turn
+    private synchronized boolean pin(SlaveRunner runner, boolean behind) {
+	if (behind && runners.contains(runner) && (pinned.contains(runner) || pinned.size() < pinBudget)) {
+	    pinned.add(runner);
+	    return true;
+	}
+	pinned.remove(runner);
+	return false;
+    }
+
+    private synchronized void done(SlaveRunner runner, boolean behind) {
+	pending.remove(runner);
+	notifyAll();
+	if (behind && runners.contains(runner)) {
+	    // To the back of the queue, behind any other slave waiting its turn
+	    wake(runner);
+	}
+    }
+
+    private void watch() {
+	StatementCache master = null;
+	long newest = 0L;
+	while (!shutdownRequested) {
+	    try {
+		if (master == null) {
+		    master = new StatementCache(masterDataSource.getConnection(),4);
+		    master.getConnection().setAutoCommit(false);
+		}
+		PreparedStatement ps = logTableSelector.prepareNextSnapshotQuery(master,newest);
+		ResultSet rs = ps.executeQuery();
+		if (rs.next()) {
+		    newest = rs.getLong("id");
+		}
+		rs.close();
+		master.getConnection().rollback();
+		for (SlaveRunner runner : getRunners()) {
+		    Snapshot processed = runner.getLastProcessedSnapshot();
+		    if (processed == null || processed.getId() < newest) {
+			wake(runner);
+		    }
+		}
+	    } catch (SQLException e) {
+		logger.warn("Unable to obtain newest snapshot from master, continuing",e);
+		master = closeMaster(master);
+	    }
+	    try {
+		Thread.sleep(pollInterval);
+	    } catch (InterruptedException e) {
+		// Shutting down
+	    }
+	}
+	closeMaster(master);
+    }
+
+    private synchronized Collection<SlaveRunner> getRunners() {
+	return new ArrayList<SlaveRunner>(runners);
+    }
+
+    private StatementCache closeMaster(StatementCache master) {
+	if (master != null) {
+	    master.close();
+	    try {
+		master.getConnection().close();
+	    } catch (SQLException e) {} // Probably already closed.
+	}
+	return null;
+    }
+
+    // Thread.ofVirtual().factory(), on JDKs that have it
+    private static ThreadFactory virtualThreadFactory() {
+	try {
+	    Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+	    ThreadFactory retVal = (ThreadFactory)
+		Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+	    logger.info("Running slaves on virtual threads");
+	    return retVal;
+	} catch (Exception e) {
+	    logger.warn("Virtual threads are not available on this JDK. Using platform threads.");
+	    return null;
+	}
+    }
+
+    private static final Logger logger = Logger.getLogger(SlaveScheduler.class);
+    private final DataSource masterDataSource;
+    private final LogTableSelector logTableSelector;
+    private final ThreadFactory threadFactory;
+    private final ExecutorService executor;
+    private final HashSet<SlaveRunner> runners = new HashSet<SlaveRunner>();
+    private final HashSet<SlaveRunner> pending = new HashSet<SlaveRunner>();
+    private final HashSet<SlaveRunner> pinned = new HashSet<SlaveRunner>();
+    private final int pinBudget;
+    private final boolean ownExecutor;
+    private volatile int quantum;
+    private volatile int pollInterval;
+    private Thread watcher;
+    private volatile boolean shutdownRequested = false;
+
+    //
+    // Properties that drive the scheduler
+    //
+    // How many slaves may replicate at once
+    private static final String POOL_SIZE_KEY = "bruce.slavePoolSize";
+    private static final int POOL_SIZE_DEFAULT = 8;
+    // How many snapshots a slave may apply before letting other slaves have a turn
+    private static final String QUANTUM_KEY = "bruce.slaveQuantum";
+    private static final int QUANTUM_DEFAULT = 1;
+    // How often to check the master for a new snapshot, in miliseconds
+    private static final String POLL_INTERVAL_KEY = "bruce.nextSnapshotUnavailableSleep";
+    private static final int POLL_INTERVAL_DEFAULT = 1000;
+    // Whether to run the pool on virtual threads, where the JDK supports them
+    private static final String VIRTUAL_THREADS_KEY = "bruce.slaveVirtualThreads";
+    private static final String VIRTUAL_THREADS_DEFAULT = "false";
+}
@@ -0,0 +1,99 @@
+/*
+ * Bruce - A PostgreSQL Database Replication System
+ *
+ * Portions Copyright (c) 2007, Connexus Corporation
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without a written
+ * agreement is hereby granted, provided that the above copyright notice and
+ * this paragraph and the following two paragraphs appear in all copies.
+ *
+ * IN NO EVENT SHALL CONNEXUS CORPORATION BE LIABLE TO ANY PARTY FOR DIRECT,
+ * INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST
+ * PROFITS, ARISING OUT OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION,
+ * EVEN IF CONNEXUS CORPORATION HAS BEEN ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * CONNEXUS CORPORATION SPECIFICALLY DISCLAIMS ANY WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE. THE SOFTWARE PROVIDED HEREUNDER IS ON AN "AS IS"
+ * BASIS, AND CONNEXUS CORPORATION HAS NO OBLIGATIONS TO PROVIDE MAINTENANCE,
+ * SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+*/
+package com.netblue.bruce;
+
+import org.apache.log4j.Logger;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Prepared statements for a single, long lived, connection, keyed by their SQL. Statements are prepared
+ * the first time they are asked for, and handed out again afterwards, so callers must not close them. The
+ * least recently used statement is closed once more than <code>capacity</code> are cached.
+ *
+ * @version $Id$
+ */
+public class StatementCache {
+    public StatementCache(Connection connection, final int capacity) {
+	this.connection = connection;
+	this.statements = new LinkedHashMap<String,PreparedStatement>(16,0.75f,true) {
+	    protected boolean removeEldestEntry(Map.Entry<String,PreparedStatement> eldest) {
+		if (size() > capacity) {
+		    closeStatement(eldest.getValue());
+		    return true;
+		}
+		return false;
+	    }
+	};
+    }
+
+    /**
+     * @return the connection the statements are prepared on
+     */
+    public Connection getConnection() {
+	return connection;
+    }
+
+    /**
+     * Gets a prepared statement for <code>sql</code>, preparing it if it is not already cached. Parameters
+     * bound by earlier users of the statement are cleared.
+     *
+     * @param sql the statement to prepare
+     * @return the prepared statement. Owned by the cache, so do not close it.
+     */
+    public PreparedStatement prepareStatement(String sql) throws SQLException {
+	PreparedStatement ps = statements.get(sql);
+	if (ps == null) {
+	    logger.trace("Preparing: "+sql);
+	    ps = connection.prepareStatement(sql);
+	    statements.put(sql,ps);
+	} else {
+	    ps.clearParameters();
+	}
+	return ps;
+    }
+
+    /**
+     * Closes every cached statement, but not the connection.
+     */
+    public void close() {
+	for (PreparedStatement ps : statements.values()) {
+	    closeStatement(ps);
+	}
+	statements.clear();
+    }
+
+    private void closeStatement(PreparedStatement ps) {
+	try {
+	    ps.close();
+	} catch (SQLException e) {} // Probably already closed.
+    }
+
+    private static final Logger logger = Logger.getLogger(StatementCache.class);
+    private final Connection connection;
+    private final LinkedHashMap<String,PreparedStatement> statements;
+}
@@ -0,0 +1,99 @@
+/*
+ * Bruce - A PostgreSQL Database Replication System
+ *
+ * Portions Copyright (c) 2007, Connexus Corporation
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without a written
+ * agreement is hereby granted, provided that the above copyright notice and
+ * this paragraph and the following two paragraphs appear in all copies.
+ *
+ * IN NO EVENT SHALL CONNEXUS CORPORATION BE LIABLE TO ANY PARTY FOR DIRECT,
+ * INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST
+ * PROFITS, ARISING OUT OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION,
+ * EVEN IF CONNEXUS CORPORATION HAS BEEN ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * CONNEXUS CORPORATION SPECIFICALLY DISCLAIMS ANY WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE. THE SOFTWARE PROVIDED HEREUNDER IS ON AN "AS IS"
+ * BASIS, AND CONNEXUS CORPORATION HAS NO OBLIGATIONS TO PROVIDE MAINTENANCE,
+ * SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+*/
+package com.netblue.bruce;
+
+import com.netblue.bruce.cluster.Cluster;
+import com.netblue.bruce.cluster.ClusterFactory;
+import org.apache.log4j.Logger;
+
+/**
+ * Watches the configuration database for changes to the topology of a cluster while the daemon runs. Every
+ * <code>bruce.topologyPollInterval</code> miliseconds it asks the {@link ClusterFactory} for the cluster's
+ * topology version, a single cheap query. Only when the version moves is the cluster reloaded, which notifies the
+ * {@link SlaveFactory} of the slaves added, removed, enabled or disabled. Their runners are started or stopped,
+ * and every other runner carries on undisturbed.
+ *
+ * @version $Id$
+ */
+public class TopologyWatcher implements Runnable {
+    private TopologyWatcher() {}
+
+    /**
+     * @param version the topology version read before the cluster was loaded, so that a change committed while
+     * the daemon started is picked up by the first poll
+     */
+    public TopologyWatcher(BruceProperties p, ClusterFactory clusterFactory, SlaveFactory slaveFactory, long version) {
+	this.clusterFactory=clusterFactory;
+	this.version=version;
+	this.slaveFactory=slaveFactory;
+	this.clusterName=slaveFactory.getCluster().getName();
+	this.pollInterval=p.getIntProperty(POLL_INTERVAL_KEY,POLL_INTERVAL_DEFAULT);
+	logger.debug("pollInterval:"+this.pollInterval);
+    }
+
+    public synchronized void shutdown() {
+	shutdownRequested = true;
+	logger.info("Shutting down Topology Watcher.");
+    }
+
+    public void run() {
+	if (pollInterval <= 0) {
+	    logger.info("Topology changes will not be picked up until the daemon is restarted.");
+	    return;
+	}
+	while (!shutdownRequested) {
+	    try {
+		long newVersion = clusterFactory.getTopologyVersion(clusterName);
+		if (newVersion != version) {
+		    logger.info("Topology of cluster "+clusterName+" changed. Reloading it.");
+		    Cluster cluster = clusterFactory.refreshCluster(clusterName);
+		    slaveFactory.setCluster(cluster);
+		}
+		version = newVersion;
+	    } catch (RuntimeException e) {
+		logger.warn("Unable to check the topology of cluster "+clusterName+", continuing",e);
+	    }
+	    try {
+		Thread.sleep(pollInterval);
+	    } catch (InterruptedException e) {
+		// Shutting down
+	    }
+	}
+	logger.info("Topology Watcher shutdown complete.");
+    }
+
+    private static final Logger logger = Logger.getLogger(TopologyWatcher.class);
+    private ClusterFactory clusterFactory;
+    private SlaveFactory slaveFactory;
+    private String clusterName;
+    private int pollInterval;
+    private long version;
+    private volatile boolean shutdownRequested = false;
+
+    //
+    // Properties that drive actions for this thread
+    //
+    // How often to check the configuration database for topology changes, in miliseconds. Zero or less never does.
+    private static final String POLL_INTERVAL_KEY = "bruce.topologyPollInterval";
+    private static final int POLL_INTERVAL_DEFAULT = 10000; // Ten seconds
+}
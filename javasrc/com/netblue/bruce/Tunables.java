@@ -0,0 +1,340 @@
+/*
+ * Bruce - A PostgreSQL Database Replication System
+ *
+ * Portions Copyright (c) 2007, Connexus Corporation
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without a written
+ * agreement is hereby granted, provided that the above copyright notice and
+ * this paragraph and the following two paragraphs appear in all copies.
+ *
+ * IN NO EVENT SHALL CONNEXUS CORPORATION BE LIABLE TO ANY PARTY FOR DIRECT,
+ * INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST
+ * PROFITS, ARISING OUT OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION,
+ * EVEN IF CONNEXUS CORPORATION HAS BEEN ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * CONNEXUS CORPORATION SPECIFICALLY DISCLAIMS ANY WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE. THE SOFTWARE PROVIDED HEREUNDER IS ON AN "AS IS"
+ * BASIS, AND CONNEXUS CORPORATION HAS NO OBLIGATIONS TO PROVIDE MAINTENANCE,
+ * SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+*/
+package com.netblue.bruce;
+
+import org.apache.log4j.Logger;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeSet;
+
+/**
+ * The performance tunables of a daemon: sleep times, snapshot frequencies, log switch delay, rotate and retain
+ * times, batch and fetch sizes. They can be changed while the daemon runs, without restarting slaves.
+ * <p>
+ * Tunables are read from the properties file named by <code>bruce.propertiesFileName</code>. The file is checked
+ * for changes every <code>bruce.tunablesPollInterval</code> miliseconds. As in {@link BruceProperties}, a tunable
+ * set as a system property, with <code>-D</code> on the command line, takes precedence over the file, so changes
+ * to it in the file are logged and ignored. Tunables may also be changed over JMX, which takes precedence over
+ * both, through the <code>com.netblue.bruce:type=Tunables</code> MBean. A tunable may be set
+ * for a single cluster as <code>bruce.clusters.&lt;clusterName&gt;.&lt;name&gt;</code>, see
+ * {@link BruceProperties#forCluster(String)}. Every new value is checked against the tunable's minimum. An
+ * invalid value is logged and ignored, and the old one kept. A tunable removed from the file goes back to the
+ * value it had at startup. Every change is logged, and then pushed to each registered {@link Tunable}.
+ *
+ * @version $Id$
+ */
+public class Tunables implements Runnable, TunablesMBean {
+    /**
+     * Applies the tunables in the properties file to <code>p</code>
+     * @param p the properties of the daemon. Tunables are changed in place.
+     */
+    public Tunables(BruceProperties p) {
+	this.properties=p;
+	this.file=new File(p.getProperty(PROPERTIES_FILENAME_KEY,PROPERTIES_FILENAME_DEFAULT));
+	logger.debug("file:"+this.file);
+	this.pollInterval=p.getIntProperty(POLL_INTERVAL_KEY,POLL_INTERVAL_DEFAULT);
+	logger.debug("pollInterval:"+this.pollInterval);
+	for (Object key : p.keySet()) {
+	    if (isTunable(key.toString())) {
+		startup.put(key.toString(),p.getProperty(key.toString()));
+	    }
+	}
+	reload();
+    }
+
+    /**
+     * Pushes the current tunables to <code>tunable</code> now, and then whenever they change
+     * @param clusterName the cluster whose overrides apply, or null for none
+     * @param tunable what to push the tunables to
+     */
+    public synchronized void register(String clusterName, Tunable tunable) {
+	registered.put(tunable,clusterName);
+	tunable.tune(clusterName == null ? properties : properties.forCluster(clusterName));
+    }
+
+    /**
+     * Stops pushing tunables to <code>tunable</code>
+     */
+    public synchronized void unregister(Tunable tunable) {
+	registered.remove(tunable);
+    }
+
+    public synchronized void shutdown() {
+	shutdownRequested = true;
+	logger.info("Shutting down Tunables watcher.");
+    }
+
+    /**
+     * Watches the properties file, applying its tunables when it changes
+     */
+    public void run() {
+	if (pollInterval <= 0) {
+	    logger.info("Changes to "+file+" will not be picked up until the daemon is restarted.");
+	    return;
+	}
+	while (!shutdownRequested) {
+	    if (file.lastModified() != lastModified || file.length() != lastLength) {
+		reload();
+	    }
+	    try {
+		Thread.sleep(pollInterval);
+	    } catch (InterruptedException e) {
+		// Shutting down
+	    }
+	}
+	logger.info("Tunables watcher shutdown complete.");
+    }
+
+    /**
+     * Makes the tunables available over JMX. A failure is logged, the daemon runs on regardless.
+     */
+    public void registerMBean() {
+	try {
+	    ManagementFactory.getPlatformMBeanServer().registerMBean(this,new ObjectName(OBJECT_NAME));
+	    logger.info("Tunables may be changed over JMX through "+OBJECT_NAME);
+	} catch (JMException e) {
+	    logger.warn("Unable to register "+OBJECT_NAME+". Tunables can only be changed through "+file,e);
+	}
+    }
+
+    public void unregisterMBean() {
+	try {
+	    ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(OBJECT_NAME));
+	} catch (JMException e) {
+	    logger.debug("Unable to unregister "+OBJECT_NAME,e);
+	}
+    }
+
+    public synchronized String[] getTunables() {
+	ArrayList<String> retVal = new ArrayList<String>();
+	for (Object key : new TreeSet<Object>(properties.keySet())) {
+	    if (isTunable(key.toString())) {
+		retVal.add(key+"="+properties.getProperty(key.toString()));
+	    }
+	}
+	return retVal.toArray(new String[retVal.size()]);
+    }
+
+    public String getProperty(String name) {
+	return properties.getProperty(name);
+    }
+
+    public synchronized void setProperty(String name, String value) {
+	String error = validate(name,value);
+	if (error != null) {
+	    logger.warn("Rejected "+name+"="+value+" over JMX: "+error);
+	    throw new IllegalArgumentException(error);
+	}
+	if (set(name,value.trim(),"JMX")) {
+	    push();
+	}
+    }
+
+    public synchronized void reload() {
+	lastModified = file.lastModified();
+	lastLength = file.length();
+	Properties contents = new Properties();
+	if (file.exists()) {
+	    try {
+		FileInputStream in = new FileInputStream(file);
+		try {
+		    contents.load(in);
+		} finally {
+		    in.close();
+		}
+	    } catch (IOException e) {
+		logger.warn("Unable to read "+file+". Keeping the current tunables.",e);
+		return;
+	    }
+	}
+	boolean changed = false;
+	for (Object key : contents.keySet()) {
+	    String name = key.toString();
+	    if (!isTunable(name)) {
+		continue;
+	    }
+	    String value = contents.getProperty(name).trim();
+	    if (value.equals(fileValues.put(name,value))) {
+		continue;
+	    }
+	    if (System.getProperty(name) != null) {
+		logger.info("Ignoring "+name+"="+value+" in "+file+": it is set on the command line");
+		continue;
+	    }
+	    String error = validate(name,value);
+	    if (error != null) {
+		logger.warn("Ignoring "+name+"="+value+" in "+file+": "+error);
+		continue;
+	    }
+	    changed |= set(name,value,file.toString());
+	}
+	// Tunables no longer in the file go back to where they started
+	for (String name : new ArrayList<String>(fileValues.keySet())) {
+	    if (!contents.containsKey(name)) {
+		fileValues.remove(name);
+		changed |= set(name,startup.get(name),"removed from "+file);
+	    }
+	}
+	if (changed) {
+	    push();
+	}
+    }
+
+    /**
+     * @return true if <code>name</code> is a tunable, or the override of one for a cluster
+     */
+    static boolean isTunable(String name) {
+	return getTunable(name) != null;
+    }
+
+    /**
+     * Checks a new value for a tunable
+     * @return why the value is invalid, or null if it is valid
+     */
+    static String validate(String name, String value) {
+	String tunable = getTunable(name);
+	if (tunable == null) {
+	    return name+" is not a tunable";
+	}
+	int minimum = MINIMUMS.get(tunable);
+	try {
+	    if (value == null || Integer.parseInt(value.trim()) < minimum) {
+		return "must be an integer of at least "+minimum;
+	    }
+	} catch (NumberFormatException e) {
+	    return "must be an integer of at least "+minimum;
+	}
+	return null;
+    }
+
+    // The tunable set by name, allowing for cluster overrides, or null if name sets none
+    private static String getTunable(String name) {
+	if (MINIMUMS.containsKey(name)) {
+	    return name;
+	}
+	if (name.startsWith(CLUSTER_PREFIX)) {
+	    // <clusterName>.<name without bruce.>
+	    String override = name.substring(CLUSTER_PREFIX.length());
+	    for (String tunable : MINIMUMS.keySet()) {
+		String suffix = "."+tunable.substring(BRUCE_PREFIX.length());
+		if (override.endsWith(suffix) && override.length() > suffix.length()) {
+		    return tunable;
+		}
+	    }
+	}
+	return null;
+    }
+
+    // Changes a tunable that has been validated, or unsets it if value is null. True if it changed.
+    private boolean set(String name, String value, String source) {
+	String old = properties.getProperty(name);
+	if (value == null ? old == null : value.equals(old)) {
+	    return false;
+	}
+	if (value == null) {
+	    properties.remove(name);
+	} else {
+	    properties.setProperty(name,value);
+	}
+	logger.info("Tunable "+name+" changed from "+(old == null ? "default" : old)+" to "+
+		    (value == null ? "default" : value)+" ("+source+")");
+	return true;
+    }
+
+    private void push() {
+	for (Map.Entry<Tunable,String> entry : registered.entrySet()) {
+	    try {
+		entry.getKey().tune(entry.getValue() == null ? properties : properties.forCluster(entry.getValue()));
+	    } catch (RuntimeException e) {
+		logger.error("Unable to apply tunables to "+entry.getKey()+", continuing",e);
+	    }
+	}
+    }
+
+    private static final Logger logger = Logger.getLogger(Tunables.class);
+    private final BruceProperties properties;
+    private final File file;
+    private final int pollInterval;
+    // Tunables as they were before the file was first read
+    private final HashMap<String,String> startup = new HashMap<String,String>();
+    // Tunables as they were in the file when last read
+    private final HashMap<String,String> fileValues = new HashMap<String,String>();
+    private final LinkedHashMap<Tunable,String> registered = new LinkedHashMap<Tunable,String>();
+    private long lastModified;
+    private long lastLength;
+    private volatile boolean shutdownRequested = false;
+
+    private static final String OBJECT_NAME = "com.netblue.bruce:type=Tunables";
+    private static final String BRUCE_PREFIX = "bruce.";
+    private static final String CLUSTER_PREFIX = BruceProperties.CLUSTER_PREFIX;
+
+    // The tunables, with the least value each may be set to
+    private static final Map<String,Integer> MINIMUMS = new LinkedHashMap<String,Integer>();
+    static {
+	// SlaveRunner and SlaveScheduler
+	MINIMUMS.put("bruce.nextSnapshotUnavailableSleep",1);
+	MINIMUMS.put("bruce.nextSnapshotAvailableSleep",0);
+	MINIMUMS.put("bruce.slaveSnapshotBatchSize",1);
+	MINIMUMS.put("bruce.slaveFetchSize",1);
+	MINIMUMS.put("bruce.slaveQuantum",1);
+	// GenerateSnapshotThread
+	MINIMUMS.put("bruce.snapshotFrequency",1);
+	MINIMUMS.put("bruce.snapshotMinFrequency",1);
+	MINIMUMS.put("bruce.snapshotMaxFrequency",1);
+	MINIMUMS.put("bruce.snapshotMaxIdle",0);
+	MINIMUMS.put("bruce.snapshotBusyRows",0);
+	MINIMUMS.put("bruce.snapshotLagTolerance",1);
+	MINIMUMS.put("bruce.snapshotSQLTimeWait",0);
+	// LogSwitchHelper and LogMaintenanceThread
+	MINIMUMS.put("bruce.rotateTime",1);
+	MINIMUMS.put("bruce.rotateRows",0);
+	MINIMUMS.put("bruce.rotateSize",0);
+	MINIMUMS.put("bruce.retainTime",1);
+	MINIMUMS.put("bruce.minRetainTime",0);
+	MINIMUMS.put("bruce.logSwitchDelay",0);
+	MINIMUMS.put("bruce.logSwitchDDLTimeout",0);
+	MINIMUMS.put("bruce.logMaintenanceDelay",1);
+	MINIMUMS.put("bruce.logMaintenanceLockWait",0);
+	MINIMUMS.put("bruce.pool.statisticsInterval",0);
+    }
+
+    //
+    // Properties that drive actions for this class
+    //
+    // The file tunables are read from
+    private static final String PROPERTIES_FILENAME_KEY = "bruce.propertiesFileName";
+    private static final String PROPERTIES_FILENAME_DEFAULT = "bruce.properties";
+    // How often to check the file for changes, in miliseconds. Zero or less never does.
+    private static final String POLL_INTERVAL_KEY = "bruce.tunablesPollInterval";
+    private static final int POLL_INTERVAL_DEFAULT = 5000; // Five seconds
+}
@@ -0,0 +1,55 @@
+/*
+ * Bruce - A PostgreSQL Database Replication System
+ *
+ * Portions Copyright (c) 2007, Connexus Corporation
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without a written
+ * agreement is hereby granted, provided that the above copyright notice and
+ * this paragraph and the following two paragraphs appear in all copies.
+ *
+ * IN NO EVENT SHALL CONNEXUS CORPORATION BE LIABLE TO ANY PARTY FOR DIRECT,
+ * INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST
+ * PROFITS, ARISING OUT OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION,
+ * EVEN IF CONNEXUS CORPORATION HAS BEEN ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * CONNEXUS CORPORATION SPECIFICALLY DISCLAIMS ANY WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE. THE SOFTWARE PROVIDED HEREUNDER IS ON AN "AS IS"
+ * BASIS, AND CONNEXUS CORPORATION HAS NO OBLIGATIONS TO PROVIDE MAINTENANCE,
+ * SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+*/
+package com.netblue.bruce;
+
+/**
+ * Management interface of {@link Tunables}, for changing tunables over JMX.
+ *
+ * @version $Id$
+ */
+public interface TunablesMBean
+{
+    /**
+     * @return each tunable that is set, as <code>name=value</code>
+     */
+    public String[] getTunables();
+
+    /**
+     * @param name the name of a property
+     * @return its current value, or null if it is not set
+     */
+    public String getProperty(String name);
+
+    /**
+     * Changes a tunable, and pushes it to everything using it
+     * @param name the name of the tunable, or of its override for one cluster
+     * @param value the new value
+     * @throws IllegalArgumentException if <code>name</code> is not a tunable, or <code>value</code> is invalid
+     */
+    public void setProperty(String name, String value);
+
+    /**
+     * Reads the properties file again, and applies the tunables that have changed in it
+     */
+    public void reload();
+}
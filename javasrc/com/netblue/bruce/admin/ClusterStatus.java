@@ -0,0 +1,550 @@
+/*
+ * Bruce - A PostgreSQL Database Replication System
+ *
+ * Portions Copyright (c) 2007, Connexus Corporation
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without a written
+ * agreement is hereby granted, provided that the above copyright notice and
+ * this paragraph and the following two paragraphs appear in all copies.
+ *
+ * IN NO EVENT SHALL CONNEXUS CORPORATION BE LIABLE TO ANY PARTY FOR DIRECT,
+ * INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST
+ * PROFITS, ARISING OUT OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION,
+ * EVEN IF CONNEXUS CORPORATION HAS BEEN ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * CONNEXUS CORPORATION SPECIFICALLY DISCLAIMS ANY WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE. THE SOFTWARE PROVIDED HEREUNDER IS ON AN "AS IS"
+ * BASIS, AND CONNEXUS CORPORATION HAS NO OBLIGATIONS TO PROVIDE MAINTENANCE,
+ * SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+*/
+package com.netblue.bruce.admin;
+
+import com.netblue.bruce.BruceProperties;
+import com.netblue.bruce.PoolRegistry;
+import com.netblue.bruce.cluster.Cluster;
+import com.netblue.bruce.cluster.Node;
+import org.apache.log4j.Logger;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Reports the replication health of every node of a set of clusters. All nodes are probed at once, on up to
+ * <code>bruce.statusThreads</code> threads. Each probe must finish within <code>bruce.statusTimeout</code>
+ * milliseconds. A node that does not answer in time, or fails, is reported with its error, and the other nodes are
+ * reported as usual.
+ * <p>
+ * For every node the report gives the number and total size of the cluster's log tables. It also gives the
+ * snapshots and rows logged per second over the last <code>bruce.statusRateWindow</code> seconds. On a master those
+ * are capture rates. On a slave, whose logs mirror the master's as it applies them, they are apply rates. For a slave
+ * the report also gives the last master snapshot it applied, how many snapshots it is behind the master, and the age
+ * of its applied snapshot on the master, which is its lag.
+ *
+ * @version $Id$
+ */
+public class ClusterStatus
+{
+    /**
+     * The health of one node in one cluster. Values that could not be read are null.
+     */
+    public static class NodeStatus
+    {
+        NodeStatus(final String cluster, final String node, final boolean master, final String upstream)
+        {
+            this.cluster = cluster;
+            this.node = node;
+            this.master = master;
+            this.upstream = upstream;
+        }
+
+        NodeStatus(final Cluster cluster, final Node node, final boolean master)
+        {
+            this(cluster.getName(), node.getName(), master,
+                 node.getUpstream() == null ? null : node.getUpstream().getName());
+        }
+
+        public String getCluster()
+        {
+            return cluster;
+        }
+
+        public String getNode()
+        {
+            return node;
+        }
+
+        public boolean isMaster()
+        {
+            return master;
+        }
+
+        public String getUpstream()
+        {
+            return upstream;
+        }
+
+        /** @return why the node could not be probed, or null if it was */
+        public String getError()
+        {
+            return error;
+        }
+
+        public Long getLogTables()
+        {
+            return logTables;
+        }
+
+        public Long getLogBytes()
+        {
+            return logBytes;
+        }
+
+        /** @return on a master its latest snapshot, on a slave the last master snapshot it applied */
+        public Long getSnapshotId()
+        {
+            return snapshotId;
+        }
+
+        /** @return how many master snapshots a slave has yet to apply */
+        public Long getSnapshotsBehind()
+        {
+            return snapshotsBehind;
+        }
+
+        /** @return seconds since the master logged the snapshot a slave applied last */
+        public Double getLagSeconds()
+        {
+            return lagSeconds;
+        }
+
+        public Double getSnapshotsPerSecond()
+        {
+            return snapshotsPerSecond;
+        }
+
+        public Double getRowsPerSecond()
+        {
+            return rowsPerSecond;
+        }
+
+        public long getProbeMillis()
+        {
+            return probeMillis;
+        }
+
+        private final String cluster;
+        private final String node;
+        private final boolean master;
+        private final String upstream;
+        private String error;
+        private Long logTables;
+        private Long logBytes;
+        private Long snapshotId;
+        private Long snapshotsBehind;
+        private Double lagSeconds;
+        private Double snapshotsPerSecond;
+        private Double rowsPerSecond;
+        private long probeMillis;
+    }
+
+    public ClusterStatus(final BruceProperties properties, final PoolRegistry pools)
+    {
+        this.pools = pools;
+        threads = Math.max(1, properties.getIntProperty(THREADS_KEY, THREADS_DEFAULT));
+        LOGGER.debug("threads:" + threads);
+        timeout = Math.max(1, properties.getIntProperty(TIMEOUT_KEY, TIMEOUT_DEFAULT));
+        LOGGER.debug("timeout:" + timeout);
+        rateWindow = Math.max(1, properties.getIntProperty(RATE_WINDOW_KEY, RATE_WINDOW_DEFAULT));
+        LOGGER.debug("rateWindow:" + rateWindow);
+    }
+
+    /**
+     * Probes the master and slaves of each of <code>clusters</code> concurrently.
+     *
+     * @return the status of every node, masters first within each cluster
+     */
+    public List<NodeStatus> probe(final Collection<Cluster> clusters)
+    {
+        final ArrayList<NodeStatus> retVal = new ArrayList<NodeStatus>();
+        for (Cluster cluster : clusters)
+        {
+            retVal.add(new NodeStatus(cluster, cluster.getMaster(), true));
+            for (Node slave : cluster.getSlaves())
+            {
+                retVal.add(new NodeStatus(cluster, slave, false));
+            }
+        }
+        final HashMap<String, Cluster> clustersByName = new HashMap<String, Cluster>();
+        for (Cluster cluster : clusters)
+        {
+            clustersByName.put(cluster.getName(), cluster);
+        }
+        // Daemon threads, so that a node that never answers cannot keep the tool from exiting
+        final ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory()
+        {
+            public Thread newThread(final Runnable runnable)
+            {
+                final Thread thread = new Thread(runnable, "status");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        try
+        {
+            final ArrayList<Future<Object>> results = new ArrayList<Future<Object>>();
+            for (final NodeStatus status : retVal)
+            {
+                final Cluster cluster = clustersByName.get(status.getCluster());
+                results.add(executor.submit(new Callable<Object>()
+                {
+                    public Object call() throws Exception
+                    {
+                        probe(cluster, status);
+                        return null;
+                    }
+                }));
+            }
+            final long deadline = System.currentTimeMillis() + timeout;
+            for (int i = 0; i < results.size(); i++)
+            {
+                final NodeStatus status = retVal.get(i);
+                try
+                {
+                    results.get(i).get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                }
+                catch (TimeoutException e)
+                {
+                    results.get(i).cancel(true);
+                    status.error = "no answer within " + timeout + "ms";
+                }
+                catch (ExecutionException e)
+                {
+                    status.error = String.valueOf(e.getCause().getMessage()).trim();
+                    LOGGER.debug("Unable to probe " + status.getNode(), e.getCause());
+                }
+                catch (InterruptedException e)
+                {
+                    status.error = "interrupted";
+                }
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+        // A slave is as far behind as the distance from its applied snapshot to its master's latest
+        final HashMap<String, NodeStatus> masters = new HashMap<String, NodeStatus>();
+        for (NodeStatus status : retVal)
+        {
+            if (status.isMaster())
+            {
+                masters.put(status.getCluster(), status);
+            }
+        }
+        for (NodeStatus status : retVal)
+        {
+            final NodeStatus master = masters.get(status.getCluster());
+            if (!status.isMaster() && status.snapshotId != null && master.snapshotId != null)
+            {
+                status.snapshotsBehind = Math.max(0, master.snapshotId - status.snapshotId);
+            }
+        }
+        return retVal;
+    }
+
+    private void probe(final Cluster cluster, final NodeStatus status) throws SQLException
+    {
+        final long start = System.currentTimeMillis();
+        final Node node = status.isMaster() ? cluster.getMaster() : findSlave(cluster, status.getNode());
+        final String clusterId = cluster.getId().toString();
+        final Connection connection = connect(node);
+        try
+        {
+            final Statement statement = connection.createStatement();
+            ResultSet resultSet = statement.executeQuery(MessageFormat.format(SELECT_LOGS, clusterId));
+            resultSet.next();
+            status.logTables = resultSet.getLong("logs");
+            final String latestLog = resultSet.getString("latest");
+            resultSet.close();
+            resultSet = statement.executeQuery(MessageFormat.format(SELECT_LOG_BYTES, clusterId));
+            resultSet.next();
+            status.logBytes = resultSet.getLong(1);
+            resultSet.close();
+            if (latestLog != null)
+            {
+                resultSet = statement.executeQuery(MessageFormat.format(SELECT_WINDOW_SNAPSHOTS, clusterId, latestLog,
+                                                                        String.valueOf(rateWindow)));
+                resultSet.next();
+                status.snapshotsPerSecond = resultSet.getLong("snapshots") / (double) rateWindow;
+                final long minXaction = resultSet.getLong("min_xaction");
+                final boolean any = !resultSet.wasNull();
+                if (status.isMaster())
+                {
+                    final long latest = resultSet.getLong("latest");
+                    status.snapshotId = resultSet.wasNull() ? null : latest;
+                }
+                resultSet.close();
+                status.rowsPerSecond = 0.0;
+                if (any)
+                {
+                    final PreparedStatement rows =
+                            connection.prepareStatement(MessageFormat.format(SELECT_WINDOW_ROWS, clusterId, latestLog));
+                    rows.setLong(1, minXaction);
+                    resultSet = rows.executeQuery();
+                    resultSet.next();
+                    status.rowsPerSecond = resultSet.getLong(1) / (double) rateWindow;
+                    resultSet.close();
+                    rows.close();
+                }
+            }
+            statement.close();
+            if (!status.isMaster())
+            {
+                final PreparedStatement applied = connection.prepareStatement(SELECT_APPLIED_SNAPSHOT);
+                applied.setLong(1, cluster.getId());
+                resultSet = applied.executeQuery();
+                if (resultSet.next())
+                {
+                    status.snapshotId = resultSet.getLong("master_id");
+                }
+                resultSet.close();
+                applied.close();
+            }
+        }
+        finally
+        {
+            disconnect(connection);
+        }
+        if (!status.isMaster() && status.snapshotId != null)
+        {
+            try
+            {
+                status.lagSeconds = readSnapshotAge(cluster, status.snapshotId);
+            }
+            catch (SQLException e)
+            {
+                // The master is reported on its own line
+                LOGGER.debug("Unable to read the age of snapshot " + status.snapshotId, e);
+            }
+        }
+        status.probeMillis = System.currentTimeMillis() - start;
+    }
+
+    // How long ago the master logged snapshot id
+    private Double readSnapshotAge(final Cluster cluster, final long id) throws SQLException
+    {
+        final Connection connection = connect(cluster.getMaster());
+        try
+        {
+            final PreparedStatement statement =
+                    connection.prepareStatement(MessageFormat.format(SELECT_SNAPSHOT_AGE, cluster.getId().toString()));
+            statement.setLong(1, id);
+            final ResultSet resultSet = statement.executeQuery();
+            final Double retVal = resultSet.next() ? resultSet.getDouble("age") : null;
+            resultSet.close();
+            statement.close();
+            return retVal;
+        }
+        finally
+        {
+            disconnect(connection);
+        }
+    }
+
+    private Connection connect(final Node node) throws SQLException
+    {
+        final Connection retVal = pools.getDataSource(node.getUri(), PoolRegistry.Role.ADMIN).getConnection();
+        final Statement statement = retVal.createStatement();
+        statement.execute("set statement_timeout = " + timeout);
+        statement.close();
+        return retVal;
+    }
+
+    private void disconnect(final Connection connection) throws SQLException
+    {
+        try
+        {
+            final Statement statement = connection.createStatement();
+            statement.execute("reset statement_timeout");
+            statement.close();
+        }
+        finally
+        {
+            connection.close();
+        }
+    }
+
+    private static Node findSlave(final Cluster cluster, final String name)
+    {
+        for (Node slave : cluster.getSlaves())
+        {
+            if (slave.getName().equals(name))
+            {
+                return slave;
+            }
+        }
+        throw new IllegalStateException("No slave " + name + " in cluster " + cluster.getName());
+    }
+
+    /**
+     * @return <code>statuses</code> as a table, one line per node
+     */
+    public static String toText(final List<NodeStatus> statuses)
+    {
+        final StringBuilder retVal = new StringBuilder();
+        String cluster = null;
+        for (NodeStatus status : statuses)
+        {
+            if (!status.getCluster().equals(cluster))
+            {
+                cluster = status.getCluster();
+                retVal.append("Cluster [").append(cluster).append("]\n");
+            }
+            retVal.append(status.isMaster() ? "  Master " : "  Slave  ").append(status.getNode());
+            if (status.getUpstream() != null)
+            {
+                retVal.append(" (from ").append(status.getUpstream()).append(")");
+            }
+            retVal.append("\n");
+            if (status.getError() != null)
+            {
+                retVal.append("    ERROR: ").append(status.getError()).append("\n");
+                continue;
+            }
+            retVal.append(status.isMaster() ? "    latest snapshot:  " : "    applied snapshot: ")
+                    .append(text(status.getSnapshotId()));
+            if (!status.isMaster())
+            {
+                retVal.append(", ").append(text(status.getSnapshotsBehind())).append(" behind, lag ")
+                        .append(text(status.getLagSeconds())).append("s");
+            }
+            retVal.append("\n");
+            retVal.append(status.isMaster() ? "    capture rate:     " : "    apply rate:       ")
+                    .append(text(status.getSnapshotsPerSecond())).append(" snapshots/s, ")
+                    .append(text(status.getRowsPerSecond())).append(" rows/s\n");
+            retVal.append("    log tables:       ").append(text(status.getLogTables())).append(", ")
+                    .append(text(status.getLogBytes())).append(" bytes\n");
+        }
+        return retVal.toString();
+    }
+
+    /**
+     * @return <code>statuses</code> as a JSON array of objects, one per node
+     */
+    public static String toJson(final List<NodeStatus> statuses)
+    {
+        final StringBuilder retVal = new StringBuilder("[");
+        for (NodeStatus status : statuses)
+        {
+            retVal.append(retVal.length() == 1 ? "\n" : ",\n");
+            retVal.append("  {\"cluster\": ").append(json(status.getCluster()))
+                    .append(", \"node\": ").append(json(status.getNode()))
+                    .append(", \"role\": ").append(json(status.isMaster() ? "master" : "slave"))
+                    .append(", \"upstream\": ").append(json(status.getUpstream()))
+                    .append(", \"error\": ").append(json(status.getError()))
+                    .append(", \"snapshotId\": ").append(status.getSnapshotId())
+                    .append(", \"snapshotsBehind\": ").append(status.getSnapshotsBehind())
+                    .append(", \"lagSeconds\": ").append(status.getLagSeconds())
+                    .append(", \"snapshotsPerSecond\": ").append(status.getSnapshotsPerSecond())
+                    .append(", \"rowsPerSecond\": ").append(status.getRowsPerSecond())
+                    .append(", \"logTables\": ").append(status.getLogTables())
+                    .append(", \"logBytes\": ").append(status.getLogBytes())
+                    .append(", \"probeMillis\": ").append(status.getProbeMillis())
+                    .append("}");
+        }
+        return retVal.append("\n]\n").toString();
+    }
+
+    private static String text(final Object value)
+    {
+        if (value instanceof Double)
+        {
+            return String.format(Locale.US, "%.1f", (Double) value);
+        }
+        return value == null ? "?" : value.toString();
+    }
+
+    private static String json(final String value)
+    {
+        if (value == null)
+        {
+            return "null";
+        }
+        final StringBuilder retVal = new StringBuilder("\"");
+        for (char c : value.toCharArray())
+        {
+            if (c == '"' || c == '\\')
+            {
+                retVal.append('\\').append(c);
+            }
+            else if (c < ' ')
+            {
+                retVal.append(String.format("\\u%04x", (int) c));
+            }
+            else
+            {
+                retVal.append(c);
+            }
+        }
+        return retVal.append("\"").toString();
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(ClusterStatus.class);
+    private final PoolRegistry pools;
+    private final int threads;
+    private final int timeout;
+    private final int rateWindow;
+
+    // Input for MessageFormat.format()
+    private static final String SELECT_LOGS =
+            "select count(*) as logs, max(id) as latest from bruce.currentlog_{0}";
+    private static final String SELECT_LOG_BYTES =
+            "select coalesce(sum(pg_relation_size(c.oid)), 0) from pg_class c, pg_namespace n " +
+            " where c.relnamespace = n.oid and n.nspname = ''bruce'' and c.relkind = ''r'' " +
+            "   and c.relname ~ ''^(transaction|snapshot)log_{0}_[0-9]+$''";
+    private static final String SELECT_WINDOW_SNAPSHOTS =
+            "select (select count(*) from bruce.snapshotlog_{0}_{1} " +
+            "         where update_time > now() - interval ''{2} seconds'') as snapshots, " +
+            "       (select min(min_xaction) from bruce.snapshotlog_{0}_{1} " +
+            "         where update_time > now() - interval ''{2} seconds'') as min_xaction, " +
+            "       (select max(id) from bruce.snapshotlog_{0}_{1}) as latest";
+    private static final String SELECT_WINDOW_ROWS =
+            "select count(*) from bruce.transactionlog_{0}_{1} where xaction >= ?";
+    private static final String SELECT_SNAPSHOT_AGE =
+            "select extract(epoch from now() - update_time) as age from bruce.snapshotlog_{0} where id = ?";
+    private static final String SELECT_APPLIED_SNAPSHOT =
+            "select master_id from bruce.slavesnapshotstatus where clusterid = ?";
+
+    //
+    // Properties that drive the status report
+    //
+    // How many nodes to probe at once
+    private static final String THREADS_KEY = "bruce.statusThreads";
+    private static final int THREADS_DEFAULT = 8;
+    // How long to wait for all the nodes to answer, in milliseconds
+    private static final String TIMEOUT_KEY = "bruce.statusTimeout";
+    private static final int TIMEOUT_DEFAULT = 5000;
+    // How many seconds of logs the capture and apply rates are measured over
+    private static final String RATE_WINDOW_KEY = "bruce.statusRateWindow";
+    private static final int RATE_WINDOW_DEFAULT = 60;
+}
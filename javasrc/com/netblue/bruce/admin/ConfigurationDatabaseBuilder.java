@@ -50,6 +50,7 @@ public class ConfigurationDatabaseBuilder extends DatabaseBuilder
 	"alter table bruce.NODE_CLUSTER drop constraint cluster_id_fk",
 	"alter table bruce.NODE_CLUSTER drop constraint node_id_fk",
 	"alter table bruce.YF_CLUSTER drop constraint master_node_id_fk",
+	"alter table bruce.YF_NODE drop constraint upstream_node_id_fk",
 	"drop sequence bruce.hibernate_sequence",
 	"drop table bruce.NODE_CLUSTER",
 	"drop table bruce.YF_CLUSTER",
@@ -60,13 +61,16 @@ public class ConfigurationDatabaseBuilder extends DatabaseBuilder
 	"           ( id int8 not null, "+
 	"             available bool, "+
 	"             includeTable text, "+
+	"             columnRules text, "+
 	"             name text not null, "+
 	"             uri text not null, "+
+	"             upstream_node_id int8, "+
 	"             primary key (id))",
 	"alter table bruce.NODE_CLUSTER add constraint cluster_id_fk foreign key (cluster_id) references bruce.YF_CLUSTER",
 	"alter table bruce.NODE_CLUSTER add constraint node_id_fk foreign key (node_id) references bruce.YF_NODE",
 	"create index yf_cluster_name_idx on bruce.YF_CLUSTER (name)",
 	"alter table bruce.YF_CLUSTER add constraint master_node_id_fk foreign key (master_node_id) references bruce.YF_NODE",
+	"alter table bruce.YF_NODE add constraint upstream_node_id_fk foreign key (upstream_node_id) references bruce.YF_NODE",
 	"create sequence bruce.hibernate_sequence"
     };
 }
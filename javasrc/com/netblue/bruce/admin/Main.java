@@ -22,10 +22,12 @@
 */
 package com.netblue.bruce.admin;
 
+import com.netblue.bruce.BruceProperties;
+import com.netblue.bruce.PoolRegistry;
 import com.netblue.bruce.cluster.Cluster;
 import com.netblue.bruce.cluster.ClusterFactory;
 import com.netblue.bruce.cluster.Node;
-import com.netblue.bruce.cluster.RegExReplicationStrategy;
+import com.netblue.bruce.cluster.CatalogReplicationStrategy;
 import org.apache.commons.dbcp.BasicDataSource;
 import org.apache.log4j.Logger;
 import org.dbunit.DatabaseUnitException;
@@ -46,6 +48,7 @@ import java.io.IOException;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 /**
@@ -90,10 +93,20 @@ public class Main
             }
         }
 
+        if (options.getResyncTables() != null)
+        {
+            resyncTables();
+        }
+
         if (options.getList())
         {
             listClusters();
         }
+
+        if (options.getStatus())
+        {
+            printStatus();
+        }
 	dataSource.close();
         LOGGER.info("Complete");
     }
@@ -144,6 +157,53 @@ public class Main
         }
     }
 
+    private void resyncTables() throws SQLException, IllegalAccessException, InstantiationException
+    {
+        final List<String> tables = new ArrayList<String>();
+        for (String table : options.getResyncTables().split(","))
+        {
+            if (table.trim().length() > 0)
+            {
+                tables.add(table.trim());
+            }
+        }
+        ClusterFactory factory = ClusterFactory.getClusterFactory();
+        try
+        {
+            final Node node = factory.getNode(options.getNodeName());
+            if (node == null)
+            {
+                LOGGER.fatal("No such node: " + options.getNodeName());
+                return;
+            }
+            if (node.getCluster().size() != 1)
+            {
+                LOGGER.fatal("Node " + node.getName() + " must belong to exactly one cluster to resync its tables");
+                return;
+            }
+            final Cluster cluster = node.getCluster().iterator().next();
+            if (cluster.getMaster().getId().equals(node.getId()))
+            {
+                LOGGER.fatal("Node " + node.getName() + " is the master of " + cluster.getName());
+                return;
+            }
+            final BruceProperties properties = new BruceProperties();
+            final PoolRegistry pools = new PoolRegistry(properties);
+            try
+            {
+                new SlaveProvisioner(properties, pools).resync(cluster, node, tables);
+            }
+            finally
+            {
+                pools.close();
+            }
+        }
+        finally
+        {
+            factory.close();
+        }
+    }
+
     private void listClusters() throws SQLException, IllegalAccessException, InstantiationException
     {
         LOGGER.info("Listing cluster metadata for " + options.getList());
@@ -172,18 +232,50 @@ public class Main
 	}
     }
 
+    private void printStatus() throws IllegalAccessException, InstantiationException
+    {
+        ClusterFactory factory = ClusterFactory.getClusterFactory();
+        try
+        {
+            final BruceProperties properties = new BruceProperties();
+            final PoolRegistry pools = new PoolRegistry(properties);
+            try
+            {
+                final List<ClusterStatus.NodeStatus> statuses =
+                        new ClusterStatus(properties, pools).probe(factory.getAllClusters());
+                System.out.print(options.getStatusFormat() == Options.StatusFormat.JSON ?
+                                 ClusterStatus.toJson(statuses) : ClusterStatus.toText(statuses));
+            }
+            finally
+            {
+                pools.close();
+            }
+        }
+        finally
+        {
+            factory.close();
+        }
+    }
+
     private void printNode(final Node node) throws SQLException
     {
         System.out.println(node.toString());
 
         // Print matching schemas
         final BasicDataSource nodeDataSource = DatabaseBuilder.makeDataSource(node.getUri(), null, null);
-        final RegExReplicationStrategy replicationStrategy = new RegExReplicationStrategy(nodeDataSource);
-        final ArrayList<String> tables = replicationStrategy.getTables(node, null);
-        System.out.println("\tMatching tables:");
-        for (String table : tables)
+        try
+        {
+            final CatalogReplicationStrategy replicationStrategy = new CatalogReplicationStrategy(nodeDataSource);
+            final ArrayList<String> tables = replicationStrategy.getTables(node, null);
+            System.out.println("\tMatching tables:");
+            for (String table : tables)
+            {
+                System.out.println("\t" + table);
+            }
+        }
+        finally
         {
-            System.out.println("\t" + table);
+            nodeDataSource.close();
         }
     }
 
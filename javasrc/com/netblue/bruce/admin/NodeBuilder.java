@@ -25,18 +25,29 @@ package com.netblue.bruce.admin;
 import com.netblue.bruce.*;
 import com.netblue.bruce.cluster.*;
 import org.apache.commons.dbcp.BasicDataSource;
+import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
 
 import javax.sql.DataSource;
 import java.io.IOException;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Builds all replication nodes found in the configuration database pointed to by <code>dataSource</code>. To build a
@@ -53,12 +64,23 @@ public class NodeBuilder
         this.nodes = nodes;
         this.initOptions = initSnapshots;
         builder = new ReplicationDatabaseBuilder();
+        final BruceProperties properties = new BruceProperties();
+        pools = new PoolRegistry(properties);
+        triggers = new TriggerInstaller(properties);
+        threads = Math.max(1, properties.getIntProperty(THREADS_KEY, THREADS_DEFAULT));
+        LOGGER.debug("threads:" + threads);
     }
 
     /**
      * Installs the replication schema and triggers on each node.  The schema is only installed on those nodes which do
      * not have a schema matching the current version.  Triggers are installed on all replicated tables for every node -
      * even if they exist already.
+     * <p>
+     * The master of each cluster is prepared first.  Its slaves are then prepared concurrently, on up to
+     * <code>bruce.adminThreads</code> threads.  A node that fails does not stop the others.  Once every node has been
+     * tried, the failures are reported together.
+     *
+     * @throws SQLException naming every node that could not be prepared
      */
     public void buildNodes() throws IOException, SQLException {
 	HashSet<Cluster> clusters = new HashSet<Cluster>();
@@ -69,21 +91,82 @@ public class NodeBuilder
 	    }
 	}
 
-	for (Cluster cluster : clusters) {
-	    Node master = cluster.getMaster();
-	    prepareMaster(cluster);
-	    // And only then can the slaves be prepared
-	    for (Node node : nodes) {
-		if (!master.getId().equals(node.getId())) {
-		    prepareSlave(node,cluster);
+	final LinkedHashMap<String, Exception> failures = new LinkedHashMap<String, Exception>();
+	try {
+	    for (final Cluster cluster : clusters) {
+		Node master = cluster.getMaster();
+		long start = System.currentTimeMillis();
+		try {
+		    prepareMaster(cluster);
+		    LOGGER.info("Prepared master " + master.getName() + " of cluster " + cluster.getName() + " in " +
+				(System.currentTimeMillis() - start) + "ms");
+		} catch (Exception e) {
+		    LOGGER.error("Unable to prepare master " + master.getName() + " of cluster " + cluster.getName() +
+				 ". Not preparing its slaves.", e);
+		    failures.put("master " + master.getName() + " of cluster " + cluster.getName(), e);
+		    continue;
 		}
+		// And only then can the slaves be prepared
+		final ArrayList<Node> slaves = new ArrayList<Node>();
+		for (Node node : nodes) {
+		    if (!master.getId().equals(node.getId())) {
+			slaves.add(node);
+		    }
+		}
+		// Each slave may hold a master connection while it is prepared, and a COPY already works the master
+		// with several connections of its own
+		final int workers = initOptions == Options.SnapshotInitialization.COPY ? 1 :
+		    Math.max(1, Math.min(threads, pools.getDataSource(master.getUri(), PoolRegistry.Role.ADMIN).getMaxActive() - 1));
+		LOGGER.info("Preparing " + slaves.size() + " slave(s) of cluster " + cluster.getName() + " on " + workers +
+			    " thread(s)");
+		final ExecutorService executor = Executors.newFixedThreadPool(workers);
+		final LinkedHashMap<Node, Future<Object>> results = new LinkedHashMap<Node, Future<Object>>();
+		final AtomicInteger done = new AtomicInteger();
+		for (final Node slave : slaves) {
+		    results.put(slave, executor.submit(new Callable<Object>() {
+			public Object call() throws Exception {
+			    long start = System.currentTimeMillis();
+			    prepareSlave(slave, cluster);
+			    LOGGER.info("Prepared slave " + slave.getName() + " of cluster " + cluster.getName() +
+					" in " + (System.currentTimeMillis() - start) + "ms (" + done.incrementAndGet() +
+					" of " + slaves.size() + ")");
+			    return null;
+			}
+		    }));
+		}
+		for (Map.Entry<Node, Future<Object>> result : results.entrySet()) {
+		    final String name = "slave " + result.getKey().getName() + " of cluster " + cluster.getName();
+		    try {
+			result.getValue().get();
+		    } catch (ExecutionException e) {
+			final Exception cause = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+			LOGGER.error("Unable to prepare " + name, cause);
+			failures.put(name, cause);
+		    } catch (InterruptedException e) {
+			failures.put(name, e);
+		    }
+		}
+		executor.shutdownNow();
 	    }
+	} finally {
+	    pools.close();
+	}
+	if (!failures.isEmpty()) {
+	    final SQLException retVal = new SQLException("Unable to prepare " + failures.size() + " node(s): " +
+							 failures.keySet());
+	    for (Exception failure : failures.values()) {
+		if (failure instanceof SQLException) {
+		    retVal.setNextException((SQLException) failure);
+		}
+	    }
+	    throw retVal;
 	}
     }
 
     private BasicDataSource prepareDatabase(final Node node) throws IOException, SQLException
     {
-        final BasicDataSource nodeDataSource = DatabaseBuilder.makeDataSource(node.getUri(), null, null);
+        // One pool per node, however many clusters the node is prepared for
+        final BasicDataSource nodeDataSource = pools.getDataSource(node.getUri(), PoolRegistry.Role.ADMIN);
         if (!Version.isSameVersion(nodeDataSource))
         {
             builder.buildDatabase(nodeDataSource);
@@ -95,56 +178,104 @@ public class NodeBuilder
     {
         DataSource dataSource = prepareDatabase(slave);
 
-        RegExReplicationStrategy strategy = new RegExReplicationStrategy(dataSource);
-        Connection connection = dataSource.getConnection();
-        ArrayList<String> tables = strategy.getTables(slave, null);
-        Statement statement = connection.createStatement();
-	createTransactionLogTable(statement,c.getId().toString());
-	// Make sure we have at least one snapshot/transaction log
-	LogSwitchHelper lst = new LogSwitchHelper(new BruceProperties(),dataSource,c);
-	lst.newLogTable(statement);
-        for (String table : tables)
+        CatalogReplicationStrategy strategy = new CatalogReplicationStrategy(dataSource);
+        // Slaves are prepared concurrently, so a failure must not keep its connection from the others
+        final Connection connection = dataSource.getConnection();
+        try
         {
-            String unqualifiedTableName = table.substring(table.lastIndexOf(".")+1);
-            String denyTrigger = MessageFormat.format(DENY_ACCESS_TRIGGER_STMT, unqualifiedTableName, table);
+            ArrayList<String> tables = strategy.getTables(slave, null);
+            checkUncapturedColumns(connection, slave, new ColumnFilter(c.getMaster().getColumnRules()), tables);
+            final Statement statement = connection.createStatement();
             try
             {
-                // The trigger may already be installed on the node so an exception is OK
-                statement.execute(denyTrigger);
+                createTransactionLogTable(statement,c.getId().toString());
+                // Make sure we have at least one snapshot/transaction log
+                LogSwitchHelper lst = new LogSwitchHelper(new BruceProperties(),dataSource,c);
+                lst.newLogTable(statement);
+                triggers.install(dataSource, tables, TriggerInstaller.Kind.DENY);
+
+                // Now that the slave has been initialized, we need to get the last processed snapshot
+                switch(initOptions)
+                {
+                    case MASTER:
+                        Set<Cluster> clusters = slave.getCluster();
+                        for (Cluster aCluster : clusters)
+                        {
+                            DataSource masterDataSource = prepareDatabase(aCluster.getMaster());
+                            final Connection masterConnection = masterDataSource.getConnection();
+                            try
+                            {
+                                final Snapshot snapshot = selectLastSnapshot(masterConnection.createStatement());
+                                updateLastSnapshotForSlave(aCluster, snapshot, statement);
+                            }
+                            finally
+                            {
+                                masterConnection.close();
+                            }
+                        }
+                        break;
+                    case SLAVE:
+                        final Cluster cluster = slave.getCluster().iterator().next();
+                        updateLastSnapshotForSlave(cluster, selectLastSnapshot(statement), statement);
+                        break;
+                    case COPY:
+                        new SlaveProvisioner(new BruceProperties(), pools).provision(c, slave, tables);
+                        break;
+                    case NONE:
+                        // nothing
+                }
             }
-            catch (SQLException e)
+            finally
             {
-                LOGGER.warn("Unexpected exception caught while preparing the slave node.");
-                LOGGER.warn("Node: " + slave);
-                LOGGER.warn("Table: " + table);
-                LOGGER.warn("Exception: ", e);
+                statement.close();
             }
         }
-        
-        // Now that the slave has been initialized, we need to get the last processed snapshot
-        Snapshot lastSnapshot = null;
-        switch(initOptions)
+        finally
+        {
+            connection.close();
+        }
+    }
+
+    /**
+     * Slaves insert rows without the columns the master's column rules leave out, so those columns must be nullable
+     * or have a default on the slave.  Key columns, and tables without keys, are captured whole and not checked.
+     */
+    private void checkUncapturedColumns(final Connection connection, final Node slave, final ColumnFilter filter,
+                                        final List<String> tables) throws SQLException
+    {
+        final ArrayList<String> required = new ArrayList<String>();
+        final PreparedStatement query = connection.prepareStatement(SELECT_REQUIRED_COLUMNS_QUERY);
+        try
         {
-            case MASTER:
-                Set<Cluster> clusters = slave.getCluster();
-                for (Cluster aCluster : clusters)
+            for (String table : tables)
+            {
+                if (filter.getTriggerArguments(table).isEmpty())
+                {
+                    continue;
+                }
+                query.setString(1, table);
+                final ResultSet resultSet = query.executeQuery();
+                while (resultSet.next())
                 {
-                    DataSource masterDataSource = prepareDatabase(aCluster.getMaster());
-                    final Connection masterConnection = masterDataSource.getConnection();
-                    final Snapshot snapshot = selectLastSnapshot(masterConnection.createStatement());
-                    updateLastSnapshotForSlave(aCluster, snapshot, statement);
-                    masterConnection.close();
+                    final String column = resultSet.getString(1);
+                    if (!resultSet.getBoolean(2) && resultSet.getBoolean(3) && !filter.isCaptured(table, column))
+                    {
+                        required.add(table + "." + column);
+                    }
                 }
-                break;
-            case SLAVE:
-                final Cluster cluster = slave.getCluster().iterator().next();
-                updateLastSnapshotForSlave(cluster, selectLastSnapshot(statement), statement);
-                break;
-            case NONE:
-                // nothing
+                resultSet.close();
+            }
+        }
+        finally
+        {
+            query.close();
+        }
+        if (!required.isEmpty())
+        {
+            throw new SQLException("Columns " + StringUtils.join(required.iterator(), ", ") + " of slave " +
+                    slave.getName() + " are not null without a default, but are not captured by the master's " +
+                    "column rules");
         }
-        statement.close();
-        connection.close();
     }
 
     private void updateLastSnapshotForSlave(final Cluster cluster, final Snapshot lastSnapshot, final Statement statement) throws SQLException
@@ -157,45 +288,35 @@ public class NodeBuilder
     }
 
 
-    private void prepareMaster(final Cluster cluster) throws IOException
+    private void prepareMaster(final Cluster cluster) throws IOException, SQLException
     {
-	try { // Its possible that we pass thru this method more than once for a master. Ignore SQL errors.
-	    Node master = cluster.getMaster();
-	    DataSource dataSource = prepareDatabase(master);
-	    
-	    RegExReplicationStrategy strategy = new RegExReplicationStrategy(dataSource);
-	    Connection connection = dataSource.getConnection();
-	    ArrayList<String> tables = strategy.getTables(master, null);
-	    Statement statement = connection.createStatement();
-	    // Populate Master Node table with this clusters ID
-	    String clusterIdS = cluster.getId().toString();
-	    createMasterNodeTable(statement,clusterIdS);
-	    // Create a currentlog table for this cluster
-	    createTransactionLogTable(statement,clusterIdS);
-	    for (String table : tables)
-		{
-		    // Trigger names can't be prefixed with a schema.  Let's get just the tableName
-		    String unqualifiedTableName = table.substring(table.lastIndexOf(".")+1);
-		    String txTrigger = MessageFormat.format(CREATE_TX_TRIGGER_STMT, unqualifiedTableName, table);
-		    LOGGER.info(txTrigger);
-		    statement.execute(txTrigger);
-		    
-		    String snapTrigger = MessageFormat.format(CREATE_SNAP_TRIGGER_STMT, unqualifiedTableName, table);
-		    LOGGER.info(snapTrigger);
-		    statement.execute(snapTrigger);
-		}
-	    
-	    // Now check to see if we have any data in the snapshot view.  If not, create a row
-	    // First, make sure at least one snapshot/transaction log exists
-	    // Make sure we have at least one snapshot/transaction log
-	    LogSwitchHelper lst = new LogSwitchHelper(new BruceProperties(),dataSource,cluster);
-	    lst.newLogTable(statement);
-	    // Make sure that we have at least one snapshot, so that this DB can safely be used as the data source
-	    // of other nodes.
-	    statement.execute("select bruce.logsnapshot()");
-	    statement.close();
-	    connection.close();
-	} catch (SQLException e) {}
+	// Its possible that we pass thru this method more than once for a master. Only missing triggers are added.
+	Node master = cluster.getMaster();
+	DataSource dataSource = prepareDatabase(master);
+	
+	CatalogReplicationStrategy strategy = new CatalogReplicationStrategy(dataSource);
+	Connection connection = dataSource.getConnection();
+	ArrayList<String> tables = strategy.getTables(master, null);
+	Statement statement = connection.createStatement();
+	// Populate Master Node table with this clusters ID
+	String clusterIdS = cluster.getId().toString();
+	createMasterNodeTable(statement,clusterIdS);
+	// Create a currentlog table for this cluster
+	createTransactionLogTable(statement,clusterIdS);
+	triggers.install(dataSource, tables, new ColumnFilter(master.getColumnRules()),
+			 TriggerInstaller.Kind.TRANSACTION, TriggerInstaller.Kind.FLUSH,
+			 TriggerInstaller.Kind.SNAPSHOT);
+	
+	// Now check to see if we have any data in the snapshot view.  If not, create a row
+	// First, make sure at least one snapshot/transaction log exists
+	// Make sure we have at least one snapshot/transaction log
+	LogSwitchHelper lst = new LogSwitchHelper(new BruceProperties(),dataSource,cluster);
+	lst.newLogTable(statement);
+	// Make sure that we have at least one snapshot, so that this DB can safely be used as the data source
+	// of other nodes.
+	statement.execute("select bruce.logsnapshot()");
+	statement.close();
+	connection.close();
     }
 
     private Snapshot selectLastSnapshot(final Statement statement) throws SQLException
@@ -208,17 +329,26 @@ public class NodeBuilder
 	if (resultSet.next()) {
 	    clusterId=resultSet.getLong("cluster_id");
 	} 
-	// Then we can build the query to get the snapshot
-        resultSet = statement.executeQuery("select * from bruce.snapshotlog_"+clusterId.toString()+
-					   " order by id desc limit 1");
-        if (resultSet.next())
+        resultSet.close();
+	// Then we can look up the snapshot in the log tables that can hold it
+        PreparedStatement preparedStatement =
+            new LogTableSelector(clusterId).prepareNextSnapshotQuery(statement.getConnection(), 0L);
+        try
+        {
+            resultSet = preparedStatement.executeQuery();
+            if (resultSet.next())
+            {
+                snapshot = new Snapshot(resultSet.getLong("id"),
+                                        new TransactionID(resultSet.getLong("min_xaction")),
+                                        new TransactionID(resultSet.getLong("max_xaction")),
+                                        resultSet.getString("outstanding_xactions"));
+            }
+            resultSet.close();
+        }
+        finally
         {
-            snapshot = new Snapshot(resultSet.getLong("id"),
-				    new TransactionID(resultSet.getLong("min_xaction")),
-				    new TransactionID(resultSet.getLong("max_xaction")),
-				    resultSet.getString("outstanding_xactions"));
+            preparedStatement.close();
         }
-        resultSet.close();
         return snapshot;
     }
 
@@ -244,17 +374,35 @@ public class NodeBuilder
 		  "           ( id integer "+
 		  "                DEFAULT nextval('bruce.currentlog_"+clusterId+"_id_seq'::regclass) "+
 		  "                NOT NULL primary key, "+
-		  "             create_time timestamp without time zone DEFAULT now() NOT NULL)");
+		  "             create_time timestamp without time zone DEFAULT now() NOT NULL, "+
+		  StringUtils.join(LogSwitchHelper.METADATA_COLUMNS,", ")+")");
 	s.execute("GRANT select ON bruce.currentlog_"+clusterId+" TO public");
  	} catch (SQLException e) {} // OK if table already exists
     }
 
     private final Set<Node> nodes;
+    private final int threads;
     private final ReplicationDatabaseBuilder builder;
+    private final PoolRegistry pools;
+    private final TriggerInstaller triggers;
     private Options.SnapshotInitialization initOptions;
     private static final Logger LOGGER = Logger.getLogger(NodeBuilder.class);
-    private static final String CREATE_TX_TRIGGER_STMT = "CREATE TRIGGER {0}_tx AFTER INSERT OR DELETE OR UPDATE ON {1} FOR EACH ROW EXECUTE PROCEDURE logtransactiontrigger()";
-    private static final String CREATE_SNAP_TRIGGER_STMT = "CREATE TRIGGER {0}_sn BEFORE INSERT OR DELETE OR UPDATE ON {1} FOR EACH STATEMENT EXECUTE PROCEDURE logsnapshottrigger()";
-    private static final String DENY_ACCESS_TRIGGER_STMT = "CREATE TRIGGER {0}_deny BEFORE INSERT OR DELETE OR UPDATE ON {1} FOR EACH ROW EXECUTE PROCEDURE denyaccesstrigger()";
+    // Number of nodes prepared at once.  Each one may hold a connection to its cluster's master, so keep this
+    // below bruce.pool.admin.maxActive.
+    private static final String THREADS_KEY = "bruce.adminThreads";
+    private static final int THREADS_DEFAULT = 4;
+    // Not null columns without defaults, whether each is in a unique index, and whether the table has one at all.
+    // Tables are matched by their unquoted schema.table name, which ?::regclass would fold or reject.
+    private static final String SELECT_REQUIRED_COLUMNS_QUERY =
+            "select a.attname, " +
+            "       exists (select 1 from pg_index i where i.indrelid = a.attrelid and i.indisunique " +
+            "                 and i.indexprs is null and a.attnum = any (i.indkey)), " +
+            "       exists (select 1 from pg_index i where i.indrelid = a.attrelid and i.indisunique " +
+            "                 and i.indexprs is null) " +
+            "  from pg_attribute a " +
+            " where a.attrelid = (select c.oid from pg_class c, pg_namespace n " +
+            "                      where c.relnamespace = n.oid and n.nspname || '.' || c.relname = ?) " +
+            "   and a.attnum > 0 and not a.attisdropped " +
+            "   and a.attnotnull and not a.atthasdef";
     private static final String UPDATE_STATUS_STATEMENT = "insert into bruce.slavesnapshotstatus (slave_xaction, master_id, master_min_xaction, master_max_xaction, update_time, clusterid) values (1, {0, number, #}, {1, number, #}, {2, number, #}, now(), {3, number, #})";
 }
@@ -41,7 +41,15 @@ public class Options
 
     public enum SnapshotInitialization
     {
-        MASTER, SLAVE, NONE 
+        MASTER, SLAVE, COPY, NONE 
+    }
+
+    /**
+     * How the cluster status is printed
+     */
+    public enum StatusFormat
+    {
+        HUMAN, JSON
     }
 
     @Option(name = "-url", usage = "Configuration database connection URL", metaVar = "URL")
@@ -102,19 +110,51 @@ public class Options
             "This option is only appropriate if no updates have occured on the master since the slave was created.  " +
             "SLAVE assumes that the slave node being initialized is a transactional backup of an existing master.  " +
             "The master may have been updated since the transactional backup was created - but that's OK.  " +
+            "COPY copies every replicated table from the master to the slave, from a single master snapshot, and " +
+            "starts the slave from that snapshot.  Use it to build a new slave from scratch.  Tables are copied in " +
+            "parallel from masters of PostgreSQL 9.2 or later, and one at a time from older masters.  " +
             "NONE will do nothing.  This is the default.  Use this option if the node being initialized was " +
-            "created from a transactional backup of an existing slave.", metaVar = "MASTER | SLAVE | NONE")
+            "created from a transactional backup of an existing slave.", metaVar = "MASTER | SLAVE | COPY | NONE")
     public void setInitSnapshots(SnapshotInitialization initSnapshots)
     {
         this.initSnapshots = initSnapshots;
     }
 
+    @Option(name = "-resync", usage = "Used with the -node option.  Resyncs the comma separated, schema qualified " +
+            "tables on the slave node, copying them afresh from the master while the node keeps replicating " +
+            "its other tables.  Large tables are copied in parallel ranges only from masters of PostgreSQL 9.2 " +
+            "or later.", metaVar = "TABLES")
+    public void setResyncTables(String resyncTables)
+    {
+        this.resyncTables = resyncTables;
+    }
+
+    @Option(name = "-node", usage = "The name of the slave node to resync tables on", metaVar = "NAME")
+    public void setNodeName(String nodeName)
+    {
+        this.nodeName = nodeName;
+    }
+
     @Option(name = "-usage", usage = "Prints this message")
     public void setUsage(boolean usage)
     {
         this.usage = usage;
     }
 
+    @Option(name = "-status", usage = "Probes every node of all clusters at URL at once, and prints their " +
+            "replication health: applied snapshot and lag, capture and apply rates, and log table sizes")
+    public void setStatus(boolean status)
+    {
+        this.status = status;
+    }
+
+    @Option(name = "-format", usage = "Used with the -status option.  Can be one of HUMAN or JSON.  " +
+            "HUMAN is the default.", metaVar = "HUMAN | JSON")
+    public void setStatusFormat(StatusFormat statusFormat)
+    {
+        this.statusFormat = statusFormat;
+    }
+
     @Option(name = "-list", usage = "Lists metadata for master and slave nodes for all clusters at URL")
     public void setList(boolean list)
     {
@@ -147,6 +187,16 @@ public class Options
         return list;
     }
 
+    public boolean getStatus()
+    {
+        return status;
+    }
+
+    public StatusFormat getStatusFormat()
+    {
+        return statusFormat;
+    }
+
     public Operation getOperation()
     {
         return operation;
@@ -172,14 +222,28 @@ public class Options
         return initSnapshots;
     }
 
+    public String getResyncTables()
+    {
+        return resyncTables;
+    }
+
+    public String getNodeName()
+    {
+        return nodeName;
+    }
+
     private String url          = null;
     private String username     = null;
     private String password     = null;
     private String dataFile     = null;
     private boolean list        = false;
+    private boolean status      = false;
     private boolean loadSchema  = false;
     private boolean initNodes   = false;
     private boolean usage       = false;
+    private String resyncTables = null;
+    private String nodeName     = null;
     private Operation operation = Operation.INSERT;
     private SnapshotInitialization initSnapshots = SnapshotInitialization.NONE;
+    private StatusFormat statusFormat = StatusFormat.HUMAN;
 }
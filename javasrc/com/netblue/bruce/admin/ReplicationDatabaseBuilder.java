@@ -22,6 +22,7 @@
 */
 package com.netblue.bruce.admin;
 
+import com.netblue.bruce.SlaveRunner;
 import org.apache.log4j.Logger;
 
 /**
@@ -52,10 +53,14 @@ public class ReplicationDatabaseBuilder extends DatabaseBuilder
 	"INSERT INTO bruce.replication_version VALUES (1, 5, 0, 'Replication 1.5 release')",
 	"CREATE FUNCTION bruce.applylogtransaction(text, text, text) RETURNS boolean "+
 	"             AS 'bruce.so', 'applyLogTransaction' LANGUAGE c",
+	"CREATE FUNCTION bruce.currentxaction() RETURNS bigint "+
+	"             AS 'bruce.so', 'currentXaction' LANGUAGE c",
 	"CREATE FUNCTION bruce.daemonmode() RETURNS integer "+
 	"             AS 'bruce.so', 'daemonMode' LANGUAGE c",
 	"CREATE FUNCTION bruce.denyaccesstrigger() RETURNS trigger "+
 	"             AS 'bruce.so', 'denyAccessTrigger' LANGUAGE c",
+	"CREATE FUNCTION bruce.flushcapturetrigger() RETURNS trigger "+
+	"             AS 'bruce.so', 'flushCaptureTrigger' LANGUAGE c",
 	"CREATE FUNCTION bruce.logsnapshottrigger() RETURNS trigger "+
 	"             AS 'bruce.so', 'logSnapshot' LANGUAGE c",
 	"CREATE FUNCTION bruce.logsnapshot() RETURNS boolean "+
@@ -97,5 +102,6 @@ public class ReplicationDatabaseBuilder extends DatabaseBuilder
 	"             master_min_xaction bigint NOT NULL, "+
 	"             master_max_xaction bigint NOT NULL, "+
 	"             master_outstanding_xactions text, "+
-	"             update_time timestamp without time zone default now() NOT NULL)"};
+	"             update_time timestamp without time zone default now() NOT NULL)",
+	SlaveRunner.CREATE_RESYNC_TABLE};
 }
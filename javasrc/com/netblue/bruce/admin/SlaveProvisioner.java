@@ -0,0 +1,1008 @@
+/*
+ * Bruce - A PostgreSQL Database Replication System
+ *
+ * Portions Copyright (c) 2007, Connexus Corporation
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without a written
+ * agreement is hereby granted, provided that the above copyright notice and
+ * this paragraph and the following two paragraphs appear in all copies.
+ *
+ * IN NO EVENT SHALL CONNEXUS CORPORATION BE LIABLE TO ANY PARTY FOR DIRECT,
+ * INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST
+ * PROFITS, ARISING OUT OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION,
+ * EVEN IF CONNEXUS CORPORATION HAS BEEN ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * CONNEXUS CORPORATION SPECIFICALLY DISCLAIMS ANY WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE. THE SOFTWARE PROVIDED HEREUNDER IS ON AN "AS IS"
+ * BASIS, AND CONNEXUS CORPORATION HAS NO OBLIGATIONS TO PROVIDE MAINTENANCE,
+ * SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+*/
+package com.netblue.bruce.admin;
+
+import com.netblue.bruce.BruceProperties;
+import com.netblue.bruce.LogTableSelector;
+import com.netblue.bruce.PoolRegistry;
+import com.netblue.bruce.SlaveRunner;
+import com.netblue.bruce.Snapshot;
+import com.netblue.bruce.TransactionID;
+import com.netblue.bruce.cluster.Cluster;
+import com.netblue.bruce.cluster.Node;
+import org.apache.commons.dbcp.BasicDataSource;
+import org.apache.commons.dbcp.DelegatingConnection;
+import org.apache.log4j.Logger;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.text.MessageFormat;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Builds the data of a new slave by copying every table it replicates from the master, and records the master
+ * snapshot the copy corresponds to, so that replication starts exactly where the copy ended. Also resyncs some
+ * tables of a slave that is replicating, see {@link #resync(Cluster, Node, List)}.
+ * <p>
+ * A single master transaction logs a Bruce snapshot and exports its MVCC snapshot with
+ * <code>pg_export_snapshot()</code>. Up to <code>bruce.provisionThreads</code> workers then copy tables in
+ * parallel, largest first, each from a master transaction that imports the exported snapshot. The tables are
+ * truncated together on the slave first. Tables are then refilled in order of their foreign keys, a table only
+ * once every table it references has been refilled, and each in one slave transaction. Data is streamed with
+ * COPY when the JDBC driver offers the copy API, and copied in batches of <code>bruce.provisionBatchSize</code>
+ * rows otherwise.
+ * <p>
+ * Parallel copies need a master of 9.2 or later. A master older than that cannot export snapshots, so the tables
+ * are copied one after the other, each whole, from the exporting transaction itself. That includes every 8.x
+ * master <code>bruce.so</code> builds against, and the resyncs of their slaves. Setting
+ * <code>bruce.provisionExportSnapshot</code> to <code>false</code> forces the serial copy on any master, for
+ * example behind a connection pooler that cannot hand several connections one snapshot.
+ *
+ * @version $Id$
+ */
+public class SlaveProvisioner
+{
+    public SlaveProvisioner(final BruceProperties properties, final PoolRegistry pools)
+    {
+        this.pools = pools;
+        threads = Math.max(1, properties.getIntProperty(THREADS_KEY, THREADS_DEFAULT));
+        LOGGER.debug("threads:" + threads);
+        batchSize = Math.max(1, properties.getIntProperty(BATCH_SIZE_KEY, BATCH_SIZE_DEFAULT));
+        LOGGER.debug("batchSize:" + batchSize);
+        exportSnapshot = !"false".equals(properties.getProperty(EXPORT_SNAPSHOT_KEY, EXPORT_SNAPSHOT_DEFAULT));
+        LOGGER.debug("exportSnapshot:" + exportSnapshot);
+    }
+
+    /**
+     * Copies <code>tables</code> from the master of <code>cluster</code> to <code>slave</code>, then records the
+     * matching master snapshot as the slave's last processed snapshot for <code>cluster</code>.
+     *
+     * @param cluster the cluster being replicated
+     * @param slave the slave to provision
+     * @param tables the qualified names of the tables the slave replicates
+     * @return the master snapshot the copy corresponds to
+     * @throws SQLException if any table cannot be copied. The slave's snapshot status is then left alone.
+     */
+    public Snapshot provision(final Cluster cluster, final Node slave, final List<String> tables) throws SQLException
+    {
+        LOGGER.info("Provisioning " + slave.getName());
+        final BasicDataSource slaveDataSource = pools.getDataSource(slave.getUri(), PoolRegistry.Role.ADMIN);
+        final Connection connection = slaveDataSource.getConnection();
+        try
+        {
+            connection.setAutoCommit(false);
+            final Statement statement = connection.createStatement();
+            statement.execute("select bruce.daemonmode()");
+            statement.execute(truncateStatement(tables));
+            connection.commit();
+            statement.execute("select bruce.normalmode()");
+            statement.close();
+        }
+        finally
+        {
+            connection.close();
+        }
+        final Snapshot snapshot = copy(cluster, slave, tables, false);
+        recordSnapshot(slaveDataSource, cluster.getId(), snapshot);
+        return snapshot;
+    }
+
+    /**
+     * Resyncs <code>tables</code> on a slave while it replicates.  The tables are registered in
+     * <code>bruce.resynctables</code>, so that the slave's runner stops applying changes to them while the rest of
+     * the slave carries on.  They are then emptied, and refilled from a master snapshot, in chunks of primary key
+     * ranges copied in parallel.  A master that cannot export snapshots refills them serially instead, one whole
+     * table at a time, as described above.  Once the slave has replicated past that snapshot, the changes it skipped
+     * for the tables since the snapshot are applied from the slave's own mirror of the master's transaction log, and
+     * the tables are unregistered, in a single transaction that holds up the runner only for that long.  Until then,
+     * the registration pins the slave's log tables from the slave's last applied snapshot on, so that log
+     * maintenance does not drop them however long the copy takes.
+     * <p>
+     * Tables newly matched by the slave's <code>includeTable</code> may be resynced too.  They are given the
+     * slave's deny access trigger.
+     *
+     * @param cluster the cluster being replicated
+     * @param slave the slave, which may be replicating
+     * @param tables the qualified names of the tables to resync
+     * @throws SQLException if the tables cannot be resynced.  They are left registered, so stay out of
+     * replication until resynced again, but no longer pin the log tables.
+     */
+    public void resync(final Cluster cluster, final Node slave, final List<String> tables) throws SQLException
+    {
+        final BasicDataSource slaveDataSource = pools.getDataSource(slave.getUri(), PoolRegistry.Role.ADMIN);
+        final Long clusterId = cluster.getId();
+        final Connection connection = slaveDataSource.getConnection();
+        boolean resynced = false;
+        try
+        {
+            connection.setAutoCommit(false);
+            final Statement statement = connection.createStatement();
+            ensureResyncTable(connection, statement);
+            final PreparedStatement unregister = connection.prepareStatement(UNREGISTER_RESYNC_STATEMENT);
+            final PreparedStatement register = connection.prepareStatement(REGISTER_RESYNC_STATEMENT);
+            for (String table : tables)
+            {
+                createDenyTrigger(connection, statement, table);
+                unregister.setLong(1, clusterId);
+                unregister.setString(2, table);
+                unregister.execute();
+                register.setLong(1, clusterId);
+                register.setString(2, table);
+                register.setLong(3, clusterId);
+                register.execute();
+            }
+            connection.commit();
+            LOGGER.info("Replication of " + tables + " on " + slave.getName() + " is suspended");
+            // Wait out a snapshot the runner may be applying without having seen the registration
+            readSnapshotStatus(connection, clusterId, true);
+            connection.commit();
+            statement.execute(truncateStatement(tables));
+            connection.commit();
+
+            final Snapshot copied = copy(cluster, slave, tables, true);
+
+            waitForSlave(connection, clusterId, copied);
+            LOGGER.info("Applying the changes to " + tables + " since master snapshot " + copied.getId());
+            final Snapshot applied = readSnapshotStatus(connection, clusterId, true);
+            statement.execute("select bruce.daemonmode()");
+            final long caughtUp = catchUp(connection, clusterId, tables, copied, applied);
+            for (String table : tables)
+            {
+                unregister.setLong(1, clusterId);
+                unregister.setString(2, table);
+                unregister.execute();
+            }
+            connection.commit();
+            LOGGER.info("Applied " + caughtUp + " changes. " + tables + " on " + slave.getName() +
+                        " are replicating again as of master snapshot " + applied.getId());
+            unregister.close();
+            register.close();
+            statement.close();
+            resynced = true;
+        }
+        finally
+        {
+            try
+            {
+                connection.rollback();
+                final Statement statement = connection.createStatement();
+                statement.execute("select bruce.normalmode()");
+                statement.close();
+                if (!resynced)
+                {
+                    unpin(connection, clusterId, tables);
+                }
+            }
+            catch (SQLException e) { } // The connection is broken
+            connection.close();
+        }
+    }
+
+    // Copies the tables, already emptied on the slave, from a master snapshot, and returns that snapshot. Whole
+    // tables are copied, or, for a resync, chunks of them.
+    private Snapshot copy(final Cluster cluster, final Node slave, final List<String> tables, final boolean chunked)
+            throws SQLException
+    {
+        final BasicDataSource masterDataSource = pools.getDataSource(cluster.getMaster().getUri(), PoolRegistry.Role.ADMIN);
+        final BasicDataSource slaveDataSource = pools.getDataSource(slave.getUri(), PoolRegistry.Role.ADMIN);
+        final Connection exporter = masterDataSource.getConnection();
+        try
+        {
+            final boolean exporting = exportsSnapshots(exporter);
+            exporter.setAutoCommit(false);
+            final Statement statement = exporter.createStatement();
+            statement.execute(REPEATABLE_READ);
+            final Snapshot snapshot = logSnapshot(statement, cluster.getId());
+            LOGGER.info("Copying " + tables.size() + " tables to " + slave.getName() + " as of master snapshot " + snapshot);
+            final String exportedSnapshot = exporting ? exportSnapshot(statement) : null;
+            // The exporting transaction holds a master connection, and the caller a slave one
+            final int workers = exportedSnapshot == null ? 1 :
+                    Math.max(1, Math.min(threads, Math.min(masterDataSource.getMaxActive() - 1,
+                                                           slaveDataSource.getMaxActive() - 1)));
+            final ArrayList<List<Chunk>> levels = new ArrayList<List<Chunk>>();
+            int chunkCount = 0;
+            for (List<String> level : dependencyLevels(exporter, tables))
+            {
+                final ArrayList<Chunk> chunks = new ArrayList<Chunk>();
+                for (String table : largestFirst(statement, level))
+                {
+                    if (chunked)
+                    {
+                        chunks.addAll(keyRanges(statement, table, workers));
+                    }
+                    else
+                    {
+                        chunks.add(new Chunk(table, null));
+                    }
+                }
+                levels.add(chunks);
+                chunkCount += chunks.size();
+            }
+            final long start = System.currentTimeMillis();
+            if (exportedSnapshot == null)
+            {
+                LOGGER.warn("The master cannot export snapshots, or bruce.provisionExportSnapshot is false. " +
+                            "Copying one table at a time.");
+                for (List<Chunk> chunks : levels)
+                {
+                    for (Chunk chunk : chunks)
+                    {
+                        copyChunk(exporter, slaveDataSource, chunk);
+                    }
+                }
+            }
+            else
+            {
+                LOGGER.info("Copying " + chunkCount + " chunks on " + workers + " connections");
+                // A level only starts once the tables it references are in
+                for (List<Chunk> chunks : levels)
+                {
+                    copyChunks(masterDataSource, slaveDataSource, chunks, exportedSnapshot, workers);
+                }
+            }
+            LOGGER.info("Copied " + tables.size() + " tables to " + slave.getName() + " in " +
+                        (System.currentTimeMillis() - start) + "ms");
+            statement.close();
+            // Commits the snapshot logged for the copy, which is of no further use to anyone else
+            exporter.commit();
+            return snapshot;
+        }
+        finally
+        {
+            try
+            {
+                exporter.rollback();
+            }
+            catch (SQLException e) { } // Already committed, or the connection is broken
+            exporter.close();
+        }
+    }
+
+    // Log a Bruce snapshot from this transaction, so that it records exactly the MVCC snapshot the copy will see
+    private Snapshot logSnapshot(final Statement statement, final Long clusterId) throws SQLException
+    {
+        statement.execute("select bruce.logsnapshot()");
+        final ResultSet currentLog = statement.executeQuery("select max(id) from bruce.currentlog_" + clusterId);
+        currentLog.next();
+        final String logId = currentLog.getString(1);
+        currentLog.close();
+        final ResultSet resultSet = statement.executeQuery(
+                MessageFormat.format(SELECT_LOGGED_SNAPSHOT_QUERY, clusterId.toString(), logId));
+        try
+        {
+            if (!resultSet.next())
+            {
+                throw new SQLException("Unable to read back the snapshot logged for the copy");
+            }
+            return new Snapshot(resultSet.getLong("id"),
+                                new TransactionID(resultSet.getLong("min_xaction")),
+                                new TransactionID(resultSet.getLong("max_xaction")),
+                                resultSet.getString("outstanding_xactions"));
+        }
+        finally
+        {
+            resultSet.close();
+        }
+    }
+
+    // Whether the master has pg_export_snapshot(), which came with 9.2. Asked before the exporting transaction
+    // starts, as pg_export_snapshot() cannot be called from a subtransaction, so cannot be tried and rolled back.
+    private boolean exportsSnapshots(final Connection exporter) throws SQLException
+    {
+        if (!exportSnapshot)
+        {
+            return false;
+        }
+        final Statement statement = exporter.createStatement();
+        try
+        {
+            final ResultSet resultSet = statement.executeQuery("show server_version_num");
+            resultSet.next();
+            final int version = resultSet.getInt(1);
+            resultSet.close();
+            LOGGER.debug("server_version_num:" + version);
+            return version >= EXPORT_SNAPSHOT_VERSION;
+        }
+        catch (SQLException e)
+        {
+            LOGGER.debug("server_version_num is not available, so neither is pg_export_snapshot()", e);
+            return false;
+        }
+        finally
+        {
+            statement.close();
+        }
+    }
+
+    // Export the snapshot of the exporting transaction
+    private String exportSnapshot(final Statement statement) throws SQLException
+    {
+        final ResultSet resultSet = statement.executeQuery("select pg_export_snapshot()");
+        try
+        {
+            resultSet.next();
+            return resultSet.getString(1);
+        }
+        finally
+        {
+            resultSet.close();
+        }
+    }
+
+    // Group the tables so that the tables a table references through foreign keys are in earlier groups. Tables
+    // in a cycle of foreign keys come last, together, and rely on deferrable constraints.
+    private List<List<String>> dependencyLevels(final Connection master, final List<String> tables)
+            throws SQLException
+    {
+        final HashMap<Long, String> byOid = new HashMap<Long, String>();
+        final PreparedStatement oid = master.prepareStatement(SELECT_OID_QUERY);
+        try
+        {
+            for (String table : tables)
+            {
+                oid.setString(1, table);
+                final ResultSet resultSet = oid.executeQuery();
+                resultSet.next();
+                byOid.put(resultSet.getLong(1), table);
+                resultSet.close();
+            }
+        }
+        finally
+        {
+            oid.close();
+        }
+        final HashMap<String, HashSet<String>> references = new HashMap<String, HashSet<String>>();
+        for (String table : tables)
+        {
+            references.put(table, new HashSet<String>());
+        }
+        final Statement statement = master.createStatement();
+        try
+        {
+            final ResultSet resultSet = statement.executeQuery(SELECT_FOREIGN_KEYS_QUERY);
+            while (resultSet.next())
+            {
+                final String referencing = byOid.get(resultSet.getLong(1));
+                final String referenced = byOid.get(resultSet.getLong(2));
+                if (referencing != null && referenced != null)
+                {
+                    references.get(referencing).add(referenced);
+                }
+            }
+            resultSet.close();
+        }
+        finally
+        {
+            statement.close();
+        }
+        final ArrayList<List<String>> retVal = new ArrayList<List<String>>();
+        final HashSet<String> placed = new HashSet<String>();
+        while (placed.size() < tables.size())
+        {
+            final ArrayList<String> level = new ArrayList<String>();
+            for (String table : tables)
+            {
+                if (!placed.contains(table) && placed.containsAll(references.get(table)))
+                {
+                    level.add(table);
+                }
+            }
+            if (level.isEmpty())
+            {
+                for (String table : tables)
+                {
+                    if (!placed.contains(table))
+                    {
+                        level.add(table);
+                    }
+                }
+                LOGGER.warn("Foreign keys between " + level + " form a cycle. Copying them together.");
+            }
+            placed.addAll(level);
+            retVal.add(level);
+        }
+        return retVal;
+    }
+
+    // Biggest tables first, so that the last table to finish is a small one
+    private List<String> largestFirst(final Statement statement, final List<String> tables) throws SQLException
+    {
+        final HashMap<String, Long> pages = new HashMap<String, Long>();
+        for (String table : tables)
+        {
+            final ResultSet resultSet = statement.executeQuery(
+                    "select relpages from pg_class where oid = '" + table + "'::regclass");
+            pages.put(table, resultSet.next() ? resultSet.getLong(1) : 0L);
+            resultSet.close();
+        }
+        final ArrayList<String> retVal = new ArrayList<String>(tables);
+        Collections.sort(retVal, new Comparator<String>()
+        {
+            public int compare(final String left, final String right)
+            {
+                return pages.get(right).compareTo(pages.get(left));
+            }
+        });
+        return retVal;
+    }
+
+    private void copyChunks(final BasicDataSource masterDataSource, final BasicDataSource slaveDataSource,
+                            final List<Chunk> chunks, final String exportedSnapshot, final int workers)
+            throws SQLException
+    {
+        final ExecutorService executor = Executors.newFixedThreadPool(workers);
+        try
+        {
+            final ArrayList<Future<Object>> results = new ArrayList<Future<Object>>();
+            for (final Chunk chunk : chunks)
+            {
+                results.add(executor.submit(new Callable<Object>()
+                {
+                    public Object call() throws SQLException
+                    {
+                        final Connection master = masterDataSource.getConnection();
+                        try
+                        {
+                            master.setAutoCommit(false);
+                            final Statement statement = master.createStatement();
+                            statement.execute(REPEATABLE_READ);
+                            statement.execute("set transaction snapshot '" + exportedSnapshot + "'");
+                            statement.close();
+                            copyChunk(master, slaveDataSource, chunk);
+                            master.rollback();
+                        }
+                        finally
+                        {
+                            master.close();
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Object> result : results)
+            {
+                try
+                {
+                    result.get();
+                }
+                catch (ExecutionException e)
+                {
+                    if (e.getCause() instanceof SQLException)
+                    {
+                        throw (SQLException) e.getCause();
+                    }
+                    throw new RuntimeException(e.getCause());
+                }
+                catch (InterruptedException e)
+                {
+                    throw new SQLException("Interrupted while copying tables");
+                }
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    // Copy a chunk of a table from the master, in a single slave transaction
+    private void copyChunk(final Connection master, final BasicDataSource slaveDataSource, final Chunk chunk)
+            throws SQLException
+    {
+        final long start = System.currentTimeMillis();
+        final String table = chunk.table;
+        final String columns = columnList(master, table);
+        final Connection slave = slaveDataSource.getConnection();
+        try
+        {
+            slave.setAutoCommit(false);
+            final Statement statement = slave.createStatement();
+            statement.execute("select bruce.daemonmode()");
+            // Rows referencing rows of their own table, or of a table in a cycle, may come before them
+            statement.execute("set constraints all deferred");
+            long rows;
+            final Object masterCopy = copyApi(master);
+            final Object slaveCopy = masterCopy == null ? null : copyApi(slave);
+            if (slaveCopy != null)
+            {
+                rows = streamChunk(masterCopy, slaveCopy, chunk, columns);
+            }
+            else
+            {
+                rows = batchChunk(master, slave, chunk, columns);
+            }
+            statement.close();
+            slave.commit();
+            LOGGER.info("Copied " + chunk + ": " + rows + " rows in " + (System.currentTimeMillis() - start) + "ms");
+        }
+        catch (SQLException e)
+        {
+            slave.rollback();
+            LOGGER.error("Unable to copy " + chunk, e);
+            throw e;
+        }
+        finally
+        {
+            // Daemon mode belongs to the session, not the transaction, so leave the pooled connection without it
+            final Statement statement = slave.createStatement();
+            statement.execute("select bruce.normalmode()");
+            statement.close();
+            slave.close();
+        }
+    }
+
+    private String columnList(final Connection master, final String table) throws SQLException
+    {
+        final PreparedStatement ps = master.prepareStatement(SELECT_COLUMNS_QUERY);
+        try
+        {
+            ps.setString(1, table);
+            final ResultSet resultSet = ps.executeQuery();
+            final StringBuffer retVal = new StringBuffer();
+            while (resultSet.next())
+            {
+                if (retVal.length() > 0)
+                {
+                    retVal.append(",");
+                }
+                retVal.append(resultSet.getString(1));
+            }
+            resultSet.close();
+            return retVal.toString();
+        }
+        finally
+        {
+            ps.close();
+        }
+    }
+
+    // COPY the table out of the master and into the slave, buffer by buffer, through the driver's copy API
+    private long streamChunk(final Object masterCopy, final Object slaveCopy, final Chunk chunk, final String columns)
+            throws SQLException
+    {
+        try
+        {
+            final String source = chunk.range == null ? chunk.table + " (" + columns + ")" :
+                    "(select " + columns + " from " + chunk.table + " where " + chunk.range + ")";
+            final Object copyOut = COPY_OUT.invoke(masterCopy, "copy " + source + " to stdout");
+            final Object copyIn = COPY_IN.invoke(slaveCopy, "copy " + chunk.table + " (" + columns + ") from stdin");
+            byte[] buffer;
+            while ((buffer = (byte[]) READ_FROM_COPY.invoke(copyOut)) != null)
+            {
+                WRITE_TO_COPY.invoke(copyIn, buffer, 0, buffer.length);
+            }
+            return (Long) END_COPY.invoke(copyIn);
+        }
+        catch (InvocationTargetException e)
+        {
+            if (e.getCause() instanceof SQLException)
+            {
+                throw (SQLException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+        catch (IllegalAccessException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // Copy the table through a cursor on the master and batched inserts on the slave. Values travel as text,
+    // and the slave casts them back to the column types.
+    private long batchChunk(final Connection master, final Connection slave, final Chunk chunk, final String columns)
+            throws SQLException
+    {
+        final String table = chunk.table;
+        final int columnCount = columns.split(",").length;
+        final StringBuffer parameters = new StringBuffer("?");
+        for (int i = 1; i < columnCount; i++)
+        {
+            parameters.append(",?");
+        }
+        final Statement select = master.createStatement();
+        final PreparedStatement insert =
+                slave.prepareStatement("insert into " + table + " (" + columns + ") values (" + parameters + ")");
+        try
+        {
+            select.setFetchSize(batchSize);
+            final ResultSet resultSet = select.executeQuery("select " + columns + " from " + table +
+                                                            (chunk.range == null ? "" : " where " + chunk.range));
+            long rows = 0;
+            while (resultSet.next())
+            {
+                for (int i = 1; i <= columnCount; i++)
+                {
+                    insert.setObject(i, resultSet.getString(i), Types.OTHER);
+                }
+                insert.addBatch();
+                if (++rows % batchSize == 0)
+                {
+                    insert.executeBatch();
+                }
+            }
+            if (rows % batchSize != 0)
+            {
+                insert.executeBatch();
+            }
+            resultSet.close();
+            return rows;
+        }
+        finally
+        {
+            insert.close();
+            select.close();
+        }
+    }
+
+    // Split a table with a single integer primary key into about pieces ranges of keys. Other tables are one chunk.
+    // Package private for testing.
+    List<Chunk> keyRanges(final Statement statement, final String table, final int pieces) throws SQLException
+    {
+        final ArrayList<Chunk> retVal = new ArrayList<Chunk>();
+        ResultSet resultSet = statement.executeQuery(MessageFormat.format(SELECT_INTEGER_KEY_QUERY, table));
+        final String key = resultSet.next() ? resultSet.getString(1) : null;
+        resultSet.close();
+        if (key == null || pieces == 1)
+        {
+            retVal.add(new Chunk(table, "true"));
+            return retVal;
+        }
+        resultSet = statement.executeQuery("select min(" + key + "), max(" + key + ") from " + table);
+        resultSet.next();
+        final long min = resultSet.getLong(1);
+        final long max = resultSet.getLong(2);
+        final boolean empty = resultSet.getObject(1) == null;
+        resultSet.close();
+        final long step = (max - min) / pieces + 1;
+        if (empty || step <= 0)
+        {
+            retVal.add(new Chunk(table, "true"));
+            return retVal;
+        }
+        for (long low = min; low <= max; low += step)
+        {
+            final String range = key + " >= " + low + (max - low < step ? "" : " and " + key + " < " + (low + step));
+            retVal.add(new Chunk(table, range));
+            if (max - low < step)
+            {
+                break;
+            }
+        }
+        return retVal;
+    }
+
+    private void ensureResyncTable(final Connection connection, final Statement statement) throws SQLException
+    {
+        final java.sql.Savepoint savepoint = connection.setSavepoint();
+        try
+        {
+            statement.execute(SlaveRunner.CREATE_RESYNC_TABLE);
+            connection.releaseSavepoint(savepoint);
+        }
+        catch (SQLException e)
+        {
+            connection.rollback(savepoint); // Already there
+        }
+    }
+
+    // Let log maintenance drop the log tables that a failed resync of the tables pinned
+    private void unpin(final Connection connection, final Long clusterId, final List<String> tables)
+            throws SQLException
+    {
+        final PreparedStatement unpin = connection.prepareStatement(UNPIN_RESYNC_STATEMENT);
+        try
+        {
+            for (String table : tables)
+            {
+                unpin.setLong(1, clusterId);
+                unpin.setString(2, table);
+                unpin.execute();
+            }
+            connection.commit();
+        }
+        finally
+        {
+            unpin.close();
+        }
+    }
+
+    private void createDenyTrigger(final Connection connection, final Statement statement, final String table)
+            throws SQLException
+    {
+        final java.sql.Savepoint savepoint = connection.setSavepoint();
+        try
+        {
+            statement.execute(TriggerInstaller.Kind.DENY.getCreateStatement(table));
+            connection.releaseSavepoint(savepoint);
+            LOGGER.info("Added deny access trigger to " + table);
+        }
+        catch (SQLException e)
+        {
+            connection.rollback(savepoint); // Already there
+        }
+    }
+
+    // Return the snapshot the slave is at for the cluster. Locking the status waits for the runner to commit whatever
+    // it is applying, and then holds it off until our transaction ends.
+    private Snapshot readSnapshotStatus(final Connection connection, final Long clusterId, final boolean lock)
+            throws SQLException
+    {
+        final PreparedStatement ps = connection.prepareStatement(lock ? LOCK_STATUS_QUERY : SELECT_STATUS_QUERY);
+        try
+        {
+            ps.setLong(1, clusterId);
+            final ResultSet resultSet = ps.executeQuery();
+            if (!resultSet.next())
+            {
+                throw new SQLException("The slave has no snapshot status for cluster " + clusterId);
+            }
+            final Snapshot retVal = new Snapshot(resultSet.getLong("master_id"),
+                                                 new TransactionID(resultSet.getLong("master_min_xaction")),
+                                                 new TransactionID(resultSet.getLong("master_max_xaction")),
+                                                 resultSet.getString("master_outstanding_xactions"));
+            resultSet.close();
+            return retVal;
+        }
+        finally
+        {
+            ps.close();
+        }
+    }
+
+    // Wait until every transaction that the copy could have missed has been replicated to the slave, which is once
+    // the oldest transaction the slave's snapshot considers running is newer than any the copy's snapshot could see
+    private void waitForSlave(final Connection connection, final Long clusterId, final Snapshot copied)
+            throws SQLException
+    {
+        while (true)
+        {
+            final Snapshot applied = readSnapshotStatus(connection, clusterId, false);
+            connection.commit();
+            if (applied.getMinXid().getLong() >= copied.getMaxXid().getLong())
+            {
+                return;
+            }
+            LOGGER.info("Waiting for the slave to replicate past master snapshot " + copied.getId() +
+                        ". It is at " + applied.getId());
+            try
+            {
+                Thread.sleep(CATCH_UP_POLL_INTERVAL);
+            }
+            catch (InterruptedException e)
+            {
+                throw new SQLException("Interrupted waiting for the slave to catch up");
+            }
+        }
+    }
+
+    // Apply the changes to the tables that the runner skipped, and that the copy did not see, from the slave's mirror
+    // of the master's transaction log
+    private long catchUp(final Connection connection, final Long clusterId, final List<String> tables,
+                         final Snapshot copied, final Snapshot applied) throws SQLException
+    {
+        // Streamed in the order the master made the changes, and applied as they come, however many there are
+        final PreparedStatement select = new LogTableSelector(clusterId)
+                .prepareOrderedTransactionQuery(connection, copied.getMinXid().getLong(), applied.getMaxXid().getLong());
+        final PreparedStatement apply = connection.prepareStatement(APPLY_STATEMENT);
+        long changes = 0;
+        try
+        {
+            select.setFetchSize(batchSize);
+            final ResultSet resultSet = select.executeQuery();
+            while (resultSet.next())
+            {
+                final TransactionID tid = new TransactionID(resultSet.getLong("xaction"));
+                if (tables.contains(resultSet.getString("tabname")) &&
+                    copied.transactionIDGE(tid) && applied.transactionIDLT(tid))
+                {
+                    apply.setString(1, resultSet.getString("cmdtype"));
+                    apply.setString(2, resultSet.getString("tabname"));
+                    apply.setString(3, resultSet.getString("info"));
+                    apply.executeQuery().close();
+                    changes++;
+                }
+            }
+            resultSet.close();
+        }
+        finally
+        {
+            apply.close();
+            select.close();
+        }
+        return changes;
+    }
+
+    private void recordSnapshot(final BasicDataSource slaveDataSource, final Long clusterId, final Snapshot snapshot)
+            throws SQLException
+    {
+        final Connection slave = slaveDataSource.getConnection();
+        try
+        {
+            slave.setAutoCommit(false);
+            final PreparedStatement delete = slave.prepareStatement(DELETE_STATUS_STATEMENT);
+            delete.setLong(1, clusterId);
+            delete.execute();
+            delete.close();
+            final PreparedStatement insert = slave.prepareStatement(INSERT_STATUS_STATEMENT);
+            insert.setLong(1, snapshot.getId());
+            insert.setLong(2, snapshot.getMinXid().getLong());
+            insert.setLong(3, snapshot.getMaxXid().getLong());
+            insert.setString(4, snapshot.getInFlight());
+            insert.setLong(5, clusterId);
+            insert.execute();
+            insert.close();
+            slave.commit();
+            LOGGER.info("Slave will replicate from master snapshot " + snapshot.getId());
+        }
+        finally
+        {
+            slave.close();
+        }
+    }
+
+    // The driver's CopyManager for c, or null if the driver has no copy API
+    private static Object copyApi(final Connection c)
+    {
+        if (GET_COPY_API == null)
+        {
+            return null;
+        }
+        try
+        {
+            final Connection pgConnection =
+                    c instanceof DelegatingConnection ? ((DelegatingConnection) c).getInnermostDelegate() : c;
+            return pgConnection == null ? null : GET_COPY_API.invoke(pgConnection);
+        }
+        catch (Exception e)
+        {
+            LOGGER.debug("Copy API unavailable", e);
+            return null;
+        }
+    }
+
+    private static Method copyMethod(final String className, final String name, final Class<?>... parameterTypes)
+    {
+        try
+        {
+            return Class.forName(className).getMethod(name, parameterTypes);
+        }
+        catch (Exception e)
+        {
+            return null;
+        }
+    }
+
+    // Empties the tables at once, as one of them may not be truncated alone while another references it. Not
+    // CASCADE, which would empty tables outside the copy too.
+    private static String truncateStatement(final List<String> tables)
+    {
+        final StringBuffer retVal = new StringBuffer("truncate table ");
+        for (int i = 0; i < tables.size(); i++)
+        {
+            retVal.append(i == 0 ? "" : ", ").append(tables.get(i));
+        }
+        return retVal.toString();
+    }
+
+    /**
+     * Part of a table to copy: the rows in a range of keys, or the whole table when the range is null
+     */
+    static class Chunk
+    {
+        Chunk(final String table, final String range)
+        {
+            this.table = table;
+            this.range = range;
+        }
+
+        public String toString()
+        {
+            return range == null ? table : table + " where " + range;
+        }
+
+        private final String table;
+        private final String range;
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(SlaveProvisioner.class);
+    private final PoolRegistry pools;
+    private final int threads;
+    private final int batchSize;
+    private final boolean exportSnapshot;
+
+    // The copy API of PostgreSQL JDBC drivers from 8.4 on, reached by reflection as the build uses an older driver
+    private static final Method GET_COPY_API = copyMethod("org.postgresql.PGConnection", "getCopyAPI");
+    private static final Method COPY_OUT = copyMethod("org.postgresql.copy.CopyManager", "copyOut", String.class);
+    private static final Method COPY_IN = copyMethod("org.postgresql.copy.CopyManager", "copyIn", String.class);
+    private static final Method READ_FROM_COPY = copyMethod("org.postgresql.copy.CopyOut", "readFromCopy");
+    private static final Method WRITE_TO_COPY =
+            copyMethod("org.postgresql.copy.CopyIn", "writeToCopy", byte[].class, int.class, int.class);
+    private static final Method END_COPY = copyMethod("org.postgresql.copy.CopyIn", "endCopy");
+
+    private static final String REPEATABLE_READ = "set transaction isolation level repeatable read";
+    // The server_version_num of the first release with pg_export_snapshot()
+    private static final int EXPORT_SNAPSHOT_VERSION = 90200;
+    private static final String SELECT_OID_QUERY = "select ?::regclass::oid";
+    // Foreign keys between two different tables, as referencing and referenced table oids
+    private static final String SELECT_FOREIGN_KEYS_QUERY =
+            "select conrelid, confrelid from pg_constraint where contype = 'f' and conrelid <> confrelid";
+    // Input for MessageFormat.format()
+    private static final String SELECT_LOGGED_SNAPSHOT_QUERY =
+            "select * from bruce.snapshotlog_{0}_{1} where id = currval(''bruce.snapshotlog_{0}_idseq'')";
+    private static final String SELECT_COLUMNS_QUERY =
+            "select quote_ident(attname) from pg_attribute " +
+            " where attrelid = ?::regclass and attnum > 0 and not attisdropped order by attnum";
+    // Input for MessageFormat.format()
+    private static final String SELECT_INTEGER_KEY_QUERY =
+            "select quote_ident(a.attname) from pg_index i, pg_attribute a " +
+            " where i.indrelid = ''{0}''::regclass and i.indisprimary and i.indnatts = 1 " +
+            "   and a.attrelid = i.indrelid and a.attnum = i.indkey[0] " +
+            "   and a.atttypid in (''int2''::regtype, ''int4''::regtype, ''int8''::regtype)";
+    private static final String SELECT_STATUS_QUERY = "select * from bruce.slavesnapshotstatus where clusterid = ?";
+    private static final String LOCK_STATUS_QUERY = SELECT_STATUS_QUERY + " for update";
+    // Pinned at the last snapshot the slave applied, which is older than any the copy can start from
+    private static final String REGISTER_RESYNC_STATEMENT =
+            "insert into bruce.resynctables (clusterid, tabname, pin_xaction) " +
+            "values (?, ?, (select master_min_xaction from bruce.slavesnapshotstatus where clusterid = ?))";
+    private static final String UNPIN_RESYNC_STATEMENT =
+            "update bruce.resynctables set pin_xaction = null where clusterid = ? and tabname = ?";
+    private static final String UNREGISTER_RESYNC_STATEMENT =
+            "delete from bruce.resynctables where clusterid = ? and tabname = ?";
+    private static final String APPLY_STATEMENT = "select bruce.applyLogTransaction(?, ?, ?)";
+    // How often to check whether the slave has replicated past the copy, in miliseconds
+    private static final int CATCH_UP_POLL_INTERVAL = 1000;
+    private static final String DELETE_STATUS_STATEMENT = "delete from bruce.slavesnapshotstatus where clusterid = ?";
+    private static final String INSERT_STATUS_STATEMENT =
+            "insert into bruce.slavesnapshotstatus " +
+            "(slave_xaction, master_id, master_min_xaction, master_max_xaction, master_outstanding_xactions, " +
+            " update_time, clusterid) values (1, ?, ?, ?, ?, now(), ?)";
+
+    //
+    // Properties that drive provisioning
+    //
+    // How many tables to copy at once
+    private static final String THREADS_KEY = "bruce.provisionThreads";
+    private static final int THREADS_DEFAULT = 4;
+    // How many rows to insert per batch, when the driver cannot COPY
+    private static final String BATCH_SIZE_KEY = "bruce.provisionBatchSize";
+    private static final int BATCH_SIZE_DEFAULT = 1000;
+    // Whether to copy in parallel from an exported snapshot, where the master has pg_export_snapshot()
+    private static final String EXPORT_SNAPSHOT_KEY = "bruce.provisionExportSnapshot";
+    private static final String EXPORT_SNAPSHOT_DEFAULT = "true";
+}
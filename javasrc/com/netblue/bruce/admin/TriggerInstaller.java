@@ -0,0 +1,317 @@
+/*
+ * Bruce - A PostgreSQL Database Replication System
+ *
+ * Portions Copyright (c) 2007, Connexus Corporation
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without a written
+ * agreement is hereby granted, provided that the above copyright notice and
+ * this paragraph and the following two paragraphs appear in all copies.
+ *
+ * IN NO EVENT SHALL CONNEXUS CORPORATION BE LIABLE TO ANY PARTY FOR DIRECT,
+ * INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST
+ * PROFITS, ARISING OUT OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION,
+ * EVEN IF CONNEXUS CORPORATION HAS BEEN ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * CONNEXUS CORPORATION SPECIFICALLY DISCLAIMS ANY WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE. THE SOFTWARE PROVIDED HEREUNDER IS ON AN "AS IS"
+ * BASIS, AND CONNEXUS CORPORATION HAS NO OBLIGATIONS TO PROVIDE MAINTENANCE,
+ * SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+*/
+package com.netblue.bruce.admin;
+
+import com.netblue.bruce.BruceProperties;
+import com.netblue.bruce.cluster.ColumnFilter;
+import org.apache.log4j.Logger;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Installs Bruce triggers on the replicated tables of a node. The Bruce triggers already on the node are read from
+ * <code>pg_trigger</code> in one query and compared with the triggers the tables should have. Only the missing
+ * triggers are created. A trigger that has the right name but the wrong function or timing is stale, so it is dropped
+ * and created again, as is a capture trigger whose column arguments no longer match the master's
+ * {@link ColumnFilter}. The DDL runs in transactions of <code>bruce.triggerBatchSize</code> statements, so re-running
+ * against a node that is already prepared issues no DDL at all.
+ *
+ * @version $Id$
+ */
+public class TriggerInstaller
+{
+    /**
+     * The triggers Bruce puts on replicated tables
+     */
+    public enum Kind
+    {
+        /** Logs row changes on a master */
+        TRANSACTION("_tx", "logtransactiontrigger", 29,
+                    "CREATE TRIGGER {0}_tx AFTER INSERT OR DELETE OR UPDATE ON {1} FOR EACH ROW EXECUTE PROCEDURE logtransactiontrigger({2})"),
+        /** Writes the rows {@link #TRANSACTION} captured to the transaction log, once per statement */
+        FLUSH("_flush", "flushcapturetrigger", 28,
+              "CREATE TRIGGER {0}_flush AFTER INSERT OR DELETE OR UPDATE ON {1} FOR EACH STATEMENT EXECUTE PROCEDURE flushcapturetrigger()"),
+        /** Logs a snapshot before the first change of a transaction on a master */
+        SNAPSHOT("_sn", "logsnapshottrigger", 30,
+                 "CREATE TRIGGER {0}_sn BEFORE INSERT OR DELETE OR UPDATE ON {1} FOR EACH STATEMENT EXECUTE PROCEDURE logsnapshottrigger()"),
+        /** Rejects changes to a slave table, except from the daemon */
+        DENY("_deny", "denyaccesstrigger", 31,
+             "CREATE TRIGGER {0}_deny BEFORE INSERT OR DELETE OR UPDATE ON {1} FOR EACH ROW EXECUTE PROCEDURE denyaccesstrigger()");
+
+        // pg_trigger.tgtype is a bit mask: 1 row, 2 before, 4 insert, 8 delete, 16 update
+        Kind(String suffix, String function, int type, String createStatement)
+        {
+            this.suffix = suffix;
+            this.function = function;
+            this.type = type;
+            this.createStatement = createStatement;
+        }
+
+        /**
+         * @param table a <code>SCHEMA.TABLE</code> name
+         * @return the name of this trigger on <code>table</code>
+         */
+        public String getTriggerName(String table)
+        {
+            return (unqualified(table) + suffix).toLowerCase();
+        }
+
+        /**
+         * @param table a <code>SCHEMA.TABLE</code> name
+         * @return the statement creating this trigger on <code>table</code>
+         */
+        public String getCreateStatement(String table)
+        {
+            return getCreateStatement(table, Collections.<String>emptyList());
+        }
+
+        /**
+         * @param table a <code>SCHEMA.TABLE</code> name
+         * @param arguments the arguments to pass to the trigger function
+         * @return the statement creating this trigger on <code>table</code>
+         */
+        public String getCreateStatement(String table, List<String> arguments)
+        {
+            final StringBuilder quoted = new StringBuilder();
+            for (String argument : arguments)
+            {
+                quoted.append(quoted.length() == 0 ? "" : ", ").append("'").append(argument.replace("'", "''")).append("'");
+            }
+            return MessageFormat.format(createStatement, unqualified(table), table, quoted);
+        }
+
+        private final String suffix;
+        private final String function;
+        private final int type;
+        private final String createStatement;
+    }
+
+    public TriggerInstaller(final BruceProperties properties)
+    {
+        batchSize = Math.max(1, properties.getIntProperty(BATCH_SIZE_KEY, BATCH_SIZE_DEFAULT));
+        LOGGER.debug("batchSize:" + batchSize);
+    }
+
+    /**
+     * Makes sure each of <code>tables</code> has the triggers of <code>kinds</code>.
+     *
+     * @param dataSource the node
+     * @param tables <code>SCHEMA.TABLE</code> names, as given by a {@link com.netblue.bruce.cluster.ReplicationStrategy}
+     * @param kinds the triggers each table must have
+     *
+     * @return how many triggers were created
+     *
+     * @throws SQLException if the catalog cannot be read or a batch fails. Batches committed before the failure stay.
+     */
+    public int install(final DataSource dataSource, final List<String> tables, final Kind... kinds) throws SQLException
+    {
+        return install(dataSource, tables, new ColumnFilter(null), kinds);
+    }
+
+    /**
+     * Makes sure each of <code>tables</code> has the triggers of <code>kinds</code>, capturing the columns chosen by
+     * <code>columns</code>.
+     *
+     * @param dataSource the node
+     * @param tables <code>SCHEMA.TABLE</code> names, as given by a {@link com.netblue.bruce.cluster.ReplicationStrategy}
+     * @param columns the columns each table's {@link Kind#TRANSACTION} trigger captures
+     * @param kinds the triggers each table must have
+     *
+     * @return how many triggers were created
+     *
+     * @throws SQLException if the catalog cannot be read or a batch fails. Batches committed before the failure stay.
+     */
+    public int install(final DataSource dataSource, final List<String> tables, final ColumnFilter columns,
+                       final Kind... kinds) throws SQLException
+    {
+        final Connection connection = dataSource.getConnection();
+        try
+        {
+            final HashMap<String, String> installed = readTriggers(connection);
+            final ArrayList<String> ddl = new ArrayList<String>();
+            int created = 0;
+            int stale = 0;
+            for (String table : tables)
+            {
+                for (Kind kind : kinds)
+                {
+                    final String triggerName = kind.getTriggerName(table);
+                    final String actual = installed.get(key(table, triggerName));
+                    final List<String> arguments = kind == Kind.TRANSACTION ?
+                            columns.getTriggerArguments(table) : Collections.<String>emptyList();
+                    final String expected = describe(kind.function, kind.type, arguments);
+                    if (expected.equals(actual))
+                    {
+                        continue;
+                    }
+                    if (actual != null)
+                    {
+                        LOGGER.info("Replacing stale trigger " + triggerName + " on " + table + " (" + actual + ")");
+                        ddl.add("DROP TRIGGER " + triggerName + " ON " + table);
+                        stale++;
+                    }
+                    ddl.add(kind.getCreateStatement(table, arguments));
+                    created++;
+                }
+            }
+            LOGGER.info(tables.size() + " table(s) need " + created + " trigger(s), " + stale + " of them stale");
+            execute(connection, ddl);
+            return created;
+        }
+        finally
+        {
+            connection.close();
+        }
+    }
+
+    // Map "schema.table trigger" to "function tgtype arguments" for the triggers that are, or could be mistaken for, Bruce's
+    private HashMap<String, String> readTriggers(final Connection connection) throws SQLException
+    {
+        final StringBuilder functions = new StringBuilder();
+        final StringBuilder suffixes = new StringBuilder();
+        for (Kind kind : Kind.values())
+        {
+            functions.append(functions.length() == 0 ? "" : ",").append("'").append(kind.function).append("'");
+            suffixes.append(suffixes.length() == 0 ? "" : "|").append(kind.suffix.substring(1));
+        }
+        final HashMap<String, String> retVal = new HashMap<String, String>();
+        final Statement statement = connection.createStatement();
+        try
+        {
+            final ResultSet resultSet =
+                    statement.executeQuery(MessageFormat.format(SELECT_TRIGGERS, functions, suffixes));
+            while (resultSet.next())
+            {
+                retVal.put(key(resultSet.getString("nspname") + "." + resultSet.getString("relname"),
+                               resultSet.getString("tgname")),
+                           describe(resultSet.getString("proname"), resultSet.getInt("tgtype"),
+                                    getArguments(resultSet.getBytes("tgargs"), resultSet.getInt("tgnargs"))));
+            }
+            resultSet.close();
+        }
+        finally
+        {
+            statement.close();
+        }
+        LOGGER.debug(retVal.size() + " Bruce trigger(s) found");
+        return retVal;
+    }
+
+    private void execute(final Connection connection, final List<String> ddl) throws SQLException
+    {
+        final boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        final Statement statement = connection.createStatement();
+        try
+        {
+            for (int i = 0; i < ddl.size(); i += batchSize)
+            {
+                final List<String> batch = ddl.subList(i, Math.min(i + batchSize, ddl.size()));
+                for (String sql : batch)
+                {
+                    LOGGER.debug(sql);
+                    statement.addBatch(sql);
+                }
+                try
+                {
+                    statement.executeBatch();
+                    connection.commit();
+                }
+                catch (SQLException e)
+                {
+                    connection.rollback();
+                    throw e.getNextException() == null ? e : e.getNextException();
+                }
+                LOGGER.info("Applied " + (i + batch.size()) + " of " + ddl.size() + " trigger statement(s)");
+            }
+        }
+        finally
+        {
+            statement.close();
+            connection.setAutoCommit(autoCommit);
+        }
+    }
+
+    private static String describe(final String function, final int type, final List<String> arguments)
+    {
+        final StringBuilder retVal = new StringBuilder(function).append(" ").append(type);
+        for (String argument : arguments)
+        {
+            retVal.append(" ").append(argument);
+        }
+        return retVal.toString();
+    }
+
+    // pg_trigger.tgargs holds each argument followed by a zero byte
+    private static List<String> getArguments(final byte[] tgargs, final int count)
+    {
+        final ArrayList<String> retVal = new ArrayList<String>();
+        int start = 0;
+        for (int i = 0; tgargs != null && i < tgargs.length && retVal.size() < count; i++)
+        {
+            if (tgargs[i] == 0)
+            {
+                retVal.add(new String(tgargs, start, i - start));
+                start = i + 1;
+            }
+        }
+        return retVal;
+    }
+
+    private static String key(final String table, final String triggerName)
+    {
+        return table.toLowerCase() + " " + triggerName.toLowerCase();
+    }
+
+    private static String unqualified(final String table)
+    {
+        // Trigger names can't be prefixed with a schema
+        return table.substring(table.lastIndexOf(".") + 1);
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(TriggerInstaller.class);
+    private final int batchSize;
+
+    // Input for MessageFormat.format(): the quoted Bruce trigger functions, and the trigger name suffixes
+    private static final String SELECT_TRIGGERS =
+            "select n.nspname, c.relname, t.tgname, p.proname, t.tgtype, t.tgnargs, t.tgargs " +
+            "  from pg_trigger t, pg_class c, pg_namespace n, pg_proc p " +
+            " where t.tgrelid = c.oid and c.relnamespace = n.oid and t.tgfoid = p.oid " +
+            "   and (p.proname in ({0}) or t.tgname ~ ''_({1})$'')";
+
+    //
+    // Properties that drive trigger installation
+    //
+    // How many trigger statements to run per transaction
+    private static final String BATCH_SIZE_KEY = "bruce.triggerBatchSize";
+    private static final int BATCH_SIZE_DEFAULT = 500;
+}
@@ -0,0 +1,232 @@
+/*
+ * Bruce - A PostgreSQL Database Replication System
+ *
+ * Portions Copyright (c) 2007, Connexus Corporation
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without a written
+ * agreement is hereby granted, provided that the above copyright notice and
+ * this paragraph and the following two paragraphs appear in all copies.
+ *
+ * IN NO EVENT SHALL CONNEXUS CORPORATION BE LIABLE TO ANY PARTY FOR DIRECT,
+ * INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST
+ * PROFITS, ARISING OUT OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION,
+ * EVEN IF CONNEXUS CORPORATION HAS BEEN ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * CONNEXUS CORPORATION SPECIFICALLY DISCLAIMS ANY WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE. THE SOFTWARE PROVIDED HEREUNDER IS ON AN "AS IS"
+ * BASIS, AND CONNEXUS CORPORATION HAS NO OBLIGATIONS TO PROVIDE MAINTENANCE,
+ * SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+*/
+package com.netblue.bruce.cluster;
+
+import com.netblue.bruce.BruceProperties;
+import org.apache.log4j.Logger;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Implements the {@link com.netblue.bruce.cluster.ReplicationStrategy} interface like {@link RegExReplicationStrategy},
+ * but reads every table name from <code>pg_class</code> and <code>pg_namespace</code> in a single query. It does not
+ * walk <code>DatabaseMetaData</code>.
+ * <p>
+ * Include patterns are compiled once. The optional <code>bruce.excludeTable</code> pattern is compiled when the
+ * strategy is created. A table is replicated if its <code>SCHEMA.TABLE</code> name matches the node's include
+ * pattern and does not match the exclude pattern.
+ * <p>
+ * The results for each pattern and schema are cached. Each call first reads a fingerprint of the table names in the
+ * catalog: the table count and a sum of name hashes. The cached results are only thrown away when that fingerprint
+ * changes, so a call on an unchanged catalog costs one small query.
+ *
+ * @version $Id$
+ * @see Node#getIncludeTable()
+ */
+public class CatalogReplicationStrategy implements ReplicationStrategy
+{
+    /**
+     * Create a new instance with <code>dataSource</code> as the database to be replicated
+     *
+     * @param dataSource
+     */
+    public CatalogReplicationStrategy(DataSource dataSource)
+    {
+        this(dataSource, new BruceProperties());
+    }
+
+    public CatalogReplicationStrategy(DataSource dataSource, BruceProperties properties)
+    {
+        this.dataSource = dataSource;
+        final String exclude = properties.getProperty(EXCLUDE_TABLE_KEY);
+        this.excludePattern = exclude == null || exclude.length() == 0 ? null : Pattern.compile(exclude);
+        LOGGER.debug("excludeTable:" + exclude);
+    }
+
+    /**
+     * Gets the list of database tables that <code>node</code> should replicate for <code>schema</code>.  If
+     * <code>schema</code> is null, this method should return the list of all tables in all schemas to be replicated by
+     * this node, using the convention <code>SCHEMA.TABLE</code> for the results.
+     *
+     * @param node the replicating <code>Node</code>
+     * @param schema filters so results are only returned for the given database schema
+     *
+     * @return a list of table names that should be replicated for the <code>node</code>
+     */
+    public ArrayList<String> getTables(Node node, String schema)
+    {
+        Connection connection = null;
+        try
+        {
+            connection = this.dataSource.getConnection();
+            return new ArrayList<String>(getTables(connection, node, schema));
+        }
+        catch (SQLException e)
+        {
+            LOGGER.error("Cannot get tables from database", e);
+            return new ArrayList<String>();
+        }
+        finally
+        {
+            try
+            {
+                if (connection != null && !connection.isClosed())
+                {
+                    connection.close();
+                }
+            }
+            catch (SQLException e)
+            {
+                LOGGER.error(e);
+            }
+        }
+    }
+
+    /**
+     * Like {@link #getTables(Node, String)}, but queries the catalog on <code>connection</code>. Use this overload
+     * inside a transaction that is already open on the node.
+     *
+     * @return a list of table names that should be replicated for the <code>node</code>. Shared with other callers, so
+     *         do not modify it.
+     * @throws SQLException if the catalog cannot be read
+     */
+    public synchronized ArrayList<String> getTables(Connection connection, Node node, String schema)
+            throws SQLException
+    {
+        final String fingerprint = readFingerprint(connection);
+        if (!fingerprint.equals(this.fingerprint))
+        {
+            LOGGER.debug("Catalog changed, reading table names: " + fingerprint);
+            allTables = readTables(connection);
+            results.clear();
+            this.fingerprint = fingerprint;
+        }
+        final String key = node.getIncludeTable() + "\n" + schema;
+        ArrayList<String> tables = results.get(key);
+        if (tables == null)
+        {
+            final Pattern include = getPattern(node.getIncludeTable());
+            tables = new ArrayList<String>();
+            for (String[] table : allTables)
+            {
+                final String qualifiedTableName = table[0] + "." + table[1];
+                if ((schema == null || schema.equals(table[0])) &&
+                    include.matcher(qualifiedTableName).matches() &&
+                    (excludePattern == null || !excludePattern.matcher(qualifiedTableName).matches()))
+                {
+                    tables.add(qualifiedTableName);
+                }
+            }
+            results.put(key, tables);
+        }
+        return tables;
+    }
+
+    /**
+     * Gets the fingerprint of the catalog as {@link #getTables(Connection, Node, String)} last read it. It moves
+     * whenever that call found tables created, dropped or renamed.
+     *
+     * @return the fingerprint, or null if the catalog has not been read yet
+     */
+    public synchronized String getFingerprint()
+    {
+        return fingerprint;
+    }
+
+    private Pattern getPattern(final String regex)
+    {
+        Pattern retVal = patterns.get(regex);
+        if (retVal == null)
+        {
+            retVal = Pattern.compile(regex);
+            patterns.put(regex, retVal);
+        }
+        return retVal;
+    }
+
+    private String readFingerprint(final Connection connection) throws SQLException
+    {
+        final Statement statement = connection.createStatement();
+        try
+        {
+            final ResultSet resultSet = statement.executeQuery(SELECT_FINGERPRINT);
+            resultSet.next();
+            final String retVal = resultSet.getLong("tables") + "/" + resultSet.getLong("names");
+            resultSet.close();
+            return retVal;
+        }
+        finally
+        {
+            statement.close();
+        }
+    }
+
+    private ArrayList<String[]> readTables(final Connection connection) throws SQLException
+    {
+        final ArrayList<String[]> retVal = new ArrayList<String[]>();
+        final PreparedStatement statement = connection.prepareStatement(SELECT_TABLES);
+        try
+        {
+            final ResultSet resultSet = statement.executeQuery();
+            while (resultSet.next())
+            {
+                retVal.add(new String[]{resultSet.getString("nspname"), resultSet.getString("relname")});
+            }
+            resultSet.close();
+        }
+        finally
+        {
+            statement.close();
+        }
+        return retVal;
+    }
+
+    private final DataSource dataSource;
+    private final Pattern excludePattern;
+    private final HashMap<String, Pattern> patterns = new HashMap<String, Pattern>();
+    private final HashMap<String, ArrayList<String>> results = new HashMap<String, ArrayList<String>>();
+    private ArrayList<String[]> allTables;
+    private String fingerprint;
+    private static final Logger LOGGER = Logger.getLogger(CatalogReplicationStrategy.class);
+
+    // Ordinary tables, less those in system schemas. By default, we won't replicate things in the bruce schema.
+    private static final String TABLE_CONDITION =
+            " where c.relnamespace = n.oid and c.relkind = 'r' " +
+            "   and n.nspname !~ '^pg_' and n.nspname not in ('information_schema', 'bruce')";
+    private static final String SELECT_TABLES =
+            "select n.nspname, c.relname from pg_class c, pg_namespace n" + TABLE_CONDITION;
+    private static final String SELECT_FINGERPRINT =
+            "select count(*) as tables, coalesce(sum(hashtext(n.nspname || '.' || c.relname)), 0) as names " +
+            "  from pg_class c, pg_namespace n" + TABLE_CONDITION;
+
+    // Regular expression for SCHEMA.TABLE names that are never replicated, even if the node includes them
+    private static final String EXCLUDE_TABLE_KEY = "bruce.excludeTable";
+}
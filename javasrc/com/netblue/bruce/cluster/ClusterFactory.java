@@ -25,6 +25,8 @@ package com.netblue.bruce.cluster;
 import com.netblue.bruce.cluster.persistence.PersistentClusterFactory;
 import org.apache.log4j.Logger;
 
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -162,4 +164,118 @@ public abstract class   ClusterFactory
      */
     public abstract Node getNode(String name);
 
+    /**
+     * Gets a cheap to compute value that changes whenever the topology of a <code>Cluster</code> changes, so that
+     * callers can poll it and only call {@link #refreshCluster(String)} when it moves.  Factories that cannot
+     * detect changes return a constant, which is what this implementation does.
+     * @param name the name of the cluster
+     * @return the topology version
+     */
+    public long getTopologyVersion(String name)
+    {
+        return 0L;
+    }
+
+    /**
+     * Reloads the topology of a <code>Cluster</code>.  Listeners of the previously loaded <code>Cluster</code>
+     * are carried over to the reloaded one, and notified of each slave added, removed, enabled or disabled, and
+     * of a replaced master.  A slave whose uri, upstream, <code>includeTable</code> or column rules changed is
+     * removed and added again, so that it is replicated afresh.  This implementation does not reload, and simply
+     * returns {@link #getCluster(String)}.
+     * @param name the name of the cluster
+     * @return the reloaded <code>Cluster</code> - never null
+     */
+    public Cluster refreshCluster(String name)
+    {
+        return getCluster(name);
+    }
+
+    /**
+     * Fires an event on <code>newCluster</code> for each difference in its slaves and master from
+     * <code>oldCluster</code>.  For use by {@link #refreshCluster(String)} implementations.
+     * @param oldCluster the previously loaded topology
+     * @param newCluster the reloaded topology, already carrying the listeners of <code>oldCluster</code>
+     */
+    protected static void notifyChanges(Cluster oldCluster, DefaultCluster newCluster)
+    {
+        final Map<Long, Node> oldSlaves = slavesById(oldCluster);
+        final Map<Long, Node> newSlaves = slavesById(newCluster);
+        for (Node oldSlave : oldSlaves.values())
+        {
+            final Node newSlave = newSlaves.get(oldSlave.getId());
+            if (newSlave == null)
+            {
+                newCluster.notifySlaveRemoved(oldSlave);
+            }
+            else if (!oldSlave.getUri().equals(newSlave.getUri()) || !sameUpstream(oldSlave, newSlave) ||
+                     !same(oldSlave.getIncludeTable(), newSlave.getIncludeTable()) ||
+                     !same(oldSlave.getColumnRules(), newSlave.getColumnRules()))
+            {
+                // A new database behind the same node, a new source for it, or new tables or columns to
+                // replicate.  Replicate to it afresh.
+                newCluster.notifySlaveRemoved(oldSlave);
+                newCluster.notifySlaveAdded(newSlave);
+            }
+            else if (oldSlave.isAvailable() && !newSlave.isAvailable())
+            {
+                newCluster.notifySlaveDisabled(newSlave);
+            }
+            else if (!oldSlave.isAvailable() && newSlave.isAvailable())
+            {
+                newCluster.notifySlaveEnabled(newSlave);
+            }
+        }
+        for (Node newSlave : newSlaves.values())
+        {
+            if (!oldSlaves.containsKey(newSlave.getId()))
+            {
+                newCluster.notifySlaveAdded(newSlave);
+            }
+        }
+        final Node oldMaster = oldCluster.getMaster();
+        final Node newMaster = newCluster.getMaster();
+        if (oldMaster != null && newMaster != null && !oldMaster.getId().equals(newMaster.getId()))
+        {
+            newCluster.notifyMasterReplaced(oldMaster, newMaster);
+        }
+    }
+
+    private static boolean same(String oldValue, String newValue)
+    {
+        return oldValue == null ? newValue == null : oldValue.equals(newValue);
+    }
+
+    private static boolean sameUpstream(Node oldSlave, Node newSlave)
+    {
+        final Node oldUpstream = oldSlave.getUpstream();
+        final Node newUpstream = newSlave.getUpstream();
+        if (oldUpstream == null || newUpstream == null)
+        {
+            return oldUpstream == newUpstream;
+        }
+        return oldUpstream.getId().equals(newUpstream.getId());
+    }
+
+    private static Map<Long, Node> slavesById(Cluster cluster)
+    {
+        final Map<Long, Node> slaves = new HashMap<Long, Node>();
+        for (Node slave : cluster.getSlaves())
+        {
+            slaves.put(slave.getId(), slave);
+        }
+        return slaves;
+    }
+
+    // Changes whenever a node of the cluster is added, removed or edited, or the master is replaced.
+    // Input for a native query against the configuration database, as the fingerprint is computed by the database
+    protected static final String TOPOLOGY_VERSION_QUERY =
+            "select count(n.id) + coalesce(sum(hashtext(n.id::text || '/' || coalesce(n.name, '') || '/' || n.uri || '/' || " +
+            "       case when n.available = false then 'f' else 't' end || '/' || " +
+            "       coalesce(n.includetable, '') || '/' || coalesce(n.columnrules, '') || '/' || " +
+            "       coalesce(n.upstream_node_id::text, '') || '/' || " +
+            "       coalesce(c.master_node_id::text, ''))), 0) " +
+            "  from bruce.yf_cluster c " +
+            "  left join bruce.node_cluster nc on nc.cluster_id = c.id " +
+            "  left join bruce.yf_node n on n.id = nc.node_id " +
+            " where c.name = ?";
 }
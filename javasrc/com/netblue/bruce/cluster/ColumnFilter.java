@@ -0,0 +1,145 @@
+/*
+ * Bruce - A PostgreSQL Database Replication System
+ *
+ * Portions Copyright (c) 2007, Connexus Corporation
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without a written
+ * agreement is hereby granted, provided that the above copyright notice and
+ * this paragraph and the following two paragraphs appear in all copies.
+ *
+ * IN NO EVENT SHALL CONNEXUS CORPORATION BE LIABLE TO ANY PARTY FOR DIRECT,
+ * INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST
+ * PROFITS, ARISING OUT OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION,
+ * EVEN IF CONNEXUS CORPORATION HAS BEEN ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * CONNEXUS CORPORATION SPECIFICALLY DISCLAIMS ANY WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE. THE SOFTWARE PROVIDED HEREUNDER IS ON AN "AS IS"
+ * BASIS, AND CONNEXUS CORPORATION HAS NO OBLIGATIONS TO PROVIDE MAINTENANCE,
+ * SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+*/
+package com.netblue.bruce.cluster;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Interprets a {@link Node}'s column rules, which choose the columns of each table that are captured on the master.
+ * Rules are separated by semicolons.  Each is a regular expression matching <code>SCHEMA.TABLE</code> names, an equals
+ * sign, and a comma separated list of columns.  The listed columns are the only ones captured, or, when the list starts
+ * with <code>!</code>, the only ones not captured.  The first rule matching a table applies, and tables no rule
+ * matches are captured whole.  For example,
+ * <pre>
+ *     public\.orders=!audit_json,payload_json; public\.wide=id,name,total
+ * </pre>
+ * The columns of the primary key and unique indexes are always captured, as slaves find rows by them.  A table without
+ * either is captured whole whatever its rule.
+ * <p>
+ * Columns that are not captured are left out of the rows slaves insert, so on each slave they must be nullable or have
+ * a default.  Slaves are checked for this when they are prepared.
+ *
+ * @version $Id$
+ * @see Node#getColumnRules()
+ */
+public class ColumnFilter
+{
+    /**
+     * Parses <code>rules</code>
+     *
+     * @param rules the rules, or null or empty for none
+     *
+     * @throws IllegalArgumentException if a rule has no equals sign or no columns
+     * @throws java.util.regex.PatternSyntaxException if a table expression is invalid
+     */
+    public ColumnFilter(final String rules)
+    {
+        if (rules == null)
+        {
+            return;
+        }
+        for (String rule : rules.split(";"))
+        {
+            if (rule.trim().length() == 0)
+            {
+                continue;
+            }
+            final int equals = rule.lastIndexOf('=');
+            if (equals < 0)
+            {
+                throw new IllegalArgumentException("Column rule \"" + rule.trim() + "\" has no '='");
+            }
+            String columns = rule.substring(equals + 1).trim();
+            final boolean exclude = columns.startsWith("!");
+            if (exclude)
+            {
+                columns = columns.substring(1);
+            }
+            final ArrayList<String> arguments = new ArrayList<String>();
+            arguments.add(exclude ? EXCLUDE : INCLUDE);
+            for (String column : columns.split(","))
+            {
+                if (column.trim().length() > 0)
+                {
+                    arguments.add(column.trim());
+                }
+            }
+            if (arguments.size() == 1)
+            {
+                throw new IllegalArgumentException("Column rule \"" + rule.trim() + "\" names no columns");
+            }
+            tables.add(Pattern.compile(rule.substring(0, equals).trim()));
+            this.arguments.add(Collections.unmodifiableList(arguments));
+        }
+    }
+
+    /**
+     * Gets the arguments to pass to the capture trigger of <code>table</code>: <code>include</code> or
+     * <code>exclude</code>, followed by the columns
+     *
+     * @param table a <code>SCHEMA.TABLE</code> name
+     *
+     * @return the arguments, or an empty list if the whole table is captured
+     */
+    public List<String> getTriggerArguments(final String table)
+    {
+        for (int i = 0; i < tables.size(); i++)
+        {
+            if (tables.get(i).matcher(table).matches())
+            {
+                return arguments.get(i);
+            }
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * Tells whether the rules capture <code>column</code> of <code>table</code>, ignoring the key columns that are
+     * captured regardless
+     *
+     * @param table a <code>SCHEMA.TABLE</code> name
+     * @param column a column of <code>table</code>
+     *
+     * @return false if a rule leaves the column out
+     */
+    public boolean isCaptured(final String table, final String column)
+    {
+        final List<String> arguments = getTriggerArguments(table);
+        if (arguments.isEmpty())
+        {
+            return true;
+        }
+        final boolean listed = arguments.subList(1, arguments.size()).contains(column);
+        return INCLUDE.equals(arguments.get(0)) ? listed : !listed;
+    }
+
+    private final List<Pattern> tables = new ArrayList<Pattern>();
+    private final List<List<String>> arguments = new ArrayList<List<String>>();
+
+    // The first trigger argument, understood by logTransactionTrigger()
+    private static final String INCLUDE = "include";
+    private static final String EXCLUDE = "exclude";
+}
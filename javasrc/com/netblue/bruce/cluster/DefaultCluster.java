@@ -100,6 +100,18 @@ public abstract class DefaultCluster implements Cluster
         }
     }
 
+    /**
+     * Notifies all listeners that <code>slave</code> was enabled
+     * @param slave the <code>Slave</code> that was enabled
+     */
+    public void notifySlaveEnabled(Node slave)
+    {
+        for (ClusterChangeListener listener : listeners)
+        {
+            listener.slaveEnabled(slave);
+        }
+    }
+
     /**
      * Notifies all listeners that the <code>Master</code> for this <code>Cluster</code> has been replaced
      * @param oldMaster the <code>Master</code> that has been replaced
@@ -93,6 +93,35 @@ public interface Node
      */
     public void setIncludeTable(String regex);
 
+    /**
+     * Gets the rules choosing which columns of each table are captured.  Only a master's rules are used, as rows are
+     * captured once, on the master, for every slave.
+     * @return the rules, or null if every column is captured
+     * @see ColumnFilter
+     */
+    public String getColumnRules();
+
+    /**
+     * Sets the rules choosing which columns of each table are captured
+     * @param rules the rules, or null to capture every column
+     * @throws IllegalArgumentException if the rules cannot be parsed
+     */
+    public void setColumnRules(String rules);
+
+    /**
+     * Gets the node this node replicates from, when it is fed by another slave of its <code>Cluster</code> rather
+     * than by the master.  The upstream node mirrors the master's transaction and snapshot logs, and serves them
+     * to its downstream nodes just as the master would.
+     * @return the upstream node, or null to replicate from the master
+     */
+    public Node getUpstream();
+
+    /**
+     * Sets the node this node replicates from
+     * @param upstream the upstream node, or null to replicate from the master
+     */
+    public void setUpstream(Node upstream);
+
     /**
      * Gets the globally unique ID for this <code>Node</code>
      * @return the ID
@@ -0,0 +1,367 @@
+/*
+ * Bruce - A PostgreSQL Database Replication System
+ *
+ * Portions Copyright (c) 2007, Connexus Corporation
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without a written
+ * agreement is hereby granted, provided that the above copyright notice and
+ * this paragraph and the following two paragraphs appear in all copies.
+ *
+ * IN NO EVENT SHALL CONNEXUS CORPORATION BE LIABLE TO ANY PARTY FOR DIRECT,
+ * INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST
+ * PROFITS, ARISING OUT OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION,
+ * EVEN IF CONNEXUS CORPORATION HAS BEEN ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * CONNEXUS CORPORATION SPECIFICALLY DISCLAIMS ANY WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE. THE SOFTWARE PROVIDED HEREUNDER IS ON AN "AS IS"
+ * BASIS, AND CONNEXUS CORPORATION HAS NO OBLIGATIONS TO PROVIDE MAINTENANCE,
+ * SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+*/
+package com.netblue.bruce.cluster.jdbc;
+
+import com.netblue.bruce.BruceProperties;
+import com.netblue.bruce.cluster.Cluster;
+import com.netblue.bruce.cluster.ClusterChangeListener;
+import com.netblue.bruce.cluster.ClusterFactory;
+import com.netblue.bruce.cluster.ClusterInitializationException;
+import com.netblue.bruce.cluster.DefaultCluster;
+import com.netblue.bruce.cluster.Node;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A <code>ClusterFactory</code> that keeps the last topology loaded from the configuration database in a local
+ * {@link TopologyCache} file.  The daemon can then start replicating without waiting for the configuration database.
+ * <p>
+ * When the file is present and intact, the clusters are served from it at once.  The configured factory (see {@link
+ * ClusterFactory#getClusterFactory()}) is created in the background.  While the configuration database cannot be
+ * reached, creation is retried every <code>bruce.topologyCacheRetry</code> milliseconds.  Until it succeeds, the
+ * cached topology versions are reported, so nothing changes.  After that, the versions come from the configuration
+ * database.  The first time a cached cluster is refreshed, it is swapped for the loaded one.  Its listeners are moved
+ * across and told what differs, as for any other topology change.  Clusters not in the file, and a missing or damaged
+ * file, wait for the configuration database as before.
+ * <p>
+ * The file is rewritten every time a topology is loaded or refreshed from the configuration database.
+ *
+ * @version $Id$
+ */
+public class CachingClusterFactory extends ClusterFactory
+{
+    /**
+     * Creates a factory backed by <code>file</code>
+     *
+     * @throws ClusterInitializationException if the file cannot be used and the configured factory cannot be
+     * created either
+     */
+    public CachingClusterFactory(final File file, final BruceProperties properties)
+    {
+        this.file = file;
+        this.retryInterval = Math.max(1, properties.getIntProperty(RETRY_KEY, RETRY_DEFAULT));
+        LOGGER.debug("retryInterval:" + retryInterval);
+        final TopologyCache cache = TopologyCache.load(file);
+        if (cache == null)
+        {
+            setDelegate(createDelegate());
+            return;
+        }
+        this.cache = cache;
+        for (Cluster cluster : cache.getClusters().values())
+        {
+            LOGGER.info("Loading cluster from " + file + ": " + cluster.getName());
+            clusters.put(cluster.getName(), cluster);
+        }
+        connector = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                connect();
+            }
+        }, "topology-cache");
+        connector.setDaemon(true);
+        connector.start();
+    }
+
+    /**
+     * Stops trying to reach the configuration database, and closes the configured factory if it was created
+     */
+    public void close()
+    {
+        final Thread connector;
+        final ClusterFactory delegate;
+        synchronized (this)
+        {
+            closed = true;
+            connector = this.connector;
+            delegate = this.delegate;
+            notifyAll();
+        }
+        if (connector != null)
+        {
+            connector.interrupt();
+        }
+        if (delegate != null)
+        {
+            delegate.close();
+        }
+    }
+
+    /**
+     * Gets a <code>Cluster</code> instance for the current node topology.  A cluster that is not in the cache waits
+     * for the configuration database.
+     *
+     * @param name the name of the cluster
+     * @return the <code>Cluster</code> - never null
+     */
+    public synchronized Cluster getCluster(String name)
+    {
+        if (name == null)
+        {
+            throw new ClusterInitializationException();
+        }
+        Cluster cluster = clusters.get(name);
+        if (cluster == null)
+        {
+            cluster = awaitDelegate().getCluster(name);
+            clusters.put(name, cluster);
+            reconciled.add(name);
+            save();
+        }
+        return cluster;
+    }
+
+    /**
+     * Gets all <code>Cluster</code>s currently known, from the configuration database if it has been reached, and from
+     * the cache otherwise.
+     *
+     * @return a <code>Set</code> of all <code>Cluster</code>s - never null.
+     */
+    public synchronized Set<Cluster> getAllClusters()
+    {
+        final LinkedHashMap<String, Cluster> retVal = new LinkedHashMap<String, Cluster>();
+        if (delegate != null)
+        {
+            for (Cluster cluster : delegate.getAllClusters())
+            {
+                retVal.put(cluster.getName(), cluster);
+            }
+        }
+        retVal.putAll(clusters);
+        return new HashSet<Cluster>(retVal.values());
+    }
+
+    /**
+     * Searches the known clusters for a node, then the configuration database if it has been reached
+     *
+     * @param name the name of the node
+     * @return the node or null
+     */
+    public synchronized Node getNode(String name)
+    {
+        for (Cluster cluster : clusters.values())
+        {
+            if (cluster.getMaster() != null && name.equals(cluster.getMaster().getName()))
+            {
+                return cluster.getMaster();
+            }
+            for (Node slave : cluster.getSlaves())
+            {
+                if (name.equals(slave.getName()))
+                {
+                    return slave;
+                }
+            }
+        }
+        return delegate == null ? null : delegate.getNode(name);
+    }
+
+    /**
+     * Gets the topology version from the configuration database once it has been reached, and the cached one until
+     * then
+     *
+     * @param name the name of the cluster
+     * @return the topology version
+     */
+    public long getTopologyVersion(String name)
+    {
+        final ClusterFactory delegate;
+        synchronized (this)
+        {
+            delegate = this.delegate;
+            if (delegate == null)
+            {
+                final Long version = cache.getVersion(name);
+                return version == null ? 0L : version;
+            }
+        }
+        return delegate.getTopologyVersion(name);
+    }
+
+    /**
+     * Reloads a <code>Cluster</code> from the configuration database.  A cluster served from the cache is swapped for
+     * the loaded one, and its listeners are moved to it and notified of what changed.  Until the configuration
+     * database has been reached, the cached cluster is returned as is.
+     *
+     * @param name the name of the cluster
+     * @return the reloaded <code>Cluster</code> - never null
+     */
+    public synchronized Cluster refreshCluster(String name)
+    {
+        if (delegate == null)
+        {
+            return getCluster(name);
+        }
+        final Cluster newCluster = delegate.refreshCluster(name);
+        final Cluster oldCluster = clusters.get(name);
+        if (oldCluster != null && !reconciled.contains(name) && oldCluster != newCluster)
+        {
+            LOGGER.info("Replacing the cached topology of cluster " + name + " with the configuration database's");
+            for (ClusterChangeListener listener : new ArrayList<ClusterChangeListener>(oldCluster.getClusterChangeListeners()))
+            {
+                oldCluster.removeClusterChangeListener(listener);
+                newCluster.addClusterChangeListener(listener);
+            }
+            notifyChanges(oldCluster, (DefaultCluster) newCluster);
+        }
+        clusters.put(name, newCluster);
+        reconciled.add(name);
+        save();
+        return newCluster;
+    }
+
+    // Creates the configured factory, retrying until it works or this factory is closed
+    private void connect()
+    {
+        while (true)
+        {
+            synchronized (this)
+            {
+                if (closed)
+                {
+                    return;
+                }
+            }
+            try
+            {
+                final ClusterFactory delegate = createDelegate();
+                synchronized (this)
+                {
+                    if (closed)
+                    {
+                        delegate.close();
+                        return;
+                    }
+                    setDelegate(delegate);
+                    LOGGER.info("Reached the configuration database. Topology changes since the cache was saved " +
+                                "are picked up as the clusters are refreshed.");
+                    return;
+                }
+            }
+            catch (ClusterInitializationException e)
+            {
+                LOGGER.warn("Unable to reach the configuration database, replicating from the cached topology. " +
+                            "Retrying in " + retryInterval + "ms.", e);
+            }
+            synchronized (this)
+            {
+                try
+                {
+                    wait(retryInterval);
+                }
+                catch (InterruptedException e)
+                {
+                    // Closing
+                }
+            }
+        }
+    }
+
+    private static ClusterFactory createDelegate()
+    {
+        try
+        {
+            return ClusterFactory.getClusterFactory();
+        }
+        catch (ClusterInitializationException e)
+        {
+            throw e;
+        }
+        catch (Throwable throwable)
+        {
+            throw new ClusterInitializationException("Unable to initialize ClusterFactory", throwable);
+        }
+    }
+
+    private synchronized void setDelegate(ClusterFactory delegate)
+    {
+        this.delegate = delegate;
+        notifyAll();
+        save();
+    }
+
+    private synchronized ClusterFactory awaitDelegate()
+    {
+        while (delegate == null)
+        {
+            if (closed)
+            {
+                throw new ClusterInitializationException("Cluster factory closed");
+            }
+            try
+            {
+                wait();
+            }
+            catch (InterruptedException e)
+            {
+                throw new ClusterInitializationException("Interrupted waiting for the configuration database", e);
+            }
+        }
+        return delegate;
+    }
+
+    // Records every cluster the configuration database knows, as it knows it
+    private void save()
+    {
+        try
+        {
+            final TopologyCache cache = new TopologyCache();
+            for (Cluster cluster : delegate.getAllClusters())
+            {
+                cache.put(cluster, delegate.getTopologyVersion(cluster.getName()));
+            }
+            cache.save(file);
+        }
+        catch (IOException e)
+        {
+            LOGGER.warn("Unable to save the topology cache " + file, e);
+        }
+        catch (RuntimeException e)
+        {
+            LOGGER.warn("Unable to save the topology cache " + file, e);
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(CachingClusterFactory.class);
+    private final File file;
+    private final int retryInterval;
+    private final Map<String, Cluster> clusters = new LinkedHashMap<String, Cluster>();
+    // Clusters that are the configuration database's own, rather than the cache's
+    private final Set<String> reconciled = new HashSet<String>();
+    private TopologyCache cache;
+    private ClusterFactory delegate;
+    private Thread connector;
+    private boolean closed = false;
+
+    // How long to wait between attempts to reach the configuration database, in miliseconds
+    private static final String RETRY_KEY = "bruce.topologyCacheRetry";
+    private static final int RETRY_DEFAULT = 10000;
+}
@@ -0,0 +1,194 @@
+/*
+ * Bruce - A PostgreSQL Database Replication System
+ *
+ * Portions Copyright (c) 2007, Connexus Corporation
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without a written
+ * agreement is hereby granted, provided that the above copyright notice and
+ * this paragraph and the following two paragraphs appear in all copies.
+ *
+ * IN NO EVENT SHALL CONNEXUS CORPORATION BE LIABLE TO ANY PARTY FOR DIRECT,
+ * INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST
+ * PROFITS, ARISING OUT OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION,
+ * EVEN IF CONNEXUS CORPORATION HAS BEEN ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * CONNEXUS CORPORATION SPECIFICALLY DISCLAIMS ANY WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE. THE SOFTWARE PROVIDED HEREUNDER IS ON AN "AS IS"
+ * BASIS, AND CONNEXUS CORPORATION HAS NO OBLIGATIONS TO PROVIDE MAINTENANCE,
+ * SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+*/
+package com.netblue.bruce.cluster.jdbc;
+
+import com.netblue.bruce.cluster.DefaultCluster;
+import com.netblue.bruce.cluster.Node;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * A replication cluster, as read from <code>YF_CLUSTER</code> and <code>NODE_CLUSTER</code> by
+ * {@link JdbcClusterFactory}.  Changes made through this class are not written back to the configuration database.
+ *
+ * @version $Id$
+ */
+class Cluster extends DefaultCluster
+{
+    Cluster(Long id, String name)
+    {
+        this.id = id;
+        this.name = name;
+    }
+
+    /**
+     * Gets the unique ID for this <code>Cluster</code>
+     *
+     * @return the ID
+     */
+    public Long getId()
+    {
+        return this.id;
+    }
+
+    /**
+     * Gets the name for this <code>Cluster</code>
+     *
+     * @return the name
+     */
+    public String getName()
+    {
+        return this.name;
+    }
+
+    /**
+     * Sets the name for this <code>Cluster</code>
+     *
+     * @param name the name of the cluster
+     */
+    public void setName(String name)
+    {
+        this.name = name;
+    }
+
+    /**
+     * Gets the configuration data for the master database
+     *
+     * @return the master, or null if none is configured yet
+     */
+    public Node getMaster()
+    {
+        return master;
+    }
+
+    /**
+     * Gets the set of 0 or more slave databases.
+     *
+     * @return the unmodifiable set of slaves - should never return null, but the set may be empty
+     */
+    public Set<Node> getSlaves()
+    {
+        Set<Node> filteredNodes = new LinkedHashSet<Node>();
+        for (Node node : nodes)
+        {
+            if (!node.equals(this.master)) { filteredNodes.add(node);}
+        }
+        return Collections.unmodifiableSet(filteredNodes);
+    }
+
+    /**
+     * Adds a new slave to the database cluster.
+     *
+     * @param newSlave the new slave
+     */
+    public void addSlave(Node newSlave)
+    {
+        setParent(newSlave);
+        nodes.add(newSlave);
+        notifySlaveAdded(newSlave);
+    }
+
+    /**
+     * Removes <code>slave</code> from the current database cluster.
+     *
+     * @param slave the slave to remove
+     *
+     * @return the slave to remove or null if the slave did not already exist in the cluster
+     */
+    public Node removeSlave(Node slave)
+    {
+        if (nodes.remove(slave))
+        {
+            notifySlaveRemoved(slave);
+            return slave;
+        }
+        return null;
+    }
+
+    /**
+     * Replaces the current master node with <code>newMaster</code>
+     *
+     * @param newMaster the new master database node
+     *
+     * @return the old master database node
+     */
+    public Node replaceMaster(Node newMaster)
+    {
+        Node oldMaster = this.master;
+        this.master = newMaster;
+        setParent(newMaster);
+        notifyMasterReplaced(oldMaster, newMaster);
+        return oldMaster;
+    }
+
+    /**
+     * Sets the list of slaves for this Cluster.  This is equivalent to removing all slaves from the cluster and
+     * replacing them with a new collection
+     *
+     * @param newSlaves the Set of slave nodes
+     */
+    public void setSlaves(final Set<Node> newSlaves)
+    {
+        for (Node slave : getSlaves())
+        {
+            this.removeSlave(slave);
+        }
+        for (Node slave : newSlaves)
+        {
+            this.addSlave(slave);
+        }
+    }
+
+    // Loading, without notifying anyone
+    void setMaster(Node master)
+    {
+        this.master = master;
+    }
+
+    void addNode(Node node)
+    {
+        setParent(node);
+        nodes.add(node);
+    }
+
+    private void setParent(final Node node)
+    {
+        if (!node.getCluster().contains(this))
+        {
+            node.getCluster().add(this);
+        }
+    }
+
+    public String toString()
+    {
+        return "Cluster " + name;
+    }
+
+    private final Long id;
+    private String name;
+    private Node master;
+    // Every node of the cluster, the master included
+    private final Set<Node> nodes = new LinkedHashSet<Node>();
+}
@@ -0,0 +1,358 @@
+/*
+ * Bruce - A PostgreSQL Database Replication System
+ *
+ * Portions Copyright (c) 2007, Connexus Corporation
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without a written
+ * agreement is hereby granted, provided that the above copyright notice and
+ * this paragraph and the following two paragraphs appear in all copies.
+ *
+ * IN NO EVENT SHALL CONNEXUS CORPORATION BE LIABLE TO ANY PARTY FOR DIRECT,
+ * INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST
+ * PROFITS, ARISING OUT OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION,
+ * EVEN IF CONNEXUS CORPORATION HAS BEEN ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * CONNEXUS CORPORATION SPECIFICALLY DISCLAIMS ANY WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE. THE SOFTWARE PROVIDED HEREUNDER IS ON AN "AS IS"
+ * BASIS, AND CONNEXUS CORPORATION HAS NO OBLIGATIONS TO PROVIDE MAINTENANCE,
+ * SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+*/
+package com.netblue.bruce.cluster.jdbc;
+
+import com.netblue.bruce.cluster.ClusterChangeListener;
+import com.netblue.bruce.cluster.ClusterFactory;
+import com.netblue.bruce.cluster.ClusterInitializationException;
+import org.apache.log4j.Logger;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A <code>ClusterFactory</code> that reads the configuration database with plain JDBC.  It uses no Hibernate session
+ * factory and no connection pool.  Select it by setting the system property <code>bruce.cluster.factory.class</code> to
+ * <code>com.netblue.bruce.cluster.jdbc.JdbcClusterFactory</code>.
+ * <p>
+ * It connects with the same <code>hibernate.connection.url</code>, <code>hibernate.connection.username</code> and
+ * <code>hibernate.connection.password</code> system properties as {@link
+ * com.netblue.bruce.cluster.persistence.PersistentClusterFactory}.  It reads <code>YF_CLUSTER</code>,
+ * <code>YF_NODE</code> and <code>NODE_CLUSTER</code> with one query each, and holds a single connection, which is
+ * reopened if it fails.  The clusters it returns behave like the persistent ones, but changes made to them are not
+ * written back.  The one exception is {@link #getCluster(String)}, which registers an unknown cluster name, as the
+ * persistent factory does.
+ *
+ * @version $Id$
+ */
+public class JdbcClusterFactory extends ClusterFactory
+{
+    /**
+     * Creates a new factory.  Loads all existing cluster configurations into memory.
+     */
+    public JdbcClusterFactory()
+    {
+        try
+        {
+            Class.forName(System.getProperty(DRIVER_KEY, DRIVER_DEFAULT));
+            for (Cluster cluster : load().values())
+            {
+                clusters.put(cluster.getName(), cluster);
+                LOGGER.info("Loading cluster: " + cluster.getName());
+            }
+        }
+        catch (Exception e)
+        {
+            LOGGER.error("Error initializing cluster factory", e);
+            close();
+            throw new ClusterInitializationException(e);
+        }
+    }
+
+    /**
+     * Destroy the ClusterFactory and release its connection
+     */
+    public synchronized void close()
+    {
+        if (connection != null)
+        {
+            try
+            {
+                connection.close();
+            }
+            catch (SQLException e)
+            {
+                LOGGER.debug("Unable to close configuration database connection", e);
+            }
+            connection = null;
+        }
+    }
+
+    /**
+     * Gets a <code>Cluster</code> instance for the current node topology.  A cluster not configured yet is added to the
+     * configuration database.
+     *
+     * @param name the name of the cluster
+     * @return the <code>Cluster</code> - never null
+     */
+    public synchronized com.netblue.bruce.cluster.Cluster getCluster(String name)
+    {
+        if (name == null)
+        {
+            throw new ClusterInitializationException();
+        }
+        Cluster cluster = clusters.get(name);
+        if (cluster == null)
+        {
+            LOGGER.info("Creating new cluster: " + name);
+            try
+            {
+                final Statement statement = getConnection().createStatement();
+                final ResultSet resultSet = statement.executeQuery(NEXT_ID_QUERY);
+                resultSet.next();
+                cluster = new Cluster(resultSet.getLong(1), name);
+                resultSet.close();
+                statement.close();
+                final PreparedStatement insert = getConnection().prepareStatement(INSERT_CLUSTER_STATEMENT);
+                insert.setLong(1, cluster.getId());
+                insert.setString(2, name);
+                insert.execute();
+                insert.close();
+            }
+            catch (SQLException e)
+            {
+                LOGGER.error("Error initializing cluster factory", e);
+                close();
+                throw new ClusterInitializationException(e);
+            }
+            clusters.put(name, cluster);
+        }
+        return cluster;
+    }
+
+    /**
+     * Gets a <code>Node</code> instance for the current node topology.
+     *
+     * @param name the name of the node
+     * @return the <code>Node</code> or null if not found
+     */
+    public synchronized com.netblue.bruce.cluster.Node getNode(String name)
+    {
+        if (name == null)
+        {
+            return null;
+        }
+        try
+        {
+            final HashMap<Long, Node> nodes = new HashMap<Long, Node>();
+            loadInto(nodes);
+            for (Node node : nodes.values())
+            {
+                if (name.equals(node.getName()))
+                {
+                    return node;
+                }
+            }
+            return null;
+        }
+        catch (SQLException e)
+        {
+            close();
+            throw new ClusterInitializationException(e);
+        }
+    }
+
+    /**
+     * Gets all <code>Cluster</code>s currently configured.
+     *
+     * @return a <code>Set</code> of all <code>Cluster</code>s - never null.
+     */
+    public synchronized Set<com.netblue.bruce.cluster.Cluster> getAllClusters()
+    {
+        return new HashSet<com.netblue.bruce.cluster.Cluster>(clusters.values());
+    }
+
+    /**
+     * Gets a fingerprint of the nodes of a <code>Cluster</code>, computed by a single query against the configuration
+     * database
+     *
+     * @param name the name of the cluster
+     * @return the topology version
+     */
+    public synchronized long getTopologyVersion(String name)
+    {
+        try
+        {
+            final PreparedStatement statement = getConnection().prepareStatement(TOPOLOGY_VERSION_QUERY);
+            statement.setString(1, name);
+            final ResultSet resultSet = statement.executeQuery();
+            final long retVal = resultSet.next() ? resultSet.getLong(1) : 0L;
+            resultSet.close();
+            statement.close();
+            return retVal;
+        }
+        catch (SQLException e)
+        {
+            close();
+            throw new ClusterInitializationException(e);
+        }
+    }
+
+    /**
+     * Reloads a <code>Cluster</code> from the configuration database, and notifies the listeners of the previously
+     * loaded <code>Cluster</code> of what changed.  The listeners are carried over to the reloaded <code>Cluster</code>.
+     * If the cluster is no longer configured, the previously loaded <code>Cluster</code> is kept.
+     *
+     * @param name the name of the cluster
+     * @return the reloaded <code>Cluster</code> - never null
+     */
+    public synchronized com.netblue.bruce.cluster.Cluster refreshCluster(String name)
+    {
+        final Cluster oldCluster = clusters.get(name);
+        if (oldCluster == null)
+        {
+            return getCluster(name);
+        }
+        final Cluster newCluster;
+        try
+        {
+            newCluster = load().get(name);
+        }
+        catch (SQLException e)
+        {
+            close();
+            throw new ClusterInitializationException(e);
+        }
+        if (newCluster == null)
+        {
+            LOGGER.warn("Cluster " + name + " is no longer configured.  Keeping the last known topology.");
+            return oldCluster;
+        }
+        LOGGER.info("Reloading cluster: " + name);
+        for (ClusterChangeListener listener : new ArrayList<ClusterChangeListener>(oldCluster.getClusterChangeListeners()))
+        {
+            newCluster.addClusterChangeListener(listener);
+        }
+        clusters.put(name, newCluster);
+        notifyChanges(oldCluster, newCluster);
+        return newCluster;
+    }
+
+    // Reads every cluster, with its nodes, keyed by name
+    private Map<String, Cluster> load() throws SQLException
+    {
+        final HashMap<Long, Node> nodes = new HashMap<Long, Node>();
+        final LinkedHashMap<String, Cluster> retVal = new LinkedHashMap<String, Cluster>();
+        for (Cluster cluster : loadInto(nodes).values())
+        {
+            retVal.put(cluster.getName(), cluster);
+        }
+        return retVal;
+    }
+
+    // Reads every node into nodes, and returns every cluster by id
+    private Map<Long, Cluster> loadInto(final Map<Long, Node> nodes) throws SQLException
+    {
+        final Statement statement = getConnection().createStatement();
+        try
+        {
+            final HashMap<Long, Long> upstreams = new HashMap<Long, Long>();
+            ResultSet resultSet = statement.executeQuery(SELECT_NODES);
+            while (resultSet.next())
+            {
+                final Node node = new Node(resultSet.getLong("id"));
+                node.setName(resultSet.getString("name"));
+                node.setUri(resultSet.getString("uri"));
+                final boolean available = resultSet.getBoolean("available");
+                node.setAvailable(resultSet.wasNull() ? null : available);
+                node.setIncludeTable(resultSet.getString("includetable"));
+                node.setColumnRules(resultSet.getString("columnrules"));
+                final long upstream = resultSet.getLong("upstream_node_id");
+                if (!resultSet.wasNull())
+                {
+                    upstreams.put(node.getId(), upstream);
+                }
+                nodes.put(node.getId(), node);
+            }
+            resultSet.close();
+            for (Map.Entry<Long, Long> upstream : upstreams.entrySet())
+            {
+                nodes.get(upstream.getKey()).setUpstream(nodes.get(upstream.getValue()));
+            }
+
+            final LinkedHashMap<Long, Cluster> retVal = new LinkedHashMap<Long, Cluster>();
+            resultSet = statement.executeQuery(SELECT_CLUSTERS);
+            while (resultSet.next())
+            {
+                final Cluster cluster = new Cluster(resultSet.getLong("id"), resultSet.getString("name"));
+                final long master = resultSet.getLong("master_node_id");
+                if (!resultSet.wasNull())
+                {
+                    cluster.setMaster(nodes.get(master));
+                }
+                retVal.put(cluster.getId(), cluster);
+            }
+            resultSet.close();
+
+            resultSet = statement.executeQuery(SELECT_NODE_CLUSTERS);
+            while (resultSet.next())
+            {
+                final Cluster cluster = retVal.get(resultSet.getLong("cluster_id"));
+                final Node node = nodes.get(resultSet.getLong("node_id"));
+                if (cluster != null && node != null)
+                {
+                    cluster.addNode(node);
+                }
+            }
+            resultSet.close();
+            return retVal;
+        }
+        finally
+        {
+            statement.close();
+        }
+    }
+
+    private Connection getConnection() throws SQLException
+    {
+        if (connection == null)
+        {
+            final String url = System.getProperty(URL_KEY);
+            LOGGER.debug(url);
+            connection = DriverManager.getConnection(url, System.getProperty(USERNAME_KEY),
+                                                     System.getProperty(PASSWORD_KEY));
+        }
+        return connection;
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(JdbcClusterFactory.class);
+    private final Map<String, Cluster> clusters = new HashMap<String, Cluster>();
+    private Connection connection;
+
+    // The system properties the persistent factory hands to Hibernate
+    private static final String DRIVER_KEY = "hibernate.connection.driver_class";
+    private static final String DRIVER_DEFAULT = "org.postgresql.Driver";
+    private static final String URL_KEY = "hibernate.connection.url";
+    private static final String USERNAME_KEY = "hibernate.connection.username";
+    private static final String PASSWORD_KEY = "hibernate.connection.password";
+
+    private static final String SELECT_NODES =
+            "select id, name, uri, available, includetable, columnrules, upstream_node_id from bruce.yf_node";
+    private static final String SELECT_CLUSTERS =
+            "select id, name, master_node_id from bruce.yf_cluster";
+    private static final String SELECT_NODE_CLUSTERS =
+            "select node_id, cluster_id from bruce.node_cluster order by node_id";
+    // Ids come from the sequence Hibernate generates them from, so both factories can share a database
+    private static final String NEXT_ID_QUERY = "select nextval('bruce.hibernate_sequence')";
+    private static final String INSERT_CLUSTER_STATEMENT = "insert into bruce.yf_cluster (id, name) values (?, ?)";
+}
@@ -0,0 +1,298 @@
+/*
+ * Bruce - A PostgreSQL Database Replication System
+ *
+ * Portions Copyright (c) 2007, Connexus Corporation
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without a written
+ * agreement is hereby granted, provided that the above copyright notice and
+ * this paragraph and the following two paragraphs appear in all copies.
+ *
+ * IN NO EVENT SHALL CONNEXUS CORPORATION BE LIABLE TO ANY PARTY FOR DIRECT,
+ * INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST
+ * PROFITS, ARISING OUT OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION,
+ * EVEN IF CONNEXUS CORPORATION HAS BEEN ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * CONNEXUS CORPORATION SPECIFICALLY DISCLAIMS ANY WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE. THE SOFTWARE PROVIDED HEREUNDER IS ON AN "AS IS"
+ * BASIS, AND CONNEXUS CORPORATION HAS NO OBLIGATIONS TO PROVIDE MAINTENANCE,
+ * SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+*/
+package com.netblue.bruce.cluster.jdbc;
+
+import com.netblue.bruce.cluster.ClusterChangeListener;
+import com.netblue.bruce.cluster.ColumnFilter;
+import org.apache.commons.lang.builder.EqualsBuilder;
+import org.apache.commons.lang.builder.HashCodeBuilder;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * A database node in the replication cluster, as read from <code>YF_NODE</code> by {@link JdbcClusterFactory}.
+ * Changes made through the setters are not written back to the configuration database.
+ *
+ * @version $Id$
+ */
+class Node implements com.netblue.bruce.cluster.Node
+{
+    Node(Long id)
+    {
+        this.id = id;
+    }
+
+    /**
+     * The unique ID for this node
+     *
+     * @return a unique ID
+     */
+    public Long getId()
+    {
+        return this.id;
+    }
+
+    /**
+     * The URI for this node
+     *
+     * @return the URI
+     */
+    public String getUri()
+    {
+        return this.uri;
+    }
+
+    /**
+     * The name for this node
+     *
+     * @return the name (may be null)
+     */
+    public String getName()
+    {
+        return this.name;
+    }
+
+    /**
+     * True if the database node is currently available
+     *
+     * @return true of the database node is available
+     */
+    public boolean isAvailable()
+    {
+        // Nodes configured without saying are taken to be available
+        return this.available == null || this.available;
+    }
+
+    /**
+     * Gets the cluster for this node.
+     *
+     * @return this <code>Cluster</code> this node belongs to
+     */
+    public Set<com.netblue.bruce.cluster.Cluster> getCluster()
+    {
+        return this.cluster;
+    }
+
+    /**
+     * Sets the URI for this node
+     *
+     * @param uri
+     */
+    public void setUri(String uri)
+    {
+        this.uri = uri;
+    }
+
+    /**
+     * Sets whether this node is available, and notifies the listeners of its clusters if that changes
+     *
+     * @param available
+     */
+    public void isAvailable(boolean available)
+    {
+        if (this.available == null || this.available != available)
+        {
+            this.available = available;
+            for (com.netblue.bruce.cluster.Cluster parent : getCluster())
+            {
+                final Collection<ClusterChangeListener> changeListeners = parent.getClusterChangeListeners();
+                for (ClusterChangeListener listener : changeListeners)
+                {
+                    if (available)
+                    {
+                        listener.slaveEnabled(this);
+                    }
+                    else
+                    {
+                        listener.slaveDisabled(this);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets the parent <code>Cluster</code>s for this <code>Node</code>
+     *
+     * @param cluster
+     */
+    public void setCluster(Set<com.netblue.bruce.cluster.Cluster> cluster)
+    {
+        this.cluster = cluster;
+    }
+
+    /**
+     * Gets the regular expression string describing the tables to be included in node replication
+     *
+     * @return the regular expression string or null if not set
+     */
+    public String getIncludeTable()
+    {
+        return includeTable == null || includeTable.length() == 0 ? DEFAULT_TABLE_MATCH : includeTable;
+    }
+
+    /**
+     * Sets the regular expression string describing the tables to be included in node replication
+     *
+     * @param regex the regular expression string
+     *
+     * @throws {@link java.util.regex.PatternSyntaxException} if <code>regex</code> syntax is invalid
+     */
+    public void setIncludeTable(String regex)
+    {
+        if (regex != null)
+        {
+            Pattern.compile(regex);
+        }
+        this.includeTable = regex;
+    }
+
+    /**
+     * Gets the rules choosing which columns of each table are captured
+     *
+     * @return the rules, or null if every column is captured
+     */
+    public String getColumnRules()
+    {
+        return columnRules;
+    }
+
+    /**
+     * Sets the rules choosing which columns of each table are captured
+     *
+     * @param rules the rules, or null to capture every column
+     *
+     * @throws IllegalArgumentException if <code>rules</code> cannot be parsed
+     */
+    public void setColumnRules(String rules)
+    {
+        new ColumnFilter(rules);
+        this.columnRules = rules;
+    }
+
+    /**
+     * Gets the node this node replicates from
+     *
+     * @return the upstream node, or null to replicate from the master
+     */
+    public com.netblue.bruce.cluster.Node getUpstream()
+    {
+        return upstream;
+    }
+
+    /**
+     * Sets the node this node replicates from
+     *
+     * @param upstream the upstream node, or null to replicate from the master
+     */
+    public void setUpstream(com.netblue.bruce.cluster.Node upstream)
+    {
+        this.upstream = upstream;
+    }
+
+    /**
+     * Sets the user-friendly <code>name</code> for this <code>Node</code>
+     *
+     * @param name the name of this <code>Node</code>
+     */
+    public void setName(String name)
+    {
+        this.name = name;
+    }
+
+    // As read from the configuration database, where null means available
+    void setAvailable(Boolean available)
+    {
+        this.available = available;
+    }
+
+    public int hashCode()
+    {
+        return new HashCodeBuilder(3, 5)
+                .append(id)
+                .append(name)
+                .append(uri)
+                .append(available)
+                .append(includeTable)
+                .append(getUpstreamId())
+                .toHashCode();
+    }
+
+    public boolean equals(Object object)
+    {
+        if (object instanceof Node == false)
+        {
+            return false;
+        }
+        if (this == object)
+        {
+            return true;
+        }
+        Node rhs = (Node) object;
+        return new EqualsBuilder()
+                .append(id, rhs.id)
+                .append(name, rhs.name)
+                .append(uri, rhs.uri)
+                .append(available, rhs.available)
+                .append(includeTable, rhs.includeTable)
+                .append(getUpstreamId(), rhs.getUpstreamId())
+                .isEquals();
+    }
+
+    public String toString()
+    {
+        StringBuffer buffer = new StringBuffer();
+        buffer.append("Name:\t" + getName());
+        buffer.append("\n\tURL: " + getUri());
+        buffer.append("\n\tInclude table: " + getIncludeTable());
+        if (columnRules != null)
+        {
+            buffer.append("\n\tColumn rules: " + columnRules);
+        }
+        if (upstream != null)
+        {
+            buffer.append("\n\tUpstream: " + upstream.getName());
+        }
+        return buffer.toString();
+    }
+
+    // Compare upstream nodes by id, so that a chain of nodes is not walked
+    private Long getUpstreamId()
+    {
+        return upstream == null ? null : upstream.getId();
+    }
+
+    private final Long id;
+    private String name;
+    private String uri;
+    private Boolean available;
+    private Set<com.netblue.bruce.cluster.Cluster> cluster = new HashSet<com.netblue.bruce.cluster.Cluster>();
+    private String includeTable;
+    private String columnRules;
+    private com.netblue.bruce.cluster.Node upstream;
+
+    private static final String DEFAULT_TABLE_MATCH = ".*";
+}
@@ -0,0 +1,316 @@
+/*
+ * Bruce - A PostgreSQL Database Replication System
+ *
+ * Portions Copyright (c) 2007, Connexus Corporation
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without a written
+ * agreement is hereby granted, provided that the above copyright notice and
+ * this paragraph and the following two paragraphs appear in all copies.
+ *
+ * IN NO EVENT SHALL CONNEXUS CORPORATION BE LIABLE TO ANY PARTY FOR DIRECT,
+ * INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST
+ * PROFITS, ARISING OUT OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION,
+ * EVEN IF CONNEXUS CORPORATION HAS BEEN ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * CONNEXUS CORPORATION SPECIFICALLY DISCLAIMS ANY WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE. THE SOFTWARE PROVIDED HEREUNDER IS ON AN "AS IS"
+ * BASIS, AND CONNEXUS CORPORATION HAS NO OBLIGATIONS TO PROVIDE MAINTENANCE,
+ * SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+*/
+package com.netblue.bruce.cluster.jdbc;
+
+import org.apache.log4j.Logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * A snapshot of cluster topologies, with the topology version of each, that can be saved to and loaded from a local
+ * file.  The file starts with a format version, the length of its contents and their CRC32.  A file with the wrong
+ * format, a short read or a checksum mismatch is rejected as a whole.  Files are written to a temporary file first,
+ * then renamed over the old one, so a crash while saving leaves the previous file intact.
+ *
+ * @version $Id$
+ */
+class TopologyCache
+{
+    TopologyCache()
+    {
+    }
+
+    /**
+     * Records <code>cluster</code>, with its nodes, at topology <code>version</code>
+     */
+    void put(com.netblue.bruce.cluster.Cluster cluster, long version)
+    {
+        clusters.put(cluster.getName(), cluster);
+        versions.put(cluster.getName(), version);
+    }
+
+    /** @return the clusters, keyed by name */
+    Map<String, com.netblue.bruce.cluster.Cluster> getClusters()
+    {
+        return clusters;
+    }
+
+    /** @return the topology version a cluster was recorded at, or null if it was not */
+    Long getVersion(String name)
+    {
+        return versions.get(name);
+    }
+
+    /**
+     * Writes this cache to <code>file</code>, replacing what it held
+     *
+     * @throws IOException if the file cannot be written. The previous file, if any, is left as it was.
+     */
+    void save(File file) throws IOException
+    {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        final LinkedHashSet<com.netblue.bruce.cluster.Node> nodes = new LinkedHashSet<com.netblue.bruce.cluster.Node>();
+        for (com.netblue.bruce.cluster.Cluster cluster : clusters.values())
+        {
+            if (cluster.getMaster() != null)
+            {
+                addNode(nodes, cluster.getMaster());
+            }
+            for (com.netblue.bruce.cluster.Node slave : cluster.getSlaves())
+            {
+                addNode(nodes, slave);
+            }
+        }
+        out.writeInt(nodes.size());
+        for (com.netblue.bruce.cluster.Node node : nodes)
+        {
+            out.writeLong(node.getId());
+            writeString(out, node.getName());
+            writeString(out, node.getUri());
+            out.writeBoolean(node.isAvailable());
+            writeString(out, node.getIncludeTable());
+            writeString(out, node.getColumnRules());
+            writeId(out, node.getUpstream() == null ? null : node.getUpstream().getId());
+        }
+        out.writeInt(clusters.size());
+        for (com.netblue.bruce.cluster.Cluster cluster : clusters.values())
+        {
+            out.writeLong(cluster.getId());
+            writeString(out, cluster.getName());
+            out.writeLong(versions.get(cluster.getName()));
+            writeId(out, cluster.getMaster() == null ? null : cluster.getMaster().getId());
+            final Set<com.netblue.bruce.cluster.Node> slaves = cluster.getSlaves();
+            out.writeInt(slaves.size());
+            for (com.netblue.bruce.cluster.Node slave : slaves)
+            {
+                out.writeLong(slave.getId());
+            }
+        }
+        out.close();
+        final CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+
+        final File temporary = new File(file.getPath() + ".tmp");
+        final DataOutputStream fileOut = new DataOutputStream(new FileOutputStream(temporary));
+        try
+        {
+            fileOut.writeInt(MAGIC);
+            fileOut.writeInt(FORMAT_VERSION);
+            fileOut.writeInt(bytes.size());
+            fileOut.writeLong(crc.getValue());
+            bytes.writeTo(fileOut);
+            fileOut.flush();
+        }
+        finally
+        {
+            fileOut.close();
+        }
+        if (!temporary.renameTo(file))
+        {
+            // Not atomic on every platform, but the checksum still catches a torn file
+            file.delete();
+            if (!temporary.renameTo(file))
+            {
+                throw new IOException("Unable to rename " + temporary + " to " + file);
+            }
+        }
+        LOGGER.debug("Saved " + clusters.size() + " cluster(s) and " + nodes.size() + " node(s) to " + file);
+    }
+
+    /**
+     * Reads a cache saved by {@link #save(File)}
+     *
+     * @return the cache, or null if <code>file</code> does not exist, is of another format, or is damaged
+     */
+    static TopologyCache load(File file)
+    {
+        if (!file.exists())
+        {
+            LOGGER.info("No topology cache at " + file);
+            return null;
+        }
+        try
+        {
+            final DataInputStream fileIn = new DataInputStream(new FileInputStream(file));
+            final byte[] contents;
+            final long checksum;
+            try
+            {
+                if (fileIn.readInt() != MAGIC || fileIn.readInt() != FORMAT_VERSION)
+                {
+                    LOGGER.warn("Ignoring topology cache " + file + " of an unknown format");
+                    return null;
+                }
+                final int length = fileIn.readInt();
+                if (length < 0 || length > file.length())
+                {
+                    LOGGER.warn("Ignoring topology cache " + file + ": bad length " + length);
+                    return null;
+                }
+                contents = new byte[length];
+                checksum = fileIn.readLong();
+                fileIn.readFully(contents);
+            }
+            finally
+            {
+                fileIn.close();
+            }
+            final CRC32 crc = new CRC32();
+            crc.update(contents);
+            if (crc.getValue() != checksum)
+            {
+                LOGGER.warn("Ignoring topology cache " + file + ": checksum mismatch");
+                return null;
+            }
+            return read(new DataInputStream(new ByteArrayInputStream(contents)));
+        }
+        catch (IOException e)
+        {
+            LOGGER.warn("Ignoring unreadable topology cache " + file, e);
+            return null;
+        }
+        catch (RuntimeException e)
+        {
+            LOGGER.warn("Ignoring inconsistent topology cache " + file, e);
+            return null;
+        }
+    }
+
+    private static TopologyCache read(DataInputStream in) throws IOException
+    {
+        final HashMap<Long, Node> nodes = new HashMap<Long, Node>();
+        final HashMap<Long, Long> upstreams = new HashMap<Long, Long>();
+        for (int i = in.readInt(); i > 0; i--)
+        {
+            final Node node = new Node(in.readLong());
+            node.setName(readString(in));
+            node.setUri(readString(in));
+            node.setAvailable(in.readBoolean());
+            node.setIncludeTable(readString(in));
+            node.setColumnRules(readString(in));
+            final Long upstream = readId(in);
+            if (upstream != null)
+            {
+                upstreams.put(node.getId(), upstream);
+            }
+            nodes.put(node.getId(), node);
+        }
+        for (Map.Entry<Long, Long> upstream : upstreams.entrySet())
+        {
+            nodes.get(upstream.getKey()).setUpstream(nodes.get(upstream.getValue()));
+        }
+        final TopologyCache retVal = new TopologyCache();
+        for (int i = in.readInt(); i > 0; i--)
+        {
+            final Cluster cluster = new Cluster(in.readLong(), readString(in));
+            final long version = in.readLong();
+            final Long master = readId(in);
+            if (master != null)
+            {
+                cluster.setMaster(node(nodes, master));
+                cluster.addNode(node(nodes, master));
+            }
+            for (int j = in.readInt(); j > 0; j--)
+            {
+                cluster.addNode(node(nodes, in.readLong()));
+            }
+            retVal.put(cluster, version);
+        }
+        return retVal;
+    }
+
+    private static Node node(Map<Long, Node> nodes, long id)
+    {
+        final Node retVal = nodes.get(id);
+        if (retVal == null)
+        {
+            throw new IllegalStateException("No node " + id);
+        }
+        return retVal;
+    }
+
+    // Nodes are compared by id, as the same node may be a different object in each cluster
+    private static void addNode(Set<com.netblue.bruce.cluster.Node> nodes, com.netblue.bruce.cluster.Node node)
+    {
+        for (com.netblue.bruce.cluster.Node known : nodes)
+        {
+            if (known.getId().equals(node.getId()))
+            {
+                return;
+            }
+        }
+        nodes.add(node);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException
+    {
+        out.writeBoolean(value != null);
+        if (value != null)
+        {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException
+    {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeId(DataOutputStream out, Long id) throws IOException
+    {
+        out.writeBoolean(id != null);
+        if (id != null)
+        {
+            out.writeLong(id);
+        }
+    }
+
+    private static Long readId(DataInputStream in) throws IOException
+    {
+        return in.readBoolean() ? in.readLong() : null;
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(TopologyCache.class);
+    private final Map<String, com.netblue.bruce.cluster.Cluster> clusters =
+            new LinkedHashMap<String, com.netblue.bruce.cluster.Cluster>();
+    private final Map<String, Long> versions = new HashMap<String, Long>();
+
+    // "BRTC"
+    private static final int MAGIC = 0x42525443;
+    // Bump when the layout of the contents changes, so that older files are ignored rather than misread
+    private static final int FORMAT_VERSION = 2;
+}
@@ -24,6 +24,7 @@ package com.netblue.bruce.cluster.persistence;
 
 import com.netblue.bruce.cluster.Cluster;
 import com.netblue.bruce.cluster.ClusterChangeListener;
+import com.netblue.bruce.cluster.ColumnFilter;
 import org.apache.commons.lang.builder.EqualsBuilder;
 import org.apache.commons.lang.builder.HashCodeBuilder;
 import org.hibernate.annotations.ForeignKey;
@@ -81,7 +82,8 @@ class Node implements com.netblue.bruce.cluster.Node
      */
     public boolean isAvailable()
     {
-        return this.available;
+        // Nodes configured without saying are taken to be available
+        return this.available == null || this.available;
     }
 
     /**
@@ -182,6 +184,49 @@ class Node implements com.netblue.bruce.cluster.Node
         this.includeTable = regex;
     }
 
+    /**
+     * Gets the rules choosing which columns of each table are captured
+     *
+     * @return the rules, or null if every column is captured
+     */
+    public String getColumnRules()
+    {
+        return columnRules;
+    }
+
+    /**
+     * Sets the rules choosing which columns of each table are captured
+     *
+     * @param rules the rules, or null to capture every column
+     *
+     * @throws IllegalArgumentException if <code>rules</code> cannot be parsed
+     */
+    public void setColumnRules(String rules)
+    {
+        new ColumnFilter(rules);
+        this.columnRules = rules;
+    }
+
+    /**
+     * Gets the node this node replicates from
+     *
+     * @return the upstream node, or null to replicate from the master
+     */
+    public com.netblue.bruce.cluster.Node getUpstream()
+    {
+        return upstream;
+    }
+
+    /**
+     * Sets the node this node replicates from
+     *
+     * @param upstream the upstream node, or null to replicate from the master
+     */
+    public void setUpstream(com.netblue.bruce.cluster.Node upstream)
+    {
+        this.upstream = upstream;
+    }
+
     /**
      * Sets the user-friendly <code>name</code> for this <code>Node</code>
      *
@@ -201,6 +246,7 @@ class Node implements com.netblue.bruce.cluster.Node
                 .append(uri)
                 .append(available)
                 .append(includeTable)
+                .append(getUpstreamId())
                 .toHashCode();
     }
 
@@ -221,6 +267,7 @@ class Node implements com.netblue.bruce.cluster.Node
                 .append(uri, rhs.uri)
                 .append(available, rhs.available)
                 .append(includeTable, rhs.includeTable)
+                .append(getUpstreamId(), rhs.getUpstreamId())
                 .isEquals();
     }
 
@@ -231,9 +278,23 @@ class Node implements com.netblue.bruce.cluster.Node
         buffer.append("Name:\t" + getName());
         buffer.append("\n\tURL: " + getUri());
         buffer.append("\n\tInclude table: " + getIncludeTable());
+        if (columnRules != null)
+        {
+            buffer.append("\n\tColumn rules: " + columnRules);
+        }
+        if (upstream != null)
+        {
+            buffer.append("\n\tUpstream: " + upstream.getName());
+        }
         return buffer.toString();
     }
 
+    // Compare upstream nodes by id, so that a chain of nodes is not walked
+    private Long getUpstreamId()
+    {
+        return upstream == null ? null : upstream.getId();
+    }
+
     /**
      * Sets the ID for this node
      *
@@ -269,5 +330,13 @@ class Node implements com.netblue.bruce.cluster.Node
     @Lob
     private String includeTable;
 
+    @Lob
+    private String columnRules;
+
+    @ManyToOne(targetEntity = com.netblue.bruce.cluster.persistence.Node.class, fetch = FetchType.EAGER)
+    @JoinColumn(name = "upstream_node_id", nullable = true)
+    @ForeignKey(name = "upstream_node_id_fk")
+    private com.netblue.bruce.cluster.Node upstream;
+
     private static final String DEFAULT_TABLE_MATCH = ".*";
 }
@@ -24,7 +24,9 @@ package com.netblue.bruce.cluster.persistence;
 
 import com.netblue.bruce.cluster.Cluster;
 import com.netblue.bruce.cluster.ClusterFactory;
+import com.netblue.bruce.cluster.ClusterChangeListener;
 import com.netblue.bruce.cluster.ClusterInitializationException;
+import com.netblue.bruce.cluster.DefaultCluster;
 import org.apache.log4j.Logger;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
@@ -180,6 +182,76 @@ public class PersistentClusterFactory extends ClusterFactory
         return null;
     }
 
+    /**
+     * Gets a fingerprint of the nodes of a <code>Cluster</code>, computed by a single query against the configuration
+     * database
+     *
+     * @param name the name of the cluster
+     * @return the topology version
+     */
+    public long getTopologyVersion(String name)
+    {
+        Session session = null;
+        try
+        {
+            session = sessionFactory.openSession();
+            Object result = session.createSQLQuery(TOPOLOGY_VERSION_QUERY).setString(0, name).uniqueResult();
+            return result == null ? 0L : ((Number) result).longValue();
+        }
+        finally
+        {
+            if (session != null)
+            {
+                session.close();
+            }
+        }
+    }
+
+    /**
+     * Reloads a <code>Cluster</code> from the configuration database, and notifies the listeners of the previously
+     * loaded <code>Cluster</code> of what changed.  The listeners are carried over to the reloaded <code>Cluster</code>.
+     * If the cluster is no longer configured, the previously loaded <code>Cluster</code> is kept.
+     *
+     * @param name the name of the cluster
+     * @return the reloaded <code>Cluster</code> - never null
+     */
+    public synchronized Cluster refreshCluster(String name)
+    {
+        final Cluster oldCluster = CLUSTER_MAP.get(name);
+        if (oldCluster == null)
+        {
+            return getCluster(name);
+        }
+        Session session = null;
+        Cluster newCluster;
+        try
+        {
+            session = sessionFactory.openSession();
+            newCluster = (Cluster) session.createCriteria(com.netblue.bruce.cluster.persistence.Cluster.class)
+                    .add(Restrictions.eq("name", name)).uniqueResult();
+        }
+        finally
+        {
+            if (session != null)
+            {
+                session.close();
+            }
+        }
+        if (newCluster == null)
+        {
+            LOGGER.warn("Cluster " + name + " is no longer configured.  Keeping the last known topology.");
+            return oldCluster;
+        }
+        LOGGER.info("Reloading cluster: " + name);
+        for (ClusterChangeListener listener : new ArrayList<ClusterChangeListener>(oldCluster.getClusterChangeListeners()))
+        {
+            newCluster.addClusterChangeListener(listener);
+        }
+        CLUSTER_MAP.put(name, newCluster);
+        notifyChanges(oldCluster, (DefaultCluster) newCluster);
+        return newCluster;
+    }
+
     /**
      * Gets all <code>Cluster</code>s currently configured.
      *
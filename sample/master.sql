@@ -11,6 +11,11 @@ CREATE TRIGGER replication_test_t
     FOR EACH ROW
     EXECUTE PROCEDURE logtransactiontrigger();
 
+CREATE TRIGGER replication_test_f
+    AFTER INSERT OR DELETE OR UPDATE ON replication_test
+    FOR EACH STATEMENT
+    EXECUTE PROCEDURE flushcapturetrigger();
+
 CREATE TRIGGER replication_test_s
     BEFORE INSERT OR DELETE OR UPDATE ON replication_test
     FOR EACH STATEMENT
@@ -26,6 +26,9 @@ import org.apache.log4j.Logger;
 import static org.junit.Assert.*;
 import org.junit.*;
 
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
 import java.util.Random;
 
 public class BrucePropertiesTest
@@ -76,4 +79,42 @@ public class BrucePropertiesTest
             assertEquals(rndI, propI);
         }
     }
+
+    // System properties take precedence over the properties file
+    @Test public void testSystemPropertiesOverrideFile() throws IOException {
+        File file = File.createTempFile("bruce", ".properties");
+        FileWriter writer = new FileWriter(file);
+        writer.write("bruce.snapshotFrequency=500\nbruce.logSwitchDelay=1000\n");
+        writer.close();
+        System.setProperty("bruce.testPropertiesFileName", file.getPath());
+        System.setProperty("bruce.snapshotFrequency", "250");
+        try {
+            BruceProperties p = new BruceProperties("bruce.testPropertiesFileName", "none");
+            assertEquals(250, p.getIntProperty("bruce.snapshotFrequency", 0));
+            assertEquals(1000, p.getIntProperty("bruce.logSwitchDelay", 0));
+        } finally {
+            System.clearProperty("bruce.testPropertiesFileName");
+            System.clearProperty("bruce.snapshotFrequency");
+            file.delete();
+        }
+    }
+
+    // Test BruceProperties.forCluster. Overrides for the named cluster replace
+    // the general property, overrides for other clusters do not.
+    @Test public void testForCluster() {
+        BruceProperties p = new BruceProperties();
+        p.setProperty("bruce.snapshotFrequency", "1000");
+        p.setProperty("bruce.logSwitchDelay", "60000");
+        p.setProperty("bruce.clusters.orders.snapshotFrequency", "250");
+        p.setProperty("bruce.clusters.billing.snapshotFrequency", "5000");
+        BruceProperties orders = p.forCluster("orders");
+        assertEquals(250, orders.getIntProperty("bruce.snapshotFrequency", 0));
+        assertEquals(60000, orders.getIntProperty("bruce.logSwitchDelay", 0));
+        assertEquals(1000, p.getIntProperty("bruce.snapshotFrequency", 0));
+        BruceProperties other = p.forCluster("other");
+        assertEquals(1000, other.getIntProperty("bruce.snapshotFrequency", 0));
+        // A cluster named like a bruce.cluster.* property does not pick it up
+        p.setProperty("bruce.cluster.factory.class", "com.example.Factory");
+        assertNull(p.forCluster("factory").getProperty("bruce.class"));
+    }
 }
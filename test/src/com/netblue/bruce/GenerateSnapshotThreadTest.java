@@ -0,0 +1,75 @@
+/*
+ * Bruce - A PostgreSQL Database Replication System
+ *
+ * Portions Copyright (c) 2007, Connexus Corporation
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without a written
+ * agreement is hereby granted, provided that the above copyright notice and
+ * this paragraph and the following two paragraphs appear in all copies.
+ *
+ * IN NO EVENT SHALL CONNEXUS CORPORATION BE LIABLE TO ANY PARTY FOR DIRECT,
+ * INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST
+ * PROFITS, ARISING OUT OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION,
+ * EVEN IF CONNEXUS CORPORATION HAS BEEN ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * CONNEXUS CORPORATION SPECIFICALLY DISCLAIMS ANY WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE. THE SOFTWARE PROVIDED HEREUNDER IS ON AN "AS IS"
+ * BASIS, AND CONNEXUS CORPORATION HAS NO OBLIGATIONS TO PROVIDE MAINTENANCE,
+ * SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+*/
+package com.netblue.bruce;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the interval adaption of the GenerateSnapshotThread class. Does not need a database.
+ *
+ * @version $Id$
+ */
+public class GenerateSnapshotThreadTest {
+
+    @Before public void setupBefore() {
+	BruceProperties p = new BruceProperties();
+	p.setProperty("bruce.snapshotFrequency","1000");
+	p.setProperty("bruce.snapshotMinFrequency","250");
+	p.setProperty("bruce.snapshotMaxFrequency","8000");
+	p.setProperty("bruce.snapshotBusyRows","100");
+	gst = new GenerateSnapshotThread(p,null);
+    }
+
+    @Test public void testStartsAtSnapshotFrequency() {
+	assertEquals(1000,gst.getInterval());
+    }
+
+    @Test public void testBusySpeedsUpToFloor() {
+	assertEquals(500,gst.nextInterval(100L,false));
+	assertEquals(500,advance(1000L,false,1));
+	assertEquals(250,advance(1000L,false,5)); // Never below the floor
+    }
+
+    @Test public void testLaggingBacksOffToCeiling() {
+	assertEquals(2000,gst.nextInterval(1000L,true)); // Lag wins over write volume
+	assertEquals(8000,advance(0L,true,10)); // Never above the ceiling
+    }
+
+    @Test public void testQuietDriftsBackToSnapshotFrequency() {
+	advance(1000L,false,5);
+	assertEquals(1000,advance(10L,false,5));
+	advance(0L,true,5);
+	assertEquals(1000,advance(0L,false,5));
+    }
+
+    // Feed the same observation to the thread several times, as the run loop would
+    private int advance(long rowDelta, boolean lagging, int times) {
+	for (int i = 0; i < times; i++) {
+	    gst.setInterval(gst.nextInterval(rowDelta,lagging));
+	}
+	return gst.getInterval();
+    }
+
+    private GenerateSnapshotThread gst;
+}
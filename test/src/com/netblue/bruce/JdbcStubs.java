@@ -0,0 +1,152 @@
+/*
+ * Bruce - A PostgreSQL Database Replication System
+ *
+ * Portions Copyright (c) 2007, Connexus Corporation
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without a written
+ * agreement is hereby granted, provided that the above copyright notice and
+ * this paragraph and the following two paragraphs appear in all copies.
+ *
+ * IN NO EVENT SHALL CONNEXUS CORPORATION BE LIABLE TO ANY PARTY FOR DIRECT,
+ * INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST
+ * PROFITS, ARISING OUT OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION,
+ * EVEN IF CONNEXUS CORPORATION HAS BEEN ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * CONNEXUS CORPORATION SPECIFICALLY DISCLAIMS ANY WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE. THE SOFTWARE PROVIDED HEREUNDER IS ON AN "AS IS"
+ * BASIS, AND CONNEXUS CORPORATION HAS NO OBLIGATIONS TO PROVIDE MAINTENANCE,
+ * SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+*/
+package com.netblue.bruce;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A <code>DataSource</code> whose connections, statements and result sets do nothing but count the calls made
+ * on them, for tests that need no database. Every query returns a single row, whose numeric columns are 1.
+ *
+ * @version $Id$
+ */
+public class JdbcStubs
+{
+    /**
+     * @return a data source handing out a new stub connection each time
+     */
+    public DataSource getDataSource()
+    {
+        return (DataSource) stub(DataSource.class);
+    }
+
+    /**
+     * @param call the interface and method, for example <code>Connection.close</code>
+     * @return how many times <code>call</code> has been made on any of the stubs
+     */
+    public synchronized int count(String call)
+    {
+        final Integer retVal = calls.get(call);
+        return retVal == null ? 0 : retVal;
+    }
+
+    private synchronized void record(String call)
+    {
+        calls.put(call, count(call) + 1);
+    }
+
+    private Object stub(final Class<?> type)
+    {
+        return Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{type}, new InvocationHandler()
+        {
+            public Object invoke(Object proxy, Method method, Object[] args)
+            {
+                final String name = method.getName();
+                if (name.equals("equals"))
+                {
+                    return proxy == args[0];
+                }
+                if (name.equals("hashCode"))
+                {
+                    return System.identityHashCode(proxy);
+                }
+                if (name.equals("toString"))
+                {
+                    return type.getSimpleName();
+                }
+                record(type.getSimpleName() + "." + name);
+                if (name.equals("getConnection"))
+                {
+                    return stub(Connection.class);
+                }
+                if (name.equals("prepareStatement"))
+                {
+                    return stub(PreparedStatement.class);
+                }
+                if (name.equals("createStatement"))
+                {
+                    return stub(Statement.class);
+                }
+                if (name.equals("setSavepoint"))
+                {
+                    return stub(Savepoint.class);
+                }
+                if (name.equals("executeQuery"))
+                {
+                    return stub(ResultSet.class);
+                }
+                if (name.equals("next"))
+                {
+                    return rows++ == 0;
+                }
+                if (name.equals("setAutoCommit"))
+                {
+                    autoCommit = (Boolean) args[0];
+                    return null;
+                }
+                if (name.equals("getAutoCommit"))
+                {
+                    return autoCommit;
+                }
+                return defaultValue(method.getReturnType());
+            }
+
+            private int rows = 0;
+            private boolean autoCommit = true;
+        });
+    }
+
+    private static Object defaultValue(Class<?> type)
+    {
+        if (type == Boolean.TYPE)
+        {
+            return false;
+        }
+        if (type == Integer.TYPE)
+        {
+            return 1;
+        }
+        if (type == Long.TYPE)
+        {
+            return 1L;
+        }
+        if (type == Short.TYPE || type == Byte.TYPE || type == Double.TYPE || type == Float.TYPE ||
+            type == Character.TYPE)
+        {
+            throw new UnsupportedOperationException("Not stubbed: " + type);
+        }
+        return null;
+    }
+
+    private final Map<String, Integer> calls = new HashMap<String, Integer>();
+}
@@ -0,0 +1,136 @@
+/*
+ * Bruce - A PostgreSQL Database Replication System
+ *
+ * Portions Copyright (c) 2007, Connexus Corporation
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without a written
+ * agreement is hereby granted, provided that the above copyright notice and
+ * this paragraph and the following two paragraphs appear in all copies.
+ *
+ * IN NO EVENT SHALL CONNEXUS CORPORATION BE LIABLE TO ANY PARTY FOR DIRECT,
+ * INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST
+ * PROFITS, ARISING OUT OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION,
+ * EVEN IF CONNEXUS CORPORATION HAS BEEN ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * CONNEXUS CORPORATION SPECIFICALLY DISCLAIMS ANY WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE. THE SOFTWARE PROVIDED HEREUNDER IS ON AN "AS IS"
+ * BASIS, AND CONNEXUS CORPORATION HAS NO OBLIGATIONS TO PROVIDE MAINTENANCE,
+ * SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+*/
+package com.netblue.bruce;
+
+import com.netblue.bruce.cluster.Cluster;
+import com.netblue.bruce.cluster.ClusterFactory;
+import org.apache.commons.dbcp.BasicDataSource;
+import org.junit.*;
+import static com.netblue.bruce.TestDatabaseHelper.*;
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.sql.*;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Tests {@link LogMaintenanceThread}
+ * @version $Id$
+ */
+public class LogMaintenanceThreadTest {
+    @BeforeClass public static void setupBeforeClass() 
+	throws SQLException, IOException, IllegalAccessException, InterruptedException, InstantiationException {
+	for (String dbS : new String[]{"bruce_config","bruce_master","bruce_slave_1","bruce_slave_2"}) {
+	    createNamedTestDatabase(dbS);
+	}
+	for (String dbS : new String[]{"bruce_master","bruce_slave_1","bruce_slave_2"}) {
+	    BasicDataSource bds = createDataSource(buildUrl(dbS));
+	    try {
+		(new SchemaUnitTestsSQL()).buildDatabase(bds);
+	    } finally { bds.close(); }
+	}
+	// Master with two slaves, the second replicating from the first
+	com.netblue.bruce.admin.Main.main(new String[]{
+		"-data",getTestDataDir()+"/replicate-upstream-tests.xml",
+		"-initnodeschema",
+		"-initsnapshots","MASTER",
+		"-loadschema",
+		"-operation","CLEAN_INSERT",
+		"-url",buildUrl("bruce_config")
+	    });
+	System.setProperty("hibernate.connection.url",buildUrl("bruce_config"));
+	System.setProperty("hibernate.connection.username","bruce");
+	cf = ClusterFactory.getClusterFactory();
+	cl = cf.getCluster(CLUSTER_NAME);
+    }
+
+    @AfterClass public static void teardownAfterClass() {
+	cf.close();
+    }
+
+    // The one thread maintains the master and every slave, skipping a slave that is busy applying until it is
+    // done rather than waiting on it
+    @Test(timeout=120000) public void busySlave() throws SQLException, InterruptedException {
+	BruceProperties p = new BruceProperties();
+	p.setProperty("bruce.rotateTime","0");
+	p.setProperty("bruce.logSwitchDelay","0");
+	p.setProperty("bruce.logMaintenanceDelay","100");
+	p.setProperty("bruce.logMaintenanceLockWait","100");
+	PoolRegistry pools = new PoolRegistry(p);
+	SlaveFactory slaveFactory = new SlaveFactory(cl, pools, p, null);
+	try {
+	    slaveFactory.spawnSlaves();
+	    SlaveRunner busy = null;
+	    for (SlaveRunner runner : slaveFactory.getSlaveRunners()) {
+		if (runner.getNode().getName().equals("Cluster 0 - slave 1")) {
+		    busy = runner;
+		}
+	    }
+	    assertNotNull(busy);
+	    long master = logId("bruce_master");
+	    long slave1 = logId("bruce_slave_1");
+	    long slave2 = logId("bruce_slave_2");
+	    LogMaintenanceThread maintenance = new LogMaintenanceThread(p, slaveFactory, pools);
+	    Thread thread = new Thread(maintenance);
+	    Lock applyLock = busy.getApplyLock();
+	    applyLock.lock();
+	    try {
+		thread.start();
+		while (logId("bruce_master") == master || logId("bruce_slave_2") == slave2) {
+		    Thread.sleep(100L);
+		}
+		assertEquals("slave 1 is applying", slave1, logId("bruce_slave_1"));
+	    } finally {
+		applyLock.unlock();
+	    }
+	    while (logId("bruce_slave_1") == slave1) {
+		Thread.sleep(100L);
+	    }
+	    maintenance.shutdown();
+	    thread.interrupt();
+	    thread.join();
+	} finally {
+	    slaveFactory.shutdown();
+	    pools.close();
+	}
+    }
+
+    private long logId(String db) throws SQLException {
+	BasicDataSource ds = createDataSource(buildUrl(db));
+	try {
+	    Connection c = ds.getConnection();
+	    Statement s = c.createStatement();
+	    ResultSet r = executeQueryAndLog(s, "select max(id) from bruce.currentlog_"+cl.getId());
+	    r.next();
+	    long retVal = r.getLong(1);
+	    r.close();
+	    s.close();
+	    c.close();
+	    return retVal;
+	} finally { ds.close(); }
+    }
+
+    private static final String CLUSTER_NAME = "Cluster Un";
+    private static ClusterFactory cf;
+    private static Cluster cl;
+}
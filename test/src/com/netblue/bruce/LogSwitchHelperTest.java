@@ -0,0 +1,403 @@
+/*
+ * Bruce - A PostgreSQL Database Replication System
+ *
+ * Portions Copyright (c) 2007, Connexus Corporation
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without a written
+ * agreement is hereby granted, provided that the above copyright notice and
+ * this paragraph and the following two paragraphs appear in all copies.
+ *
+ * IN NO EVENT SHALL CONNEXUS CORPORATION BE LIABLE TO ANY PARTY FOR DIRECT,
+ * INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST
+ * PROFITS, ARISING OUT OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION,
+ * EVEN IF CONNEXUS CORPORATION HAS BEEN ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * CONNEXUS CORPORATION SPECIFICALLY DISCLAIMS ANY WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE. THE SOFTWARE PROVIDED HEREUNDER IS ON AN "AS IS"
+ * BASIS, AND CONNEXUS CORPORATION HAS NO OBLIGATIONS TO PROVIDE MAINTENANCE,
+ * SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+*/
+package com.netblue.bruce;
+
+import com.netblue.bruce.cluster.Cluster;
+import com.netblue.bruce.cluster.ClusterFactory;
+import org.apache.commons.dbcp.BasicDataSource;
+import org.junit.*;
+import static com.netblue.bruce.TestDatabaseHelper.*;
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.regex.Pattern;
+
+/**
+ * Tests the rotation, sealing and dropping of transaction and snapshot log tables by {@link LogSwitchHelper},
+ * and the tables {@link LogTableSelector} reads from once they are sealed
+ * @version $Id$
+ */
+public class LogSwitchHelperTest {
+    @BeforeClass public static void setupBeforeClass() 
+	throws SQLException, IllegalAccessException, InstantiationException, IOException,
+	       InterruptedException {
+	createNamedTestDatabase("bruce");
+	// Master only, with test1 captured
+	com.netblue.bruce.admin.Main.main(new String[]{
+		"-data",getTestDataDir() + "/master-self-slave-empty.xml",
+		"-initnodeschema",
+		"-loadschema",
+		"-operation", "CLEAN_INSERT",
+		"-url", buildUrl("bruce")});
+	System.setProperty("hibernate.connection.url",buildUrl("bruce"));
+	System.setProperty("hibernate.connection.username","bruce");
+	cf = ClusterFactory.getClusterFactory();
+	cl = cf.getCluster(CLUSTER_NAME);
+	mDS=createDataSource(cl.getMaster().getUri());
+	(new SchemaUnitTestsSQL()).buildDatabase(mDS);
+	(new SchemaUnitTestsTriggers()).buildDatabase(mDS);
+    }
+
+    @AfterClass public static void teardownAfterClass() throws SQLException {
+	mDS.close();
+	cf.close();
+    }
+
+    // A rotated table is sealed with the range it holds, and readers then only go to it for that range
+    @Test public void sealAcrossRotation() throws SQLException, InterruptedException {
+	LogSwitchHelper rotating = helper("bruce.rotateTime","0");
+	LogSwitchHelper steady = helper();
+	switchLogs(rotating);
+	long old = currentLogId();
+	long before = insertRow();
+	logSnapshot();
+	switchLogs(rotating);
+	long current = currentLogId();
+	assertTrue(current > old);
+	long after = insertRow();
+	logSnapshot();
+	// The first pass noted what to wait for, this one sees every writer to the old table finished
+	switchLogs(steady);
+	Connection c = mDS.getConnection();
+	try {
+	    Statement s = c.createStatement();
+	    ResultSet r = executeQueryAndLog(s, "select sealed, min_xaction, max_xaction, min_snapshot_id, "+
+					     "       max_snapshot_id from bruce.currentlog_"+cl.getId()+
+					     " where id = "+old);
+	    assertTrue(r.next());
+	    assertTrue("log table "+old+" should be sealed", r.getBoolean(1));
+	    assertTrue(r.getLong(2) <= before && before <= r.getLong(3));
+	    assertTrue(r.getLong(3) < after);
+	    assertTrue(r.getLong(4) <= r.getLong(5));
+	    r.close();
+	    r = executeQueryAndLog(s, "select sealed from bruce.currentlog_"+cl.getId()+" where id = "+current);
+	    assertTrue(r.next());
+	    assertFalse("the current log table should not be sealed", r.getBoolean(1));
+	    r.close();
+	    s.close();
+	    LogTableSelector selector = new LogTableSelector(cl.getId());
+	    ArrayList<Long> xids = xactions(selector.prepareTransactionQuery(c, after, after + 1));
+	    assertTrue(xids.contains(after));
+	    assertFalse(xids.contains(before));
+	    xids = xactions(selector.prepareTransactionQuery(c, before, before + 1));
+	    assertTrue(xids.contains(before));
+	    assertFalse(xids.contains(after));
+	    xids = xactions(selector.prepareTransactionQuery(c, before, after + 1));
+	    assertTrue(xids.contains(before) && xids.contains(after));
+	    // Snapshots come back in order across the boundary
+	    PreparedStatement ps = selector.prepareSnapshotQuery(c, 0L, Long.MAX_VALUE);
+	    r = ps.executeQuery();
+	    long last = 0L;
+	    int count = 0;
+	    while (r.next()) {
+		assertTrue(r.getLong("id") > last);
+		last = r.getLong("id");
+		count++;
+	    }
+	    r.close();
+	    ps.close();
+	    assertTrue(count >= 2);
+	} finally {
+	    c.close();
+	}
+    }
+
+    // A sealed table goes once the slowest slave is past everything in it, and not before
+    @Test public void slowestSlave() throws SQLException, InterruptedException {
+	long old = sealedTable();
+	LogSwitchHelper h = helper("bruce.minRetainTime","0");
+	long[] bounds = bounds(old);
+	h.setReplicationProgress(progress(bounds[1], bounds[0]));
+	switchLogs(h);
+	assertTrue("a slave has yet to apply transaction "+bounds[0], logTableExists(old));
+	h.setReplicationProgress(progress(bounds[1], bounds[0] + 1));
+	switchLogs(h);
+	assertFalse("every slave is past log table "+old, logTableExists(old));
+    }
+
+    // Slaves being past a table does not drop it before the minimum retention time
+    @Test public void minRetainTime() throws SQLException, InterruptedException {
+	long old = sealedTable();
+	LogSwitchHelper h = helper();
+	h.setReplicationProgress(progress(newestSnapshot()));
+	switchLogs(h);
+	assertTrue(logTableExists(old));
+	h = helper("bruce.minRetainTime","0");
+	h.setReplicationProgress(progress(newestSnapshot()));
+	switchLogs(h);
+	assertFalse(logTableExists(old));
+    }
+
+    // Past the retention time, a table goes whatever the slaves have done
+    @Test public void retainTime() throws SQLException, InterruptedException {
+	long old = sealedTable();
+	switchLogs(helper());
+	assertTrue(logTableExists(old));
+	switchLogs(helper("bruce.retainTime","0"));
+	assertFalse(logTableExists(old));
+    }
+
+    // Not even the retention time drops a table a resync has still to read
+    @Test public void resyncPin() throws SQLException, InterruptedException {
+	long old = sealedTable();
+	long[] bounds = bounds(old);
+	Connection c = mDS.getConnection();
+	try {
+	    Statement s = c.createStatement();
+	    ResultSet r = executeQueryAndLog(s, "select count(*) from pg_class c, pg_namespace n "+
+					     " where c.relnamespace = n.oid and n.nspname = 'bruce' "+
+					     "   and c.relname = 'resynctables'");
+	    r.next();
+	    if (r.getInt(1) == 0) {
+		executeAndLog(s, SlaveRunner.CREATE_RESYNC_TABLE);
+	    }
+	    r.close();
+	    executeAndLog(s, "insert into bruce.resynctables (clusterid, tabname, pin_xaction) values ("+
+			  cl.getId()+", 'public.test1', "+bounds[0]+")");
+	    switchLogs(helper("bruce.retainTime","0"));
+	    assertTrue("a resync has yet to read from transaction "+bounds[0], logTableExists(old));
+	    executeAndLog(s, "delete from bruce.resynctables where clusterid = "+cl.getId());
+	    switchLogs(helper("bruce.retainTime","0"));
+	    assertFalse(logTableExists(old));
+	    s.close();
+	} finally {
+	    c.close();
+	}
+    }
+
+    // A table rotates once it reaches the rotate size, however young it is
+    @Test public void rotateSize() throws SQLException, InterruptedException {
+	switchLogs(helper("bruce.rotateTime","0"));
+	long id = currentLogId();
+	LogSwitchHelper h = helper("bruce.rotateSize","1");
+	switchLogs(h);
+	assertEquals("an empty table is under a MB", id, currentLogId());
+	Connection c = mDS.getConnection();
+	try {
+	    Statement s = c.createStatement();
+	    executeAndLog(s, "insert into test1(c_text) select md5(i::text) from generate_series(1, 20000) i");
+	    s.close();
+	} finally {
+	    c.close();
+	}
+	switchLogs(h);
+	assertTrue("log table "+id+" is past a MB", currentLogId() > id);
+    }
+
+    // A table rotates once the statistics collector has counted the rotate row count of inserts into it
+    @Test public void rotateRows() throws SQLException, InterruptedException {
+	switchLogs(helper("bruce.rotateTime","0"));
+	long id = currentLogId();
+	LogSwitchHelper h = helper("bruce.rotateRows","10");
+	insertRow();
+	switchLogs(h);
+	assertEquals(id, currentLogId());
+	for (int i = 0; i < 10; i++) {
+	    insertRow();
+	}
+	// The collector reports a little behind
+	for (int retry = 0; retry < 20 && queryLong("select coalesce(sum(n_tup_ins),0) from pg_stat_user_tables "+
+						  " where schemaname = 'bruce' "+
+						  "   and relname = 'transactionlog_"+cl.getId()+"_"+id+"'") < 10; retry++) {
+	    Thread.sleep(500L);
+	}
+	switchLogs(h);
+	assertTrue("log table "+id+" has had 11 rows inserted", currentLogId() > id);
+    }
+
+    // A long running query on the views delays their refresh, but neither the rotation nor the switch waits on it
+    @Test(timeout=60000) public void viewsUnderStatementTimeout() throws SQLException, InterruptedException {
+	LogSwitchHelper h = helper("bruce.rotateTime","0","bruce.logSwitchDDLTimeout","500");
+	switchLogs(h);
+	Connection reader = mDS.getConnection();
+	try {
+	    reader.setAutoCommit(false);
+	    Statement s = reader.createStatement();
+	    executeQueryAndLog(s, "select count(*) from bruce.transactionlog_"+cl.getId()).close();
+	    long start = System.currentTimeMillis();
+	    switchLogs(h);
+	    assertTrue("the switch should give up on the views", System.currentTimeMillis() - start < 30000L);
+	    long id = currentLogId();
+	    assertFalse("the view cannot be replaced while it is read", viewReads(id));
+	    reader.rollback();
+	    s.close();
+	} finally {
+	    reader.close();
+	}
+	long id = currentLogId();
+	switchLogs(helper());
+	assertTrue("the view is replaced on the next switch", viewReads(id));
+    }
+
+    private boolean viewReads(long id) throws SQLException {
+	Connection c = mDS.getConnection();
+	try {
+	    Statement s = c.createStatement();
+	    ResultSet r = executeQueryAndLog(s, "select pg_get_viewdef('bruce.transactionlog_"+cl.getId()+
+					     "'::regclass)");
+	    r.next();
+	    boolean retVal = Pattern.compile("transactionlog_"+cl.getId()+"_"+id+"\\b").matcher(r.getString(1)).find();
+	    r.close();
+	    s.close();
+	    return retVal;
+	} finally {
+	    c.close();
+	}
+    }
+
+    // Rotates twice around a captured row, and seals the table holding it. Returns that table's id.
+    private long sealedTable() throws SQLException, InterruptedException {
+	LogSwitchHelper rotating = helper("bruce.rotateTime","0");
+	switchLogs(rotating);
+	long retVal = currentLogId();
+	insertRow();
+	logSnapshot();
+	switchLogs(rotating);
+	logSnapshot();
+	switchLogs(helper());
+	assertEquals(1L, queryLong("select count(*) from bruce.currentlog_"+cl.getId()+
+				   " where sealed and id = "+retVal));
+	return retVal;
+    }
+
+    // The highest transaction and snapshot ids held by a sealed log table
+    private long[] bounds(long id) throws SQLException {
+	return new long[]{
+	    queryLong("select max_xaction from bruce.currentlog_"+cl.getId()+" where id = "+id),
+	    queryLong("select max_snapshot_id from bruce.currentlog_"+cl.getId()+" where id = "+id)};
+    }
+
+    private boolean logTableExists(long id) throws SQLException {
+	return queryLong("select count(*) from pg_class c, pg_namespace n "+
+			 " where c.relnamespace = n.oid and n.nspname = 'bruce' "+
+			 "   and c.relname = 'transactionlog_"+cl.getId()+"_"+id+"'") > 0;
+    }
+
+    private Snapshot newestSnapshot() throws SQLException {
+	Connection c = mDS.getConnection();
+	try {
+	    PreparedStatement ps = new LogTableSelector(cl.getId()).prepareNextSnapshotQuery(c, 0L);
+	    ResultSet r = ps.executeQuery();
+	    assertTrue(r.next());
+	    Snapshot retVal = new Snapshot(r.getLong("id"),
+					   new TransactionID(r.getLong("min_xaction")),
+					   new TransactionID(r.getLong("max_xaction")),
+					   r.getString("outstanding_xactions"));
+	    r.close();
+	    ps.close();
+	    return retVal;
+	} finally {
+	    c.close();
+	}
+    }
+
+    private static ReplicationProgress progress(long snapshotId, long minXid) {
+	return progress(new Snapshot(snapshotId, new TransactionID(minXid), new TransactionID(minXid + 1), ""));
+    }
+
+    private static ReplicationProgress progress(final Snapshot slowest) {
+	return new ReplicationProgress() {
+	    public Snapshot getSlowestProcessedSnapshot() {
+		return slowest;
+	    }
+	};
+    }
+
+    // A helper that switches on every call, keeps every table, and otherwise uses the given properties
+    private LogSwitchHelper helper(String... keyValues) {
+	BruceProperties p = new BruceProperties();
+	p.setProperty("bruce.logSwitchDelay","0");
+	p.setProperty("bruce.minRetainTime","100000");
+	p.setProperty("bruce.retainTime","100000");
+	for (int i = 0; i < keyValues.length; i += 2) {
+	    p.setProperty(keyValues[i],keyValues[i+1]);
+	}
+	return new LogSwitchHelper(p,mDS,cl);
+    }
+
+    private void switchLogs(LogSwitchHelper helper) throws SQLException, InterruptedException {
+	// Switches are due once the (zero) delay has passed since the last one, and rotations once now() has moved
+	Thread.sleep(10L);
+	helper.doSwitch();
+    }
+
+    private long currentLogId() throws SQLException {
+	return queryLong("select max(id) from bruce.currentlog_"+cl.getId());
+    }
+
+    private void logSnapshot() throws SQLException {
+	queryLong("select 1 from bruce.logsnapshot()");
+    }
+
+    // Captures a row into the current transaction log table, in a transaction of its own
+    private long insertRow() throws SQLException {
+	Connection c = mDS.getConnection();
+	try {
+	    c.setAutoCommit(false);
+	    Statement s = c.createStatement();
+	    executeAndLog(s, "insert into test1(c_int) values (1)");
+	    ResultSet r = executeQueryAndLog(s, "select bruce.currentxaction()");
+	    r.next();
+	    long retVal = r.getLong(1);
+	    r.close();
+	    s.close();
+	    c.commit();
+	    return retVal;
+	} finally {
+	    c.close();
+	}
+    }
+
+    private long queryLong(String query) throws SQLException {
+	Connection c = mDS.getConnection();
+	try {
+	    Statement s = c.createStatement();
+	    ResultSet r = executeQueryAndLog(s, query);
+	    r.next();
+	    long retVal = r.getLong(1);
+	    r.close();
+	    s.close();
+	    return retVal;
+	} finally {
+	    c.close();
+	}
+    }
+
+    private ArrayList<Long> xactions(PreparedStatement ps) throws SQLException {
+	ArrayList<Long> retVal = new ArrayList<Long>();
+	ResultSet r = ps.executeQuery();
+	while (r.next()) {
+	    retVal.add(r.getLong("xaction"));
+	}
+	r.close();
+	ps.close();
+	return retVal;
+    }
+
+    private final static String CLUSTER_NAME = "Cluster Un";
+    private static BasicDataSource mDS;
+    private static Cluster cl;
+    private static ClusterFactory cf;
+}
@@ -163,6 +163,80 @@ public class PgExtensionTest {
 	logger.info("DELETEs successfuly replicated");
     }
 
+    @Test public void disabledFlushTrigger() throws SQLException {
+	insertBaseRows();
+	Connection c = mDS.getConnection();
+	try {
+	    Statement s = c.createStatement();
+	    try {
+		// With the statement flush disabled, the capture trigger must write each row itself
+		executeAndLog(s,"create trigger test1_flush after insert or delete or update on public.test1 "+
+			      "for each statement execute procedure bruce.flushcapturetrigger()");
+		executeAndLog(s,"alter table public.test1 disable trigger test1_flush");
+		try {
+		    executeAndLog(s,"update test1 set c_text = c_int");
+		    executeAndLog(s,"insert into test1(c_int) select c_int + 1 from test1");
+		} finally {
+		    executeAndLog(s,"drop trigger test1_flush on public.test1");
+		}
+	    } finally {
+		s.close();
+	    }
+	} finally {
+	    c.close();
+	}
+	applyLoggedTransactions();
+	testTestTablesEqual();
+    }
+
+    @Test public void inheritanceChild() throws SQLException {
+	insertBaseRows();
+	Connection c = mDS.getConnection();
+	try {
+	    Statement s = c.createStatement();
+	    try {
+		// A statement on test1 fires the child's row triggers, but not its statement flush
+		executeAndLog(s,"create table public.test1_child () inherits (public.test1)");
+		executeAndLog(s,"create trigger test1_child_t after insert or delete or update on public.test1_child "+
+			      "for each row execute procedure bruce.logtransactiontrigger()");
+		executeAndLog(s,"create trigger test1_child_flush after insert or delete or update on public.test1_child "+
+			      "for each statement execute procedure bruce.flushcapturetrigger()");
+		executeAndLog(s,"insert into test1_child(c_int) select c_int + 1 from only test1");
+		executeAndLog(s,"update test1 set c_text = c_int");
+	    } finally {
+		s.close();
+	    }
+	} finally {
+	    c.close();
+	}
+	applyLoggedTransactions();
+	testTestTablesEqual();
+	c = mDS.getConnection();
+	try {
+	    Statement s = c.createStatement();
+	    try {
+		executeAndLog(s,"delete from test1 where tableoid = 'public.test1_child'::regclass");
+	    } finally {
+		s.close();
+	    }
+	} finally {
+	    c.close();
+	}
+	applyLoggedTransactions();
+	testTestTablesEqual();
+	c = mDS.getConnection();
+	try {
+	    Statement s = c.createStatement();
+	    try {
+		executeAndLog(s,"drop table public.test1_child");
+	    } finally {
+		s.close();
+	    }
+	} finally {
+	    c.close();
+	}
+    }
+
     private void insertBaseRows() throws SQLException {
 	int rowsToTest = 10;
 	Connection c = mDS.getConnection();
@@ -0,0 +1,72 @@
+/*
+ * Bruce - A PostgreSQL Database Replication System
+ *
+ * Portions Copyright (c) 2007, Connexus Corporation
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without a written
+ * agreement is hereby granted, provided that the above copyright notice and
+ * this paragraph and the following two paragraphs appear in all copies.
+ *
+ * IN NO EVENT SHALL CONNEXUS CORPORATION BE LIABLE TO ANY PARTY FOR DIRECT,
+ * INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST
+ * PROFITS, ARISING OUT OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION,
+ * EVEN IF CONNEXUS CORPORATION HAS BEEN ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * CONNEXUS CORPORATION SPECIFICALLY DISCLAIMS ANY WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE. THE SOFTWARE PROVIDED HEREUNDER IS ON AN "AS IS"
+ * BASIS, AND CONNEXUS CORPORATION HAS NO OBLIGATIONS TO PROVIDE MAINTENANCE,
+ * SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+*/
+package com.netblue.bruce;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the PoolRegistry class. Pools are created lazily, so no database is needed.
+ *
+ * @version $Id$
+ */
+public class PoolRegistryTest {
+
+    @Before public void setupBefore() {
+	BruceProperties p = new BruceProperties();
+	p.setProperty("bruce.pool.fetch.maxActive","4");
+	p.setProperty("bruce.pool.snapshot.maxActive","1");
+	pools = new PoolRegistry(p);
+    }
+
+    @After public void teardownAfter() {
+	pools.close();
+    }
+
+    @Test public void testSamePoolPerUriAndRole() {
+	MeteredDataSource fetch = pools.getDataSource(MASTER,PoolRegistry.Role.FETCH);
+	assertSame(fetch,pools.getDataSource(MASTER,PoolRegistry.Role.FETCH));
+	assertNotSame(fetch,pools.getDataSource(MASTER,PoolRegistry.Role.SNAPSHOT));
+	assertNotSame(fetch,pools.getDataSource(SLAVE,PoolRegistry.Role.FETCH));
+    }
+
+    @Test public void testRoleLimits() {
+	assertEquals(4,pools.getDataSource(MASTER,PoolRegistry.Role.FETCH).getMaxActive());
+	assertEquals(1,pools.getDataSource(MASTER,PoolRegistry.Role.SNAPSHOT).getMaxActive());
+	pools.getDataSource(SLAVE,PoolRegistry.Role.APPLY);
+	assertEquals(5,pools.getMaxConnections(MASTER));
+	assertEquals(0,pools.getMaxConnections("jdbc:postgresql://localhost/unknown"));
+    }
+
+    @Test public void testStatistics() {
+	pools.getDataSource(MASTER,PoolRegistry.Role.FETCH);
+	pools.getDataSource(SLAVE,PoolRegistry.Role.APPLY);
+	assertEquals(2,pools.getStatistics().size());
+	assertTrue(pools.getStatistics().get(0).startsWith("FETCH "+MASTER));
+	assertEquals(0.0,pools.getDataSource(MASTER,PoolRegistry.Role.FETCH).getUtilisation(),0.0);
+    }
+
+    private static final String MASTER = "jdbc:postgresql://localhost/bruce_master";
+    private static final String SLAVE = "jdbc:postgresql://localhost/bruce_slave_1";
+    private PoolRegistry pools;
+}
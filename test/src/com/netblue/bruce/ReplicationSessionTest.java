@@ -0,0 +1,89 @@
+/*
+ * Bruce - A PostgreSQL Database Replication System
+ *
+ * Portions Copyright (c) 2007, Connexus Corporation
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without a written
+ * agreement is hereby granted, provided that the above copyright notice and
+ * this paragraph and the following two paragraphs appear in all copies.
+ *
+ * IN NO EVENT SHALL CONNEXUS CORPORATION BE LIABLE TO ANY PARTY FOR DIRECT,
+ * INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST
+ * PROFITS, ARISING OUT OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION,
+ * EVEN IF CONNEXUS CORPORATION HAS BEEN ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * CONNEXUS CORPORATION SPECIFICALLY DISCLAIMS ANY WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE. THE SOFTWARE PROVIDED HEREUNDER IS ON AN "AS IS"
+ * BASIS, AND CONNEXUS CORPORATION HAS NO OBLIGATIONS TO PROVIDE MAINTENANCE,
+ * SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+*/
+package com.netblue.bruce;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.sql.SQLException;
+
+/**
+ * Tests that a ReplicationSession keeps its connections across polls, and borrows fresh ones, which the pool
+ * validates, once invalidated after an error. No database is needed.
+ *
+ * @version $Id$
+ */
+public class ReplicationSessionTest {
+
+    @Before public void setupBefore() {
+	master = new JdbcStubs();
+	slave = new JdbcStubs();
+	session = new ReplicationSession(master.getDataSource(),slave.getDataSource(),SETUP,10);
+    }
+
+    @Test public void testKeepsConnections() throws SQLException {
+	StatementCache m = session.getMaster();
+	StatementCache s = session.getSlave();
+	session.endMasterTransaction();
+	assertSame(m,session.getMaster());
+	assertSame(s,session.getSlave());
+	assertEquals(1,master.count("DataSource.getConnection"));
+	assertEquals(1,slave.count("DataSource.getConnection"));
+	assertEquals("nothing is held open on the master between polls",1,master.count("Connection.rollback"));
+	assertEquals(0,master.count("Connection.close"));
+	// Setup is run once per borrowed connection
+	assertEquals(SETUP.length,slave.count("Statement.execute"));
+    }
+
+    @Test public void testInvalidate() throws SQLException {
+	StatementCache m = session.getMaster();
+	StatementCache s = session.getSlave();
+	m.prepareStatement("select 1");
+	session.invalidate();
+	assertEquals(1,master.count("Connection.close"));
+	assertEquals(1,slave.count("Connection.close"));
+	assertEquals("cached statements go with their connection",1,master.count("PreparedStatement.close"));
+	assertNotSame(m,session.getMaster());
+	assertNotSame(s,session.getSlave());
+	assertEquals(2,master.count("DataSource.getConnection"));
+	assertEquals(2,slave.count("DataSource.getConnection"));
+	assertEquals(2*SETUP.length,slave.count("Statement.execute"));
+	session.close();
+    }
+
+    @Test public void testReleaseMaster() throws SQLException {
+	session.getMaster();
+	StatementCache s = session.getSlave();
+	session.releaseMaster();
+	assertEquals(1,master.count("Connection.close"));
+	assertSame("the slave connection is kept",s,session.getSlave());
+	session.getMaster();
+	assertEquals(2,master.count("DataSource.getConnection"));
+	session.close();
+    }
+
+    private static final String[] SETUP = {"create temp table t (i int)","set search_path = public"};
+    private JdbcStubs master;
+    private JdbcStubs slave;
+    private ReplicationSession session;
+}
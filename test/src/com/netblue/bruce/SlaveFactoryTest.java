@@ -24,6 +24,7 @@ package com.netblue.bruce;
 
 import com.netblue.bruce.cluster.Cluster;
 import com.netblue.bruce.cluster.ClusterFactory;
+import com.netblue.bruce.cluster.Node;
 import org.apache.commons.dbcp.BasicDataSource;
 import org.apache.log4j.Logger;
 import org.junit.*;
@@ -53,9 +54,10 @@ public class SlaveFactoryTest {
 		(new SchemaUnitTestsSQL()).buildDatabase(bds);
 	    } finally { bds.close(); }
 	}
-	// Create the cluster. Master with two slaves. Several tables in replication.
+	// Create the cluster. Master with two slaves, the second replicating from the first. Several tables in
+	// replication.
 	com.netblue.bruce.admin.Main.main(new String[]{
-		"-data",getTestDataDir()+"/replicate-unit-tests.xml",
+		"-data",getTestDataDir()+"/replicate-upstream-tests.xml",
 		"-initnodeschema",
 		"-initsnapshots","MASTER",
 		"-loadschema",
@@ -103,17 +105,76 @@ public class SlaveFactoryTest {
 	// should be valid
         assertFalse(threadGroup.isDestroyed());
 
-	// TODO:  This test is fragile and will probably break as we continue implementation
-	// Should contain the same number of threads as our cluster
+	// Slaves are scheduled on a pool rather than a thread each, so there should be a runner per slave in
+	// our cluster, and at least the snapshot watcher thread
 	final int slaveCount = cl.getSlaves().size();
-	Thread[] threads = new Thread[slaveCount];
-	threadGroup.enumerate(threads);
-	assertEquals(slaveCount, threadGroup.activeCount());
-	assertNotNull(threads[0]);
-	assertNotNull(threads[1]);
+	assertEquals(slaveCount, slaveFactory.getSlaveRunners().size());
+	assertTrue(threadGroup.activeCount() > 0);
 	slaveFactory.shutdown();
     }
 
+    // A slave may replicate from another slave, but not from the master by name, nor through a cycle
+    @Test public void testValidUpstream() {
+	SlaveFactory slaveFactory = new SlaveFactory(cl);
+	Node slave1 = getNode("Cluster 0 - slave 1");
+	Node slave2 = getNode("Cluster 0 - slave 2");
+	try {
+	    assertTrue(slaveFactory.validUpstream(slave1));
+	    assertTrue(slaveFactory.validUpstream(slave2));
+	    slave1.setUpstream(cl.getMaster());
+	    assertFalse(slaveFactory.validUpstream(slave1));
+	    slave1.setUpstream(slave2);
+	    assertFalse(slaveFactory.validUpstream(slave1));
+	    assertFalse(slaveFactory.validUpstream(slave2));
+	} finally {
+	    slave1.setUpstream(null);
+	    slaveFactory.shutdown();
+	}
+    }
+
+    // Log tables on a node may only go once the slaves fed from that node are past them
+    @Test public void testDownstreamProgress() {
+	Node slave1 = getNode("Cluster 0 - slave 1");
+	Node slave2 = getNode("Cluster 0 - slave 2");
+	assertSame(cl.getMaster(), SlaveRunner.getSourceNode(cl, slave1));
+	assertSame(slave1, SlaveRunner.getSourceNode(cl, slave2));
+
+	SlaveFactory slaveFactory = new SlaveFactory(cl);
+	try {
+	    // Nothing spawned, nothing known
+	    assertNull(slaveFactory.getDownstreamProgress(null).getSlowestProcessedSnapshot());
+	    slaveFactory.spawnSlaves();
+	    Snapshot slave1Snapshot = null;
+	    Snapshot slave2Snapshot = null;
+	    for (SlaveRunner runner : slaveFactory.getSlaveRunners()) {
+		if (runner.getNode().getId().equals(slave1.getId())) {
+		    slave1Snapshot = runner.getLastProcessedSnapshot();
+		} else {
+		    slave2Snapshot = runner.getLastProcessedSnapshot();
+		}
+	    }
+	    assertNotNull(slave1Snapshot);
+	    assertNotNull(slave2Snapshot);
+	    // The master only waits on slave 1, slave 1 on slave 2, and nothing is fed from slave 2
+	    assertEquals(slave1Snapshot.getId(),
+			 slaveFactory.getDownstreamProgress(null).getSlowestProcessedSnapshot().getId());
+	    assertEquals(slave2Snapshot.getId(),
+			 slaveFactory.getDownstreamProgress(slave1).getSlowestProcessedSnapshot().getId());
+	    assertNull(slaveFactory.getDownstreamProgress(slave2).getSlowestProcessedSnapshot());
+	} finally {
+	    slaveFactory.shutdown();
+	}
+    }
+
+    private static Node getNode(String name) {
+	for (Node slave : cl.getSlaves()) {
+	    if (slave.getName().equals(name)) {
+		return slave;
+	    }
+	}
+	throw new AssertionError("No slave named "+name);
+    }
+
     private final static Logger logger = Logger.getLogger(SetupClusterFromExistingDbAcceptanceTest.class);
     private final static String CLUSTER_NAME = "Cluster Un";
     private static ClusterFactory cf;
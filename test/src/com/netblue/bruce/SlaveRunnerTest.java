@@ -87,6 +87,76 @@ public class SlaveRunnerTest {
 	sr.processSnapshot(mns);
     }
     
+    // Snapshot log rows are copied to the slave in batches, and a batch boundary loses none of them
+    @Test public void testBatchedSnapshotCopy() throws SQLException, InstantiationException {
+	BruceProperties p = new BruceProperties();
+	p.setProperty("bruce.slaveSnapshotBatchSize","2");
+	long[] range = processSnapshots(p);
+	assertEquals(countSnapshots(cluster.getMaster(),range), countSnapshots(node,range));
+    }
+
+    // With bruce.slaveSnapshotLog=latest, the slave keeps only the snapshot it applied
+    @Test public void testLatestSnapshotOnly() throws SQLException, InstantiationException {
+	BruceProperties p = new BruceProperties();
+	p.setProperty("bruce.slaveSnapshotBatchSize","2");
+	p.setProperty("bruce.slaveSnapshotLog","latest");
+	long[] range = processSnapshots(p);
+	assertEquals(1L, countSnapshots(node,range));
+    }
+
+    // Logs several snapshots on the master and applies them at once. Returns the range of snapshot ids applied.
+    private long[] processSnapshots(BruceProperties p) throws SQLException, InstantiationException {
+	PoolRegistry pools = new PoolRegistry(p);
+	try {
+	    SlaveRunner sr = new SlaveRunner(pools,cluster,node,p);
+	    try {
+		long after = sr.getLastProcessedSnapshot().getId();
+		Connection c = masterDataSource.getConnection();
+		try {
+		    Statement s = c.createStatement();
+		    try {
+			for (int i = 0; i < 5; i++) {
+			    s.execute("select bruce.logsnapshot()");
+			}
+		    } finally {
+			s.close();
+		    }
+		} finally {
+		    c.close();
+		}
+		Snapshot mns = sr.getNextSnapshot();
+		assertNotNull("Next snapshot should not be null",mns);
+		sr.processSnapshot(mns);
+		return new long[]{after, mns.getId()};
+	    } finally {
+		sr.close();
+	    }
+	} finally {
+	    pools.close();
+	}
+    }
+
+    private long countSnapshots(Node n, long[] range) throws SQLException {
+	BasicDataSource ds = TestDatabaseHelper.createDataSource(n.getUri());
+	try {
+	    Connection c = ds.getConnection();
+	    try {
+		Statement s = c.createStatement();
+		ResultSet rs = s.executeQuery("select count(*) from bruce.snapshotlog_"+cluster.getId()+
+					      " where id > "+range[0]+" and id <= "+range[1]);
+		rs.next();
+		long retVal = rs.getLong(1);
+		rs.close();
+		s.close();
+		return retVal;
+	    } finally {
+		c.close();
+	    }
+	} finally {
+	    ds.close();
+	}
+    }
+
     private final static String CLUSTER_NAME = "Cluster Un";
     private final static Logger logger = Logger.getLogger(SlaveRunnerTest.class);
     private static BasicDataSource masterDataSource;
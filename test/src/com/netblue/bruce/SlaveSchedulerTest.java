@@ -0,0 +1,67 @@
+/*
+ * Bruce - A PostgreSQL Database Replication System
+ *
+ * Portions Copyright (c) 2007, Connexus Corporation
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without a written
+ * agreement is hereby granted, provided that the above copyright notice and
+ * this paragraph and the following two paragraphs appear in all copies.
+ *
+ * IN NO EVENT SHALL CONNEXUS CORPORATION BE LIABLE TO ANY PARTY FOR DIRECT,
+ * INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST
+ * PROFITS, ARISING OUT OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION,
+ * EVEN IF CONNEXUS CORPORATION HAS BEEN ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * CONNEXUS CORPORATION SPECIFICALLY DISCLAIMS ANY WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE. THE SOFTWARE PROVIDED HEREUNDER IS ON AN "AS IS"
+ * BASIS, AND CONNEXUS CORPORATION HAS NO OBLIGATIONS TO PROVIDE MAINTENANCE,
+ * SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+*/
+package com.netblue.bruce;
+
+import org.apache.commons.dbcp.BasicDataSource;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Tests how many master sessions the SlaveScheduler lets waiting slaves keep. No database is needed.
+ *
+ * @version $Id$
+ */
+public class SlaveSchedulerTest {
+
+    @Before public void setupBefore() {
+	BruceProperties p = new BruceProperties();
+	p.setProperty("bruce.slavePoolSize","8");
+	executor = SlaveScheduler.newExecutor(p,Executors.defaultThreadFactory());
+    }
+
+    @After public void teardownAfter() {
+	executor.shutdown();
+    }
+
+    @Test public void testNoSpareConnections() {
+	// The default FETCH pool: a connection per pool thread, and one for the watcher
+	assertEquals(0,SlaveScheduler.pinBudget(pool(9),executor));
+	assertEquals(0,SlaveScheduler.pinBudget(pool(4),executor));
+    }
+
+    @Test public void testSpareConnections() {
+	assertEquals(3,SlaveScheduler.pinBudget(pool(12),executor));
+	assertEquals(Integer.MAX_VALUE,SlaveScheduler.pinBudget(pool(-1),executor));
+    }
+
+    private static BasicDataSource pool(int maxActive) {
+	BasicDataSource retVal = new BasicDataSource();
+	retVal.setMaxActive(maxActive);
+	return retVal;
+    }
+
+    private ExecutorService executor;
+}
@@ -0,0 +1,78 @@
+/*
+ * Bruce - A PostgreSQL Database Replication System
+ *
+ * Portions Copyright (c) 2007, Connexus Corporation
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without a written
+ * agreement is hereby granted, provided that the above copyright notice and
+ * this paragraph and the following two paragraphs appear in all copies.
+ *
+ * IN NO EVENT SHALL CONNEXUS CORPORATION BE LIABLE TO ANY PARTY FOR DIRECT,
+ * INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST
+ * PROFITS, ARISING OUT OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION,
+ * EVEN IF CONNEXUS CORPORATION HAS BEEN ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * CONNEXUS CORPORATION SPECIFICALLY DISCLAIMS ANY WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE. THE SOFTWARE PROVIDED HEREUNDER IS ON AN "AS IS"
+ * BASIS, AND CONNEXUS CORPORATION HAS NO OBLIGATIONS TO PROVIDE MAINTENANCE,
+ * SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+*/
+package com.netblue.bruce;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+/**
+ * Tests the reuse and eviction of prepared statements by StatementCache. No database is needed.
+ *
+ * @version $Id$
+ */
+public class StatementCacheTest {
+
+    @Before public void setupBefore() throws SQLException {
+	stubs = new JdbcStubs();
+	connection = stubs.getDataSource().getConnection();
+	cache = new StatementCache(connection,2);
+    }
+
+    @Test public void testReuse() throws SQLException {
+	PreparedStatement ps = cache.prepareStatement("a");
+	assertSame(ps,cache.prepareStatement("a"));
+	assertEquals(1,stubs.count("Connection.prepareStatement"));
+	// Parameters bound by the first user are cleared for the second
+	assertEquals(1,stubs.count("PreparedStatement.clearParameters"));
+    }
+
+    @Test public void testEviction() throws SQLException {
+	PreparedStatement a = cache.prepareStatement("a");
+	PreparedStatement b = cache.prepareStatement("b");
+	cache.prepareStatement("a");
+	// b is now the least recently used, and makes way for c
+	cache.prepareStatement("c");
+	assertEquals(1,stubs.count("PreparedStatement.close"));
+	assertSame(a,cache.prepareStatement("a"));
+	assertNotSame(b,cache.prepareStatement("b"));
+	assertEquals(4,stubs.count("Connection.prepareStatement"));
+    }
+
+    @Test public void testClose() throws SQLException {
+	cache.prepareStatement("a");
+	cache.prepareStatement("b");
+	cache.close();
+	assertEquals(2,stubs.count("PreparedStatement.close"));
+	assertEquals("the connection is not the cache's to close",0,stubs.count("Connection.close"));
+	cache.prepareStatement("a");
+	assertEquals(3,stubs.count("Connection.prepareStatement"));
+    }
+
+    private JdbcStubs stubs;
+    private Connection connection;
+    private StatementCache cache;
+}
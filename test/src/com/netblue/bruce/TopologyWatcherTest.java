@@ -0,0 +1,133 @@
+/*
+ * Bruce - A PostgreSQL Database Replication System
+ *
+ * Portions Copyright (c) 2007, Connexus Corporation
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without a written
+ * agreement is hereby granted, provided that the above copyright notice and
+ * this paragraph and the following two paragraphs appear in all copies.
+ *
+ * IN NO EVENT SHALL CONNEXUS CORPORATION BE LIABLE TO ANY PARTY FOR DIRECT,
+ * INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST
+ * PROFITS, ARISING OUT OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION,
+ * EVEN IF CONNEXUS CORPORATION HAS BEEN ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * CONNEXUS CORPORATION SPECIFICALLY DISCLAIMS ANY WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE. THE SOFTWARE PROVIDED HEREUNDER IS ON AN "AS IS"
+ * BASIS, AND CONNEXUS CORPORATION HAS NO OBLIGATIONS TO PROVIDE MAINTENANCE,
+ * SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+*/
+package com.netblue.bruce;
+
+import com.netblue.bruce.cluster.Cluster;
+import com.netblue.bruce.cluster.ClusterFactory;
+import org.apache.commons.dbcp.BasicDataSource;
+import org.junit.*;
+import static com.netblue.bruce.TestDatabaseHelper.*;
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.sql.*;
+import java.util.HashSet;
+
+/**
+ * Tests that the TopologyWatcher picks up changes to the configuration database while the daemon runs
+ * @version $Id$
+ */
+public class TopologyWatcherTest {
+
+    @BeforeClass public static void setupBeforeClass() 
+	throws SQLException, IOException, IllegalAccessException, InterruptedException, InstantiationException {
+	for (String dbS : new String[]{"bruce_config","bruce_master","bruce_slave_1","bruce_slave_2"}) {
+	    createNamedTestDatabase(dbS);
+	}
+	for (String dbS : new String[]{"bruce_master","bruce_slave_1","bruce_slave_2"}) {
+	    BasicDataSource bds = createDataSource(buildUrl(dbS));
+	    try {
+		(new SchemaUnitTestsSQL()).buildDatabase(bds);
+	    } finally { bds.close(); }
+	}
+	// Master with two slaves, the second replicating from the first
+	com.netblue.bruce.admin.Main.main(new String[]{
+		"-data",getTestDataDir()+"/replicate-upstream-tests.xml",
+		"-initnodeschema",
+		"-initsnapshots","MASTER",
+		"-loadschema",
+		"-operation","CLEAN_INSERT",
+		"-url",buildUrl("bruce_config")
+	    });
+	System.setProperty("hibernate.connection.url",buildUrl("bruce_config"));
+	System.setProperty("hibernate.connection.username","bruce");
+	cf = ClusterFactory.getClusterFactory();
+	cl = cf.getCluster(CLUSTER_NAME);
+    }
+
+    @AfterClass public static void teardownAfterClass() {
+	cf.close();
+    }
+
+    // Two slaves added in one change, after the cluster was loaded but before the watcher first polls. The second
+    // replicates from the first, so it is only accepted if the first is looked for in the reloaded cluster.
+    @Test(timeout=60000) public void testChangeBeforeFirstPoll() throws SQLException, InterruptedException {
+	long version = cf.getTopologyVersion(CLUSTER_NAME);
+	SlaveFactory slaveFactory = new SlaveFactory(cl);
+	BruceProperties p = new BruceProperties();
+	p.setProperty("bruce.topologyPollInterval","100");
+	TopologyWatcher watcher = new TopologyWatcher(p, cf, slaveFactory, version);
+	Thread thread = new Thread(watcher);
+	try {
+	    config("insert into bruce.yf_node (id, available, name, uri, includetable, upstream_node_id) "+
+		   "select 4, true, 'Cluster 0 - slave 3', uri, includetable, 3 from bruce.yf_node where id = 2",
+		   "insert into bruce.yf_node (id, available, name, uri, includetable, upstream_node_id) "+
+		   "select 5, true, 'Cluster 0 - slave 4', uri, includetable, 4 from bruce.yf_node where id = 3",
+		   "insert into bruce.node_cluster (node_id, cluster_id) values (4, 1000)",
+		   "insert into bruce.node_cluster (node_id, cluster_id) values (5, 1000)");
+	    thread.start();
+	    // The factory's own slaves were never spawned, so only the added ones have runners
+	    while (slaveFactory.getSlaveRunners().size() < 2) {
+		Thread.sleep(100L);
+	    }
+	    assertEquals(4, slaveFactory.getCluster().getSlaves().size());
+	    HashSet<String> names = new HashSet<String>();
+	    for (SlaveRunner runner : slaveFactory.getSlaveRunners()) {
+		names.add(runner.getNode().getName());
+	    }
+	    assertTrue(names.toString(), names.contains("Cluster 0 - slave 3"));
+	    assertTrue(names.toString(), names.contains("Cluster 0 - slave 4"));
+	} finally {
+	    watcher.shutdown();
+	    thread.interrupt();
+	    thread.join();
+	    slaveFactory.shutdown();
+	    config("delete from bruce.node_cluster where node_id in (4, 5)",
+		   "delete from bruce.yf_node where id = 5",
+		   "delete from bruce.yf_node where id = 4");
+	}
+    }
+
+    // Runs the statements against the configuration database, in a single transaction
+    private static void config(String... statements) throws SQLException {
+	BasicDataSource ds = createDataSource(buildUrl("bruce_config"));
+	try {
+	    Connection c = ds.getConnection();
+	    try {
+		c.setAutoCommit(false);
+		Statement s = c.createStatement();
+		for (String statement : statements) {
+		    executeAndLog(s, statement);
+		}
+		s.close();
+		c.commit();
+	    } finally {
+		c.close();
+	    }
+	} finally { ds.close(); }
+    }
+
+    private static final String CLUSTER_NAME = "Cluster Un";
+    private static ClusterFactory cf;
+    private static Cluster cl;
+}
@@ -0,0 +1,150 @@
+/*
+ * Bruce - A PostgreSQL Database Replication System
+ *
+ * Portions Copyright (c) 2007, Connexus Corporation
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without a written
+ * agreement is hereby granted, provided that the above copyright notice and
+ * this paragraph and the following two paragraphs appear in all copies.
+ *
+ * IN NO EVENT SHALL CONNEXUS CORPORATION BE LIABLE TO ANY PARTY FOR DIRECT,
+ * INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST
+ * PROFITS, ARISING OUT OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION,
+ * EVEN IF CONNEXUS CORPORATION HAS BEEN ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * CONNEXUS CORPORATION SPECIFICALLY DISCLAIMS ANY WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE. THE SOFTWARE PROVIDED HEREUNDER IS ON AN "AS IS"
+ * BASIS, AND CONNEXUS CORPORATION HAS NO OBLIGATIONS TO PROVIDE MAINTENANCE,
+ * SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+*/
+package com.netblue.bruce;
+
+import static org.junit.Assert.*;
+import org.junit.*;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+/**
+ * Tests validating and pushing changes to {@link Tunables}, from the properties file and over JMX
+ * @version $Id$
+ */
+public class TunablesTest
+{
+    @Before public void setupBefore() throws IOException {
+        file = File.createTempFile("bruce", ".properties");
+        write("bruce.snapshotFrequency=500\n");
+        properties = new BruceProperties();
+        properties.setProperty("bruce.propertiesFileName", file.getPath());
+        properties.setProperty("bruce.rotateTime", "60");
+        tunables = new Tunables(properties);
+    }
+
+    @After public void teardownAfter() {
+        file.delete();
+    }
+
+    // The file's tunables apply from the start, and are pushed on registration
+    @Test public void testStartup() {
+        assertEquals("500", properties.getProperty("bruce.snapshotFrequency"));
+        Recorder recorder = new Recorder();
+        tunables.register(null, recorder);
+        assertEquals(1, recorder.calls);
+        assertEquals(500, recorder.last.getIntProperty("bruce.snapshotFrequency", 0));
+    }
+
+    // Changes in the file are pushed, invalid values are ignored, and removed tunables go back to their startup values
+    @Test public void testReload() throws IOException {
+        Recorder recorder = new Recorder();
+        tunables.register(null, recorder);
+        write("bruce.snapshotFrequency=250\nbruce.rotateTime=30\nbruce.unrelated=1\n");
+        tunables.reload();
+        assertEquals(2, recorder.calls);
+        assertEquals(250, recorder.last.getIntProperty("bruce.snapshotFrequency", 0));
+        assertEquals(30, recorder.last.getIntProperty("bruce.rotateTime", 0));
+        assertNull(properties.getProperty("bruce.unrelated"));
+
+        write("bruce.snapshotFrequency=0\nbruce.rotateTime=30\n");
+        tunables.reload();
+        assertEquals(2, recorder.calls);
+        assertEquals("250", properties.getProperty("bruce.snapshotFrequency"));
+
+        write("");
+        tunables.reload();
+        assertEquals(3, recorder.calls);
+        assertNull(properties.getProperty("bruce.snapshotFrequency"));
+        assertEquals("60", properties.getProperty("bruce.rotateTime"));
+    }
+
+    // A tunable set on the command line is not overridden by the file
+    @Test public void testSystemPropertyWins() throws IOException {
+        System.setProperty("bruce.logSwitchDelay", "30000");
+        try {
+            write("bruce.logSwitchDelay=1000\n");
+            properties = new BruceProperties();
+            properties.setProperty("bruce.propertiesFileName", file.getPath());
+            tunables = new Tunables(properties);
+            assertEquals("30000", properties.getProperty("bruce.logSwitchDelay"));
+            write("bruce.logSwitchDelay=2000\n");
+            tunables.reload();
+            assertEquals("30000", properties.getProperty("bruce.logSwitchDelay"));
+        } finally {
+            System.clearProperty("bruce.logSwitchDelay");
+        }
+    }
+
+    // Cluster overrides reach the tunables of that cluster alone
+    @Test public void testClusterOverride() {
+        Recorder orders = new Recorder();
+        Recorder other = new Recorder();
+        tunables.register("orders", orders);
+        tunables.register("other", other);
+        tunables.setProperty("bruce.clusters.orders.pool.statisticsInterval", "1000");
+        assertEquals(1000, orders.last.getIntProperty("bruce.pool.statisticsInterval", 0));
+        assertEquals(0, other.last.getIntProperty("bruce.pool.statisticsInterval", 0));
+    }
+
+    @Test public void testSetProperty() {
+        Recorder recorder = new Recorder();
+        tunables.register(null, recorder);
+        tunables.setProperty("bruce.slaveSnapshotBatchSize", " 100 ");
+        assertEquals(100, recorder.last.getIntProperty("bruce.slaveSnapshotBatchSize", 0));
+        tunables.setProperty("bruce.slaveSnapshotBatchSize", "100");
+        assertEquals(2, recorder.calls);
+        try {
+            tunables.setProperty("bruce.slaveSnapshotBatchSize", "none");
+            fail("Accepted a batch size that is not a number");
+        } catch (IllegalArgumentException e) { }
+        try {
+            tunables.setProperty("bruce.jdbcDriverName", "org.example.Driver");
+            fail("Accepted a property that is not a tunable");
+        } catch (IllegalArgumentException e) { }
+        tunables.unregister(recorder);
+        tunables.setProperty("bruce.slaveSnapshotBatchSize", "200");
+        assertEquals(2, recorder.calls);
+    }
+
+    private void write(String contents) throws IOException {
+        FileWriter writer = new FileWriter(file);
+        writer.write(contents);
+        writer.close();
+    }
+
+    private static class Recorder implements Tunable {
+        public void tune(BruceProperties p) {
+            calls++;
+            last = p;
+        }
+
+        int calls = 0;
+        BruceProperties last;
+    }
+
+    private File file;
+    private BruceProperties properties;
+    private Tunables tunables;
+}
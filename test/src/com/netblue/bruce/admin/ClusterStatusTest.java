@@ -0,0 +1,57 @@
+/*
+ * Bruce - A PostgreSQL Database Replication System
+ *
+ * Portions Copyright (c) 2007, Connexus Corporation
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without a written
+ * agreement is hereby granted, provided that the above copyright notice and
+ * this paragraph and the following two paragraphs appear in all copies.
+ *
+ * IN NO EVENT SHALL CONNEXUS CORPORATION BE LIABLE TO ANY PARTY FOR DIRECT,
+ * INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST
+ * PROFITS, ARISING OUT OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION,
+ * EVEN IF CONNEXUS CORPORATION HAS BEEN ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * CONNEXUS CORPORATION SPECIFICALLY DISCLAIMS ANY WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE. THE SOFTWARE PROVIDED HEREUNDER IS ON AN "AS IS"
+ * BASIS, AND CONNEXUS CORPORATION HAS NO OBLIGATIONS TO PROVIDE MAINTENANCE,
+ * SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+*/
+package com.netblue.bruce.admin;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+
+/**
+ * Tests how {@link com.netblue.bruce.admin.ClusterStatus} prints node statuses
+ * @version $Id$
+ */
+public class ClusterStatusTest {
+
+    @Before public void setupBefore() {
+	statuses = new ArrayList<ClusterStatus.NodeStatus>();
+	statuses.add(new ClusterStatus.NodeStatus("Cluster \"0\"","master",true,null));
+	statuses.add(new ClusterStatus.NodeStatus("Cluster \"0\"","slave\\1",false,"master"));
+    }
+
+    @Test public void testJson() {
+	String json = ClusterStatus.toJson(statuses);
+	assertTrue(json, json.startsWith("[\n  {\"cluster\": \"Cluster \\\"0\\\"\", \"node\": \"master\", \"role\": \"master\", "+
+					 "\"upstream\": null, \"error\": null, \"snapshotId\": null"));
+	assertTrue(json, json.contains("\"node\": \"slave\\\\1\", \"role\": \"slave\", \"upstream\": \"master\""));
+	assertTrue(json, json.endsWith("}\n]\n"));
+    }
+
+    @Test public void testText() {
+	String text = ClusterStatus.toText(statuses);
+	assertTrue(text, text.startsWith("Cluster [Cluster \"0\"]\n  Master master\n"));
+	assertTrue(text, text.contains("  Slave  slave\\1 (from master)\n    applied snapshot: ?, ? behind, lag ?s\n"));
+    }
+
+    private ArrayList<ClusterStatus.NodeStatus> statuses;
+}
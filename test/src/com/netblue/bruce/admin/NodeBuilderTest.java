@@ -0,0 +1,118 @@
+/*
+ * Bruce - A PostgreSQL Database Replication System
+ *
+ * Portions Copyright (c) 2007, Connexus Corporation
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without a written
+ * agreement is hereby granted, provided that the above copyright notice and
+ * this paragraph and the following two paragraphs appear in all copies.
+ *
+ * IN NO EVENT SHALL CONNEXUS CORPORATION BE LIABLE TO ANY PARTY FOR DIRECT,
+ * INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST
+ * PROFITS, ARISING OUT OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION,
+ * EVEN IF CONNEXUS CORPORATION HAS BEEN ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * CONNEXUS CORPORATION SPECIFICALLY DISCLAIMS ANY WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE. THE SOFTWARE PROVIDED HEREUNDER IS ON AN "AS IS"
+ * BASIS, AND CONNEXUS CORPORATION HAS NO OBLIGATIONS TO PROVIDE MAINTENANCE,
+ * SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+*/
+package com.netblue.bruce.admin;
+
+import com.netblue.bruce.SchemaUnitTestsSQL;
+import com.netblue.bruce.cluster.Cluster;
+import com.netblue.bruce.cluster.ClusterFactory;
+import com.netblue.bruce.cluster.Node;
+import org.apache.commons.dbcp.BasicDataSource;
+import org.junit.*;
+import static com.netblue.bruce.TestDatabaseHelper.*;
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashSet;
+
+/**
+ * Tests {@link com.netblue.bruce.admin.NodeBuilder}
+ * @version $Id$
+ */
+public class NodeBuilderTest {
+
+    @BeforeClass public static void setupBeforeClass() 
+	throws SQLException, IOException, IllegalAccessException, InterruptedException, InstantiationException {
+	for (String dbS : new String[]{"bruce_config","bruce_master","bruce_slave_1"}) {
+	    createNamedTestDatabase(dbS);
+	}
+	for (String dbS : new String[]{"bruce_master","bruce_slave_1"}) {
+	    BasicDataSource bds = createDataSource(buildUrl(dbS));
+	    try {
+		(new SchemaUnitTestsSQL()).buildDatabase(bds);
+	    } finally { bds.close(); }
+	}
+	// The second slave's database is missing, so it cannot be prepared
+	Connection c = getAdminDataSource().getConnection();
+	Statement s = c.createStatement();
+	try {
+	    executeAndLog(s, "drop database bruce_slave_2");
+	} catch (SQLException e) {
+	    // Not there to begin with
+	}
+	s.close();
+	c.close();
+	// Nodes are prepared by the test, not by loading the configuration
+	com.netblue.bruce.admin.Main.main(new String[]{
+		"-data",getTestDataDir()+"/replicate-upstream-tests.xml",
+		"-loadschema",
+		"-operation","CLEAN_INSERT",
+		"-url",buildUrl("bruce_config")
+	    });
+	System.setProperty("hibernate.connection.url",buildUrl("bruce_config"));
+	System.setProperty("hibernate.connection.username","bruce");
+	cf = ClusterFactory.getClusterFactory();
+	cl = cf.getCluster(CLUSTER_NAME);
+    }
+
+    @AfterClass public static void teardownAfterClass() throws SQLException, InterruptedException {
+	cf.close();
+	createNamedTestDatabase("bruce_slave_2");
+    }
+
+    // A slave that fails is reported once every node has been tried, and does not keep the others from being
+    // prepared
+    @Test public void testFailedSlave() throws IOException, SQLException {
+	HashSet<Node> nodes = new HashSet<Node>(cl.getSlaves());
+	nodes.add(cl.getMaster());
+	try {
+	    new NodeBuilder(nodes, Options.SnapshotInitialization.NONE).buildNodes();
+	    fail("Preparing a slave without a database should fail");
+	} catch (SQLException e) {
+	    assertTrue(e.getMessage(), e.getMessage().contains("Unable to prepare 1 node(s)"));
+	    assertTrue(e.getMessage(), e.getMessage().contains("slave Cluster 0 - slave 2 of cluster " + CLUSTER_NAME));
+	}
+	BasicDataSource slave = createDataSource(buildUrl("bruce_slave_1"));
+	try {
+	    Connection c = slave.getConnection();
+	    Statement s = c.createStatement();
+	    ResultSet rs = executeQueryAndLog(s, "select count(*) from bruce.slavesnapshotstatus");
+	    assertTrue(rs.next());
+	    rs.close();
+	    rs = executeQueryAndLog(s, "select count(*) from pg_trigger t, pg_class c " +
+				    " where t.tgrelid = c.oid and c.relname = 'test1' and t.tgname like '%deny%'");
+	    assertTrue(rs.next());
+	    assertTrue("The healthy slave should have its deny triggers", rs.getInt(1) > 0);
+	    rs.close();
+	    s.close();
+	    c.close();
+	} finally { slave.close(); }
+    }
+
+    private static final String CLUSTER_NAME = "Cluster Un";
+    private static ClusterFactory cf;
+    private static Cluster cl;
+}
@@ -0,0 +1,286 @@
+/*
+ * Bruce - A PostgreSQL Database Replication System
+ *
+ * Portions Copyright (c) 2007, Connexus Corporation
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without a written
+ * agreement is hereby granted, provided that the above copyright notice and
+ * this paragraph and the following two paragraphs appear in all copies.
+ *
+ * IN NO EVENT SHALL CONNEXUS CORPORATION BE LIABLE TO ANY PARTY FOR DIRECT,
+ * INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST
+ * PROFITS, ARISING OUT OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION,
+ * EVEN IF CONNEXUS CORPORATION HAS BEEN ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * CONNEXUS CORPORATION SPECIFICALLY DISCLAIMS ANY WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE. THE SOFTWARE PROVIDED HEREUNDER IS ON AN "AS IS"
+ * BASIS, AND CONNEXUS CORPORATION HAS NO OBLIGATIONS TO PROVIDE MAINTENANCE,
+ * SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+*/
+package com.netblue.bruce.admin;
+
+import com.netblue.bruce.BruceProperties;
+import com.netblue.bruce.PoolRegistry;
+import com.netblue.bruce.SchemaUnitTestsSQL;
+import com.netblue.bruce.SlaveRunner;
+import com.netblue.bruce.Snapshot;
+import com.netblue.bruce.cluster.Cluster;
+import com.netblue.bruce.cluster.ClusterFactory;
+import com.netblue.bruce.cluster.Node;
+import org.apache.commons.dbcp.BasicDataSource;
+import org.junit.*;
+import static com.netblue.bruce.TestDatabaseHelper.*;
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests {@link com.netblue.bruce.admin.SlaveProvisioner}
+ * @version $Id$
+ */
+public class SlaveProvisionerTest {
+
+    @BeforeClass public static void setupBeforeClass() 
+	throws SQLException, IOException, IllegalAccessException, InterruptedException, InstantiationException {
+	for (String dbS : new String[]{"bruce_config","bruce_master","bruce_slave_1","bruce_slave_2"}) {
+	    createNamedTestDatabase(dbS);
+	}
+	// Every node has a child table referencing a parent table
+	for (String dbS : new String[]{"bruce_master","bruce_slave_1","bruce_slave_2"}) {
+	    BasicDataSource bds = createDataSource(buildUrl(dbS));
+	    try {
+		(new SchemaUnitTestsSQL()).buildDatabase(bds);
+		Connection c = bds.getConnection();
+		Statement s = c.createStatement();
+		executeAndLog(s, "create table public.parent (id int primary key)");
+		executeAndLog(s, "create table public.child (id int primary key, parent_id int references public.parent)");
+		s.close();
+		c.close();
+	    } finally { bds.close(); }
+	}
+	// Rows the copy is to replace on the slave
+	BasicDataSource slave = createDataSource(buildUrl("bruce_slave_1"));
+	try {
+	    Connection c = slave.getConnection();
+	    Statement s = c.createStatement();
+	    executeAndLog(s, "insert into public.parent values (500)");
+	    executeAndLog(s, "insert into public.child values (500, 500)");
+	    s.close();
+	    c.close();
+	} finally { slave.close(); }
+	com.netblue.bruce.admin.Main.main(new String[]{
+		"-data",getTestDataDir()+"/replicate-unit-tests.xml",
+		"-initnodeschema",
+		"-initsnapshots","MASTER",
+		"-loadschema",
+		"-operation","CLEAN_INSERT",
+		"-url",buildUrl("bruce_config")
+	    });
+	BasicDataSource master = createDataSource(buildUrl("bruce_master"));
+	try {
+	    Connection c = master.getConnection();
+	    Statement s = c.createStatement();
+	    executeAndLog(s, "insert into public.parent select generate_series(1, 100)");
+	    executeAndLog(s, "insert into public.child select i, i from generate_series(1, 100) i");
+	    s.close();
+	    c.close();
+	} finally { master.close(); }
+	System.setProperty("hibernate.connection.url",buildUrl("bruce_config"));
+	System.setProperty("hibernate.connection.username","bruce");
+	cf = ClusterFactory.getClusterFactory();
+	cl = cf.getCluster(CLUSTER_NAME);
+	pools = new PoolRegistry(new BruceProperties());
+    }
+
+    @AfterClass public static void teardownAfterClass() {
+	pools.close();
+	cf.close();
+    }
+
+    // Tables are emptied together and refilled parents first, whatever order they are given in
+    @Test public void testProvision() throws SQLException {
+	checkProvision(new BruceProperties());
+    }
+
+    // As on a master older than 9.2, which cannot export snapshots, so copies one table at a time
+    @Test public void testSerialProvision() throws SQLException {
+	checkProvision(serial());
+    }
+
+    private void checkProvision(BruceProperties properties) throws SQLException {
+	Node slave1 = getNode("Cluster 0 - slave 1");
+	Snapshot snapshot = new SlaveProvisioner(properties, pools)
+	    .provision(cl, slave1, Arrays.asList("public.child", "public.parent"));
+	assertNotNull(snapshot);
+	BasicDataSource slave = createDataSource(slave1.getUri());
+	try {
+	    Connection c = slave.getConnection();
+	    Statement s = c.createStatement();
+	    assertEquals(100, count(s, "select count(*) from public.parent"));
+	    assertEquals(100, count(s, "select count(*) from public.child"));
+	    assertEquals(0, count(s, "select count(*) from public.parent where id = 500"));
+	    assertEquals(snapshot.getId().longValue(),
+			 count(s, "select master_id from bruce.slavesnapshotstatus where clusterid = "+cl.getId()));
+	    s.close();
+	    c.close();
+	} finally { slave.close(); }
+    }
+
+    // A resync splits tables with an integer key into ranges, which together hold every row
+    @Test public void testKeyRanges() throws SQLException {
+	BasicDataSource master = createDataSource(buildUrl("bruce_master"));
+	try {
+	    Connection c = master.getConnection();
+	    Statement s = c.createStatement();
+	    List<SlaveProvisioner.Chunk> chunks =
+		new SlaveProvisioner(new BruceProperties(), pools).keyRanges(s, "public.parent", 4);
+	    assertEquals(4, chunks.size());
+	    long rows = 0;
+	    for (SlaveProvisioner.Chunk chunk : chunks) {
+		rows += count(s, "select count(*) from "+chunk);
+	    }
+	    assertEquals(count(s, "select count(*) from public.parent"), rows);
+	    s.close();
+	    c.close();
+	} finally { master.close(); }
+    }
+
+    // The runner skips changes to tables registered for a resync, and a resync brings them back in line with the
+    // master while the runner replicates
+    @Test public void testResync() throws Exception {
+	final Node slave2 = getNode("Cluster 0 - slave 2");
+	SlaveRunner runner = new SlaveRunner(pools, cl, slave2);
+	BasicDataSource master = createDataSource(buildUrl("bruce_master"));
+	BasicDataSource slave = createDataSource(slave2.getUri());
+	try {
+	    Connection mc = master.getConnection();
+	    Statement ms = mc.createStatement();
+	    Connection sc = slave.getConnection();
+	    Statement ss = sc.createStatement();
+	    replicate(ms, runner);
+	    assertEquals(100, count(ss, "select count(*) from public.child"));
+
+	    executeAndLog(ss, "insert into bruce.resynctables (clusterid, tabname) values ("+cl.getId()+", 'public.child')");
+	    executeAndLog(ms, "update public.child set parent_id = 1 where id = 10");
+	    executeAndLog(ms, "insert into public.parent values (101)");
+	    replicate(ms, runner);
+	    assertEquals("Resyncing tables are skipped", 10, count(ss, "select parent_id from public.child where id = 10"));
+	    assertEquals(1, count(ss, "select count(*) from public.parent where id = 101"));
+	    executeAndLog(ss, "delete from bruce.resynctables");
+
+	    checkResync(new BruceProperties(), runner, ms, ss, 20, 2);
+	    assertEquals(1, count(ss, "select parent_id from public.child where id = 10"));
+	    ss.close();
+	    sc.close();
+	    ms.close();
+	    mc.close();
+	} finally {
+	    runner.close();
+	    slave.close();
+	    master.close();
+	}
+    }
+
+    // As on a master older than 9.2, which refills the table whole, from the transaction that logged its snapshot
+    @Test public void testSerialResync() throws Exception {
+	Node slave2 = getNode("Cluster 0 - slave 2");
+	SlaveRunner runner = new SlaveRunner(pools, cl, slave2);
+	BasicDataSource master = createDataSource(buildUrl("bruce_master"));
+	BasicDataSource slave = createDataSource(slave2.getUri());
+	try {
+	    Connection mc = master.getConnection();
+	    Statement ms = mc.createStatement();
+	    Connection sc = slave.getConnection();
+	    Statement ss = sc.createStatement();
+	    replicate(ms, runner);
+	    checkResync(serial(), runner, ms, ss, 30, 3);
+	    ss.close();
+	    sc.close();
+	    ms.close();
+	    mc.close();
+	} finally {
+	    runner.close();
+	    slave.close();
+	    master.close();
+	}
+    }
+
+    // The slave loses rows of public.child, and the master changes the row with the given id while a resync of the
+    // table runs. The resync puts the rows back and the change in.
+    private static void checkResync(BruceProperties properties, SlaveRunner runner, Statement ms, Statement ss,
+				    int id, int parentId) throws Exception {
+	final SlaveProvisioner provisioner = new SlaveProvisioner(properties, pools);
+	final Node slave = runner.getNode();
+	executeAndLog(ss, "select bruce.daemonmode()");
+	executeAndLog(ss, "delete from public.child where id > 50");
+	executeAndLog(ss, "select bruce.normalmode()");
+	final Exception[] failure = new Exception[1];
+	Thread resync = new Thread(new Runnable() {
+		public void run() {
+		    try {
+			provisioner.resync(cl, slave, Arrays.asList("public.child"));
+		    } catch (Exception e) {
+			failure[0] = e;
+		    }
+		}
+	    });
+	resync.start();
+	executeAndLog(ms, "update public.child set parent_id = "+parentId+" where id = "+id);
+	long deadline = System.currentTimeMillis() + 60000;
+	while (resync.isAlive() && System.currentTimeMillis() < deadline) {
+	    replicate(ms, runner);
+	    Thread.sleep(200);
+	}
+	assertFalse("Resync is stuck", resync.isAlive());
+	if (failure[0] != null) {
+	    throw failure[0];
+	}
+	replicate(ms, runner);
+	assertEquals(count(ms, "select count(*) from public.child"), count(ss, "select count(*) from public.child"));
+	assertEquals(parentId, count(ss, "select parent_id from public.child where id = "+id));
+	assertEquals(0, count(ss, "select count(*) from bruce.resynctables"));
+    }
+
+    // Log a snapshot on the master, and apply everything up to it to the slave
+    private static void replicate(Statement master, SlaveRunner runner) throws SQLException {
+	executeAndLog(master, "select bruce.logsnapshot()");
+	runner.replicate(1000);
+    }
+
+    private static BruceProperties serial() {
+	BruceProperties retVal = new BruceProperties();
+	retVal.setProperty("bruce.provisionExportSnapshot", "false");
+	return retVal;
+    }
+
+    private static long count(Statement s, String query) throws SQLException {
+	ResultSet rs = executeQueryAndLog(s, query);
+	assertTrue(rs.next());
+	long retVal = rs.getLong(1);
+	rs.close();
+	return retVal;
+    }
+
+    private static Node getNode(String name) {
+	for (Node slave : cl.getSlaves()) {
+	    if (slave.getName().equals(name)) {
+		return slave;
+	    }
+	}
+	throw new AssertionError("No slave named "+name);
+    }
+
+    private final static String CLUSTER_NAME = "Cluster Un";
+    private static ClusterFactory cf;
+    private static Cluster cl;
+    private static PoolRegistry pools;
+}
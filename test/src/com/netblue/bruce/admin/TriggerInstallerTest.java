@@ -0,0 +1,91 @@
+/*
+ * Bruce - A PostgreSQL Database Replication System
+ *
+ * Portions Copyright (c) 2007, Connexus Corporation
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without a written
+ * agreement is hereby granted, provided that the above copyright notice and
+ * this paragraph and the following two paragraphs appear in all copies.
+ *
+ * IN NO EVENT SHALL CONNEXUS CORPORATION BE LIABLE TO ANY PARTY FOR DIRECT,
+ * INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST
+ * PROFITS, ARISING OUT OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION,
+ * EVEN IF CONNEXUS CORPORATION HAS BEEN ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * CONNEXUS CORPORATION SPECIFICALLY DISCLAIMS ANY WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE. THE SOFTWARE PROVIDED HEREUNDER IS ON AN "AS IS"
+ * BASIS, AND CONNEXUS CORPORATION HAS NO OBLIGATIONS TO PROVIDE MAINTENANCE,
+ * SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+*/
+package com.netblue.bruce.admin;
+
+import com.netblue.bruce.BruceProperties;
+import com.netblue.bruce.cluster.ColumnFilter;
+import org.apache.commons.dbcp.BasicDataSource;
+import org.junit.*;
+import static com.netblue.bruce.TestDatabaseHelper.*;
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Tests {@link com.netblue.bruce.admin.TriggerInstaller}
+ * @version $Id$
+ */
+public class TriggerInstallerTest {
+
+    @Test public void testKind() {
+	assertEquals("replicate_me_tx", TriggerInstaller.Kind.TRANSACTION.getTriggerName("public.Replicate_Me"));
+	assertEquals("CREATE TRIGGER replicate_me_deny BEFORE INSERT OR DELETE OR UPDATE ON public.replicate_me "+
+		     "FOR EACH ROW EXECUTE PROCEDURE denyaccesstrigger()",
+		     TriggerInstaller.Kind.DENY.getCreateStatement("public.replicate_me"));
+	assertEquals("CREATE TRIGGER replicate_me_tx AFTER INSERT OR DELETE OR UPDATE ON public.replicate_me "+
+		     "FOR EACH ROW EXECUTE PROCEDURE logtransactiontrigger('exclude', 'audit''s')",
+		     TriggerInstaller.Kind.TRANSACTION.getCreateStatement("public.replicate_me",
+									  Arrays.asList("exclude","audit's")));
+	assertEquals("CREATE TRIGGER replicate_me_flush AFTER INSERT OR DELETE OR UPDATE ON public.replicate_me "+
+		     "FOR EACH STATEMENT EXECUTE PROCEDURE flushcapturetrigger()",
+		     TriggerInstaller.Kind.FLUSH.getCreateStatement("public.replicate_me"));
+    }
+
+    @Test public void testInstallOnlyMissing() throws IOException, SQLException, InterruptedException {
+	createNamedTestDatabase("bruce_triggers");
+	BasicDataSource bds = createDataSource(buildUrl("bruce_triggers"));
+	new ReplicationDatabaseBuilder().buildDatabase(bds);
+	Connection c = bds.getConnection();
+	Statement s = c.createStatement();
+	ArrayList<String> tables = new ArrayList<String>();
+	for (int i = 0; i < 3; i++) {
+	    executeAndLog(s, "create table public.replicate_me_"+i+" (id int primary key)");
+	    tables.add("public.replicate_me_"+i);
+	}
+	TriggerInstaller installer = new TriggerInstaller(new BruceProperties());
+	TriggerInstaller.Kind[] master = {TriggerInstaller.Kind.TRANSACTION, TriggerInstaller.Kind.FLUSH,
+					  TriggerInstaller.Kind.SNAPSHOT};
+	assertEquals(9, installer.install(bds, tables, master));
+	assertEquals("Nothing to do the second time", 0, installer.install(bds, tables, master));
+	// A missing trigger is added back, and one with the wrong function is replaced
+	executeAndLog(s, "drop trigger replicate_me_0_tx on public.replicate_me_0");
+	executeAndLog(s, "drop trigger replicate_me_1_sn on public.replicate_me_1");
+	executeAndLog(s, "create trigger replicate_me_1_sn before insert on public.replicate_me_1 "+
+		      "for each row execute procedure denyaccesstrigger()");
+	assertEquals(2, installer.install(bds, tables, master));
+	assertEquals(0, installer.install(bds, tables, master));
+	assertEquals(1, installer.install(bds, Arrays.asList("public.replicate_me_2"), TriggerInstaller.Kind.DENY));
+	// A capture trigger whose column arguments changed is replaced
+	ColumnFilter columns = new ColumnFilter("public\\.replicate_me_0=!payload");
+	assertEquals(1, installer.install(bds, tables, columns, master));
+	assertEquals(0, installer.install(bds, tables, columns, master));
+	s.close();
+	c.close();
+	bds.close();
+    }
+}
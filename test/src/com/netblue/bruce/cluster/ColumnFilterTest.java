@@ -0,0 +1,70 @@
+/*
+ * Bruce - A PostgreSQL Database Replication System
+ *
+ * Portions Copyright (c) 2007, Connexus Corporation
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without a written
+ * agreement is hereby granted, provided that the above copyright notice and
+ * this paragraph and the following two paragraphs appear in all copies.
+ *
+ * IN NO EVENT SHALL CONNEXUS CORPORATION BE LIABLE TO ANY PARTY FOR DIRECT,
+ * INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST
+ * PROFITS, ARISING OUT OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION,
+ * EVEN IF CONNEXUS CORPORATION HAS BEEN ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * CONNEXUS CORPORATION SPECIFICALLY DISCLAIMS ANY WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE. THE SOFTWARE PROVIDED HEREUNDER IS ON AN "AS IS"
+ * BASIS, AND CONNEXUS CORPORATION HAS NO OBLIGATIONS TO PROVIDE MAINTENANCE,
+ * SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+*/
+package com.netblue.bruce.cluster;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Tests parsing column rules with {@link com.netblue.bruce.cluster.ColumnFilter}
+ * @version $Id$
+ */
+public class ColumnFilterTest {
+
+    @Test public void testRules() {
+	ColumnFilter filter = new ColumnFilter("public\\.orders=!audit_json, payload_json; public\\..*=id,name ;");
+	assertEquals(Arrays.asList("exclude","audit_json","payload_json"),
+		     filter.getTriggerArguments("public.orders"));
+	assertEquals(Arrays.asList("include","id","name"), filter.getTriggerArguments("public.wide"));
+	assertTrue(filter.getTriggerArguments("other.orders").isEmpty());
+    }
+
+    @Test public void testCaptured() {
+	ColumnFilter filter = new ColumnFilter("public\\.orders=!audit_json; public\\.wide=id,name");
+	assertFalse(filter.isCaptured("public.orders", "audit_json"));
+	assertTrue(filter.isCaptured("public.orders", "total"));
+	assertTrue(filter.isCaptured("public.wide", "name"));
+	assertFalse(filter.isCaptured("public.wide", "total"));
+	assertTrue(filter.isCaptured("other.orders", "audit_json"));
+    }
+
+    @Test public void testNone() {
+	assertTrue(new ColumnFilter(null).getTriggerArguments("public.orders").isEmpty());
+	assertTrue(new ColumnFilter(" ").getTriggerArguments("public.orders").isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class) public void testNoColumns() {
+	new ColumnFilter("public\\.orders=!");
+    }
+
+    @Test(expected = IllegalArgumentException.class) public void testNoEquals() {
+	new ColumnFilter("public\\.orders");
+    }
+
+    @Test(expected = PatternSyntaxException.class) public void testBadPattern() {
+	new ColumnFilter("public\\.(orders=id");
+    }
+}
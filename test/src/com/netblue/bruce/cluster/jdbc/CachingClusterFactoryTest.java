@@ -0,0 +1,172 @@
+/*
+ * Bruce - A PostgreSQL Database Replication System
+ *
+ * Portions Copyright (c) 2007, Connexus Corporation
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without a written
+ * agreement is hereby granted, provided that the above copyright notice and
+ * this paragraph and the following two paragraphs appear in all copies.
+ *
+ * IN NO EVENT SHALL CONNEXUS CORPORATION BE LIABLE TO ANY PARTY FOR DIRECT,
+ * INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST
+ * PROFITS, ARISING OUT OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION,
+ * EVEN IF CONNEXUS CORPORATION HAS BEEN ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * CONNEXUS CORPORATION SPECIFICALLY DISCLAIMS ANY WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE. THE SOFTWARE PROVIDED HEREUNDER IS ON AN "AS IS"
+ * BASIS, AND CONNEXUS CORPORATION HAS NO OBLIGATIONS TO PROVIDE MAINTENANCE,
+ * SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+*/
+package com.netblue.bruce.cluster.jdbc;
+
+import com.netblue.bruce.BruceProperties;
+import com.netblue.bruce.cluster.ClusterChangeListener;
+import com.netblue.bruce.cluster.ClusterFactory;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Tests that {@link com.netblue.bruce.cluster.jdbc.CachingClusterFactory} serves cached clusters until the
+ * configuration database is reached, then swaps them for its own. The configuration database is stood in for by
+ * a factory holding a cluster in memory, so no database is needed.
+ * @version $Id$
+ */
+public class CachingClusterFactoryTest {
+
+    @Before public void setupBefore() throws IOException {
+	file = File.createTempFile("topology", ".cache");
+	TopologyCache cache = new TopologyCache();
+	cache.put(cluster(false), 42L);
+	cache.save(file);
+	StubClusterFactory.cluster = cluster(true);
+	StubClusterFactory.version = 43L;
+	ClusterFactory.setClusterFactoryClass(StubClusterFactory.class);
+    }
+
+    @After public void teardownAfter() throws ClassNotFoundException {
+	ClusterFactory.setClusterFactoryClass(Class.forName(ClusterFactory.DEFAULT_CLUSTER_NAME));
+	file.delete();
+    }
+
+    @Test(timeout=60000) public void testSwap() throws InterruptedException {
+	BruceProperties p = new BruceProperties();
+	p.setProperty("bruce.topologyCacheRetry","10");
+	CachingClusterFactory factory = new CachingClusterFactory(file, p);
+	try {
+	    com.netblue.bruce.cluster.Cluster cached = factory.getCluster(CLUSTER_NAME);
+	    assertEquals(1, cached.getSlaves().size());
+	    RecordingListener listener = new RecordingListener();
+	    cached.addClusterChangeListener(listener);
+	    // The cached version, until the configuration database is reached
+	    while (factory.getTopologyVersion(CLUSTER_NAME) != 43L) {
+		Thread.sleep(10L);
+	    }
+	    com.netblue.bruce.cluster.Cluster loaded = factory.refreshCluster(CLUSTER_NAME);
+	    assertSame(StubClusterFactory.cluster, loaded);
+	    assertSame(loaded, factory.getCluster(CLUSTER_NAME));
+	    assertTrue(loaded.getClusterChangeListeners().contains(listener));
+	    assertFalse(cached.getClusterChangeListeners().contains(listener));
+	    assertEquals(listener.events.toString(), 2, listener.events.size());
+	    assertTrue(listener.events.contains("disabled slave"));
+	    assertTrue(listener.events.contains("added new slave"));
+	    // Once swapped, the cluster is the configuration database's own, and a refresh is left to it
+	    assertSame(loaded, factory.refreshCluster(CLUSTER_NAME));
+	    assertEquals(2, listener.events.size());
+	} finally {
+	    factory.close();
+	}
+    }
+
+    // As cached, one available slave. As configured, that slave is disabled and another one added.
+    private static Cluster cluster(boolean configured) {
+	Node master = new Node(1L);
+	master.setName("master");
+	master.setUri("jdbc:postgresql://localhost:5432/bruce_master");
+	master.setAvailable(true);
+	Node slave = new Node(2L);
+	slave.setName("slave");
+	slave.setUri("jdbc:postgresql://localhost:5432/bruce_slave");
+	slave.setAvailable(!configured);
+	Cluster cluster = new Cluster(3L, CLUSTER_NAME);
+	cluster.setMaster(master);
+	cluster.addNode(master);
+	cluster.addNode(slave);
+	if (configured) {
+	    Node newSlave = new Node(4L);
+	    newSlave.setName("new slave");
+	    newSlave.setUri("jdbc:postgresql://localhost:5432/bruce_new_slave");
+	    newSlave.setAvailable(true);
+	    cluster.addNode(newSlave);
+	}
+	return cluster;
+    }
+
+    /**
+     * Stands in for the configuration database. Created by the caching factory through
+     * {@link ClusterFactory#getClusterFactory()}, so its cluster and version are static.
+     */
+    public static class StubClusterFactory extends ClusterFactory {
+	public void close() {}
+
+	public com.netblue.bruce.cluster.Cluster getCluster(String name) {
+	    return cluster;
+	}
+
+	public Set<com.netblue.bruce.cluster.Cluster> getAllClusters() {
+	    return new HashSet<com.netblue.bruce.cluster.Cluster>(Collections.singleton(cluster));
+	}
+
+	public com.netblue.bruce.cluster.Node getNode(String name) {
+	    return null;
+	}
+
+	public long getTopologyVersion(String name) {
+	    return version;
+	}
+
+	static volatile com.netblue.bruce.cluster.Cluster cluster;
+	static volatile long version;
+    }
+
+    private static class RecordingListener implements ClusterChangeListener {
+	public void slaveAdded(com.netblue.bruce.cluster.Node newSlave) {
+	    events.add("added "+newSlave.getName());
+	}
+
+	public void slaveRemoved(com.netblue.bruce.cluster.Node oldSlave) {
+	    events.add("removed "+oldSlave.getName());
+	}
+
+	public void slaveDisabled(com.netblue.bruce.cluster.Node slave) {
+	    events.add("disabled "+slave.getName());
+	}
+
+	public void slaveEnabled(com.netblue.bruce.cluster.Node slave) {
+	    events.add("enabled "+slave.getName());
+	}
+
+	public void masterReplaced(com.netblue.bruce.cluster.Node oldMaster, com.netblue.bruce.cluster.Node newMaster) {
+	    events.add("replaced "+oldMaster.getName());
+	}
+
+	public void masterUnavailable(com.netblue.bruce.cluster.Node master) {
+	    events.add("unavailable "+master.getName());
+	}
+
+	final List<String> events = new ArrayList<String>();
+    }
+
+    private static final String CLUSTER_NAME = "Cluster 0";
+    private File file;
+}
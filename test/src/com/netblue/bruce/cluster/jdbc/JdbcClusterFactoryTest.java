@@ -0,0 +1,106 @@
+/*
+ * Bruce - A PostgreSQL Database Replication System
+ *
+ * Portions Copyright (c) 2007, Connexus Corporation
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without a written
+ * agreement is hereby granted, provided that the above copyright notice and
+ * this paragraph and the following two paragraphs appear in all copies.
+ *
+ * IN NO EVENT SHALL CONNEXUS CORPORATION BE LIABLE TO ANY PARTY FOR DIRECT,
+ * INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST
+ * PROFITS, ARISING OUT OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION,
+ * EVEN IF CONNEXUS CORPORATION HAS BEEN ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * CONNEXUS CORPORATION SPECIFICALLY DISCLAIMS ANY WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE. THE SOFTWARE PROVIDED HEREUNDER IS ON AN "AS IS"
+ * BASIS, AND CONNEXUS CORPORATION HAS NO OBLIGATIONS TO PROVIDE MAINTENANCE,
+ * SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+*/
+package com.netblue.bruce.cluster.jdbc;
+
+import com.netblue.bruce.cluster.Cluster;
+import com.netblue.bruce.cluster.ClusterFactory;
+import com.netblue.bruce.cluster.Node;
+import com.netblue.bruce.cluster.persistence.PersistentClusterFactory;
+import org.junit.*;
+import static com.netblue.bruce.TestDatabaseHelper.*;
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.sql.*;
+import java.util.*;
+
+/**
+ * Tests that {@link com.netblue.bruce.cluster.jdbc.JdbcClusterFactory} reads the same topology as the persistent
+ * factory
+ * @version $Id$
+ */
+public class JdbcClusterFactoryTest {
+
+    @BeforeClass public static void setupBeforeClass() throws SQLException, InterruptedException {
+	createNamedTestDatabase("bruce_config");
+	// Master with two slaves, the second replicating from the first
+	com.netblue.bruce.admin.Main.main(new String[]{
+		"-data",getTestDataDir()+"/replicate-upstream-tests.xml",
+		"-loadschema",
+		"-operation","CLEAN_INSERT",
+		"-url",buildUrl("bruce_config")
+	    });
+    }
+
+    @Before public void setupBefore() {
+	System.setProperty("hibernate.connection.url",buildUrl("bruce_config"));
+	System.setProperty("hibernate.connection.username","bruce");
+    }
+
+    @Test public void testSameTopology() {
+	ClusterFactory persistent = new PersistentClusterFactory();
+	ClusterFactory jdbc = new JdbcClusterFactory();
+	try {
+	    assertEquals(persistent.getAllClusters().size(),jdbc.getAllClusters().size());
+	    for (Cluster expected : persistent.getAllClusters()) {
+		Cluster actual = jdbc.getCluster(expected.getName());
+		assertEquals(expected.getId(),actual.getId());
+		assertEquals(expected.getMaster().getId(),actual.getMaster().getId());
+		assertEquals(describe(expected.getSlaves()),describe(actual.getSlaves()));
+		assertEquals(persistent.getTopologyVersion(expected.getName()),jdbc.getTopologyVersion(expected.getName()));
+	    }
+	    Node master = persistent.getAllClusters().iterator().next().getMaster();
+	    assertEquals(master.getUri(),jdbc.getNode(master.getName()).getUri());
+	    assertNull(jdbc.getNode("No such node"));
+	    // The upstream node is read too
+	    Node slave2 = jdbc.getNode("Cluster 0 - slave 2");
+	    assertNotNull(slave2.getUpstream());
+	    assertEquals(jdbc.getNode("Cluster 0 - slave 1").getId(),slave2.getUpstream().getId());
+	    assertNull(jdbc.getNode("Cluster 0 - slave 1").getUpstream());
+	} finally {
+	    jdbc.close();
+	    persistent.close();
+	}
+    }
+
+    @Test public void testSelectedByProperty() throws IllegalAccessException, InstantiationException {
+	ClusterFactory.setClusterFactoryClass(JdbcClusterFactory.class);
+	try {
+	    ClusterFactory factory = ClusterFactory.getClusterFactory();
+	    assertEquals(JdbcClusterFactory.class,factory.getClass());
+	    factory.close();
+	} finally {
+	    ClusterFactory.setClusterFactoryClass(ClusterFactory.DEFAULT_CLUSTER_FACTORY_CLASS);
+	}
+    }
+
+    // Every field of every node, in a comparable form
+    private static Set<String> describe(Set<Node> nodes) {
+	TreeSet<String> retVal = new TreeSet<String>();
+	for (Node n : nodes) {
+	    retVal.add(n.getId()+" "+n.getName()+" "+n.getUri()+" "+n.isAvailable()+" "+n.getIncludeTable()+" "+
+		       (n.getUpstream() == null ? null : n.getUpstream().getId())+" "+n.getCluster().size());
+	}
+	return retVal;
+    }
+}
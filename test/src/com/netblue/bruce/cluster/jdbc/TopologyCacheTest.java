@@ -0,0 +1,97 @@
+/*
+ * Bruce - A PostgreSQL Database Replication System
+ *
+ * Portions Copyright (c) 2007, Connexus Corporation
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without a written
+ * agreement is hereby granted, provided that the above copyright notice and
+ * this paragraph and the following two paragraphs appear in all copies.
+ *
+ * IN NO EVENT SHALL CONNEXUS CORPORATION BE LIABLE TO ANY PARTY FOR DIRECT,
+ * INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST
+ * PROFITS, ARISING OUT OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION,
+ * EVEN IF CONNEXUS CORPORATION HAS BEEN ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * CONNEXUS CORPORATION SPECIFICALLY DISCLAIMS ANY WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE. THE SOFTWARE PROVIDED HEREUNDER IS ON AN "AS IS"
+ * BASIS, AND CONNEXUS CORPORATION HAS NO OBLIGATIONS TO PROVIDE MAINTENANCE,
+ * SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+*/
+package com.netblue.bruce.cluster.jdbc;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Tests saving and loading {@link com.netblue.bruce.cluster.jdbc.TopologyCache} files
+ * @version $Id$
+ */
+public class TopologyCacheTest {
+
+    @Before public void setupBefore() throws IOException {
+	file = File.createTempFile("topology", ".cache");
+	Node master = new Node(1L);
+	master.setName("master");
+	master.setUri("jdbc:postgresql://localhost:5432/bruce_master");
+	master.setAvailable(true);
+	Node slave = new Node(2L);
+	slave.setName("slave");
+	slave.setUri("jdbc:postgresql://localhost:5432/bruce_slave");
+	slave.setAvailable(false);
+	slave.setIncludeTable("test\\..*");
+	slave.setUpstream(master);
+	Cluster cluster = new Cluster(3L, "Cluster 0");
+	cluster.setMaster(master);
+	cluster.addNode(master);
+	cluster.addNode(slave);
+	cache = new TopologyCache();
+	cache.put(cluster, 42L);
+    }
+
+    @After public void teardownAfter() {
+	file.delete();
+    }
+
+    @Test public void testRoundTrip() throws IOException {
+	cache.save(file);
+	TopologyCache loaded = TopologyCache.load(file);
+	assertNotNull(loaded);
+	assertEquals(Long.valueOf(42L), loaded.getVersion("Cluster 0"));
+	com.netblue.bruce.cluster.Cluster cluster = loaded.getClusters().get("Cluster 0");
+	assertEquals(Long.valueOf(3L), cluster.getId());
+	assertEquals("master", cluster.getMaster().getName());
+	assertEquals(1, cluster.getSlaves().size());
+	com.netblue.bruce.cluster.Node slave = cluster.getSlaves().iterator().next();
+	assertEquals("slave", slave.getName());
+	assertEquals("jdbc:postgresql://localhost:5432/bruce_slave", slave.getUri());
+	assertFalse(slave.isAvailable());
+	assertEquals("test\\..*", slave.getIncludeTable());
+	assertSame(cluster.getMaster(), slave.getUpstream());
+    }
+
+    @Test public void testDamaged() throws IOException {
+	cache.save(file);
+	RandomAccessFile raf = new RandomAccessFile(file, "rw");
+	raf.seek(raf.length() - 1);
+	int last = raf.read();
+	raf.seek(raf.length() - 1);
+	raf.write(last ^ 0xff);
+	raf.close();
+	assertNull(TopologyCache.load(file));
+    }
+
+    @Test public void testMissing() {
+	file.delete();
+	assertNull(TopologyCache.load(file));
+    }
+
+    private File file;
+    private TopologyCache cache;
+}